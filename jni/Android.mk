@@ -4,5 +4,6 @@ include $(CLEAR_VARS)
 
 LOCAL_MODULE    := BodyJni
 LOCAL_SRC_FILES := BodyJni.c
+LOCAL_LDLIBS    := -lEGL
 
 include $(BUILD_SHARED_LIBRARY)
@@ -1 +1 @@
-APP_PLATFORM := android-8
\ No newline at end of file
+APP_PLATFORM := android-9
\ No newline at end of file
@@ -15,6 +15,10 @@
  */
 #include <jni.h>
 
+#include <EGL/egl.h>
+#include <GLES2/gl2.h>
+#include <GLES2/gl2ext.h>
+
 void Java_com_google_android_apps_body_BodyJni_setColorForIndices(
     JNIEnv *env, jclass c,
     jobject color_buf, jshort color,
@@ -30,3 +34,38 @@ void Java_com_google_android_apps_body_BodyJni_setColorForIndices(
       color_dest[index] = color;
   }
 }
+
+/* OES_vertex_array_object entry points, see initVertexArrays(). */
+static PFNGLGENVERTEXARRAYSOESPROC gen_vertex_arrays;
+static PFNGLBINDVERTEXARRAYOESPROC bind_vertex_array;
+static PFNGLDELETEVERTEXARRAYSOESPROC delete_vertex_arrays;
+
+jboolean Java_com_google_android_apps_body_BodyJni_initVertexArrays(
+    JNIEnv *env, jclass c) {
+  gen_vertex_arrays = (PFNGLGENVERTEXARRAYSOESPROC)
+      eglGetProcAddress("glGenVertexArraysOES");
+  bind_vertex_array = (PFNGLBINDVERTEXARRAYOESPROC)
+      eglGetProcAddress("glBindVertexArrayOES");
+  delete_vertex_arrays = (PFNGLDELETEVERTEXARRAYSOESPROC)
+      eglGetProcAddress("glDeleteVertexArraysOES");
+  return gen_vertex_arrays != NULL && bind_vertex_array != NULL &&
+      delete_vertex_arrays != NULL;
+}
+
+jint Java_com_google_android_apps_body_BodyJni_genVertexArray(
+    JNIEnv *env, jclass c) {
+  GLuint array = 0;
+  gen_vertex_arrays(1, &array);
+  return array;
+}
+
+void Java_com_google_android_apps_body_BodyJni_bindVertexArray(
+    JNIEnv *env, jclass c, jint array) {
+  bind_vertex_array(array);
+}
+
+void Java_com_google_android_apps_body_BodyJni_deleteVertexArray(
+    JNIEnv *env, jclass c, jint array) {
+  GLuint name = array;
+  delete_vertex_arrays(1, &name);
+}
@@ -0,0 +1,39 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body;
+
+import com.google.android.apps.body.tdl.Logger;
+
+import android.util.Log;
+
+/** The device's log: {@link Logger} on top of android.util.Log. */
+final class AndroidLogger implements Logger {
+    private static final String TAG = "Body";
+
+    public void d(String message) {
+        Log.d(TAG, message);
+    }
+
+    public void i(String message) {
+        Log.i(TAG, message);
+    }
+
+    public void w(String message) {
+        Log.w(TAG, message);
+    }
+
+    public void e(String message) {
+        Log.e(TAG, message);
+    }
+}
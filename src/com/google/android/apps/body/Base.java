@@ -13,29 +13,22 @@
 // limitations under the License.
 package com.google.android.apps.body;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 import android.content.Context;
 import android.util.Log;
 
 /**
  * A database that stores bounding boxes and search terms for entities.
+ * There's one per process, shared by the search provider and the views,
+ * see {@link #get}.
  */
 public class Base {
 
-    static private final char FIELD_SEPARATOR = ',';
-
     /**
      * Stores the bounding box of an entity.
      */
@@ -46,154 +39,147 @@ public class Base {
         String displayName;
     }
 
-    //List of entity names. The same as mEntityToName.values(), but uniq'd.
+    // The entity data, see EntityTable. Entity ids are its rows.
+    private EntityTable mTable;
+
+    // The search terms, see EntityTable.getNumSearchTerms().
     private List<String> mSearchList = new ArrayList<String>();
 
-    // FIXME: should map to Entity directly
-    private Map<String, List<String>> mSearchToEntity = new HashMap<String, List<String>>();
-
-    //Entity metadata (bounding box, center). FIXME: Make this an array instead?
-    private Map<String, EntityInfo> mEntities = new HashMap<String, EntityInfo>();
-
-
-    private void loadEntities(InputStream is) throws IOException {
-        BufferedReader reader= new BufferedReader(new InputStreamReader(is));
-        String line;
-
-        Set<String> uniqueDisplayNames = new HashSet<String>();
-
-        // TODO(dkogan): We're currently dropping entities with the same
-        // name on the floor (e.g. we keep only one rib). Need to come
-        // up with a better scheme so we can cycle through 'dups'.
-        while ((line = reader.readLine()) != null) {
-            String layer = line;
-            int layerId = Layers.fromName(layer);
-
-            while ((line = reader.readLine()) != null) {
-                if ("".equals(line))
-                    break;
-
-                // Using substring() instead of split() is about 30% faster.
-                // Explicitly use |new String()| because just substring() makes
-                // the substring a view of the original string, which wastes
-                // memory.
-                int startIndex = 0, endIndex = line.indexOf(FIELD_SEPARATOR);
-                String entityId = new String(line.substring(startIndex, endIndex));
-                startIndex = endIndex + 1;
-                endIndex = line.indexOf(FIELD_SEPARATOR, startIndex);
-                String entityName= new String(line.substring(startIndex, endIndex));
-
-                // Map of entity id to coordinate info (bbox, ctr).
-                EntityInfo entityInfo = parseEntityInfo(line, endIndex + 1);
-                entityInfo.layer = layerId;
-                entityInfo.displayName = entityName;
-                mEntities.put(entityId, entityInfo);
-
-                // Map of display name to entity id.
-                if (!uniqueDisplayNames.contains(entityName)) {
-                    mSearchList.add(entityName);
-                    uniqueDisplayNames.add(entityName);
-                    mSearchToEntity.put(entityName, new ArrayList<String>());
-                }
-                mSearchToEntity.get(entityName).add(entityId);
-            }
-        }
-    }
+    // Spatial index over the entities' bounding boxes.
+    private EntityBvh mEntityBvh;
 
-    // This is a simplified version of Float.parseFloat(). It doesn't support
-    // hex floats or exponents. Float.parseFloat() is slow in Android
-    // (see http://b/issue?id=4544814) -- using this function here makes
-    // entity loading 3.75x as fast.
-    // Based on http://bitplane.net/2010/08/java-float-fast-parser/, but with
-    // fewer charAt() calls (this made about a 20% difference).
-    private static float parseFloat(String f, int pos) {
-        final int len = f.length();
-        float ret = 0f;  // return value
-        boolean neg = false;  // true if part is a negative number
-
-        // sign
-        if (f.charAt(pos) == '-') { 
-            neg = true; 
-            pos++; 
-        }
+    private static Base sBase;
 
-        // integer part
-        for (; pos < len; pos++) {
-            char c = f.charAt(pos);
-            if (c > '9' || c < '0') break;
-            ret = ret*10 + (c - '0');
-        }
+    private Base() {
+    }
 
-        // decimal part
-        if (pos < len && f.charAt(pos) == '.') {
-            pos++;
-            float part = 0;
-            float mul = 1;
-            for (; pos < len; pos++) {
-                char c = f.charAt(pos);
-                if (c > '9' || c < '0') break;
-                part = part*10 + (c - '0'); 
-                mul *= 10;
-            }
-            ret = ret + part / mul;
+    /**
+     * @return The entity database of the process, loading it on first use.
+     *     Safe to call from any thread; callers wait while another thread
+     *     loads it.
+     */
+    static synchronized Base get(Context context) {
+        if (sBase == null) {
+            Base base = new Base();
+            base.loadMetadata(context.getApplicationContext());
+            sBase = base;
         }
-
-        return neg ? -ret : ret;
-    }
-
-    private EntityInfo parseEntityInfo(String line, int pos) {
-        EntityInfo result = new EntityInfo();
-        result.bblx = parseFloat(line, pos);
-        pos = line.indexOf(FIELD_SEPARATOR, pos + 1) + 1;
-        result.bbly = parseFloat(line, pos);
-        pos = line.indexOf(FIELD_SEPARATOR, pos + 1) + 1;
-        result.bblz = parseFloat(line, pos);
-        pos = line.indexOf(FIELD_SEPARATOR, pos + 1) + 1;
-        result.bbhx = parseFloat(line, pos);
-        pos = line.indexOf(FIELD_SEPARATOR, pos + 1) + 1;
-        result.bbhy = parseFloat(line, pos);
-        pos = line.indexOf(FIELD_SEPARATOR, pos + 1) + 1;
-        result.bbhz = parseFloat(line, pos);
-        return result;
+        return sBase;
     }
 
-    void loadMetadata(Context context) {
+    private void loadMetadata(Context context) {
         try {
             long start = System.nanoTime();
             Log.w("Body", "\nLoading entities");
-            InputStream is = context.getResources().openRawResource(R.raw.f_entities);
-            loadEntities(is);
+            mTable = EntityTable.get(context);
+            for (int i = 0; i < mTable.getNumSearchTerms(); ++i)
+                mSearchList.add(mTable.getDisplayName(mTable.getSearchRow(i)));
             Log.w("Body", "Entities took " + (System.nanoTime() - start) / 1e9f + " s");
+            start = System.nanoTime();
+            mEntityBvh = EntityBvh.build(mTable);
+            Log.w("Body", "Entity BVH took " + (System.nanoTime() - start) / 1e9f + " s");
         } catch (IOException e) {
             Log.e("Body", e.toString());
         }
     }
 
+    /** @return The entity table, or null if it couldn't be loaded. */
+    EntityTable getTable() {
+        return mTable;
+    }
+
     public List<String> getSearchList() {
         return mSearchList;
     }
 
     public List<String> getFilteredSearchList() {
-        // This is in search.js's initialize() in the web version.
-        List<String> filteredSearchList = new ArrayList<String>();
-        for (String search : getSearchList()) {
-            if (mEntities.containsKey(mSearchToEntity.get(search).get(0))) {
-                filteredSearchList.add(search);
-            }
-        }
-        Collections.sort(filteredSearchList, new Comparator<String>() {
-                @Override
-                public int compare(String a, String b) {
-                    return a.length() - b.length();
-                }});
-        return filteredSearchList;
+        // This is in search.js's initialize() in the web version. The entity
+        // table compiler already filtered and sorted the terms.
+        return new ArrayList<String>(mSearchList);
     }
 
-    public String getEntityNameForSearch(String search) {
-        return mSearchToEntity.get(search).get(0);
+    public EntityInfo getInfoForEntityName(String name) {
+        return getInfo(getEntityId(name));
     }
 
-    public EntityInfo getInfoForEntityName(String name) {
-        return mEntities.get(name);
+    /**
+     * @return The id of the entity {@code name} (see {@link EntityIds}), or
+     *     {@code EntityIds.NONE} if it has no entity data.
+     */
+    public int getEntityId(String name) {
+        int row = mTable != null ? mTable.find(name) : -1;
+        return row >= 0 ? row : EntityIds.NONE;
+    }
+
+    /** @return The name of entity {@code id}, as found by the queries below. */
+    public String getEntityName(int id) {
+        return mTable.getEntityId(id);
+    }
+
+    /** @return The details of entity {@code id}, or null if it has none. */
+    public EntityInfo getInfo(int id) {
+        return mTable != null && id >= 0 && id < mTable.size() ? mTable.getInfo(id) : null;
+    }
+
+    /**
+     * Finds the entities whose bounding boxes project completely into a
+     * region of the screen.
+     *
+     * @param wvp The world-view-projection matrix of the view.
+     * @param layerMask The layers to search, as a bit mask of layer ids.
+     * @return The entity ids.
+     */
+    public int[] getEntitiesInRegion(float[] wvp, int width, int height, int layerMask,
+            EntityBvh.Region region) {
+        if (mEntityBvh == null) return new int[0];
+        return mEntityBvh.queryRegion(wvp, width, height, layerMask, region);
+    }
+
+    /**
+     * Finds the entities closest to an entity, measured from the center of
+     * its bounding box.
+     *
+     * @param entity The id of the entity.
+     * @param count The maximum number of entities to return.
+     * @param layerMask The layers to search, as a bit mask of layer ids.
+     * @return The entity ids, closest first. Doesn't include {@code entity}.
+     */
+    public int[] getNearestEntities(int entity, int count, int layerMask) {
+        if (mEntityBvh == null || getInfo(entity) == null) return new int[0];
+        return mEntityBvh.findNearest(center(entity, 0), center(entity, 1), center(entity, 2),
+                count, layerMask, entity);
+    }
+
+    /**
+     * Finds the entities whose bounding boxes are at most {@code radius}
+     * away from a point.
+     *
+     * @param layerMask The layers to search, as a bit mask of layer ids.
+     * @return The entity ids, in no particular order.
+     */
+    public int[] getEntitiesWithinRadius(float x, float y, float z, float radius,
+            int layerMask) {
+        if (mEntityBvh == null) return new int[0];
+        return mEntityBvh.findWithinRadius(x, y, z, radius, layerMask);
+    }
+
+    /** @return The entity ids, ordered by the display names of the entities. */
+    public int[] sortByDisplayName(int[] entities) {
+        Integer[] sorted = new Integer[entities.length];
+        for (int i = 0; i < entities.length; ++i)
+            sorted[i] = entities[i];
+        Arrays.sort(sorted, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return getInfo(a).displayName.compareTo(getInfo(b).displayName);
+                }});
+        int[] result = new int[entities.length];
+        for (int i = 0; i < entities.length; ++i)
+            result[i] = sorted[i];
+        return result;
+    }
+
+    private float center(int row, int axis) {
+        return (mTable.getBound(row, axis) + mTable.getBound(row, axis + 3)) / 2;
     }
 }
@@ -18,10 +18,12 @@ import com.google.android.apps.body.LayersLoader.Results;
 
 import android.app.ActionBar;
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.app.SearchManager;
 import android.app.SearchableInfo;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
@@ -31,6 +33,7 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.StrictMode;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -43,6 +46,8 @@ import android.view.View.OnClickListener;
 import android.widget.SearchView;
 import android.widget.TextView;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -51,11 +56,16 @@ import java.util.Map;
  * Body's main activity.
  */
 public class BodyActivity extends Activity implements
-        LayersLoader.Callback {
+        LayersLoader.Callback, Render.Host {
     public static final boolean DEVELOPER_MODE = false;  // Never check this in as true.
 
     private BodyGLSurfaceView mView;
     private Handler mHandler = new Handler();
+
+    // Looks entities up in Base, which loads the entity table on first use,
+    // so that neither the UI thread nor the render thread waits for that.
+    private HandlerThread mLookupThread;
+    private Handler mLookupHandler;
     private boolean[] mIsLayerLoaded = new boolean[Layers.NUM_LAYERS];
     private SearchView mSearchView;
     private int mCurrentLayer = Layers.SKIN;
@@ -102,6 +112,10 @@ public class BodyActivity extends Activity implements
 
         Arrays.fill(mIsLayerLoaded, false);
 
+        mLookupThread = new HandlerThread("BodyLookup");
+        mLookupThread.start();
+        mLookupHandler = new Handler(mLookupThread.getLooper());
+
         mView = (BodyGLSurfaceView) findViewById(R.id.gl_view);
         mView.initialize(this);
         mView.setFocusableInTouchMode(true);
@@ -192,9 +206,9 @@ public class BodyActivity extends Activity implements
         handleEntityQuery(Uri.parse(cursor.getString(index)));
     }
 
-    public void handleEntityResults(Cursor cursor, final boolean flyTo, String trackPrefix) {
-        cursor.moveToFirst();
-        final Base.EntityInfo info = new Base.EntityInfo();
+    // Reads the entity details at the current position of |cursor|.
+    private static Base.EntityInfo readEntityInfo(Cursor cursor) {
+        Base.EntityInfo info = new Base.EntityInfo();
         info.layer = cursor.getInt(0);
         info.bblx = cursor.getFloat(1);
         info.bbly = cursor.getFloat(2);
@@ -202,9 +216,135 @@ public class BodyActivity extends Activity implements
         info.bbhx = cursor.getFloat(4);
         info.bbhy = cursor.getFloat(5);
         info.bbhz = cursor.getFloat(6);
-        final String selectedEntity = cursor.getString(7);
         info.displayName = cursor.getString(8);
+        return info;
+    }
+
+    /**
+     * Called when the entity under a scrubbing finger changes. Looks up the
+     * entity's details and shows its label. Can be called from any thread.
+     */
+    public void scrubEntityChanged(final String entity) {
+        mLookupHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    final Base.EntityInfo scrubInfo =
+                            Base.get(BodyActivity.this).getInfoForEntityName(entity);
+                    if (scrubInfo == null) return;
+                    mView.queueEvent(new Runnable(){
+                            public void run() {
+                                mView.getRenderer().showScrubLabel(entity, scrubInfo);
+                            }});
+                }});
+    }
+
+    /**
+     * Selects an entity picked in the view, without moving the camera. Can be
+     * called from any thread.
+     *
+     * @param tapNS If not 0, the time of the tap; the time from then until the
+     *     entity is selected is logged.
+     */
+    public void selectPickedEntity(final String entity, final String trackPrefix,
+            final long tapNS) {
+        mLookupHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    final Base.EntityInfo info =
+                            Base.get(BodyActivity.this).getInfoForEntityName(entity);
+                    if (info == null) {
+                        Log.w("Body", "Found no entity " + entity);
+                        return;
+                    }
+                    mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                selectEntity(entity, info, false, trackPrefix);
+                                if (DEVELOPER_MODE && tapNS != 0) {
+                                    Log.d("Body", "Tap to selection took " +
+                                            (System.nanoTime() - tapNS) / 1e6f + " ms");
+                                }
+                            }});
+                }});
+    }
+
+    /**
+     * Finds the entities whose bounding boxes project completely into a
+     * region of the view and lets the user pick one of them. A single entity
+     * is selected right away. Can be called from any thread.
+     *
+     * @param wvp The world-view-projection matrix of the view.
+     * @param layerMask The layers to search, as a bit mask of layer ids.
+     * @param points The corners of the region in window coordinates, two
+     *     floats each. Two corners span a rectangle, more form a lasso.
+     */
+    public void handleRegionQuery(final float[] wvp, final int width, final int height,
+            final int layerMask, final float[] points) {
+        mLookupHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Base base = Base.get(BodyActivity.this);
+                    EntityBvh.Region region = points.length == 4 ?
+                            EntityBvh.Region.rectangle(points[0], points[1], points[2], points[3]) :
+                            EntityBvh.Region.lasso(points);
+                    long start = System.nanoTime();
+                    int[] ids = base.sortByDisplayName(
+                            base.getEntitiesInRegion(wvp, width, height, layerMask, region));
+                    if (DEVELOPER_MODE) {
+                        Log.d("Body", "Region query found " + ids.length + " entities in " +
+                                (System.nanoTime() - start) / 1e6f + " ms");
+                    }
+                    final String[] entities = new String[ids.length];
+                    final Base.EntityInfo[] infos = new Base.EntityInfo[ids.length];
+                    for (int i = 0; i < ids.length; ++i) {
+                        entities[i] = base.getEntityName(ids[i]);
+                        infos[i] = base.getInfo(ids[i]);
+                    }
+                    mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                showRegionResults(entities, infos);
+                            }});
+                }});
+    }
+
+    private void showRegionResults(final String[] entities, final Base.EntityInfo[] infos) {
+        if (entities.length == 0) {
+            trackPage("/region/empty");
+            return;
+        }
+        if (entities.length == 1) {
+            selectEntity(entities[0], infos[0], true, "/region/");
+            return;
+        }
+
+        String[] names = new String[entities.length];
+        for (int i = 0; i < names.length; ++i)
+            names[i] = infos[i].displayName;
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(getString(R.string.region_title, entities.length));
+        builder.setItems(names, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                selectEntity(entities[which], infos[which], true, "/region/");
+            }
+        });
+        builder.show();
+    }
+
+    private void handleEntityResults(Cursor cursor, boolean flyTo, String trackPrefix) {
+        cursor.moveToFirst();
+        selectEntity(cursor.getString(7), readEntityInfo(cursor), flyTo, trackPrefix);
+    }
 
+    /**
+     * Selects an entity and shows its label. Runs on the UI thread.
+     *
+     * @param info The entity's details, see {@link Base#getInfoForEntityName}.
+     * @param flyTo Whether to move the camera to the entity.
+     * @param trackPrefix The page to track the selection as, or null.
+     */
+    public void selectEntity(final String selectedEntity, final Base.EntityInfo info,
+            final boolean flyTo, String trackPrefix) {
         if (trackPrefix != null) {
             trackPage(trackPrefix + info.displayName);
         }
@@ -263,6 +403,7 @@ public class BodyActivity extends Activity implements
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        mLookupThread.quit();
         mTracker.stop();
     }
 
@@ -285,6 +426,25 @@ public class BodyActivity extends Activity implements
         return mHandler;
     }
 
+    @Override
+    public void loadLayers(final Map<Integer, Integer> layerResources) {
+        // Called on the GL thread.
+        mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    load(this, layerResources);
+                }});
+    }
+
+    @Override
+    public boolean readLayerBuffers(int layer, Render.DrawGroup[] groups) throws IOException {
+        File file = LayerBuffers.getFile(getCacheDir(), layer);
+        if (!LayerBuffers.read(file, groups, LayerBuffers.getContentKey(this))) return false;
+        for (Render.DrawGroup group : groups)
+            LayersLoader.loadTexture(this, group);
+        return true;
+    }
+
     public void load(Runnable runnable, Map<Integer, Integer> layerResources) {
         Arrays.fill(mIsLayerLoaded, false);
         mBodyUi.onLayerLoaded(mIsLayerLoaded);
@@ -13,9 +13,9 @@
 // limitations under the License.
 package com.google.android.apps.body;
 
+import java.util.Arrays;
+
 import android.content.Context;
-import android.database.Cursor;
-import android.net.Uri;
 import android.opengl.GLSurfaceView;
 import android.os.Handler;
 import android.util.AttributeSet;
@@ -32,7 +32,8 @@ import android.view.SurfaceHolder;
  * input.
  */
 public class BodyGLSurfaceView extends GLSurfaceView implements
-        ScaleGestureDetector.OnScaleGestureListener, GestureDetector.OnGestureListener {
+        ScaleGestureDetector.OnScaleGestureListener, GestureDetector.OnGestureListener,
+        GestureDetector.OnDoubleTapListener {
     private BodyOpenGLRenderer mRenderer;
     private GestureDetector mTapDetector;
     private ScaleGestureDetector mScaleDetector;
@@ -41,6 +42,23 @@ public class BodyGLSurfaceView extends GLSurfaceView implements
     private BodyActivity mUi;
     private long mLastNonTapTouchEventTimeNS = 0;
 
+    // A long press starts scrubbing: until the finger is lifted, the label
+    // shows the entity under it, and lifting it selects that entity. Long
+    // presses used to be ignored, so a press that is held without moving
+    // still selects what is under the finger, as the tap did.
+    private boolean mScrubbing = false;
+
+    // Double tapping and dragging selects a region: the entities inside the
+    // rectangle spanned by the drag, or inside the drawn loop if the drag
+    // ends near where it started. A double tap without a drag is still two
+    // taps. Two floats per point.
+    private boolean mSelectingRegion = false;
+    private float[] mRegionPoints = new float[64];
+    private int mNumRegionPoints = 0;
+
+    // Minimum distance between two recorded lasso points, in pixels.
+    private static final float REGION_POINT_SPACING = 8;
+
     public BodyGLSurfaceView(Context context, AttributeSet attributes) {
         super(context, attributes);
     }
@@ -56,7 +74,7 @@ public class BodyGLSurfaceView extends GLSurfaceView implements
         setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);  // Call after |setRenderer()|.
 
         mTapDetector = new GestureDetector(getContext(), this);
-        mTapDetector.setIsLongpressEnabled(false);
+        mTapDetector.setOnDoubleTapListener(this);
         mScaleDetector = new ScaleGestureDetector(getContext(), this);
         Log.i("Body", "BodyGLSurfaceView created");
     }
@@ -73,7 +91,9 @@ public class BodyGLSurfaceView extends GLSurfaceView implements
         mTouchInProgress = false;  // Possibly set to |true| in the scroll callback.
 
         mScaleDetector.onTouchEvent(event);
-        mTapDetector.onTouchEvent(event);
+        mTapDetector.onTouchEvent(event);  // May start scrubbing or region selection.
+        if (mScrubbing) handleScrubEvent(event);
+        if (mSelectingRegion) handleRegionEvent(event);
 
         maybeStopRendering();
 
@@ -224,6 +244,138 @@ public class BodyGLSurfaceView extends GLSurfaceView implements
 
     @Override
     public void onLongPress(MotionEvent e) {
+        if (mUi.hasSearchViewFocus() || mScaleDetector.isInProgress() || mSelectingRegion)
+            return;
+
+        mScrubbing = true;
+        startRendering();
+        final int x = Math.round(e.getX());
+        final int y = Math.round(e.getY());
+        queueEvent(new Runnable(){
+                public void run() {
+                    mRenderer.startScrub(x, y);
+                }});
+    }
+
+    private void handleScrubEvent(MotionEvent event) {
+        final int x = Math.round(event.getX());
+        final int y = Math.round(event.getY());
+        switch (event.getAction()) {
+            case MotionEvent.ACTION_MOVE:
+                mTouchInProgress = true;
+                queueEvent(new Runnable(){
+                        public void run() {
+                            mRenderer.moveScrub(x, y);
+                        }});
+                break;
+            case MotionEvent.ACTION_UP:
+                mScrubbing = false;
+                queueEvent(new Runnable(){
+                        public void run() {
+                            handlePickedEntity(mRenderer.endScrub(), "/scrub/", 0);
+                        }});
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                // The gesture was taken away from us: keep the old selection.
+                mScrubbing = false;
+                queueEvent(new Runnable(){
+                        public void run() {
+                            mRenderer.cancelScrub();
+                        }});
+                break;
+            default:
+                mTouchInProgress = true;
+        }
+    }
+
+    @Override
+    public boolean onDoubleTap(MotionEvent e) {
+        if (mUi.hasSearchViewFocus() || mScaleDetector.isInProgress()) return false;
+
+        mSelectingRegion = true;
+        mNumRegionPoints = 0;
+        addRegionPoint(e.getX(), e.getY());
+        return true;
+    }
+
+    @Override
+    public boolean onDoubleTapEvent(MotionEvent e) {
+        return false;
+    }
+
+    @Override
+    public boolean onSingleTapConfirmed(MotionEvent e) {
+        return false;
+    }
+
+    private void addRegionPoint(float x, float y) {
+        if (mNumRegionPoints > 0) {
+            float dx = x - mRegionPoints[2 * mNumRegionPoints - 2];
+            float dy = y - mRegionPoints[2 * mNumRegionPoints - 1];
+            if (dx * dx + dy * dy < REGION_POINT_SPACING * REGION_POINT_SPACING) return;
+        }
+        if (2 * mNumRegionPoints == mRegionPoints.length)
+            mRegionPoints = Arrays.copyOf(mRegionPoints, 2 * mRegionPoints.length);
+        mRegionPoints[2 * mNumRegionPoints] = x;
+        mRegionPoints[2 * mNumRegionPoints + 1] = y;
+        ++mNumRegionPoints;
+    }
+
+    private void handleRegionEvent(MotionEvent event) {
+        switch (event.getAction()) {
+            case MotionEvent.ACTION_MOVE:
+                mTouchInProgress = true;
+                addRegionPoint(event.getX(), event.getY());
+                break;
+            case MotionEvent.ACTION_UP:
+                mSelectingRegion = false;
+                addRegionPoint(event.getX(), event.getY());
+                final float[] region = getRegion(event.getX(), event.getY());
+                if (region == null) {
+                    // No drag: the second tap of a double tap picks like the first.
+                    pickEntityAt(Math.round(event.getX()), Math.round(event.getY()));
+                    break;
+                }
+                mLastNonTapTouchEventTimeNS = System.nanoTime();
+                final int width = getWidth();
+                final int height = getHeight();
+                queueEvent(new Runnable(){
+                        public void run() {
+                            Render render = mRenderer.getRender();
+                            float[] wvp = new float[16];
+                            render.getWorldViewProjection(wvp);
+                            mUi.handleRegionQuery(wvp, width, height,
+                                    render.getSelectionLayerMask(), region);
+                        }});
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                mSelectingRegion = false;
+                break;
+            default:
+                mTouchInProgress = true;
+        }
+    }
+
+    // Turns the recorded drag into a region: two opposite corners of a
+    // rectangle, or the points of a lasso if the drag ended near its start.
+    // Returns null if the drag was too short to mean anything.
+    private float[] getRegion(float endX, float endY) {
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < mNumRegionPoints; ++i) {
+            minX = Math.min(minX, mRegionPoints[2 * i]);
+            minY = Math.min(minY, mRegionPoints[2 * i + 1]);
+            maxX = Math.max(maxX, mRegionPoints[2 * i]);
+            maxY = Math.max(maxY, mRegionPoints[2 * i + 1]);
+        }
+        float size = Math.max(maxX - minX, maxY - minY);
+        if (size < 4 * REGION_POINT_SPACING) return null;
+
+        float dx = endX - mRegionPoints[0];
+        float dy = endY - mRegionPoints[1];
+        if (mNumRegionPoints >= 3 && Math.sqrt(dx * dx + dy * dy) < size / 4)
+            return Arrays.copyOf(mRegionPoints, 2 * mNumRegionPoints);
+        return new float[] { mRegionPoints[0], mRegionPoints[1], endX, endY };
     }
 
     @Override
@@ -255,34 +407,32 @@ public class BodyGLSurfaceView extends GLSurfaceView implements
         if ((System.nanoTime() - mLastNonTapTouchEventTimeNS) / 1e9f < kDeadTimeS)
             return true;
 
-        startRendering();
-
         // Copy x/y into local variables, because |e| is changed and reused for
         // other views after this has been called.
-        final int x = Math.round(e.getX());
-        final int y = Math.round(e.getY());
+        pickEntityAt(Math.round(e.getX()), Math.round(e.getY()));
+        return true;
+    }
 
+    private void pickEntityAt(final int x, final int y) {
+        startRendering();
+        final long tapNS = System.nanoTime();
         queueEvent(new Runnable(){
                 public void run() {
                     final String entity = mRenderer.getRender().getEntityAtCoord(x, y);
-                    if ("".equals(entity)) {
-                        Select.clearSelectedEntity(mRenderer.getLabel());
-                    } else {
-                        uiHandler.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    Uri data = Uri.withAppendedPath(
-                                            BodySearchProvider.CONTENT_URI,
-                                            "entities_by_name/" + entity);
-                                    Cursor cursor = mUi.managedQuery(data, null, null, null, null);
-                                    if (cursor == null) {
-                                        Log.w("Body", "Found no results for query " + data);
-                                        return;
-                                    }
-                                    mUi.handleEntityResults(cursor, false, "/tap/");
-                                }});
-                    }}});
+                    handlePickedEntity(entity, "/tap/", tapNS);
+                }});
         maybeStopRendering();
-        return true;
+    }
+
+    // Selects a picked entity, or clears the selection if |entity| is empty.
+    // Runs on the render thread; the activity looks the entity up on its
+    // lookup thread. If |tapNS| isn't 0, logs the time from then until the
+    // entity is selected.
+    private void handlePickedEntity(String entity, String trackPrefix, long tapNS) {
+        if ("".equals(entity)) {
+            Select.clearSelectedEntity(mRenderer.getLabel());
+            return;
+        }
+        mUi.selectPickedEntity(entity, trackPrefix, tapNS);
     }
 }
@@ -27,6 +27,23 @@ public class BodyJni {
             ShortBuffer colorBufferData, short selectionColor,
             ShortBuffer indexBufferData, int startIndex, int indexLength);
 
+    /**
+     * Looks up the OES_vertex_array_object functions of the current GL
+     * context. Only call the vertex array methods below if this returned
+     * true and the context has the extension.
+     *
+     * The checked-in libs/armeabi/libBodyJni.so predates these functions, so
+     * this throws UnsatisfiedLinkError and the renderer draws without
+     * vertex array objects until the library is rebuilt with ndk-build.
+     */
+    public static native boolean initVertexArrays();
+
+    public static native int genVertexArray();
+
+    public static native void bindVertexArray(int vertexArray);
+
+    public static native void deleteVertexArray(int vertexArray);
+
     private BodyJni() {}
     static {
         System.loadLibrary("BodyJni");
@@ -13,11 +13,20 @@
 // limitations under the License.
 package com.google.android.apps.body;
 
+import com.google.android.apps.body.tdl.Gl;
+import com.google.android.apps.body.tdl.GlState;
+import com.google.android.apps.body.tdl.InstrumentedGl;
+import com.google.android.apps.body.tdl.Logger;
+
+import android.app.ActivityManager;
 import android.content.Context;
-import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
@@ -28,14 +37,32 @@ public class BodyOpenGLRenderer implements GLSurfaceView.Renderer {
     boolean mInitialized = false;
     private Context mContext;
     private Navigate mNavigate = new Navigate();
-    private Render mRender = new Render(mNavigate);
+    private final Logger mLogger = new AndroidLogger();
+    private Render mRender = new Render(mNavigate, mLogger);
     private Label mLabel = new Label();
+    private final Gl mGl;
+
+    // Wraps the device's GL in developer mode, to count the GL calls per
+    // frame and to capture them.
+    private InstrumentedGl mInstrumentedGl;
+
+    // Set to write the GL calls of the first frames to the cache dir, for
+    // GlReplay. Only works in developer mode. Never check this in as true.
+    private static final boolean CAPTURE_FRAMES = false;
+    private static final int MAX_CAPTURE_FRAMES = 1000;
+
     private BodyActivity mUi;
     private int mCanvasWidth, mCanvasHeight;
 
     public BodyOpenGLRenderer(Context context, BodyActivity ui) {
         this.mContext = context;
         this.mUi = ui;
+        if (BodyActivity.DEVELOPER_MODE) {
+            mInstrumentedGl = new InstrumentedGl(new AndroidGl());
+            mGl = mInstrumentedGl;
+        } else {
+            mGl = new AndroidGl();
+        }
         Log.i("Body", "BodyOpenGLRenderer created");
     }
 
@@ -52,34 +79,64 @@ public class BodyOpenGLRenderer implements GLSurfaceView.Renderer {
             mNavigate.initialize();
         }
 
+        // A capture only replays if it has the calls that create the GL
+        // context's objects, so it ends when the context is lost.
+        if (mInstrumentedGl != null) {
+            if (CAPTURE_FRAMES && !mInitialized) {
+                startCapture();
+            } else {
+                mInstrumentedGl.stopCapture();
+            }
+        }
+
         // Re-upload OpenGL state. TODO(thakis): Keep decoded data cached.
+        GlState.setGl(mGl);
+        GlState.setLogger(mLogger);
         getLabel().initialize(mContext);
         if (getLabel().isLabelVisible()) {
             Log.d("Body", "\nreuploading label\n");
             getLabel().reupload();
         }
-        mRender.initialize(mContext, mUi);
+        // The heap limit is the best hint at how much memory the device has.
+        ActivityManager activityManager =
+                (ActivityManager)mContext.getSystemService(Context.ACTIVITY_SERVICE);
+        mRender.setGpuBudget(activityManager.getMemoryClass() * 1024 * 1024 / 2);
+        mRender.setEvictionDelay(
+                mContext.getResources().getInteger(R.integer.layer_eviction_delay_ms));
+        mRender.initialize(mUi);
         mInitialized = true;
     }
 
     @Override
     public void onDrawFrame(GL10 unused) {
         if (!mInitialized) {
-            GLES20.glClearColor(1, 1, 1, 1);
-            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            GlState.clearColor(1, 1, 1, 1);
+            GlState.getGl().glClear(Gl.GL_COLOR_BUFFER_BIT);
             return;
         }
 
         Select.update();
         mNavigate.recalculate();
         mRender.drawBody();
+        if (mScrubbing) updateScrub();
 
         getLabel().updateDisplay(mRender, mCanvasWidth, mCanvasHeight);
+        if (mInstrumentedGl != null) mInstrumentedGl.endFrame();
         mFpsFrameCount++;
         if (mFpsFrameCount % 50 == 0)
             logFps();
     }
 
+    private void startCapture() {
+        File file = new File(mContext.getCacheDir(), "frames.glcapture");
+        try {
+            mInstrumentedGl.startCapture(new FileOutputStream(file), MAX_CAPTURE_FRAMES);
+            Log.i("Body", "Capturing GL calls to " + file);
+        } catch (IOException e) {
+            Log.e("Body", "Can't capture GL calls: " + e);
+        }
+    }
+
     @Override
     public void onSurfaceChanged(GL10 unused, int width, int height) {
         mRender.setClientSize(width, height);
@@ -87,12 +144,71 @@ public class BodyOpenGLRenderer implements GLSurfaceView.Renderer {
         mCanvasHeight = height;
     }
 
+    // While scrubbing (see BodyGLSurfaceView), the entity under the finger is
+    // picked every frame. Only accessed on the render thread.
+    private boolean mScrubbing = false;
+    private int mScrubX, mScrubY;
+    private TriangleBvh.Hit mScrubHit = new TriangleBvh.Hit();
+    private String mScrubEntity = "";
+
+    /** Starts picking continuously at the given position. */
+    public void startScrub(int x, int y) {
+        mScrubbing = true;
+        mScrubHit.reset(1);
+        mScrubEntity = "";
+        moveScrub(x, y);
+    }
+
+    public void moveScrub(int x, int y) {
+        mScrubX = x;
+        mScrubY = y;
+    }
+
+    /** @return The entity under the finger when scrubbing ended, or "". */
+    public String endScrub() {
+        mScrubbing = false;
+        return mScrubEntity;
+    }
+
+    /** Stops scrubbing without selecting anything, and drops the scrub label. */
+    public void cancelScrub() {
+        mScrubbing = false;
+        if (!"".equals(mScrubEntity)) getLabel().clearLabel();
+    }
+
+    private void updateScrub() {
+        long startNS = System.nanoTime();
+        final String entity = mRender.scrubEntityAtCoord(mScrubX, mScrubY, mScrubHit);
+        if (BodyActivity.DEVELOPER_MODE && mFpsFrameCount % 50 == 0) {
+            Log.d("Body", "Scrub pick took " + (System.nanoTime() - startNS) / 1e3f + " us");
+        }
+        if (entity.equals(mScrubEntity)) return;
+
+        mScrubEntity = entity;
+        if ("".equals(entity)) {
+            getLabel().clearLabel();
+            return;
+        }
+        mUi.scrubEntityChanged(entity);
+    }
+
+    /**
+     * Shows the label for a scrubbed entity, unless the finger has moved on
+     * to another entity in the mean time.
+     */
+    public void showScrubLabel(String entity, Base.EntityInfo info) {
+        if (mScrubbing && entity.equals(mScrubEntity))
+            getLabel().label(info.displayName, info);
+    }
+
     private int mFpsFrameCount = 0;
     private long mFpsStartTime = 0;
 
     private void resetFpsCounters() {
         mFpsFrameCount = 0;
         mFpsStartTime = System.nanoTime();
+        GlState.resetCounters();
+        if (mInstrumentedGl != null) mInstrumentedGl.resetTotals();
     }
 
     /** Call this when the user interacted with the screen. */
@@ -114,6 +230,12 @@ public class BodyOpenGLRenderer implements GLSurfaceView.Renderer {
         float fps = mFpsFrameCount / elapsedSec;
         Log.i("Body", "Millisecs for the last " + mFpsFrameCount + " frames: " +
                 mspf + " (" + fps + " fps)");
+        if (BodyActivity.DEVELOPER_MODE) {
+            Log.d("Body", "GL state calls per frame: " +
+                    GlState.getIssuedCalls() / mFpsFrameCount + " issued, " +
+                    GlState.getSkippedCalls() / mFpsFrameCount + " skipped");
+            Log.d("Body", "GL calls: " + mInstrumentedGl.getTotals());
+        }
         resetFpsCounters();
     }
 
@@ -20,11 +20,17 @@ import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.util.Log;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Provides search suggestions to the android search framework.
@@ -36,23 +42,79 @@ public class BodySearchProvider extends ContentProvider {
 
     public static final String ENTITY_MIME_TYPE =
             "vnd.android.cursor.item/vnd.yourcompanyname.contenttype";
+    public static final String ENTITY_LIST_MIME_TYPE =
+            "vnd.android.cursor.dir/vnd.yourcompanyname.contenttype";
 
-    private List<String> mSuggestions;  // Cache for base.getFilteredSearchList()
-    private Base mBase;
+    /**
+     * Everything the queries read, published as a whole once it's loaded so
+     * that queries need no locks.
+     */
+    private static final class State {
+        final Base base;
+        final SearchIndex index;  // Of base.getFilteredSearchList().
+        final SearchFacets facets;  // Null without an entity table.
+
+        State(Base base, SearchIndex index, SearchFacets facets) {
+            this.base = base;
+            this.index = index;
+            this.facets = facets;
+        }
+    }
+
+    // How long a query waits for the data to load before it gives up.
+    private static final long LOAD_TIMEOUT_MS = 2000;
+
+    private volatile State mState;
+    private final CountDownLatch mLoaded = new CountDownLatch(1);
+
+    private long mCreateTime;  // SystemClock.elapsedRealtime() in onCreate().
+    private volatile boolean mHasSuggested;
+
+    // The matches of recent queries, least recently used first. Each
+    // keystroke of search-as-you-type only searches the matches of the
+    // query before it, and backspacing finds its query here. Cleared by
+    // setState().
+    private static final int MAX_RECENT_QUERIES = 16;
+    private final Map<String, SearchIndex.Matches> mRecentQueries =
+            new LinkedHashMap<String, SearchIndex.Matches>(MAX_RECENT_QUERIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, SearchIndex.Matches> eldest) {
+                    return size() > MAX_RECENT_QUERIES;
+                }};
 
     @Override
     public boolean onCreate() {
-        // Load data on a background thread.
+        // Load data on a background thread. Queries that come before it's
+        // done wait for it, see getState().
+        mCreateTime = SystemClock.elapsedRealtime();
         new Thread(new Runnable() {
                 @Override
                 public void run() {
-                    Base base = new Base();
-                    base.loadMetadata(getContext());
-                    setBase(base);
+                    try {
+                        Base base = Base.get(getContext());
+                        List<String> suggestions = base.getFilteredSearchList();
+                        SearchIndex index = loadSearchIndex(suggestions);
+                        EntityTable table = base.getTable();
+                        setState(new State(base, index,
+                                table != null ? new SearchFacets(table) : null));
+                    } finally {
+                        mLoaded.countDown();
+                    }
+                    Log.i("Body", "Search provider ready after " +
+                            (SystemClock.elapsedRealtime() - mCreateTime) + " ms");
                 }}).start();
         return true;
     }
 
+    // The recent matches are of the old index, so they go with it.
+    private void setState(State state) {
+        synchronized (mRecentQueries) {
+            mRecentQueries.clear();
+            mState = state;
+        }
+    }
+
     @Override
     public String getType(Uri uri) {
         switch (uriMatcher.match(uri)) {
@@ -60,6 +122,9 @@ public class BodySearchProvider extends ContentProvider {
                 return SearchManager.SUGGEST_MIME_TYPE;
             case GET_DETAILS:
                 return ENTITY_MIME_TYPE;
+            case GET_ENTITIES_IN_REGION:
+            case GET_ENTITIES_NEAR:
+                return ENTITY_LIST_MIME_TYPE;
             default:
                 throw new IllegalArgumentException("Unknown Uri: " + uri);
         }
@@ -69,12 +134,16 @@ public class BodySearchProvider extends ContentProvider {
     private static final int GET_SUGGESTIONS = 0;
     private static final int GET_DETAILS = 1;
     private static final int GET_DETAILS_BY_NAME = 2;
+    private static final int GET_ENTITIES_IN_REGION = 3;
+    private static final int GET_ENTITIES_NEAR = 4;
     private static final UriMatcher uriMatcher = buildUriMatcher();
 
     private static UriMatcher buildUriMatcher() {
         UriMatcher matcher =  new UriMatcher(UriMatcher.NO_MATCH);
         matcher.addURI(AUTHORITY, "entities/#", GET_DETAILS);
         matcher.addURI(AUTHORITY, "entities_by_name/*", GET_DETAILS_BY_NAME);
+        matcher.addURI(AUTHORITY, "entities_in_region", GET_ENTITIES_IN_REGION);
+        matcher.addURI(AUTHORITY, "entities_near/*", GET_ENTITIES_NEAR);
         matcher.addURI(AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY, GET_SUGGESTIONS);
         matcher.addURI(AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY + "/*", GET_SUGGESTIONS);
         return matcher;
@@ -91,6 +160,10 @@ public class BodySearchProvider extends ContentProvider {
                 return getDetails(uri);
             case GET_DETAILS_BY_NAME:
                 return getDetailsByName(uri);
+            case GET_ENTITIES_IN_REGION:
+                return getEntitiesInRegion(uri);
+            case GET_ENTITIES_NEAR:
+                return getEntitiesNear(uri);
             default:
                 throw new IllegalArgumentException("Unknown Uri: " + uri);
         }
@@ -100,26 +173,120 @@ public class BodySearchProvider extends ContentProvider {
      * @return A list of suggestions matching the query {@code uri}.
      */
     private Cursor getSuggestions(Uri uri) {
-        List<String> candidates = getSuggestions();
-        if (candidates == null) return null;
+        State state = getState();
+        if (state == null) return null;
+        SearchIndex index = state.index;
 
         String query = uri.getLastPathSegment().toLowerCase();
+        int limit = getLimit(uri);
+        long[] terms = getFacetTerms(state.facets, uri);
 
-        int id = 0;
-        MatrixCursor cursor = new MatrixCursor(new String[]{
-                BaseColumns._ID,
-                SearchManager.SUGGEST_COLUMN_TEXT_1,
-                SearchManager.SUGGEST_COLUMN_INTENT_DATA
-        });
+        Cursor cursor = buildSuggestions(index, getMatches(index, query), limit, terms);
+        if (!mHasSuggested && cursor.getCount() > 0) {
+            mHasSuggested = true;
+            Log.i("Body", "First suggestions after " +
+                    (SystemClock.elapsedRealtime() - mCreateTime) + " ms");
+        }
+        return cursor;
+    }
 
-        Pattern p = Pattern.compile("\\b" + Pattern.quote(query));
-        for (String s : candidates) {
-            if (p.matcher(s).find()) {
-                cursor.newRow().add(id).add(s).add(CONTENT_URI + "/entities/" + (id + 1));
+    // The limit parameter of a suggestion uri, or no limit if there's none or
+    // it's malformed.
+    private static int getLimit(Uri uri) {
+        String limitParameter = uri.getQueryParameter(SearchManager.SUGGEST_PARAMETER_LIMIT);
+        int limit = 0;
+        if (limitParameter != null) {
+            try {
+                limit = Integer.parseInt(limitParameter);
+            } catch (NumberFormatException e) {
+                Log.w("Body", "Bad suggestion limit: " + limitParameter);
             }
-            id++;
         }
-        return cursor;
+        return limit > 0 ? limit : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Builds the uri for suggestions in some layers and body regions only.
+     * The search framework builds the unscoped ones.
+     *
+     * @param limit The maximum number of suggestions, or 0 for all.
+     * @param layerMask The layers to search, as a bit mask of layer ids.
+     * @param regionMask The body regions to search, as a bit mask of
+     *     {@link SearchFacets} regions.
+     */
+    public static Uri buildSuggestionUri(String query, int limit, int layerMask,
+            int regionMask) {
+        return CONTENT_URI.buildUpon()
+                .appendPath(SearchManager.SUGGEST_URI_PATH_QUERY)
+                .appendPath(query)
+                .appendQueryParameter(SearchManager.SUGGEST_PARAMETER_LIMIT,
+                        Integer.toString(limit))
+                .appendQueryParameter("layers", Integer.toString(layerMask))
+                .appendQueryParameter("regions", Integer.toString(regionMask))
+                .build();
+    }
+
+    /**
+     * @return The search terms in the layers and regions of {@code uri}
+     *     (see {@link #buildSuggestionUri}) as a bit set, or null if it
+     *     names neither.
+     */
+    private static long[] getFacetTerms(SearchFacets facets, Uri uri) {
+        String layers = uri.getQueryParameter("layers");
+        String regions = uri.getQueryParameter("regions");
+        if (facets == null || (layers == null && regions == null)) return null;
+        return facets.getTerms(layers != null ? Integer.parseInt(layers) : ~0,
+                regions != null ? Integer.parseInt(regions) : ~0);
+    }
+
+    /**
+     * Word prefix matches first, best first, then misspellings, closest
+     * first. The fuzzy search only runs if there's room left. Also used by
+     * tools/SuggestionCursorCheck.
+     *
+     * @param terms The terms to suggest, as a bit set, or null for all.
+     */
+    static Cursor buildSuggestions(SearchIndex index, SearchIndex.Matches matches,
+            int limit, long[] terms) {
+        int[] ids = index.findTop(matches, limit, terms);
+        int count = ids.length;
+        if (count < limit) {
+            int[] fuzzy = matches.getFuzzy();
+            long[] added = new long[(index.size() + 63) >> 6];
+            for (int i = 0; i < count; ++i)
+                added[ids[i] >> 6] |= 1L << ids[i];
+            ids = Arrays.copyOf(ids, (int)Math.min(limit, (long)count + fuzzy.length));
+            for (int i = 0; i < fuzzy.length && count < ids.length; ++i) {
+                int id = fuzzy[i];
+                if (terms != null && !SearchIndex.contains(terms, id)) continue;
+                if ((added[id >> 6] & (1L << id)) != 0) continue;
+                added[id >> 6] |= 1L << id;
+                ids[count++] = id;
+            }
+        }
+        return new SuggestionCursor(index, ids, count);
+    }
+
+    /**
+     * @return The matches of {@code query}, from the recent queries or
+     *     refined from the longest recent query that it extends.
+     */
+    private SearchIndex.Matches getMatches(SearchIndex index, String query) {
+        synchronized (mRecentQueries) {
+            SearchIndex.Matches matches = mRecentQueries.get(query);
+            if (matches != null) return matches;
+
+            SearchIndex.Matches previous = null;
+            for (SearchIndex.Matches recent : mRecentQueries.values()) {
+                if (query.startsWith(recent.query) &&
+                        (previous == null || recent.query.length() > previous.query.length())) {
+                    previous = recent;
+                }
+            }
+            matches = index.match(query, previous);
+            mRecentQueries.put(query, matches);
+            return matches;
+        }
     }
 
     /**
@@ -127,18 +294,13 @@ public class BodySearchProvider extends ContentProvider {
      *         represented by {@code uri}.
      */
     private Cursor getDetails(Uri uri) {
-    	Base base = getBase();
-        List<String> candidates = getSuggestions();
-        if (base == null || candidates == null) return null;
+        State state = getState();
+        if (state == null || state.base.getTable() == null) return null;
 
         int rowId = Integer.parseInt(uri.getLastPathSegment()) - 1;
-        if (rowId < 0 || rowId >= candidates.size()) return null;
-        String search = candidates.get(rowId);
-
-        // would be way nicer if base was index-based.
-        String entityName = base.getEntityNameForSearch(search);
-        if (entityName == null) return null;
-        return getDetailsByNameImpl(entityName);
+        if (rowId < 0 || rowId >= state.index.size()) return null;
+        EntityTable table = state.base.getTable();
+        return new EntityCursor(table, table.getSearchRow(rowId));
     }
 
     /**
@@ -147,43 +309,166 @@ public class BodySearchProvider extends ContentProvider {
      */
     private Cursor getDetailsByName(Uri uri) {
         String entityName = uri.getLastPathSegment();
-        return getDetailsByNameImpl(entityName);
+        State state = getState();
+        if (state == null) return null;
+        Base base = state.base;
+        if (base.getTable() == null) return null;
+        int row = base.getTable().find(entityName);
+        if (row < 0) return null;
+        return new EntityCursor(base.getTable(), row);
+    }
+
+    /**
+     * Builds the uri for a region query.
+     *
+     * @param wvp The world-view-projection matrix of the view.
+     * @param layerMask The layers to search, as a bit mask of layer ids.
+     * @param points The corners of the region in window coordinates, two
+     *     floats each. Two corners span a rectangle, more form a lasso.
+     */
+    public static Uri buildRegionUri(float[] wvp, int width, int height, int layerMask,
+            float[] points) {
+        return CONTENT_URI.buildUpon()
+                .appendPath("entities_in_region")
+                .appendQueryParameter("matrix", join(wvp))
+                .appendQueryParameter("width", Integer.toString(width))
+                .appendQueryParameter("height", Integer.toString(height))
+                .appendQueryParameter("layers", Integer.toString(layerMask))
+                .appendQueryParameter("region", join(points))
+                .build();
+    }
+
+    private static String join(float[] values) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < values.length; ++i) {
+            if (i > 0) builder.append(',');
+            builder.append(values[i]);
+        }
+        return builder.toString();
+    }
+
+    private static String getRequiredParameter(Uri uri, String name) {
+        String value = uri.getQueryParameter(name);
+        if (value == null)
+            throw new IllegalArgumentException("Missing " + name + ": " + uri);
+        return value;
+    }
+
+    private static float[] split(String values) {
+        String[] parts = values.split(",");
+        float[] result = new float[parts.length];
+        for (int i = 0; i < parts.length; ++i)
+            result[i] = Float.parseFloat(parts[i]);
+        return result;
+    }
+
+    /**
+     * @return The entities inside the region represented by {@code uri}
+     *         (see {@link #buildRegionUri}), ordered by display name.
+     */
+    private Cursor getEntitiesInRegion(Uri uri) {
+        State state = getState();
+        if (state == null) return null;
+        Base base = state.base;
+
+        float[] wvp = split(getRequiredParameter(uri, "matrix"));
+        int width = Integer.parseInt(getRequiredParameter(uri, "width"));
+        int height = Integer.parseInt(getRequiredParameter(uri, "height"));
+        int layerMask = Integer.parseInt(getRequiredParameter(uri, "layers"));
+        float[] points = split(getRequiredParameter(uri, "region"));
+        if (wvp.length != 16 || points.length < 4 || points.length % 2 != 0)
+            throw new IllegalArgumentException("Bad region: " + uri);
+        EntityBvh.Region region = points.length == 4 ?
+                EntityBvh.Region.rectangle(points[0], points[1], points[2], points[3]) :
+                EntityBvh.Region.lasso(points);
+
+        long start = System.nanoTime();
+        int[] entities = base.getEntitiesInRegion(wvp, width, height, layerMask, region);
+        if (BodyActivity.DEVELOPER_MODE) {
+            Log.d("Body", "Region query found " + entities.length + " entities in " +
+                    (System.nanoTime() - start) / 1e6f + " ms");
+        }
+        return buildEntityListCursor(base, base.sortByDisplayName(entities));
     }
 
-    private Cursor getDetailsByNameImpl(String entityName) {
-        Base base = getBase();
-        if (base == null) return null;
-        Base.EntityInfo info = base.getInfoForEntityName(entityName);
-        if (info == null) return null;
+    /**
+     * Builds the uri for the entities nearest to {@code entity}.
+     *
+     * @param count The maximum number of entities.
+     * @param layerMask The layers to search, as a bit mask of layer ids.
+     */
+    public static Uri buildNearUri(String entity, int count, int layerMask) {
+        return CONTENT_URI.buildUpon()
+                .appendPath("entities_near")
+                .appendPath(entity)
+                .appendQueryParameter("count", Integer.toString(count))
+                .appendQueryParameter("layers", Integer.toString(layerMask))
+                .build();
+    }
+
+    /**
+     * @return The entities nearest to the entity represented by {@code uri}
+     *         (see {@link #buildNearUri}), closest first.
+     */
+    private Cursor getEntitiesNear(Uri uri) {
+        State state = getState();
+        if (state == null) return null;
+        Base base = state.base;
+
+        int entity = base.getEntityId(uri.getLastPathSegment());
+        int count = Integer.parseInt(getRequiredParameter(uri, "count"));
+        int layerMask = Integer.parseInt(getRequiredParameter(uri, "layers"));
+
+        long start = System.nanoTime();
+        int[] entities = base.getNearestEntities(entity, count, layerMask);
+        if (BodyActivity.DEVELOPER_MODE) {
+            Log.d("Body", "Nearest query found " + entities.length + " entities in " +
+                    (System.nanoTime() - start) / 1e6f + " ms");
+        }
+        return buildEntityListCursor(base, entities);
+    }
 
+    // Names and display names of entity ids are only looked up here, at the
+    // boundary to the cursor's users.
+    private static Cursor buildEntityListCursor(Base base, int[] entities) {
         MatrixCursor cursor = new MatrixCursor(new String[]{
-                "layer",
-                "bblx", "bbly", "bblz",
-                "bbhx", "bbhy", "bbhz",
+                BaseColumns._ID,
                 "entity",
                 "entityName",
         });
-        cursor.newRow()
-                .add(info.layer)
-                .add(info.bblx).add(info.bbly).add(info.bblz)
-                .add(info.bbhx).add(info.bbhy).add(info.bbhz)
-                .add(entityName)
-                .add(info.displayName);
-
+        int id = 0;
+        for (int entity : entities) {
+            cursor.newRow().add(id++).add(base.getEntityName(entity))
+                    .add(base.getInfo(entity).displayName);
+        }
         return cursor;
     }
 
-    private synchronized List<String> getSuggestions() {
-        return mSuggestions;
-    }
-
-    private synchronized void setBase(Base base) {
-        this.mBase = base;
-        this.mSuggestions = base.getFilteredSearchList();
+    // Reads the index that tools/EntityTableCompiler built for the search
+    // terms, or builds it if that's missing or out of date.
+    private SearchIndex loadSearchIndex(List<String> terms) {
+        try {
+            return SearchIndex.read(terms, EntityTable.map(getContext(), R.raw.f_search_index));
+        } catch (IOException e) {
+            Log.w("Body", "Building the search index: " + e);
+            return new SearchIndex(terms);
+        }
     }
 
-    private synchronized Base getBase() {
-        return mBase;
+    /**
+     * @return The loaded data. Waits up to {@link #LOAD_TIMEOUT_MS} for it to
+     *     load, and returns null if it doesn't.
+     */
+    private State getState() {
+        State state = mState;
+        if (state != null) return state;
+        try {
+            if (!mLoaded.await(LOAD_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                Log.w("Body", "Search provider not loaded after " + LOAD_TIMEOUT_MS + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return mState;
     }
 
     @Override
@@ -0,0 +1,313 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits the index range of a {@code DrawGroup} into small clusters of
+ * triangles, each with a bounding sphere and a normal cone, so that the
+ * renderer can skip parts of a draw group that are outside the view frustum
+ * or that face away from the camera.
+ *
+ * Clusters never straddle a {@code Draw}, so the per-draw ranges used for
+ * selection stay valid. Clusters are built on the loader thread and are
+ * immutable afterwards.
+ */
+final class Clusters {
+
+    /** Target number of triangles per cluster. */
+    static final int TRIANGLES_PER_CLUSTER = 128;
+
+    // Positions are stored as shorts, the shaders divide them by this.
+    private static final float POSITION_SCALE = 1 / 64.f;
+
+    /** Number of clusters. */
+    final int count;
+
+    /**
+     * The first cluster of the mirrored draws (see {@code Mirrors}), which
+     * come last. Their bounds are reflected, but their index ranges are
+     * those of the draws they mirror.
+     */
+    int firstMirrored;
+
+    /** Start of each cluster in the index buffer, in indices. */
+    final int[] offsets;
+
+    /** Number of indices in each cluster. */
+    final int[] counts;
+
+    /** Index of the {@code Draw} each cluster belongs to, in the group's draw list. */
+    final int[] draws;
+
+    /** Bounding sphere of each cluster: x, y, z, radius (world units). */
+    final float[] spheres;
+
+    /**
+     * Normal cone of each cluster: axis x, y, z, cutoff. A cutoff of 1 means
+     * that the cluster can't be backface culled.
+     */
+    final float[] cones;
+
+    /** Bounding sphere of the whole draw group: x, y, z, radius. */
+    final float[] bounds = new float[4];
+
+    private Clusters(int count) {
+        this.count = count;
+        this.offsets = new int[count];
+        this.counts = new int[count];
+        this.draws = new int[count];
+        this.spheres = new float[4 * count];
+        this.cones = new float[4 * count];
+    }
+
+    /**
+     * Builds the clusters for a draw group. Must be called while the group's
+     * vertex and index data is still on the CPU.
+     */
+    static Clusters build(ShortBuffer vertexData, ShortBuffer indexData, List<Render.Draw> draws) {
+        final int clusterIndices = 3 * TRIANGLES_PER_CLUSTER;
+
+        int count = 0;
+        for (Render.Draw draw : draws)
+            count += (draw.count + clusterIndices - 1) / clusterIndices;
+        Clusters clusters = new Clusters(count);
+
+        // Bulk copies are much faster than get() calls on direct buffers.
+        short[] vertices = new short[vertexData.capacity()];
+        vertexData.get(vertices);
+        vertexData.rewind();
+        short[] indices = new short[indexData.capacity()];
+        indexData.get(indices);
+        indexData.rewind();
+
+        // The exported index order is not spatially coherent, so clusters
+        // made of consecutive triangles would be long thin strips that are
+        // rarely cullable. Sort the triangles of every draw along a Morton
+        // curve first. This doesn't change which triangles a draw contains.
+        for (Render.Draw draw : draws) {
+            if (draw.mirrorOf == null)
+                sortTriangles(vertices, indices, draw.offset, draw.count);
+        }
+        indexData.put(indices);
+        indexData.rewind();
+
+        int c = 0;
+        clusters.firstMirrored = count;
+        for (int d = 0; d < draws.size(); ++d) {
+            Render.Draw draw = draws.get(d);
+            if (draw.mirrorOf != null && c < clusters.firstMirrored)
+                clusters.firstMirrored = c;
+            for (int start = 0; start < draw.count; start += clusterIndices) {
+                clusters.offsets[c] = draw.offset + start;
+                clusters.counts[c] = Math.min(clusterIndices, draw.count - start);
+                clusters.draws[c] = d;
+                computeBounds(clusters, c, vertices, indices);
+                if (draw.mirrorOf != null) {
+                    clusters.spheres[4 * c] = Mirrors.reflectWorldX(clusters.spheres[4 * c]);
+                    clusters.cones[4 * c] = -clusters.cones[4 * c];
+                }
+                ++c;
+            }
+        }
+        computeGroupBounds(clusters);
+        return clusters;
+    }
+
+    /** Sorts the triangles in {@code indices[offset, offset + count)} in Morton order. */
+    private static void sortTriangles(short[] vertices, short[] indices, int offset, int count) {
+        final int numTriangles = count / 3;
+        if (numTriangles < 2) return;
+
+        // Positions are in [-8192, 8192) for x and z and [-4096, 12288) for y.
+        long[] keys = new long[numTriangles];
+        for (int t = 0; t < numTriangles; ++t) {
+            int i = offset + 3 * t;
+            int v0 = 8 * (indices[i] & 0xffff);
+            int v1 = 8 * (indices[i + 1] & 0xffff);
+            int v2 = 8 * (indices[i + 2] & 0xffff);
+            int x = (vertices[v0] + vertices[v1] + vertices[v2]) / 3 + 8192;
+            int y = (vertices[v0 + 1] + vertices[v1 + 1] + vertices[v2 + 1]) / 3 + 4096;
+            int z = (vertices[v0 + 2] + vertices[v1 + 2] + vertices[v2 + 2]) / 3 + 8192;
+            long morton = spreadBits(x >> 4) | (spreadBits(y >> 4) << 1) | (spreadBits(z >> 4) << 2);
+            keys[t] = (morton << 24) | t;
+        }
+        Arrays.sort(keys);
+
+        short[] sorted = new short[3 * numTriangles];
+        for (int t = 0; t < numTriangles; ++t) {
+            int source = offset + 3 * (int)(keys[t] & 0xffffff);
+            sorted[3 * t] = indices[source];
+            sorted[3 * t + 1] = indices[source + 1];
+            sorted[3 * t + 2] = indices[source + 2];
+        }
+        System.arraycopy(sorted, 0, indices, offset, sorted.length);
+    }
+
+    // Spreads the low 10 bits of |v| out so that there are two zero bits
+    // between each of them.
+    private static long spreadBits(int v) {
+        long x = Math.max(0, Math.min(v, 1023));
+        x = (x | (x << 16)) & 0x030000ffL;
+        x = (x | (x << 8)) & 0x0300f00fL;
+        x = (x | (x << 4)) & 0x030c30c3L;
+        x = (x | (x << 2)) & 0x09249249L;
+        return x;
+    }
+
+    private static void computeBounds(Clusters clusters, int c, short[] vertices, short[] indices) {
+        final int begin = clusters.offsets[c];
+        final int end = begin + clusters.counts[c];
+
+        // Bounding sphere around the center of the bounding box.
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+        for (int i = begin; i < end; ++i) {
+            int v = 8 * (indices[i] & 0xffff);  // 3 pos, 3 norm, 2 texcoord
+            float x = vertices[v], y = vertices[v + 1], z = vertices[v + 2];
+            minX = Math.min(minX, x); maxX = Math.max(maxX, x);
+            minY = Math.min(minY, y); maxY = Math.max(maxY, y);
+            minZ = Math.min(minZ, z); maxZ = Math.max(maxZ, z);
+        }
+        float cx = (minX + maxX) / 2, cy = (minY + maxY) / 2, cz = (minZ + maxZ) / 2;
+        float radius2 = 0;
+        for (int i = begin; i < end; ++i) {
+            int v = 8 * (indices[i] & 0xffff);
+            float dx = vertices[v] - cx, dy = vertices[v + 1] - cy, dz = vertices[v + 2] - cz;
+            radius2 = Math.max(radius2, dx * dx + dy * dy + dz * dz);
+        }
+        clusters.spheres[4 * c + 0] = cx * POSITION_SCALE;
+        clusters.spheres[4 * c + 1] = cy * POSITION_SCALE;
+        clusters.spheres[4 * c + 2] = cz * POSITION_SCALE;
+        clusters.spheres[4 * c + 3] = (float)Math.sqrt(radius2) * POSITION_SCALE;
+
+        // Normal cone around the average face normal. The stored vertex
+        // normals are smoothed, so use the face normals instead: those are
+        // what the GL uses for backface culling.
+        float[] n = new float[3];
+        float ax = 0, ay = 0, az = 0;
+        for (int i = begin; i + 2 < end; i += 3) {
+            if (!faceNormal(vertices, indices, i, n)) continue;
+            ax += n[0]; ay += n[1]; az += n[2];
+        }
+        float axisLength = (float)Math.sqrt(ax * ax + ay * ay + az * az);
+        float cutoff = 1;
+        if (axisLength > 0) {
+            ax /= axisLength; ay /= axisLength; az /= axisLength;
+            float minDot = 1;
+            for (int i = begin; i + 2 < end; i += 3) {
+                if (!faceNormal(vertices, indices, i, n)) continue;
+                minDot = Math.min(minDot, ax * n[0] + ay * n[1] + az * n[2]);
+            }
+            // If some normals point more than 90 degrees away from the axis,
+            // the cluster is never completely back-facing.
+            if (minDot > 0)
+                cutoff = (float)Math.sqrt(1 - minDot * minDot);
+        }
+        clusters.cones[4 * c + 0] = ax;
+        clusters.cones[4 * c + 1] = ay;
+        clusters.cones[4 * c + 2] = az;
+        clusters.cones[4 * c + 3] = cutoff;
+    }
+
+    /**
+     * Writes the normalized face normal of the triangle starting at index
+     * {@code i} to {@code n}.
+     * @return false if the triangle is degenerate.
+     */
+    private static boolean faceNormal(short[] vertices, short[] indices, int i, float[] n) {
+        int v0 = 8 * (indices[i] & 0xffff);
+        int v1 = 8 * (indices[i + 1] & 0xffff);
+        int v2 = 8 * (indices[i + 2] & 0xffff);
+        float e1x = vertices[v1] - vertices[v0];
+        float e1y = vertices[v1 + 1] - vertices[v0 + 1];
+        float e1z = vertices[v1 + 2] - vertices[v0 + 2];
+        float e2x = vertices[v2] - vertices[v0];
+        float e2y = vertices[v2 + 1] - vertices[v0 + 1];
+        float e2z = vertices[v2 + 2] - vertices[v0 + 2];
+        float nx = e1y * e2z - e1z * e2y;
+        float ny = e1z * e2x - e1x * e2z;
+        float nz = e1x * e2y - e1y * e2x;
+        float length = (float)Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (length == 0) return false;
+        n[0] = nx / length;
+        n[1] = ny / length;
+        n[2] = nz / length;
+        return true;
+    }
+
+    private static void computeGroupBounds(Clusters clusters) {
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+        float[] s = clusters.spheres;
+        for (int c = 0; c < clusters.count; ++c) {
+            minX = Math.min(minX, s[4 * c] - s[4 * c + 3]);
+            maxX = Math.max(maxX, s[4 * c] + s[4 * c + 3]);
+            minY = Math.min(minY, s[4 * c + 1] - s[4 * c + 3]);
+            maxY = Math.max(maxY, s[4 * c + 1] + s[4 * c + 3]);
+            minZ = Math.min(minZ, s[4 * c + 2] - s[4 * c + 3]);
+            maxZ = Math.max(maxZ, s[4 * c + 2] + s[4 * c + 3]);
+        }
+        if (clusters.count == 0) return;
+        float cx = (minX + maxX) / 2, cy = (minY + maxY) / 2, cz = (minZ + maxZ) / 2;
+        float radius = 0;
+        for (int c = 0; c < clusters.count; ++c) {
+            float dx = s[4 * c] - cx, dy = s[4 * c + 1] - cy, dz = s[4 * c + 2] - cz;
+            radius = Math.max(radius, (float)Math.sqrt(dx * dx + dy * dy + dz * dz) + s[4 * c + 3]);
+        }
+        clusters.bounds[0] = cx;
+        clusters.bounds[1] = cy;
+        clusters.bounds[2] = cz;
+        clusters.bounds[3] = radius;
+    }
+
+    /**
+     * @return true if the sphere at {@code s[i..i+3]} is completely outside
+     *     one of the six {@code planes} (see {@code TdlMath.frustumPlanes()}).
+     */
+    static boolean isOutside(float[] planes, float[] s, int i) {
+        for (int p = 0; p < 24; p += 4) {
+            float d = planes[p] * s[i] + planes[p + 1] * s[i + 1] + planes[p + 2] * s[i + 2] +
+                    planes[p + 3];
+            if (d < -s[i + 3]) return true;
+        }
+        return false;
+    }
+
+    /** @return true if the whole draw group is outside the frustum. */
+    boolean isGroupOutside(float[] planes) {
+        return count == 0 || isOutside(planes, bounds, 0);
+    }
+
+    /** @return true if cluster {@code c} is visible from {@code eye} in the frustum. */
+    boolean isVisible(int c, float[] planes, float[] eye) {
+        if (isOutside(planes, spheres, 4 * c)) return false;
+
+        // Backface test against the normal cone: if the direction from the
+        // eye to the cluster is within 90 degrees minus the cone angle of the
+        // cone axis, every triangle in the cluster faces away. The radius
+        // term makes this conservative for eyes close to the cluster.
+        float cutoff = cones[4 * c + 3];
+        if (cutoff >= 1) return true;
+        float dx = spheres[4 * c] - eye[0];
+        float dy = spheres[4 * c + 1] - eye[1];
+        float dz = spheres[4 * c + 2] - eye[2];
+        float distance = (float)Math.sqrt(dx * dx + dy * dy + dz * dz);
+        float d = dx * cones[4 * c] + dy * cones[4 * c + 1] + dz * cones[4 * c + 2];
+        return d < cutoff * distance + spheres[4 * c + 3];
+    }
+}
@@ -0,0 +1,194 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body;
+
+import java.util.Arrays;
+
+/**
+ * A tiny software rasterizer that renders occluder triangles into a
+ * low-resolution depth buffer and tests bounding spheres against it.
+ *
+ * The depth buffer stores, per pixel, the nearest "farthest vertex distance"
+ * of all triangles covering the pixel center. Using the farthest vertex
+ * instead of the interpolated depth makes the depth test conservative.
+ * Pixel coverage is sampled at pixel centers, so occludee rectangles are
+ * grown by one pixel to avoid culling things that peek out at occluder
+ * silhouettes.
+ *
+ * This class doesn't use any Android APIs, so it can be used from any
+ * thread and outside of the app.
+ */
+class DepthRasterizer {
+
+    // Vertices closer than this to the eye plane are not rasterized.
+    private static final float NEAR_W = 1;
+
+    private final int mWidth, mHeight;
+    private final float[] mDepth;
+    private final float[] mMatrix = new float[16];
+    private float mNearestW;  // Of all rasterized vertices.
+
+    DepthRasterizer(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mDepth = new float[width * height];
+    }
+
+    /**
+     * Clears the depth buffer and sets the world-view-projection matrix used
+     * for the following draw and test calls.
+     */
+    void begin(float[] worldViewProjection) {
+        System.arraycopy(worldViewProjection, 0, mMatrix, 0, 16);
+        Arrays.fill(mDepth, Float.MAX_VALUE);
+        mNearestW = Float.MAX_VALUE;
+    }
+
+    /**
+     * Rasterizes front-facing triangles. {@code triangles} contains nine
+     * floats (three world space positions) per triangle.
+     */
+    void drawTriangles(float[] triangles, int numTriangles) {
+        float[] m = mMatrix;
+        float[] sx = new float[3], sy = new float[3];
+        for (int t = 0; t < numTriangles; ++t) {
+            int base = 9 * t;
+            float minW = Float.MAX_VALUE, maxW = 0;
+            boolean isClipped = false;
+            for (int v = 0; v < 3; ++v) {
+                float x = triangles[base + 3 * v];
+                float y = triangles[base + 3 * v + 1];
+                float z = triangles[base + 3 * v + 2];
+                float cw = m[3] * x + m[7] * y + m[11] * z + m[15];
+                if (cw < NEAR_W) {
+                    // Skipping occluders is always safe.
+                    isClipped = true;
+                    break;
+                }
+                float cx = m[0] * x + m[4] * y + m[8] * z + m[12];
+                float cy = m[1] * x + m[5] * y + m[9] * z + m[13];
+                sx[v] = (cx / cw + 1) * 0.5f * mWidth;
+                sy[v] = (cy / cw + 1) * 0.5f * mHeight;
+                minW = Math.min(minW, cw);
+                maxW = Math.max(maxW, cw);
+            }
+            if (isClipped) continue;
+
+            // GL treats counter-clockwise triangles as front facing, and
+            // backfaces are culled when the body is drawn.
+            float area = (sx[1] - sx[0]) * (sy[2] - sy[0]) - (sx[2] - sx[0]) * (sy[1] - sy[0]);
+            if (area <= 0) continue;
+
+            fillTriangle(sx, sy, maxW);
+            mNearestW = Math.min(mNearestW, minW);
+        }
+    }
+
+    private void fillTriangle(float[] sx, float[] sy, float depth) {
+        int minX = Math.max(0, (int)Math.floor(Math.min(sx[0], Math.min(sx[1], sx[2]))));
+        int maxX = Math.min(mWidth - 1, (int)Math.ceil(Math.max(sx[0], Math.max(sx[1], sx[2]))));
+        int minY = Math.max(0, (int)Math.floor(Math.min(sy[0], Math.min(sy[1], sy[2]))));
+        int maxY = Math.min(mHeight - 1, (int)Math.ceil(Math.max(sy[0], Math.max(sy[1], sy[2]))));
+        if (minX > maxX || minY > maxY) return;
+
+        for (int y = minY; y <= maxY; ++y) {
+            float py = y + 0.5f;
+            int row = y * mWidth;
+            for (int x = minX; x <= maxX; ++x) {
+                float px = x + 0.5f;
+                if (edge(sx[0], sy[0], sx[1], sy[1], px, py) < 0) continue;
+                if (edge(sx[1], sy[1], sx[2], sy[2], px, py) < 0) continue;
+                if (edge(sx[2], sy[2], sx[0], sy[0], px, py) < 0) continue;
+                if (depth < mDepth[row + x]) mDepth[row + x] = depth;
+            }
+        }
+    }
+
+    private static float edge(float ax, float ay, float bx, float by, float px, float py) {
+        return (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+    }
+
+    /**
+     * @return false if the sphere at {@code s[i..i+3]} (x, y, z, radius) is
+     *     completely behind the rasterized occluders.
+     */
+    boolean isSphereVisible(float[] s, int i) {
+        return isSphereVisible(s, i, 0, false);
+    }
+
+    /**
+     * Like {@link #isSphereVisible(float[], int)}, but for every eye within
+     * {@code eyeMotion} of this one, looking in any direction. Moving the eye
+     * moves the sphere against the occluders in front of it by up to
+     * eyeMotion * (sphere depth / occluder depth - 1), so the sphere is grown
+     * by that. Spheres reaching past the edges of the screen are visible,
+     * since other views see what's there.
+     */
+    boolean isSphereVisibleNearby(float[] s, int i, float eyeMotion) {
+        float[] m = mMatrix;
+        float w = m[3] * s[i] + m[7] * s[i + 1] + m[11] * s[i + 2] + m[15] + s[i + 3];
+        float grow = eyeMotion * Math.max(0, w / mNearestW - 1);
+        return isSphereVisible(s, i, grow, true);
+    }
+
+    private boolean isSphereVisible(float[] s, int i, float grow, boolean isEdgeVisible) {
+        float[] m = mMatrix;
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        float minW = Float.MAX_VALUE;
+
+        // Project the corners of the sphere's bounding box.
+        float r = s[i + 3] + grow;
+        for (int corner = 0; corner < 8; ++corner) {
+            float x = s[i] + ((corner & 1) != 0 ? r : -r);
+            float y = s[i + 1] + ((corner & 2) != 0 ? r : -r);
+            float z = s[i + 2] + ((corner & 4) != 0 ? r : -r);
+            float cw = m[3] * x + m[7] * y + m[11] * z + m[15];
+            if (cw < NEAR_W) return true;
+            float cx = m[0] * x + m[4] * y + m[8] * z + m[12];
+            float cy = m[1] * x + m[5] * y + m[9] * z + m[13];
+            float px = (cx / cw + 1) * 0.5f * mWidth;
+            float py = (cy / cw + 1) * 0.5f * mHeight;
+            minX = Math.min(minX, px); maxX = Math.max(maxX, px);
+            minY = Math.min(minY, py); maxY = Math.max(maxY, py);
+            minW = Math.min(minW, cw);
+        }
+
+        if (isEdgeVisible && (minX < 0 || maxX >= mWidth || minY < 0 || maxY >= mHeight))
+            return true;
+
+        // Off-screen parts are handled by frustum culling.
+        int x0 = Math.max(0, (int)Math.floor(minX) - 1);
+        int x1 = Math.min(mWidth - 1, (int)Math.floor(maxX) + 1);
+        int y0 = Math.max(0, (int)Math.floor(minY) - 1);
+        int y1 = Math.min(mHeight - 1, (int)Math.floor(maxY) + 1);
+        if (x0 > x1 || y0 > y1) return true;
+
+        for (int y = y0; y <= y1; ++y) {
+            int row = y * mWidth;
+            for (int x = x0; x <= x1; ++x) {
+                if (mDepth[row + x] >= minW) return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return The fraction of pixels covered by occluders, for debugging. */
+    float getCoverage() {
+        int covered = 0;
+        for (float d : mDepth)
+            if (d != Float.MAX_VALUE) ++covered;
+        return covered / (float)mDepth.length;
+    }
+}
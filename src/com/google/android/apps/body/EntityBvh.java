@@ -0,0 +1,481 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A bounding volume hierarchy over the bounding boxes of the entities in
+ * {@code Base}, used to find the entities inside a region of the screen
+ * and the entities near a point.
+ *
+ * The hierarchy is built once when the entities are loaded and is immutable
+ * afterwards, so it can be queried from any thread.
+ */
+final class EntityBvh {
+
+    /** Maximum number of entities in a leaf. */
+    static final int LEAF_ENTITIES = 4;
+
+    // The entity ids (see EntityIds) and layers, in leaf order.
+    private final int[] mEntities;
+    private final int[] mLayers;
+
+    // Six floats per entity: min x, y, z, max x, y, z.
+    private final float[] mBoxes;
+
+    // Six floats per node, like |mBoxes|.
+    private float[] mNodeBounds;
+
+    // Three ints per node: the index of the second child (the first child
+    // directly follows its parent) or -1 for leaves, and the range of the
+    // node's entities.
+    private int[] mNodeData;
+
+    // The layers of the entities below every node, as a bit mask of layer ids.
+    private int[] mNodeLayers;
+    private int mNumNodes;
+
+    private EntityBvh(int numEntities) {
+        mEntities = new int[numEntities];
+        mLayers = new int[numEntities];
+        mBoxes = new float[6 * numEntities];
+        int maxNodes = Math.max(1, 2 * numEntities);
+        mNodeBounds = new float[6 * maxNodes];
+        mNodeData = new int[3 * maxNodes];
+        mNodeLayers = new int[maxNodes];
+    }
+
+    static EntityBvh build(EntityTable table) {
+        int numEntities = table.size();
+        float[] boxes = new float[6 * numEntities];
+        for (int row = 0; row < numEntities; ++row)
+            for (int c = 0; c < 6; ++c)
+                boxes[6 * row + c] = table.getBound(row, c);
+
+        Integer[] order = new Integer[numEntities];
+        for (int i = 0; i < numEntities; ++i)
+            order[i] = i;
+
+        EntityBvh bvh = new EntityBvh(numEntities);
+        bvh.buildNode(0, numEntities, order, boxes, table);
+        for (int i = 0; i < numEntities; ++i) {
+            bvh.mEntities[i] = order[i];
+            bvh.mLayers[i] = table.getLayer(order[i]);
+            System.arraycopy(boxes, 6 * order[i], bvh.mBoxes, 6 * i, 6);
+        }
+        bvh.mNodeBounds = Arrays.copyOf(bvh.mNodeBounds, 6 * bvh.mNumNodes);
+        bvh.mNodeData = Arrays.copyOf(bvh.mNodeData, 3 * bvh.mNumNodes);
+        bvh.mNodeLayers = Arrays.copyOf(bvh.mNodeLayers, bvh.mNumNodes);
+        return bvh;
+    }
+
+    // Builds the node for the entities order[begin, end) and its children,
+    // reordering |order| so that every node's entities are contiguous.
+    // |boxes| has the bounding boxes of the table's rows.
+    private int buildNode(int begin, int end, Integer[] order, final float[] boxes,
+            EntityTable table) {
+        int node = mNumNodes++;
+
+        float[] min = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+        float[] max = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+        float[] centerMin = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+        float[] centerMax = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+        int layers = 0;
+        for (int i = begin; i < end; ++i) {
+            int row = order[i];
+            layers |= 1 << table.getLayer(row);
+            for (int axis = 0; axis < 3; ++axis) {
+                float lo = boxes[6 * row + axis];
+                float hi = boxes[6 * row + 3 + axis];
+                min[axis] = Math.min(min[axis], lo);
+                max[axis] = Math.max(max[axis], hi);
+                centerMin[axis] = Math.min(centerMin[axis], lo + hi);
+                centerMax[axis] = Math.max(centerMax[axis], lo + hi);
+            }
+        }
+        System.arraycopy(min, 0, mNodeBounds, 6 * node, 3);
+        System.arraycopy(max, 0, mNodeBounds, 6 * node + 3, 3);
+        mNodeLayers[node] = layers;
+        mNodeData[3 * node] = -1;
+        mNodeData[3 * node + 1] = begin;
+        mNodeData[3 * node + 2] = end;
+
+        int axis = 0;
+        for (int a = 1; a < 3; ++a) {
+            if (centerMax[a] - centerMin[a] > centerMax[axis] - centerMin[axis])
+                axis = a;
+        }
+        if (end - begin <= LEAF_ENTITIES || centerMax[axis] == centerMin[axis])
+            return node;
+
+        // Median split along the axis with the largest center extent.
+        final int splitAxis = axis;
+        Arrays.sort(order, begin, end, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Float.compare(
+                            boxes[6 * a + splitAxis] + boxes[6 * a + 3 + splitAxis],
+                            boxes[6 * b + splitAxis] + boxes[6 * b + 3 + splitAxis]);
+                }});
+        int middle = begin + (end - begin) / 2;
+        buildNode(begin, middle, order, boxes, table);
+        mNodeData[3 * node] = buildNode(middle, end, order, boxes, table);
+        return node;
+    }
+
+    /**
+     * A region of the screen in window coordinates (y going down, like in
+     * touch events): a rectangle, or a closed polygon drawn with a lasso.
+     */
+    static final class Region {
+        // Two floats per polygon vertex.
+        final float[] points;
+        final boolean isRectangle;
+        final float minX, minY, maxX, maxY;
+
+        private Region(float[] points, boolean isRectangle) {
+            this.points = points;
+            this.isRectangle = isRectangle;
+            float x0 = Float.MAX_VALUE, y0 = Float.MAX_VALUE;
+            float x1 = -Float.MAX_VALUE, y1 = -Float.MAX_VALUE;
+            for (int i = 0; i + 1 < points.length; i += 2) {
+                x0 = Math.min(x0, points[i]);
+                y0 = Math.min(y0, points[i + 1]);
+                x1 = Math.max(x1, points[i]);
+                y1 = Math.max(y1, points[i + 1]);
+            }
+            minX = x0;
+            minY = y0;
+            maxX = x1;
+            maxY = y1;
+        }
+
+        /** A rectangle spanned by two opposite corners. */
+        static Region rectangle(float x0, float y0, float x1, float y1) {
+            return new Region(new float[] { x0, y0, x1, y0, x1, y1, x0, y1 }, true);
+        }
+
+        /** A polygon; the last point is connected to the first. */
+        static Region lasso(float[] points) {
+            return new Region(points.clone(), false);
+        }
+
+        boolean intersectsRect(float x0, float y0, float x1, float y1) {
+            return x0 <= maxX && x1 >= minX && y0 <= maxY && y1 >= minY;
+        }
+
+        boolean containsRect(float x0, float y0, float x1, float y1) {
+            if (x0 < minX || x1 > maxX || y0 < minY || y1 > maxY) return false;
+            if (isRectangle) return true;
+
+            // The rectangle is inside the polygon if one of its corners is
+            // and no polygon edge crosses it.
+            if (!containsPoint(x0, y0)) return false;
+            int n = points.length / 2;
+            for (int i = 0, j = n - 1; i < n; j = i++) {
+                if (segmentIntersectsRect(points[2 * j], points[2 * j + 1],
+                        points[2 * i], points[2 * i + 1], x0, y0, x1, y1)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Even-odd rule.
+        boolean containsPoint(float x, float y) {
+            boolean inside = false;
+            int n = points.length / 2;
+            for (int i = 0, j = n - 1; i < n; j = i++) {
+                float xi = points[2 * i], yi = points[2 * i + 1];
+                float xj = points[2 * j], yj = points[2 * j + 1];
+                if ((yi > y) != (yj > y) && x < (xj - xi) * (y - yi) / (yj - yi) + xi)
+                    inside = !inside;
+            }
+            return inside;
+        }
+
+        // Liang-Barsky clipping of the segment against the rectangle.
+        private static boolean segmentIntersectsRect(float ax, float ay, float bx, float by,
+                float x0, float y0, float x1, float y1) {
+            float dx = bx - ax, dy = by - ay;
+            float[] p = { -dx, dx, -dy, dy };
+            float[] q = { ax - x0, x1 - ax, ay - y0, y1 - ay };
+            float tMin = 0, tMax = 1;
+            for (int i = 0; i < 4; ++i) {
+                if (p[i] == 0) {
+                    if (q[i] < 0) return false;
+                } else {
+                    float t = q[i] / p[i];
+                    if (p[i] < 0) {
+                        tMin = Math.max(tMin, t);
+                    } else {
+                        tMax = Math.min(tMax, t);
+                    }
+                    if (tMin > tMax) return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Finds the entities of the layers in {@code layerMask} whose bounding
+     * boxes project completely into {@code region}.
+     *
+     * @param wvp The world-view-projection matrix of the view.
+     * @param width The width of the view in pixels.
+     * @param height The height of the view in pixels.
+     * @return The ids of the entities (see EntityIds).
+     */
+    int[] queryRegion(float[] wvp, int width, int height, int layerMask, Region region) {
+        IdList result = new IdList();
+        if (mNumNodes == 0) return result.toArray();
+
+        float[] rect = new float[4];
+        int[] stack = new int[64];
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+        while (stackSize > 0) {
+            int node = stack[--stackSize];
+            if ((mNodeLayers[node] & layerMask) == 0) continue;
+
+            // Boxes that reach behind the camera don't project to a
+            // rectangle; their children might, though.
+            boolean projected = projectBox(wvp, width, height, mNodeBounds, 6 * node, rect);
+            if (projected) {
+                if (!region.intersectsRect(rect[0], rect[1], rect[2], rect[3])) continue;
+                if (region.containsRect(rect[0], rect[1], rect[2], rect[3])) {
+                    // Every box below the node projects into the node's rectangle.
+                    for (int i = mNodeData[3 * node + 1]; i < mNodeData[3 * node + 2]; ++i) {
+                        if ((layerMask & (1 << mLayers[i])) != 0)
+                            result.add(mEntities[i]);
+                    }
+                    continue;
+                }
+            }
+
+            int second = mNodeData[3 * node];
+            if (second >= 0) {
+                if (stackSize + 2 > stack.length)
+                    stack = Arrays.copyOf(stack, 2 * stack.length);
+                stack[stackSize++] = second;
+                stack[stackSize++] = node + 1;
+                continue;
+            }
+
+            for (int i = mNodeData[3 * node + 1]; i < mNodeData[3 * node + 2]; ++i) {
+                if ((layerMask & (1 << mLayers[i])) == 0) continue;
+                if (projectBox(wvp, width, height, mBoxes, 6 * i, rect) &&
+                        region.containsRect(rect[0], rect[1], rect[2], rect[3])) {
+                    result.add(mEntities[i]);
+                }
+            }
+        }
+        return result.toArray();
+    }
+
+    /**
+     * Finds the {@code k} entities of the layers in {@code layerMask} whose
+     * bounding boxes are closest to a point. Boxes that contain the point
+     * have distance 0.
+     *
+     * @param exclude An entity id to skip, or {@code EntityIds.NONE}.
+     * @return The ids of the entities, closest first.
+     */
+    int[] findNearest(float x, float y, float z, int k, int layerMask, int exclude) {
+        if (mNumNodes == 0 || k <= 0) return new int[0];
+
+        // A max-heap of the best |k| entities found so far, by distance.
+        float[] heapDistances = new float[k];
+        int[] heapEntities = new int[k];
+        int heapSize = 0;
+
+        int[] stack = new int[64];
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+        while (stackSize > 0) {
+            int node = stack[--stackSize];
+            if ((mNodeLayers[node] & layerMask) == 0) continue;
+            if (heapSize == k &&
+                    distanceSquared(mNodeBounds, 6 * node, x, y, z) >= heapDistances[0]) {
+                continue;
+            }
+
+            int second = mNodeData[3 * node];
+            if (second >= 0) {
+                if (stackSize + 2 > stack.length)
+                    stack = Arrays.copyOf(stack, 2 * stack.length);
+                // Visit the closer child first, it's more likely to shrink
+                // the search radius.
+                float first = distanceSquared(mNodeBounds, 6 * (node + 1), x, y, z);
+                if (first <= distanceSquared(mNodeBounds, 6 * second, x, y, z)) {
+                    stack[stackSize++] = second;
+                    stack[stackSize++] = node + 1;
+                } else {
+                    stack[stackSize++] = node + 1;
+                    stack[stackSize++] = second;
+                }
+                continue;
+            }
+
+            for (int i = mNodeData[3 * node + 1]; i < mNodeData[3 * node + 2]; ++i) {
+                if ((layerMask & (1 << mLayers[i])) == 0 || mEntities[i] == exclude)
+                    continue;
+                float distance = distanceSquared(mBoxes, 6 * i, x, y, z);
+                if (heapSize < k) {
+                    siftUp(heapDistances, heapEntities, heapSize++, distance, i);
+                } else if (distance < heapDistances[0]) {
+                    siftDown(heapDistances, heapEntities, heapSize, distance, i);
+                }
+            }
+        }
+
+        // Popping the heap yields the farthest entity first.
+        int[] sorted = new int[heapSize];
+        for (int n = heapSize; n > 0; --n) {
+            sorted[n - 1] = mEntities[heapEntities[0]];
+            siftDown(heapDistances, heapEntities, n - 1, heapDistances[n - 1],
+                    heapEntities[n - 1]);
+        }
+        return sorted;
+    }
+
+    /**
+     * Finds the entities of the layers in {@code layerMask} whose bounding
+     * boxes are at most {@code radius} away from a point, in no particular
+     * order.
+     *
+     * @return The ids of the entities.
+     */
+    int[] findWithinRadius(float x, float y, float z, float radius, int layerMask) {
+        IdList result = new IdList();
+        if (mNumNodes == 0) return result.toArray();
+
+        float radiusSquared = radius * radius;
+        int[] stack = new int[64];
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+        while (stackSize > 0) {
+            int node = stack[--stackSize];
+            if ((mNodeLayers[node] & layerMask) == 0 ||
+                    distanceSquared(mNodeBounds, 6 * node, x, y, z) > radiusSquared) {
+                continue;
+            }
+
+            int second = mNodeData[3 * node];
+            if (second >= 0) {
+                if (stackSize + 2 > stack.length)
+                    stack = Arrays.copyOf(stack, 2 * stack.length);
+                stack[stackSize++] = second;
+                stack[stackSize++] = node + 1;
+                continue;
+            }
+
+            for (int i = mNodeData[3 * node + 1]; i < mNodeData[3 * node + 2]; ++i) {
+                if ((layerMask & (1 << mLayers[i])) != 0 &&
+                        distanceSquared(mBoxes, 6 * i, x, y, z) <= radiusSquared) {
+                    result.add(mEntities[i]);
+                }
+            }
+        }
+        return result.toArray();
+    }
+
+    // A growable array of entity ids, for query results of unknown size.
+    private static final class IdList {
+        private int[] mIds = new int[16];
+        private int mSize;
+
+        void add(int id) {
+            if (mSize == mIds.length) mIds = Arrays.copyOf(mIds, 2 * mSize);
+            mIds[mSize++] = id;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(mIds, mSize);
+        }
+    }
+
+    // The squared distance from a point to the box at |boxes[offset]|.
+    private static float distanceSquared(float[] boxes, int offset, float x, float y, float z) {
+        float dx = Math.max(0, Math.max(boxes[offset] - x, x - boxes[offset + 3]));
+        float dy = Math.max(0, Math.max(boxes[offset + 1] - y, y - boxes[offset + 4]));
+        float dz = Math.max(0, Math.max(boxes[offset + 2] - z, z - boxes[offset + 5]));
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    // Inserts an entry at the end of a max-heap of |size| entries.
+    private static void siftUp(float[] distances, int[] entities, int size,
+            float distance, int entity) {
+        int i = size;
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (distances[parent] >= distance) break;
+            distances[i] = distances[parent];
+            entities[i] = entities[parent];
+            i = parent;
+        }
+        distances[i] = distance;
+        entities[i] = entity;
+    }
+
+    // Replaces the root of a max-heap of |size| entries.
+    private static void siftDown(float[] distances, int[] entities, int size,
+            float distance, int entity) {
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) break;
+            if (child + 1 < size && distances[child + 1] > distances[child]) ++child;
+            if (distances[child] <= distance) break;
+            distances[i] = distances[child];
+            entities[i] = entities[child];
+            i = child;
+        }
+        if (size > 0) {
+            distances[i] = distance;
+            entities[i] = entity;
+        }
+    }
+
+    /**
+     * Computes the window space bounding rectangle (min x, min y, max x,
+     * max y) of the projection of the box at {@code boxes[offset]}.
+     *
+     * @return false if a corner of the box is behind the camera.
+     */
+    static boolean projectBox(float[] wvp, int width, int height, float[] boxes, int offset,
+            float[] rect) {
+        rect[0] = rect[1] = Float.MAX_VALUE;
+        rect[2] = rect[3] = -Float.MAX_VALUE;
+        for (int corner = 0; corner < 8; ++corner) {
+            float x = boxes[offset + ((corner & 1) != 0 ? 3 : 0)];
+            float y = boxes[offset + 1 + ((corner & 2) != 0 ? 3 : 0)];
+            float z = boxes[offset + 2 + ((corner & 4) != 0 ? 3 : 0)];
+            float w = wvp[3] * x + wvp[7] * y + wvp[11] * z + wvp[15];
+            if (w <= 0) return false;
+            float cx = wvp[0] * x + wvp[4] * y + wvp[8] * z + wvp[12];
+            float cy = wvp[1] * x + wvp[5] * y + wvp[9] * z + wvp[13];
+            float wx = (cx / w + 1) * 0.5f * width;
+            float wy = (1 - cy / w) * 0.5f * height;
+            rect[0] = Math.min(rect[0], wx);
+            rect[1] = Math.min(rect[1], wy);
+            rect[2] = Math.max(rect[2], wx);
+            rect[3] = Math.max(rect[3], wy);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,109 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body;
+
+import android.database.AbstractCursor;
+
+/**
+ * The details of one entity: a single row with its layer, bounding box, id
+ * and display name, read from the {@code EntityTable} when a column is
+ * read.
+ */
+final class EntityCursor extends AbstractCursor {
+
+    private static final String[] COLUMNS = {
+        "layer",
+        "bblx", "bbly", "bblz",
+        "bbhx", "bbhy", "bbhz",
+        "entity",
+        "entityName",
+    };
+    private static final int COLUMN_LAYER = 0;
+    private static final int COLUMN_BOUNDS = 1;  // To 6, in EntityTable order.
+    private static final int COLUMN_ENTITY = 7;
+    private static final int COLUMN_ENTITY_NAME = 8;
+
+    private final EntityTable mTable;
+    private final int mRow;
+
+    EntityCursor(EntityTable table, int row) {
+        mTable = table;
+        mRow = row;
+    }
+
+    @Override
+    public int getCount() {
+        return 1;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return COLUMNS;
+    }
+
+    @Override
+    public String getString(int column) {
+        switch (column) {
+            case COLUMN_ENTITY:
+                return mTable.getEntityId(mRow);
+            case COLUMN_ENTITY_NAME:
+                return mTable.getDisplayName(mRow);
+            case COLUMN_LAYER:
+                return Integer.toString(mTable.getLayer(mRow));
+            default:
+                return Float.toString(getBound(column));
+        }
+    }
+
+    private float getBound(int column) {
+        if (column < COLUMN_BOUNDS || column >= COLUMN_BOUNDS + 6)
+            throw new IllegalArgumentException("Bad column " + column);
+        return mTable.getBound(mRow, column - COLUMN_BOUNDS);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        if (column == COLUMN_LAYER) return mTable.getLayer(mRow);
+        if (column == COLUMN_ENTITY || column == COLUMN_ENTITY_NAME)
+            return Double.parseDouble(getString(column));
+        return getBound(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float)getDouble(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        if (column == COLUMN_ENTITY || column == COLUMN_ENTITY_NAME)
+            return Long.parseLong(getString(column));
+        return (long)getDouble(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int)getLong(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short)getLong(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return false;
+    }
+}
@@ -0,0 +1,101 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Interns entity names (the "geometry" of draws, the ids in the entity
+ * file) into dense ints, so that {@code Base}, {@code Render.Draw} and the
+ * selection can use arrays indexed by entity id instead of string maps.
+ *
+ * The entities of the {@code EntityTable} have their row as id. Names that
+ * aren't in the table (draws without entity data) get the ids after those,
+ * in the order they are first seen. Ids stay valid for the lifetime of the
+ * process. The table must be set before any name is interned; if it
+ * couldn't be loaded, no name has an id and callers fall back to names.
+ */
+final class EntityIds {
+
+    /** Returned by {@link #lookup} for names that were never interned. */
+    static final int NONE = -1;
+
+    private static volatile EntityTable sTable;
+
+    // Names that aren't in the table.
+    private static final Map<String, Integer> sExtraIds = new HashMap<String, Integer>();
+    private static volatile String[] sExtraNames = new String[16];
+    private static int sNumExtra = 0;  // Guarded by EntityIds.class.
+
+    private EntityIds() {}
+
+    /** Called once by {@code EntityTable.get()}. */
+    static void setTable(EntityTable table) {
+        sTable = table;
+    }
+
+    /**
+     * @return The id of {@code name}, assigning a new one if needed, or
+     *     {@link #NONE} if there is no entity table.
+     */
+    static int intern(String name) {
+        EntityTable table = sTable;
+        if (table == null) return NONE;
+        int row = table.find(name);
+        if (row >= 0) return row;
+
+        synchronized (EntityIds.class) {
+            Integer id = sExtraIds.get(name);
+            if (id != null) return id;
+
+            String[] names = sExtraNames;
+            if (sNumExtra == names.length) names = Arrays.copyOf(names, 2 * names.length);
+            names[sNumExtra] = name;
+            sExtraIds.put(name, table.size() + sNumExtra);
+            sExtraNames = names;  // Publishes the new name.
+            return table.size() + sNumExtra++;
+        }
+    }
+
+    /** @return The id of {@code name}, or {@link #NONE}. */
+    static int lookup(String name) {
+        EntityTable table = sTable;
+        if (table == null) return NONE;
+        int row = table.find(name);
+        if (row >= 0) return row;
+
+        synchronized (EntityIds.class) {
+            Integer id = sExtraIds.get(name);
+            return id != null ? id : NONE;
+        }
+    }
+
+    /** @return The name of entity {@code id}. */
+    static String getName(int id) {
+        EntityTable table = sTable;
+        if (id < table.size()) return table.getEntityId(id);
+        return sExtraNames[id - table.size()];
+    }
+
+    /** @return The number of ids handed out so far; all ids are below this. */
+    static int size() {
+        EntityTable table = sTable;
+        if (table == null) return 0;
+        synchronized (EntityIds.class) {
+            return table.size() + sNumExtra;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+/**
+ * The entity database in the binary format written by
+ * tools/EntityTableCompiler: a string pool, parallel arrays of bounding box
+ * coordinates and layer bytes, an index of the rows sorted by entity id,
+ * and the rows of the search terms. Rows are read directly from the
+ * (memory mapped, if possible) file, so loading creates no per-entity
+ * objects.
+ *
+ * The rows are the entity ids of {@code EntityIds}.
+ *
+ * Layout, big endian:
+ * <pre>
+ * int magic, int version
+ * int numEntities, int numSearchTerms, int poolSize
+ * int[numEntities] id string offsets into the pool
+ * int[numEntities] display name string offsets into the pool
+ * int[numEntities] rows, sorted by entity id
+ * int[numSearchTerms] rows of the first entity of every search term
+ * float[numEntities] x 6: min x, min y, min z, max x, max y, max z
+ * byte[numEntities] layers
+ * byte[poolSize] strings: unsigned short length, then Latin-1 characters
+ * </pre>
+ */
+final class EntityTable {
+
+    static final int MAGIC = 0x456e7454;  // "EntT"
+    static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 5 * 4;
+
+    private static EntityTable sTable;  // Guarded by EntityTable.class.
+
+    private final ByteBuffer mData;
+    private final int mNumEntities;
+    private final int mNumSearchTerms;
+    private final int mIdOffsets;
+    private final int mNameOffsets;
+    private final int mSortedRows;
+    private final int mSearchRows;
+    private final int mBoxes;
+    private final int mLayers;
+    private final int mPool;
+
+    EntityTable(ByteBuffer data) throws IOException {
+        mData = data;
+        if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION)
+            throw new IOException("Not an entity table, or wrong version");
+        mNumEntities = data.getInt(8);
+        mNumSearchTerms = data.getInt(12);
+        int poolSize = data.getInt(16);
+
+        mIdOffsets = HEADER_SIZE;
+        mNameOffsets = mIdOffsets + 4 * mNumEntities;
+        mSortedRows = mNameOffsets + 4 * mNumEntities;
+        mSearchRows = mSortedRows + 4 * mNumEntities;
+        mBoxes = mSearchRows + 4 * mNumSearchTerms;
+        mLayers = mBoxes + 6 * 4 * mNumEntities;
+        mPool = mLayers + mNumEntities;
+        if (mPool + poolSize != data.capacity())
+            throw new IOException("Truncated entity table");
+    }
+
+    /**
+     * @return The table of the app's entities, loading it on first use.
+     *     Also makes it the table of {@code EntityIds}.
+     */
+    static synchronized EntityTable get(Context context) throws IOException {
+        if (sTable == null) {
+            long start = System.nanoTime();
+            sTable = new EntityTable(map(context, R.raw.f_entities_table));
+            EntityIds.setTable(sTable);
+            Log.i("Body", "Entity table: " + sTable.size() + " entities, " +
+                    (System.nanoTime() - start) / 1e9f + " s");
+        }
+        return sTable;
+    }
+
+    // Maps a raw resource. Resources that aapt compressed can't be mapped and
+    // are read into memory instead.
+    static ByteBuffer map(Context context, int resource) throws IOException {
+        AssetFileDescriptor fd = null;
+        try {
+            fd = context.getResources().openRawResourceFd(resource);
+        } catch (Exception e) {
+            // Compressed.
+        }
+        if (fd != null) {
+            FileInputStream stream = fd.createInputStream();
+            try {
+                FileChannel channel = stream.getChannel();
+                return channel.map(FileChannel.MapMode.READ_ONLY,
+                        fd.getStartOffset(), fd.getLength());
+            } finally {
+                stream.close();
+            }
+        }
+
+        InputStream is = context.getResources().openRawResource(resource);
+        try {
+            byte[] buffer = new byte[8192];
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            int n;
+            while ((n = is.read(buffer)) > 0)
+                bytes.write(buffer, 0, n);
+            return ByteBuffer.wrap(bytes.toByteArray());
+        } finally {
+            is.close();
+        }
+    }
+
+    /** @return The number of entities. */
+    int size() {
+        return mNumEntities;
+    }
+
+    /** @return The row of the entity with id {@code entity}, or -1. */
+    int find(String entity) {
+        int low = 0, high = mNumEntities - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int row = mData.getInt(mSortedRows + 4 * middle);
+            int c = compare(mData.getInt(mIdOffsets + 4 * row), entity);
+            if (c < 0) {
+                low = middle + 1;
+            } else if (c > 0) {
+                high = middle - 1;
+            } else {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    // Compares the pool string at |offset| with |s|, like String.compareTo().
+    private int compare(int offset, String s) {
+        int length = mData.getShort(mPool + offset) & 0xffff;
+        int start = mPool + offset + 2;
+        int n = Math.min(length, s.length());
+        for (int i = 0; i < n; ++i) {
+            int c = (mData.get(start + i) & 0xff) - s.charAt(i);
+            if (c != 0) return c;
+        }
+        return length - s.length();
+    }
+
+    private String getString(int offset) {
+        int length = mData.getShort(mPool + offset) & 0xffff;
+        int start = mPool + offset + 2;
+        char[] chars = new char[length];
+        for (int i = 0; i < length; ++i)
+            chars[i] = (char)(mData.get(start + i) & 0xff);
+        return new String(chars);
+    }
+
+    /** @return The id of the entity in {@code row}, as in the layer files. */
+    String getEntityId(int row) {
+        return getString(mData.getInt(mIdOffsets + 4 * row));
+    }
+
+    /** @return The display name of the entity in {@code row}. */
+    String getDisplayName(int row) {
+        return getString(mData.getInt(mNameOffsets + 4 * row));
+    }
+
+    int getLayer(int row) {
+        return mData.get(mLayers + row);
+    }
+
+    /**
+     * @param coordinate 0 to 5: min x, min y, min z, max x, max y, max z.
+     * @return A coordinate of the bounding box of the entity in {@code row}.
+     */
+    float getBound(int row, int coordinate) {
+        return mData.getFloat(mBoxes + 4 * (coordinate * mNumEntities + row));
+    }
+
+    /** @return The details of the entity in {@code row}, as a new object. */
+    Base.EntityInfo getInfo(int row) {
+        Base.EntityInfo info = new Base.EntityInfo();
+        info.layer = getLayer(row);
+        info.bblx = getBound(row, 0);
+        info.bbly = getBound(row, 1);
+        info.bblz = getBound(row, 2);
+        info.bbhx = getBound(row, 3);
+        info.bbhy = getBound(row, 4);
+        info.bbhz = getBound(row, 5);
+        info.displayName = getDisplayName(row);
+        return info;
+    }
+
+    /**
+     * @return The number of search terms: the distinct display names, ordered
+     *     by length.
+     */
+    int getNumSearchTerms() {
+        return mNumSearchTerms;
+    }
+
+    /** @return The row of the first entity with search term {@code index}. */
+    int getSearchRow(int index) {
+        return mData.getInt(mSearchRows + 4 * index);
+    }
+}
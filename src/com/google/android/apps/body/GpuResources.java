@@ -0,0 +1,272 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body;
+
+import com.google.android.apps.body.tdl.Gl;
+import com.google.android.apps.body.tdl.GlState;
+import com.google.android.apps.body.tdl.Logger;
+import com.google.android.apps.body.tdl.Textures;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Owns the GL textures, buffers and vertex array objects of the layers.
+ * Every resource is held by the layers that use it and deleted when the last
+ * of them releases it. Textures with the same name and solid color textures
+ * of the same color are shared between draw groups and layers.
+ *
+ * Must only be used on the render thread.
+ */
+final class GpuResources {
+
+    private static final int TEXTURE = 0;
+    private static final int BUFFER = 1;
+    private static final int VERTEX_ARRAY = 2;
+
+    private static final class Resource {
+        final String key;  // null if the resource isn't shared.
+        final int type;
+        final int name;
+        final int bytes;
+        int refs;
+
+        // Bit mask of the layers holding the resource.
+        int layers;
+
+        Resource(String key, int type, int name, int bytes) {
+            this.key = key;
+            this.type = type;
+            this.name = name;
+            this.bytes = bytes;
+        }
+    }
+
+    private final Map<String, Resource> mShared = new HashMap<String, Resource>();
+
+    // The resources each layer holds, once per acquisition.
+    private final List<List<Resource>> mHeld = new ArrayList<List<Resource>>();
+
+    // The resources each layer held when the GL context was lost, see
+    // checkReacquired().
+    private final List<List<Resource>> mLost = new ArrayList<List<Resource>>();
+
+    // Resource counts, indexed by type.
+    private final int[] mCounts = new int[3];
+    private int mTotalBytes;
+
+    private final Logger mLogger;
+
+    GpuResources(Logger logger) {
+        mLogger = logger;
+        for (int i = 0; i < Layers.NUM_LAYERS; ++i) {
+            mHeld.add(new ArrayList<Resource>());
+            mLost.add(new ArrayList<Resource>());
+        }
+    }
+
+    /**
+     * @param key Identifies the texture's image, for sharing it.
+     * @param data The ETC1 data of the image.
+     * @return The GL name of a texture with the image, held by {@code layer}.
+     */
+    int acquireTexture(int layer, String key, int width, int height, ByteBuffer data) {
+        Resource resource = mShared.get(key);
+        if (resource == null) {
+            resource = new Resource(key, TEXTURE,
+                    Textures.loadEtc1Texture(width, height, data), data.capacity());
+            add(resource);
+        }
+        return hold(layer, resource);
+    }
+
+    /**
+     * @return The GL name of a 1x1 texture of the color {@code rgb}, held by
+     *     {@code layer}.
+     */
+    int acquireColorTexture(int layer, float[] rgb) {
+        int r = (int)(rgb[0] * 255 + 0.5);
+        int g = (int)(rgb[1] * 255 + 0.5);
+        int b = (int)(rgb[2] * 255 + 0.5);
+        String key = String.format(Locale.US, "#%02x%02x%02x", r, g, b);
+        Resource resource = mShared.get(key);
+        if (resource == null) {
+            resource = new Resource(key, TEXTURE, Textures.loadTexture(
+                    new float[] { r / 255.f, g / 255.f, b / 255.f }), 4);
+            add(resource);
+        }
+        return hold(layer, resource);
+    }
+
+    /**
+     * @return The GL name of a new static buffer for {@code target} holding
+     *     {@code data}, held by {@code layer}.
+     */
+    int acquireBuffer(int layer, int target, ShortBuffer data) {
+        Gl gl = GlState.getGl();
+        int[] buffers = { 0 };
+        gl.glGenBuffers(1, buffers, 0);
+        GlState.bindBuffer(target, buffers[0]);
+        gl.glBufferData(target, data.capacity() * 2, data, Gl.GL_STATIC_DRAW);
+        Resource resource = new Resource(null, BUFFER, buffers[0], data.capacity() * 2);
+        add(resource);
+        return hold(layer, resource);
+    }
+
+    /**
+     * @return The name of a new vertex array object held by {@code layer},
+     *     bound. See {@link #bindVertexArray}.
+     */
+    int acquireVertexArray(int layer) {
+        Resource resource =
+                new Resource(null, VERTEX_ARRAY, GlState.getGl().genVertexArray(), 0);
+        add(resource);
+        bindVertexArray(resource.name);
+        return hold(layer, resource);
+    }
+
+    /**
+     * Binds a vertex array object, or the default one for 0. Only call if
+     * the GL context has OES_vertex_array_object.
+     */
+    static void bindVertexArray(int vertexArray) {
+        if (GlState.setVertexArray(vertexArray)) GlState.getGl().bindVertexArray(vertexArray);
+    }
+
+    /** Releases every resource {@code layer} holds. */
+    void releaseLayer(int layer) {
+        List<Resource> held = mHeld.get(layer);
+        for (Resource resource : held) {
+            resource.layers &= ~(1 << layer);
+            if (--resource.refs == 0) delete(resource);
+        }
+        held.clear();
+    }
+
+    /** @return The size of the resources {@code layer} holds, in bytes. */
+    int getLayerBytes(int layer) {
+        // A resource held several times by the layer is counted once.
+        int bytes = 0;
+        List<Resource> held = mHeld.get(layer);
+        for (int i = 0; i < held.size(); ++i) {
+            if (held.indexOf(held.get(i)) == i) bytes += held.get(i).bytes;
+        }
+        return bytes;
+    }
+
+    /** @return The size of all resources, shared ones counted once, in bytes. */
+    int getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /** Logs how much GPU memory the layers hold. */
+    void logUsage() {
+        StringBuilder usage = new StringBuilder("GPU resources: ");
+        usage.append(mCounts[TEXTURE]).append(" textures, ").append(mCounts[BUFFER])
+                .append(" buffers, ");
+        if (mCounts[VERTEX_ARRAY] > 0)
+            usage.append(mCounts[VERTEX_ARRAY]).append(" vertex arrays, ");
+        usage.append(mTotalBytes / 1024).append(" kB");
+        for (int layer = 0; layer < Layers.NUM_LAYERS; ++layer) {
+            if (mHeld.get(layer).isEmpty()) continue;
+            usage.append("; layer ").append(layer).append(": ")
+                    .append(getLayerBytes(layer) / 1024).append(" kB");
+        }
+        mLogger.i(usage.toString());
+    }
+
+    /**
+     * Forgets every resource without deleting it: the GL context it was
+     * created in is gone, and its names may already be reused. What each
+     * layer held is remembered for {@link #checkReacquired}.
+     */
+    void contextLost() {
+        for (int layer = 0; layer < Layers.NUM_LAYERS; ++layer) {
+            List<Resource> held = mHeld.get(layer);
+            if (!held.isEmpty()) {
+                mLost.set(layer, held);
+                mHeld.set(layer, new ArrayList<Resource>());
+            }
+        }
+        mShared.clear();
+        Arrays.fill(mCounts, 0);
+        mTotalBytes = 0;
+    }
+
+    /**
+     * Reports the resources {@code layer} held before the GL context was
+     * lost and doesn't hold again now, i.e. the ones that didn't make it
+     * into the new context. Call once the layer is uploaded again.
+     */
+    void checkReacquired(int layer) {
+        List<Resource> lost = mLost.get(layer);
+        if (lost.isEmpty()) return;
+        int[] missing = new int[mCounts.length];
+        int missingBytes = 0;
+        for (Resource resource : lost) {
+            ++missing[resource.type];
+            missingBytes += resource.bytes;
+        }
+        for (Resource resource : mHeld.get(layer)) {
+            --missing[resource.type];
+            missingBytes -= resource.bytes;
+        }
+        lost.clear();
+        if (missing[TEXTURE] > 0 || missing[BUFFER] > 0 || missing[VERTEX_ARRAY] > 0) {
+            mLogger.w("Layer " + layer + " is missing " + Math.max(0, missing[TEXTURE]) +
+                    " textures, " + Math.max(0, missing[BUFFER]) + " buffers, " +
+                    Math.max(0, missing[VERTEX_ARRAY]) + " vertex arrays, " +
+                    missingBytes / 1024 + " kB since the GL context was lost");
+        }
+    }
+
+    private void add(Resource resource) {
+        if (resource.key != null) mShared.put(resource.key, resource);
+        ++mCounts[resource.type];
+        mTotalBytes += resource.bytes;
+    }
+
+    private int hold(int layer, Resource resource) {
+        ++resource.refs;
+        resource.layers |= 1 << layer;
+        mHeld.get(layer).add(resource);
+        return resource.name;
+    }
+
+    private void delete(Resource resource) {
+        int[] names = { resource.name };
+        switch (resource.type) {
+            case TEXTURE:
+                GlState.deleteTextures(1, names, 0);
+                break;
+            case BUFFER:
+                GlState.deleteBuffers(1, names, 0);
+                break;
+            case VERTEX_ARRAY:
+                // Deleting the bound object would bind the default one.
+                bindVertexArray(0);
+                GlState.getGl().deleteVertexArray(resource.name);
+                break;
+        }
+        --mCounts[resource.type];
+        if (resource.key != null) mShared.remove(resource.key);
+        mTotalBytes -= resource.bytes;
+    }
+}
@@ -16,8 +16,12 @@ package com.google.android.apps.body;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.ShortBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import com.google.android.apps.body.Base.EntityInfo;
+import com.google.android.apps.body.tdl.Gl;
+import com.google.android.apps.body.tdl.GlState;
 import com.google.android.apps.body.tdl.Programs;
 import com.google.android.apps.body.tdl.Textures;
 
@@ -29,8 +33,6 @@ import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.Typeface;
-import android.opengl.GLES20;
-import android.opengl.GLUtils;
 
 /**
  * A class that is able to render a single label to an OpenGL texture,
@@ -73,7 +75,34 @@ public class Label {
     private String mCurrentLabelString;
     private EntityInfo mTargetEntity;
 
+    // Recently used label textures, keyed by text. While the user scrubs
+    // over the body the label changes often, and usually back and forth
+    // between a few neighboring entities.
+    private static final int TEXTURE_CACHE_SIZE = 8;
+
+    private static class LabelTexture {
+        int texture;
+        int width, height;
+    }
+
+    @SuppressWarnings("serial")
+    private final Map<String, LabelTexture> mTextureCache =
+            new LinkedHashMap<String, LabelTexture>(TEXTURE_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, LabelTexture> eldest) {
+                    if (size() <= TEXTURE_CACHE_SIZE) return false;
+                    int[] textures = { eldest.getValue().texture };
+                    GlState.deleteTextures(1, textures, 0);
+                    return true;
+                }
+            };
+
     public void initialize(Context context) {
+        Gl gl = GlState.getGl();
+        // Textures don't survive the loss of the GL context.
+        mTextureCache.clear();
+        mLabelTexture = 0;
+
         // Array buffer.
         short[] vertices = {
             0, 0,
@@ -88,18 +117,18 @@ public class Label {
         buffer.position(0);
 
         int[] vbos = { 0 };
-        GLES20.glGenBuffers(1, vbos, 0);
+        gl.glGenBuffers(1, vbos, 0);
         mVbo = vbos[0];
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVbo);
-        GLES20.glBufferData(
-                GLES20.GL_ARRAY_BUFFER, vertices.length * 2, buffer, GLES20.GL_STATIC_DRAW);
+        GlState.bindBuffer(Gl.GL_ARRAY_BUFFER, mVbo);
+        gl.glBufferData(
+                Gl.GL_ARRAY_BUFFER, vertices.length * 2, buffer, Gl.GL_STATIC_DRAW);
 
         // Shader.
         mShader = Programs.loadProgram(VERTEX_SHADER, FRAGMENT_SHADER);
-        GLES20.glBindAttribLocation(mShader, 0, "position");
-        GLES20.glLinkProgram(mShader);
-        mTransformLoc = GLES20.glGetUniformLocation(mShader, "transform");
-        mTextureLoc = GLES20.glGetUniformLocation(mShader, "textureSampler");
+        gl.glBindAttribLocation(mShader, 0, "position");
+        gl.glLinkProgram(mShader);
+        mTransformLoc = gl.glGetUniformLocation(mShader, "transform");
+        mTextureLoc = gl.glGetUniformLocation(mShader, "textureSampler");
 
         // Copyright texture.
         BitmapFactory.Options opts = new BitmapFactory.Options();
@@ -109,48 +138,46 @@ public class Label {
                 context.getResources(), R.drawable.body_copyright, opts);
         mCopyrightWidth = bitmap.getWidth();
         mCopyrightHeight = bitmap.getHeight();
-        mCopyrightTexture = Textures.loadTexture(bitmap);
-        GLES20.glTexParameteri(
-                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(
-                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        mCopyrightTexture = Textures.loadTexture(
+                mCopyrightWidth, mCopyrightHeight, getPixels(bitmap));
+        gl.glTexParameteri(
+                Gl.GL_TEXTURE_2D, Gl.GL_TEXTURE_WRAP_S, Gl.GL_CLAMP_TO_EDGE);
+        gl.glTexParameteri(
+                Gl.GL_TEXTURE_2D, Gl.GL_TEXTURE_WRAP_T, Gl.GL_CLAMP_TO_EDGE);
         bitmap.recycle();
     }
 
-    // Delete all labels
+    // Delete all labels. The label's texture stays in the texture cache.
     public void clearLabel() {
         mCurrentLabelString = null;
-        if (mLabelTexture == 0) return;
-        int[] textures = { mLabelTexture };
-        GLES20.glDeleteTextures(1, textures, 0);
         mLabelTexture = 0;
     }
 
     // Update display deletes existing labels.
     public void updateDisplay(Render render, float canvasWidth, float canvasHeight) {
-        GLES20.glDisable(GLES20.GL_DEPTH_TEST);
-        GLES20.glEnable(GLES20.GL_BLEND);
+        GlState.disable(Gl.GL_DEPTH_TEST);
+        GlState.enable(Gl.GL_BLEND);
 
-        GLES20.glUseProgram(mShader);
-        GLES20.glUniform1i(mTextureLoc, 0);
-        GLES20.glEnableVertexAttribArray(0);
-        GLES20.glDisableVertexAttribArray(1);
-        GLES20.glDisableVertexAttribArray(2);
+        GlState.useProgram(mShader);
+        GlState.uniform1i(mTextureLoc, 0);
+        GlState.enableVertexAttribArray(0);
+        GlState.disableVertexAttribArray(1);
+        GlState.disableVertexAttribArray(2);
 
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVbo);
-        GLES20.glVertexAttribPointer(0, 2, GLES20.GL_SHORT, false, 2 * 2, 0);
+        GlState.bindBuffer(Gl.GL_ARRAY_BUFFER, mVbo);
+        GlState.vertexAttribPointer(0, 2, Gl.GL_SHORT, false, 2 * 2, 0);
 
         // Label.
         if (mCurrentLabelString != null) {
             float[] coords = getCoords(render, mTargetEntity, canvasWidth, canvasHeight);
             float x = coords[0] - mLabelTexWidth / 2;
             float y = coords[1];
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mLabelTexture);
+            GlState.bindTexture(Gl.GL_TEXTURE_2D, mLabelTexture);
             drawRect(x, y, mLabelTexWidth, mLabelTexHeight, canvasWidth, canvasHeight);
         }
 
         // Copyright texture.
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mCopyrightTexture);
+        GlState.bindTexture(Gl.GL_TEXTURE_2D, mCopyrightTexture);
         drawRect(
                 canvasWidth - mCopyrightWidth,
                 canvasHeight - mCopyrightHeight,
@@ -159,13 +186,14 @@ public class Label {
 
     private void drawRect(
             float x, float y, float width, float height, float canvasWidth, float canvasHeight) {
+        Gl gl = GlState.getGl();
         // Map from (0, 0, canvasWidth, canvasHeigth) to (-1, -1, 1, 1)
         float w = 2 * width / canvasWidth;
         float h = 2 * height/ canvasHeight;
         x = 2 * x / canvasWidth - 1;
         y = -(2 * (y + height) / canvasHeight - 1);
-        GLES20.glUniform4f(mTransformLoc, x, y, w, h);
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GlState.uniform4f(mTransformLoc, x, y, w, h);
+        gl.glDrawArrays(Gl.GL_TRIANGLE_STRIP, 0, 4);
     }
 
     /**
@@ -215,29 +243,58 @@ public class Label {
         uploadTextTexture(text);
     }
 
-    // Renders |text| into a bitmap and uploads that to OpenGL.
+    // Renders |text| into a bitmap and uploads that to OpenGL, unless there's
+    // a cached texture for |text| already.
     private void uploadTextTexture(String text) {
+        Gl gl = GlState.getGl();
         if (text.equals(mCurrentLabelString)) return;
         mCurrentLabelString = text;
-        if (mLabelTexture == 0) {
-            int[] textures = { 0 };
-            GLES20.glGenTextures(1, textures, 0);
-            mLabelTexture = textures[0];
+
+        LabelTexture cached = mTextureCache.get(text);
+        if (cached != null) {
+            mLabelTexture = cached.texture;
+            mLabelTexWidth = cached.width;
+            mLabelTexHeight = cached.height;
+            return;
         }
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mLabelTexture);
-        GLES20.glTexParameterf(
-                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameterf(
-                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameterf(
-                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameterf(
-                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+        int[] textures = { 0 };
+        gl.glGenTextures(1, textures, 0);
+        mLabelTexture = textures[0];
+        GlState.bindTexture(Gl.GL_TEXTURE_2D, mLabelTexture);
+        gl.glTexParameterf(
+                Gl.GL_TEXTURE_2D, Gl.GL_TEXTURE_MIN_FILTER, Gl.GL_LINEAR);
+        gl.glTexParameterf(
+                Gl.GL_TEXTURE_2D, Gl.GL_TEXTURE_MAG_FILTER, Gl.GL_LINEAR);
+        gl.glTexParameterf(
+                Gl.GL_TEXTURE_2D, Gl.GL_TEXTURE_WRAP_S, Gl.GL_CLAMP_TO_EDGE);
+        gl.glTexParameterf(
+                Gl.GL_TEXTURE_2D, Gl.GL_TEXTURE_WRAP_T, Gl.GL_CLAMP_TO_EDGE);
         Bitmap bitmap = renderLabel(mCurrentLabelString);
-        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
         mLabelTexWidth = bitmap.getWidth();
         mLabelTexHeight = bitmap.getHeight();
+        gl.glTexImage2D(Gl.GL_TEXTURE_2D, 0, Gl.GL_RGBA, mLabelTexWidth,
+                mLabelTexHeight, 0, Gl.GL_RGBA, Gl.GL_UNSIGNED_BYTE, getPixels(bitmap));
         bitmap.recycle();
+
+        LabelTexture texture = new LabelTexture();
+        texture.texture = mLabelTexture;
+        texture.width = mLabelTexWidth;
+        texture.height = mLabelTexHeight;
+        mTextureCache.put(text, texture);
+    }
+
+    // Returns the pixels of |bitmap| as RGBA bytes, for glTexImage2D(). Other
+    // bitmap configs, like the copyright's RGB_565, are converted first.
+    private static ByteBuffer getPixels(Bitmap bitmap) {
+        Bitmap rgba = bitmap;
+        if (bitmap.getConfig() != Bitmap.Config.ARGB_8888)
+            rgba = bitmap.copy(Bitmap.Config.ARGB_8888, false);
+        ByteBuffer pixels = ByteBuffer.allocateDirect(4 * rgba.getWidth() * rgba.getHeight());
+        rgba.copyPixelsToBuffer(pixels);
+        pixels.position(0);
+        if (rgba != bitmap) rgba.recycle();
+        return pixels;
     }
 
     // Renders |text| into a bitmap and returns the bitmap.
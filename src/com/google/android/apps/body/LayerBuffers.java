@@ -0,0 +1,216 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager.NameNotFoundException;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A cache file with the vertex, index and color buffers of a layer's draw
+ * groups, as they are uploaded. ES 2.0 can't read buffers back, so this is
+ * where the renderer gets them from when it uploads a layer again after
+ * evicting it (see {@code Render.evictLayers}).
+ *
+ * The file is written by the loader and is only valid on the device that
+ * wrote it: the buffers are stored in native byte order, so that they can
+ * be read straight into direct buffers. It is also keyed on the installed
+ * app (see {@link #getContentKey}), since the sizes of the buffers don't
+ * change with every update of the layer data.
+ */
+final class LayerBuffers {
+
+    private static final int VERSION = 2;  // 2: content key.
+
+    // The header: version, content key, number of groups, buffer sizes.
+    private static final int HEADER_BYTES = 4 + 8 + 4;
+
+    // Buffers per group: vertices, indices, selection colors.
+    private static final int NUM_BUFFERS = 3;
+
+    private static final int CHUNK_SHORTS = 8192;
+
+    private LayerBuffers() {
+    }
+
+    // Stands in for the content key if the package can't be looked up, so
+    // that files of an earlier process aren't trusted.
+    private static final long sProcessKey = System.nanoTime();
+
+    static File getFile(File cacheDir, int layer) {
+        return new File(cacheDir, "layer" + layer + ".buffers");
+    }
+
+    /**
+     * @return A key for the layer data in the app's resources. It changes
+     *     whenever the app is updated or installed again.
+     */
+    static long getContentKey(Context context) {
+        try {
+            PackageInfo info = context.getPackageManager().getPackageInfo(
+                    context.getPackageName(), 0);
+            return 31 * info.lastUpdateTime + info.versionCode;
+        } catch (NameNotFoundException e) {
+            return sProcessKey;
+        }
+    }
+
+    /**
+     * @return Whether {@code file} already holds buffers of the sizes of
+     *     {@code groups} under {@code contentKey}, so that it needn't be
+     *     written again.
+     */
+    static boolean isCurrent(File file, Render.DrawGroup[] groups, long contentKey)
+            throws IOException {
+        return file.length() == getLength(groups) &&
+                isHeader(file, getHeader(groups, contentKey));
+    }
+
+    /**
+     * Writes the CPU buffers of {@code groups} to {@code file}. Check
+     * {@link #isCurrent} first to skip rewriting a valid file.
+     */
+    static void write(File file, Render.DrawGroup[] groups, long contentKey)
+            throws IOException {
+        FileChannel channel = new FileOutputStream(file).getChannel();
+        try {
+            writeFully(channel, getHeader(groups, contentKey));
+            ByteBuffer chunk = ByteBuffer.allocateDirect(2 * CHUNK_SHORTS);
+            chunk.order(ByteOrder.nativeOrder());
+            short[] shorts = new short[CHUNK_SHORTS];
+            for (Render.DrawGroup group : groups) {
+                ShortBuffer[] buffers = {
+                    group.vertexBufferData, group.indexBufferData, group.colorBufferData
+                };
+                for (ShortBuffer buffer : buffers) {
+                    ShortBuffer source = buffer.duplicate();
+                    source.rewind();
+                    while (source.hasRemaining()) {
+                        int n = Math.min(source.remaining(), CHUNK_SHORTS);
+                        source.get(shorts, 0, n);
+                        chunk.clear();
+                        chunk.asShortBuffer().put(shorts, 0, n);
+                        chunk.limit(2 * n);
+                        writeFully(channel, chunk);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            channel.close();
+            file.delete();
+            throw e;
+        }
+        channel.close();
+    }
+
+    /**
+     * Reads the buffers written by {@link #write} back into the CPU buffer
+     * fields of {@code groups}.
+     * @return false if the file is for different geometry, another content
+     *     key or an older version.
+     */
+    static boolean read(File file, Render.DrawGroup[] groups, long contentKey)
+            throws IOException {
+        // A write may have been cut short.
+        if (file.length() != getLength(groups)) return false;
+        ByteBuffer header = getHeader(groups, contentKey);
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            ByteBuffer fileHeader = ByteBuffer.allocate(header.capacity());
+            readFully(channel, fileHeader);
+            if (!fileHeader.equals(header)) return false;
+
+            for (Render.DrawGroup group : groups) {
+                int[] sizes = getSizes(group);
+                ShortBuffer[] read = new ShortBuffer[NUM_BUFFERS];
+                for (int i = 0; i < NUM_BUFFERS; ++i) {
+                    ByteBuffer bytes = ByteBuffer.allocateDirect(2 * sizes[i]);
+                    bytes.order(ByteOrder.nativeOrder());
+                    readFully(channel, bytes);
+                    read[i] = bytes.asShortBuffer();
+                }
+                group.vertexBufferData = read[0];
+                group.indexBufferData = read[1];
+                group.colorBufferData = read[2];
+            }
+            return true;
+        } finally {
+            channel.close();
+        }
+    }
+
+    // The sizes of the buffers of |group|, in shorts. They are known after
+    // the buffers are uploaded and dropped.
+    private static int[] getSizes(Render.DrawGroup group) {
+        return new int[] {
+            8 * group.numVertices,  // 3 pos, 3 norm, 2 texcoord
+            group.numIndices,
+            group.numVertices,  // One selection color per vertex.
+        };
+    }
+
+    private static long getLength(Render.DrawGroup[] groups) {
+        long length = HEADER_BYTES + 4 * NUM_BUFFERS * groups.length;
+        for (Render.DrawGroup group : groups)
+            for (int size : getSizes(group))
+                length += 2 * size;
+        return length;
+    }
+
+    private static ByteBuffer getHeader(Render.DrawGroup[] groups, long contentKey) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + 4 * NUM_BUFFERS * groups.length);
+        header.putInt(VERSION);
+        header.putLong(contentKey);
+        header.putInt(groups.length);
+        for (Render.DrawGroup group : groups)
+            for (int size : getSizes(group))
+                header.putInt(size);
+        header.flip();
+        return header;
+    }
+
+    private static boolean isHeader(File file, ByteBuffer header) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            ByteBuffer fileHeader = ByteBuffer.allocate(header.capacity());
+            readFully(channel, fileHeader);
+            return fileHeader.equals(header);
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            if (channel.read(buffer) < 0) throw new EOFException();
+        buffer.flip();
+    }
+}
@@ -14,13 +14,12 @@
 package com.google.android.apps.body;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.Color;
 import android.opengl.ETC1Util;
 import android.os.Handler;
 import android.util.Log;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -30,6 +29,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.ShortBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -111,8 +111,12 @@ class LayersLoader implements Runnable {
     /** The next free color index. Every Draw has a unique color index assigned to it. */
     private short mMaxColorIndex = 1;
 
-    /** Maps from color index to the corresponding Draw. */
-    private Map<Integer, Draw> mSelectionColorMap = new HashMap<Integer, Draw>();
+    /**
+     * Maps from color index to the corresponding Draw. Shared by all layers:
+     * entries below the color index a layer was handed out with are never
+     * changed, and the array is replaced when it grows.
+     */
+    private Draw[] mSelectionDraws = new Draw[1024];
 
     /** Used to notify clients when a single layer has finished loading. */
     public interface Callback {
@@ -124,12 +128,10 @@ class LayersLoader implements Runnable {
      */
     public static class Results {
         public Results(int layerId, Render.DrawGroup[] groups,
-                Map<Integer, Draw> colorMap, int maxColorIndex) {
+                Draw[] selectionDraws, int maxColorIndex) {
             this.layerId = layerId;
             this.groups = groups;
-            // All layers share one map, so handing this out after one layer is loaded
-            // leads to raciness. Hence, hand out a copy.
-            this.selectionColorMap = new HashMap<Integer, Render.Draw>(colorMap);
+            this.selectionDraws = selectionDraws;
             this.maxColorIndex = maxColorIndex;
         }
 
@@ -139,12 +141,23 @@ class LayersLoader implements Runnable {
         /** The layer's draw groups. */
         Render.DrawGroup[] groups;
 
-        /** The selection color map of all layers loaded so far. */
-        // TODO(thakis): Let this be an array instead.
-        Map<Integer, Draw> selectionColorMap;
+        /**
+         * The draws of all layers loaded so far, indexed by selection color.
+         * Only the entries below {@code maxColorIndex} belong to this result.
+         */
+        Draw[] selectionDraws;
 
-        /** The highest key in {@code selectionColorMap}. */
+        /** The next free selection color. */
         int maxColorIndex;
+
+        /** The layer's occluder mesh, see {@code OcclusionCuller.buildOccluder}. */
+        float[] occluder;
+
+        /** A picking hierarchy for every draw group, in the order of {@code groups}. */
+        TriangleBvh[] bvhs;
+
+        /** True if the groups' buffers were written to {@code LayerBuffers}. */
+        boolean isSpilled;
     }
 
     /** Set to true by the UI to cancel a load. */
@@ -190,8 +203,14 @@ class LayersLoader implements Runnable {
 
         for (Draw draw : drawGroup.draws) {
             short selectionColor = mMaxColorIndex++;
-            mSelectionColorMap.put((int) selectionColor, draw);
-
+            if (selectionColor >= mSelectionDraws.length)
+                mSelectionDraws = Arrays.copyOf(mSelectionDraws, 2 * mSelectionDraws.length);
+            mSelectionDraws[selectionColor] = draw;
+            draw.selectionColor = selectionColor;
+
+            // Mirrored draws share the vertices of the draw they mirror, and
+            // get their color as a constant attribute instead.
+            if (draw.mirrorOf != null) continue;
             BodyJni.setColorForIndices(
                     drawGroup.colorBufferData, selectionColor,
                     drawGroup.indexBufferData, draw.offset, draw.count);
@@ -289,7 +308,11 @@ class LayersLoader implements Runnable {
         }
     }
 
-    private void loadTexture(Context context, Render.DrawGroup drawGroup) {
+    /**
+     * Reads the compressed texture of {@code drawGroup}, if it has one, into
+     * {@code loadedCompressedDiffuseTexture}.
+     */
+    static void loadTexture(Context context, Render.DrawGroup drawGroup) {
         if (drawGroup.texture != null) {
             int resource = TEXTURES.get(drawGroup.texture.toLowerCase());
 
@@ -297,19 +320,15 @@ class LayersLoader implements Runnable {
             try {
                 ETC1Util.ETC1Texture tex = ETC1Util.createTexture(is);
                 is.close();
-                drawGroup.loadedCompressedDiffuseTexture = tex;
+                drawGroup.loadedCompressedDiffuseTexture = tex.getData();
+                drawGroup.textureWidth = tex.getWidth();
+                drawGroup.textureHeight = tex.getHeight();
             } catch (IOException e) {
                 Log.e("Body", "Loading texture: " + e);
             }
-        } else {
-            int[] color = { Color.rgb(
-                    (int)(drawGroup.diffuseColor[0] * 255 + 0.5),
-                    (int)(drawGroup.diffuseColor[1] * 255 + 0.5),
-                    (int)(drawGroup.diffuseColor[2] * 255 + 0.5))
-            };
-            Bitmap bitmap = Bitmap.createBitmap(color, 1, 1, Bitmap.Config.RGB_565);
-            drawGroup.loadedDiffuseTexture = bitmap;
         }
+        // Groups without a texture are drawn with a texture of their
+        // diffuse color, which GpuResources creates and shares.
     }
 
     /**
@@ -360,7 +379,9 @@ class LayersLoader implements Runnable {
         float textureS = 0;
         float fileReadS = 0;
         float fileDecodeS = 0;
+        float mirrorsS = 0;
         float colorBufferS = 0;
+        float clustersS = 0;
 
         Render.DrawGroup[] drawGroups = null;
 
@@ -392,6 +413,7 @@ class LayersLoader implements Runnable {
                     JSONObject jsonDraw = draws.getJSONObject(j);
                     Render.Draw draw = new Render.Draw();
                     draw.geometry = jsonDraw.getString("geometry");
+                    draw.entity = EntityIds.intern(draw.geometry);
                     draw.offset = jsonDraw.getJSONArray("range").getInt(0);
                     draw.count = jsonDraw.getJSONArray("range").getInt(1);
                     drawGroups[i].draws.add(draw);
@@ -454,6 +476,20 @@ class LayersLoader implements Runnable {
             fileDecodeS += (System.nanoTime() - fileDecodeStartNS) / 1.0e9f;
         }
 
+        long mirrorsStartNS = System.nanoTime();
+        int numVertices = 0;
+        int numMirroredVertices = 0;
+        for (Render.DrawGroup drawGroup : drawGroups) {
+            if (mCancelled) return null;
+            numVertices += drawGroup.vertexBufferData.capacity() / 8;
+            numMirroredVertices += Mirrors.removeMirroredDraws(drawGroup);
+            drawGroup.numVertices = drawGroup.vertexBufferData.capacity() / 8;
+        }
+        mirrorsS = (System.nanoTime() - mirrorsStartNS) / 1e9f;
+        // Every vertex also has a selection color.
+        Log.i("Body", "Mirrored draws saved " + numMirroredVertices + " of " + numVertices +
+                " vertices, " + numMirroredVertices * (8 + 1) * 2 / 1024 + " kB");
+
         long colorBufferStartNS = System.nanoTime();
         for (Render.DrawGroup drawGroup : drawGroups) {
             if (mCancelled) return null;
@@ -461,9 +497,18 @@ class LayersLoader implements Runnable {
         }
         colorBufferS = (System.nanoTime() - colorBufferStartNS) / 1e9f;
 
+        long clustersStartNS = System.nanoTime();
+        for (Render.DrawGroup drawGroup : drawGroups) {
+            if (mCancelled) return null;
+            drawGroup.clusters = Clusters.build(
+                    drawGroup.vertexBufferData, drawGroup.indexBufferData, drawGroup.draws);
+        }
+        clustersS = (System.nanoTime() - clustersStartNS) / 1e9f;
+
         Log.i("Body", "JSON read: " + jsonReadS + ", JSON parse: " + jsonParseS + ", texture: " +
                 textureS + ", res read: " + fileReadS + ", res decode: " +
-                fileDecodeS + ", colorbuf: " + colorBufferS);
+                fileDecodeS + ", mirrors: " + mirrorsS + ", colorbuf: " + colorBufferS +
+                ", clusters: " + clustersS);
 
         return drawGroups;
     }
@@ -480,7 +525,17 @@ class LayersLoader implements Runnable {
     @Override
     public void run() {
         long totalStart = System.nanoTime();
+        try {
+            // Draws are identified by the entity ids of the table.
+            EntityTable.get(mContext);
+        } catch (IOException e) {
+            Log.e("Body", "Loading entity table: " + e);
+            return;
+        }
+        long contentKey = LayerBuffers.getContentKey(mContext);
         mMaxColorIndex = 1;
+        // Earlier results may still use the old array.
+        mSelectionDraws = new Draw[mSelectionDraws.length];
         mBuffer = new short[BUFSIZE];
         int layerIndex = 0;
         for (Integer layerId : mLayerResources.keySet()) {
@@ -494,7 +549,28 @@ class LayersLoader implements Runnable {
 
             if (dgs != null && !mCancelled) {
                 final Results results =
-                        new Results(layerId, dgs, mSelectionColorMap, mMaxColorIndex);
+                        new Results(layerId, dgs, mSelectionDraws, mMaxColorIndex);
+                long occluderStart = System.nanoTime();
+                results.occluder = OcclusionCuller.buildOccluder(dgs);
+                Log.i("Body", "Occluder: " + results.occluder.length / 9 + " triangles, " +
+                        (System.nanoTime() - occluderStart) / 1e9f + " s");
+                long bvhStart = System.nanoTime();
+                results.bvhs = new TriangleBvh[dgs.length];
+                for (int i = 0; i < dgs.length; ++i)
+                    results.bvhs[i] = TriangleBvh.build(dgs[i]);
+                Log.i("Body", "Picking BVH: " + (System.nanoTime() - bvhStart) / 1e9f + " s");
+                long spillStart = System.nanoTime();
+                File file = LayerBuffers.getFile(mContext.getCacheDir(), layerId);
+                try {
+                    if (!LayerBuffers.isCurrent(file, dgs, contentKey)) {
+                        LayerBuffers.write(file, dgs, contentKey);
+                        Log.i("Body", "Layer buffers: " +
+                                (System.nanoTime() - spillStart) / 1e9f + " s");
+                    }
+                    results.isSpilled = true;
+                } catch (IOException e) {
+                    Log.w("Body", "Writing layer buffers: " + e);
+                }
                 final int currentLayerIndex = layerIndex;
                 mHandler.post(new Runnable() {
                         @Override
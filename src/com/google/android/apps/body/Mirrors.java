@@ -0,0 +1,318 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Removes the geometry of draws that are the mirror image of another draw
+ * of their group. Most structures come in pairs like {@code L_Femur} and
+ * {@code R_Femur}, and the right one is usually the left one reflected
+ * across the sagittal plane, which is x = -0.5 in position units (the
+ * model is exported with x rounded that way). Such a right draw is kept in
+ * the group's draw list, so it still has its own selection color, entity
+ * and picking triangles, but its triangles and the vertices only it uses
+ * are removed: it draws the index range of its left draw through
+ * {@link #REFLECTION}, with the winding of front faces flipped.
+ *
+ * Runs on the loader thread, after decoding and before anything else looks
+ * at a group's buffers.
+ */
+final class Mirrors {
+
+    /**
+     * Reflects world coordinates across the mirror plane. Positions go to
+     * the shaders with a w of 64, so the plane is at x = -0.5 / 64.
+     */
+    static final float[] REFLECTION = {
+        -1, 0, 0, 0,
+        0, 1, 0, 0,
+        0, 0, 1, 0,
+        -1 / 64.f, 0, 0, 1,
+    };
+
+    // How far a vertex may be from the reflected vertex it stands for, in
+    // the quantization steps of the vertex data: one step of position and
+    // texture coordinate, one step of normal (normals are stored << 7).
+    private static final int POSITION_TOLERANCE = 1;
+    private static final int NORMAL_TOLERANCE = 1 << 7;
+    private static final int TEX_COORD_TOLERANCE = 1;
+
+    private static final int STRIDE = 8;  // 3 pos, 3 norm, 2 texcoord
+
+    private Mirrors() {
+    }
+
+    /** @return The x position coordinate of the reflection of {@code x}. */
+    static short reflectX(short x) {
+        return (short)(-1 - x);
+    }
+
+    /** @return The world x coordinate of the reflection of {@code x}. */
+    static float reflectWorldX(float x) {
+        return -x - 1 / 64.f;
+    }
+
+    /**
+     * Finds the draws of {@code group} that mirror another of its draws and
+     * removes their geometry. Sets their {@code mirrorOf} and index range to
+     * those of the draw they mirror, and moves them to the end of the
+     * group's draw list, so that their clusters come last (see
+     * {@code Clusters.firstMirrored}).
+     *
+     * @return The number of vertices removed.
+     */
+    static int removeMirroredDraws(Render.DrawGroup group) {
+        Map<String, Render.Draw> byGeometry = new HashMap<String, Render.Draw>();
+        for (Render.Draw draw : group.draws) {
+            // A geometry with several draws isn't paired.
+            byGeometry.put(draw.geometry, byGeometry.containsKey(draw.geometry) ? null : draw);
+        }
+
+        short[] vertices = toArray(group.vertexBufferData);
+        short[] indices = toArray(group.indexBufferData);
+        int numVertices = vertices.length / STRIDE;
+        int[] owners = findOwners(group.draws, indices, numVertices);
+        int[] matches = new int[numVertices];
+        Arrays.fill(matches, -1);
+
+        List<Render.Draw> kept = new ArrayList<Render.Draw>(group.draws.size());
+        List<Render.Draw> mirrored = new ArrayList<Render.Draw>();
+        for (int d = 0; d < group.draws.size(); ++d) {
+            Render.Draw draw = group.draws.get(d);
+            Render.Draw source = null;
+            if (draw.geometry.startsWith("R_"))
+                source = byGeometry.get("L_" + draw.geometry.substring(2));
+            if (source != null && byGeometry.get(draw.geometry) == draw &&
+                    isExclusive(draw, d, indices, owners) &&
+                    isMirror(draw, source, vertices, indices, matches)) {
+                draw.mirrorOf = source;
+                mirrored.add(draw);
+            } else {
+                kept.add(draw);
+            }
+        }
+        if (mirrored.isEmpty()) return 0;
+
+        // Drop the index ranges of the mirrored draws, and then the vertices
+        // no index refers to anymore.
+        boolean[] isRemoved = new boolean[group.numIndices];
+        for (Render.Draw draw : mirrored)
+            Arrays.fill(isRemoved, draw.offset, draw.offset + draw.count, true);
+        int[] newOffsets = new int[group.numIndices + 1];
+        int numIndices = 0;
+        for (int i = 0; i < group.numIndices; ++i) {
+            newOffsets[i] = numIndices;
+            if (!isRemoved[i]) ++numIndices;
+        }
+        newOffsets[group.numIndices] = numIndices;
+
+        int[] newVertices = new int[numVertices];
+        Arrays.fill(newVertices, -1);
+        int newNumVertices = 0;
+        for (int i = 0; i < group.numIndices; ++i) {
+            int v = indices[i] & 0xffff;
+            if (!isRemoved[i] && newVertices[v] < 0) newVertices[v] = newNumVertices++;
+        }
+
+        ShortBuffer indexData = allocate(numIndices);
+        for (int i = 0; i < group.numIndices; ++i)
+            if (!isRemoved[i]) indexData.put((short)newVertices[indices[i] & 0xffff]);
+        indexData.rewind();
+        short[] compacted = new short[STRIDE * newNumVertices];
+        for (int v = 0; v < numVertices; ++v) {
+            if (newVertices[v] >= 0)
+                System.arraycopy(vertices, STRIDE * v, compacted, STRIDE * newVertices[v], STRIDE);
+        }
+        ShortBuffer vertexData = allocate(compacted.length);
+        vertexData.put(compacted);
+        vertexData.rewind();
+
+        for (Render.Draw draw : kept)
+            draw.offset = newOffsets[draw.offset];
+        for (Render.Draw draw : mirrored) {
+            draw.offset = draw.mirrorOf.offset;
+            draw.count = draw.mirrorOf.count;
+        }
+        kept.addAll(mirrored);
+        group.draws = new ArrayList<Render.Draw>(kept);
+        group.indexBufferData = indexData;
+        group.vertexBufferData = vertexData;
+        group.numIndices = numIndices;
+        return numVertices - newNumVertices;
+    }
+
+    // For every vertex, the index of the only draw that uses it, -1 if no
+    // draw uses it, or -2 if several do.
+    private static int[] findOwners(List<Render.Draw> draws, short[] indices, int numVertices) {
+        int[] owners = new int[numVertices];
+        Arrays.fill(owners, -1);
+        for (int d = 0; d < draws.size(); ++d) {
+            Render.Draw draw = draws.get(d);
+            for (int i = draw.offset; i < draw.offset + draw.count; ++i) {
+                int v = indices[i] & 0xffff;
+                if (owners[v] == -1) owners[v] = d;
+                else if (owners[v] != d) owners[v] = -2;
+            }
+        }
+        return owners;
+    }
+
+    // Only draws whose vertices no other draw uses are removed. That keeps
+    // the vertex count of the group from growing when TriangleBvh adds the
+    // reflected vertices back.
+    private static boolean isExclusive(Render.Draw draw, int d, short[] indices, int[] owners) {
+        for (int i = draw.offset; i < draw.offset + draw.count; ++i)
+            if (owners[indices[i] & 0xffff] != d) return false;
+        return true;
+    }
+
+    /**
+     * @return true if every vertex of {@code draw} is within the tolerances
+     *     of a reflected vertex of {@code source}, and the triangles of
+     *     {@code draw} are those of {@code source}, reflected and with the
+     *     opposite winding.
+     */
+    private static boolean isMirror(Render.Draw draw, Render.Draw source,
+            short[] vertices, short[] indices, int[] matches) {
+        if (draw.count != source.count || draw.count % 3 != 0) return false;
+
+        // The source's vertices, sorted by position. The position is in the
+        // high 48 bits, the vertex in the low 16.
+        long[] sourceVertices = new long[source.count];
+        int numSourceVertices = 0;
+        for (int i = source.offset; i < source.offset + source.count; ++i) {
+            int v = indices[i] & 0xffff;
+            sourceVertices[numSourceVertices++] = (positionKey(
+                    vertices[STRIDE * v], vertices[STRIDE * v + 1], vertices[STRIDE * v + 2])
+                    << 16) | v;
+        }
+        Arrays.sort(sourceVertices, 0, numSourceVertices);
+
+        // Map every vertex of |draw| to the closest reflected source vertex.
+        // |draw| owns its vertices, so |matches| is clean for it.
+        boolean isMatched = true;
+        for (int i = draw.offset; isMatched && i < draw.offset + draw.count; ++i) {
+            int v = indices[i] & 0xffff;
+            if (matches[v] >= 0) continue;
+            matches[v] = findReflection(vertices, v, sourceVertices, numSourceVertices);
+            isMatched = matches[v] >= 0;
+        }
+        if (!isMatched) return false;
+
+        long[] sourceTriangles = new long[source.count / 3];
+        long[] triangles = new long[draw.count / 3];
+        for (int t = 0; t < triangles.length; ++t) {
+            int i = source.offset + 3 * t;
+            sourceTriangles[t] = triangleKey(
+                    indices[i] & 0xffff, indices[i + 1] & 0xffff, indices[i + 2] & 0xffff);
+            i = draw.offset + 3 * t;
+            triangles[t] = triangleKey(matches[indices[i] & 0xffff],
+                    matches[indices[i + 2] & 0xffff], matches[indices[i + 1] & 0xffff]);
+        }
+        Arrays.sort(sourceTriangles);
+        Arrays.sort(triangles);
+        return Arrays.equals(sourceTriangles, triangles);
+    }
+
+    // Returns the source vertex closest to the reflection of vertex |v|
+    // within the tolerances, or -1.
+    private static int findReflection(short[] vertices, int v,
+            long[] sourceVertices, int numSourceVertices) {
+        int base = STRIDE * v;
+        int x = reflectX(vertices[base]);
+        int y = vertices[base + 1];
+        int z = vertices[base + 2];
+        int best = -1;
+        int bestError = Integer.MAX_VALUE;
+        for (int dx = -POSITION_TOLERANCE; dx <= POSITION_TOLERANCE; ++dx) {
+            for (int dy = -POSITION_TOLERANCE; dy <= POSITION_TOLERANCE; ++dy) {
+                for (int dz = -POSITION_TOLERANCE; dz <= POSITION_TOLERANCE; ++dz) {
+                    long key = positionKey(x + dx, y + dy, z + dz) << 16;
+                    int i = lowerBound(sourceVertices, numSourceVertices, key);
+                    for (; i < numSourceVertices && (sourceVertices[i] & ~0xffffL) == key; ++i) {
+                        int s = (int)(sourceVertices[i] & 0xffff);
+                        int error = reflectionError(vertices, base, STRIDE * s);
+                        if (error >= 0 && error < bestError) {
+                            best = s;
+                            bestError = error;
+                        }
+                    }
+                    if (bestError == 0) return best;
+                }
+            }
+        }
+        return best;
+    }
+
+    // Returns how far the vertex at |s| is from the reflection of the vertex
+    // at |v|, weighting a normal step less than a position step, or -1 if it
+    // is out of the tolerances.
+    private static int reflectionError(short[] vertices, int v, int s) {
+        int error = 0;
+        for (int k = 0; k < STRIDE; ++k) {
+            int expected = vertices[v + k];
+            if (k == 0) expected = reflectX(vertices[v]);
+            // Normals are reflected like positions, in steps of 1 << 7.
+            if (k == 3) expected = -expected - NORMAL_TOLERANCE;
+            int d = Math.abs(vertices[s + k] - expected);
+            if (k < 3 && d > POSITION_TOLERANCE) return -1;
+            if (k >= 3 && k < 6 && d > NORMAL_TOLERANCE) return -1;
+            if (k >= 6 && d > TEX_COORD_TOLERANCE) return -1;
+            error += k >= 3 && k < 6 ? d >> 7 : d;
+        }
+        return error;
+    }
+
+    private static long positionKey(int x, int y, int z) {
+        return ((long)(x & 0xffff) << 32) | ((long)(y & 0xffff) << 16) | (z & 0xffff);
+    }
+
+    // Triangles are compared independently of which vertex comes first.
+    private static long triangleKey(int a, int b, int c) {
+        if (b < a && b < c) return triangleKey(b, c, a);
+        if (c < a && c < b) return triangleKey(c, a, b);
+        return ((long)a << 32) | ((long)b << 16) | c;
+    }
+
+    private static int lowerBound(long[] values, int length, long key) {
+        int low = 0, high = length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] < key) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    private static short[] toArray(ShortBuffer buffer) {
+        short[] result = new short[buffer.capacity()];
+        buffer.get(result);
+        buffer.rewind();
+        return result;
+    }
+
+    private static ShortBuffer allocate(int length) {
+        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(length * 2);
+        byteBuffer.order(ByteOrder.nativeOrder());
+        return byteBuffer.asShortBuffer();
+    }
+}
@@ -49,10 +49,17 @@ public class Navigate {
     // Constants for limits on movement
     private static final float VERTICAL_ADJUSTMENT = 100;
     private static final float VERTICAL_PAN_LIMIT = 150;
-    private static final float ZOOM_NEAR_LIMIT = 0.1f;
-    private static final float ZOOM_FAR_LIMIT = 250;
+    static final float ZOOM_NEAR_LIMIT = 0.1f;
+    static final float ZOOM_FAR_LIMIT = 250;
     private static final float START_PAN = 0.1f;
 
+    // The vertical field of view in degrees. Pvs is built for it.
+    static final float FOV = 40;
+
+    // The range of the camera height, see doNavigate().
+    static final float HEIGHT_LOWER_LIMIT = -VERTICAL_ADJUSTMENT;
+    static final float HEIGHT_UPPER_LIMIT = VERTICAL_PAN_LIMIT + VERTICAL_ADJUSTMENT;
+
     public void initialize() {
         mInterpolants.add(mTheta = new Interpolant((float)Math.PI/2));
         mInterpolants.add(mDollyY = new Interpolant(120.0f));
@@ -63,7 +70,7 @@ public class Navigate {
         camera.eye = new float[]{ 0, 120, 160 };
         camera.target = new float[]{ 0, 120, 0 };
         camera.up = new float[]{ 0, 1, 0 };
-        camera.fov = 40;
+        camera.fov = FOV;
     }
 
     float projectedMinMax(Base.EntityInfo bbox, float[] projectionVector) {
@@ -145,12 +152,16 @@ public class Navigate {
 
     public void recalculate() {
         Interpolant.tweenAll(mInterpolants);
+        computeCamera(mTheta.getPresent(), mDollyY.getPresent(), mDollyZ.getPresent(), camera);
+    }
 
+    /**
+     * Computes the camera for a given rotation angle around the body,
+     * height and zoom. Writes to the existing arrays of {@code camera}.
+     */
+    static void computeCamera(float angle, float y_val, float z_val, Camera camera) {
         // Camera rotates and translates around the body. Body always
         // considered to be at the origin.
-        float angle = mTheta.getPresent();
-        float z_val = mDollyZ.getPresent();
-        float y_val = mDollyY.getPresent();
         float cx = z_val * (float)Math.cos(angle);
         float cy = y_val;
         float cz = z_val * (float)Math.sin(angle);
@@ -200,8 +211,8 @@ public class Navigate {
     private void doNavigate(float angle, float y, float zoom, float urgency) {
         mTheta.setFuture(angle, urgency);
 
-        float verticalLowerLimit = -VERTICAL_ADJUSTMENT;
-        float verticalUpperLimit = VERTICAL_PAN_LIMIT + VERTICAL_ADJUSTMENT;
+        float verticalLowerLimit = HEIGHT_LOWER_LIMIT;
+        float verticalUpperLimit = HEIGHT_UPPER_LIMIT;
         if (y < verticalLowerLimit) {
             y = verticalLowerLimit;
         }
@@ -256,4 +267,19 @@ public class Navigate {
     public Camera getCamera() {
         return camera;
     }
+
+    /** @return The current rotation angle around the body. */
+    float getTheta() {
+        return mTheta.getPresent();
+    }
+
+    /** @return The current camera height. */
+    float getHeight() {
+        return mDollyY.getPresent();
+    }
+
+    /** @return The current camera distance from the body axis. */
+    float getZoom() {
+        return mDollyZ.getPresent();
+    }
 }
@@ -0,0 +1,287 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import android.util.Log;
+
+/**
+ * Finds clusters of inner layers that are hidden behind an opaque outer
+ * layer, so that {@code Render} doesn't have to draw them.
+ *
+ * The layers are nested, so when several layers are opaque, the outermost
+ * one hides most of the others. Every layer has a small occluder mesh made
+ * of its largest triangles (see {@link #buildOccluder}). The culler
+ * rasterizes the occluder of the outermost opaque layer with a
+ * {@code DepthRasterizer} and tests the cluster bounds of the inner layers
+ * against it.
+ *
+ * The work is done on a worker thread. The GL thread posts requests with
+ * {@link #request} and picks up results with {@link #getResult}; a result
+ * is only used for the exact camera it was computed for, so culling never
+ * lags behind camera motion.
+ */
+class OcclusionCuller implements Runnable {
+
+    /** Maximum number of triangles in a layer's occluder mesh. */
+    static final int OCCLUDER_TRIANGLES = 2048;
+
+    private static final int DEPTH_WIDTH = 128;
+    private static final int DEPTH_HEIGHT = 128;
+
+    /** The visibility of the clusters of the inner layers for one camera. */
+    static class Result {
+        final float[] matrix = new float[16];
+        int occluderLayer;
+
+        /**
+         * For every layer, a bit set with one bit per cluster (numbered as
+         * in {@code DrawGroup.clusterBase}). A set bit means the cluster is
+         * hidden. null for layers that weren't tested.
+         */
+        final long[][] hidden = new long[Layers.NUM_LAYERS][];
+
+        boolean isHidden(int layer, int cluster) {
+            long[] bits = hidden[layer];
+            return bits != null && (bits[cluster >> 6] & (1L << cluster)) != 0;
+        }
+    }
+
+    /** The input for one culling pass. All arrays are owned by the request. */
+    private static class Request {
+        float[] matrix;
+        int occluderLayer;
+        float[] occluder;
+        int[] innerLayers;
+        Render.DrawGroup[][] innerGroups;
+    }
+
+    private final Object mLock = new Object();
+    private Request mPendingRequest;  // Guarded by mLock.
+    private float[] mLastRequestedMatrix;  // Guarded by mLock.
+    private int mLastRequestedOccluder = -1;  // Guarded by mLock.
+    private volatile Result mResult;
+
+    /**
+     * Starts computing the visibility of {@code innerGroups} behind
+     * {@code occluder} for the camera {@code matrix} on the worker thread.
+     * Requests for the camera of the last request are ignored. Called on the
+     * GL thread.
+     */
+    void request(float[] matrix, int occluderLayer, float[] occluder,
+            int[] innerLayers, Render.DrawGroup[][] innerGroups) {
+        synchronized (mLock) {
+            if (occluderLayer == mLastRequestedOccluder &&
+                    Arrays.equals(matrix, mLastRequestedMatrix)) {
+                return;
+            }
+            Request request = new Request();
+            request.matrix = matrix.clone();
+            request.occluderLayer = occluderLayer;
+            request.occluder = occluder;
+            request.innerLayers = innerLayers;
+            request.innerGroups = innerGroups;
+            mPendingRequest = request;
+            mLastRequestedMatrix = request.matrix;
+            mLastRequestedOccluder = occluderLayer;
+            mLock.notify();
+        }
+    }
+
+    /**
+     * @return The visibility for camera {@code matrix} and the given
+     *     occluder layer, or null if it hasn't been computed (yet).
+     */
+    Result getResult(float[] matrix, int occluderLayer) {
+        Result result = mResult;
+        if (result == null || result.occluderLayer != occluderLayer ||
+                !Arrays.equals(result.matrix, matrix)) {
+            return null;
+        }
+        return result;
+    }
+
+    /** Forgets all results, for example when layers are reloaded. */
+    void reset() {
+        synchronized (mLock) {
+            mPendingRequest = null;
+            mLastRequestedMatrix = null;
+            mLastRequestedOccluder = -1;
+        }
+        mResult = null;
+    }
+
+    @Override
+    public void run() {
+        DepthRasterizer rasterizer = new DepthRasterizer(DEPTH_WIDTH, DEPTH_HEIGHT);
+        while (true) {
+            Request request;
+            synchronized (mLock) {
+                while (mPendingRequest == null) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                request = mPendingRequest;
+                mPendingRequest = null;
+            }
+
+            long start = System.nanoTime();
+            Result result = compute(rasterizer, request.matrix, request.occluderLayer,
+                    request.occluder, request.innerLayers, request.innerGroups);
+            if (BodyActivity.DEVELOPER_MODE) {
+                Log.d("Body", "Occlusion culling took " + (System.nanoTime() - start) / 1e6f +
+                        " ms, occluder coverage " + rasterizer.getCoverage());
+            }
+            mResult = result;
+        }
+    }
+
+    /**
+     * Computes which clusters of {@code innerGroups} are hidden behind
+     * {@code occluder}. Doesn't depend on any Android APIs.
+     */
+    static Result compute(DepthRasterizer rasterizer, float[] matrix, int occluderLayer,
+            float[] occluder, int[] innerLayers, Render.DrawGroup[][] innerGroups) {
+        Result result = new Result();
+        System.arraycopy(matrix, 0, result.matrix, 0, 16);
+        result.occluderLayer = occluderLayer;
+
+        rasterizer.begin(matrix);
+        rasterizer.drawTriangles(occluder, occluder.length / 9);
+
+        for (int l = 0; l < innerLayers.length; ++l) {
+            Render.DrawGroup[] groups = innerGroups[l];
+            int numClusters = 0;
+            for (Render.DrawGroup group : groups)
+                numClusters += group.clusters.count;
+            long[] hidden = new long[(numClusters + 63) >> 6];
+
+            for (Render.DrawGroup group : groups) {
+                Clusters clusters = group.clusters;
+                for (int c = 0; c < clusters.count; ++c) {
+                    if (!rasterizer.isSphereVisible(clusters.spheres, 4 * c)) {
+                        int bit = group.clusterBase + c;
+                        hidden[bit >> 6] |= 1L << bit;
+                    }
+                }
+            }
+            result.hidden[innerLayers[l]] = hidden;
+        }
+        return result;
+    }
+
+    /**
+     * Picks the largest triangles of a layer as its occluder mesh. Any subset
+     * of an opaque layer's triangles is a valid occluder. Called on the
+     * loader thread while the vertex data is still on the CPU.
+     *
+     * @return Nine floats (three world space positions) per triangle.
+     */
+    static float[] buildOccluder(Render.DrawGroup[] groups) {
+        // Mirrored draws (see Mirrors) have no triangles of their own; they
+        // contribute the reflections of the ones of the draw they mirror.
+        int numTriangles = 0;
+        for (Render.DrawGroup group : groups) {
+            numTriangles += group.numIndices / 3;
+            for (Render.Draw draw : group.draws)
+                if (draw.mirrorOf != null) numTriangles += draw.count / 3;
+        }
+        if (numTriangles == 0) return new float[0];
+
+        short[][] vertices = new short[groups.length][];
+        short[][] indices = new short[groups.length][];
+        float[] areas = new float[numTriangles];
+        int t = 0;
+        for (int g = 0; g < groups.length; ++g) {
+            vertices[g] = toArray(groups[g].vertexBufferData);
+            indices[g] = toArray(groups[g].indexBufferData);
+            for (int i = 0; i + 2 < groups[g].numIndices; i += 3)
+                areas[t++] = doubleArea(vertices[g], indices[g], i);
+            for (Render.Draw draw : groups[g].draws) {
+                if (draw.mirrorOf == null) continue;
+                for (int i = 0; i + 2 < draw.count; i += 3)
+                    areas[t++] = doubleArea(vertices[g], indices[g], draw.offset + i);
+            }
+        }
+
+        // Keep triangles at least as large as the OCCLUDER_TRIANGLES-th largest.
+        float threshold = 0;
+        if (numTriangles > OCCLUDER_TRIANGLES) {
+            float[] sorted = areas.clone();
+            Arrays.sort(sorted);
+            threshold = sorted[numTriangles - OCCLUDER_TRIANGLES];
+        }
+
+        int count = Math.min(numTriangles, OCCLUDER_TRIANGLES);
+        float[] occluder = new float[9 * count];
+        int o = 0;
+        t = 0;
+        for (int g = 0; g < groups.length; ++g) {
+            for (int i = 0; i + 2 < groups[g].numIndices; i += 3) {
+                if (areas[t++] < threshold || o == count) continue;
+                putTriangle(occluder, o++, vertices[g], indices[g], i, false);
+            }
+            for (Render.Draw draw : groups[g].draws) {
+                if (draw.mirrorOf == null) continue;
+                for (int i = 0; i + 2 < draw.count; i += 3) {
+                    if (areas[t++] < threshold || o == count) continue;
+                    putTriangle(occluder, o++, vertices[g], indices[g], draw.offset + i, true);
+                }
+            }
+        }
+        return o == count ? occluder : Arrays.copyOf(occluder, 9 * o);
+    }
+
+    // Writes triangle |i| as occluder triangle |o|, reflected and with its
+    // winding reversed if |mirrored|.
+    private static void putTriangle(float[] occluder, int o, short[] vertices, short[] indices,
+            int i, boolean mirrored) {
+        for (int v = 0; v < 3; ++v) {
+            int source = mirrored && v != 0 ? 3 - v : v;
+            int vertex = 8 * (indices[i + source] & 0xffff);  // 3 pos, 3 norm, 2 texcoord
+            short x = mirrored ? Mirrors.reflectX(vertices[vertex]) : vertices[vertex];
+            occluder[9 * o + 3 * v] = x / 64.f;
+            occluder[9 * o + 3 * v + 1] = vertices[vertex + 1] / 64.f;
+            occluder[9 * o + 3 * v + 2] = vertices[vertex + 2] / 64.f;
+        }
+    }
+
+    private static short[] toArray(ShortBuffer buffer) {
+        short[] result = new short[buffer.capacity()];
+        buffer.get(result);
+        buffer.rewind();
+        return result;
+    }
+
+    private static float doubleArea(short[] vertices, short[] indices, int i) {
+        int v0 = 8 * (indices[i] & 0xffff);
+        int v1 = 8 * (indices[i + 1] & 0xffff);
+        int v2 = 8 * (indices[i + 2] & 0xffff);
+        float e1x = vertices[v1] - vertices[v0];
+        float e1y = vertices[v1 + 1] - vertices[v0 + 1];
+        float e1z = vertices[v1 + 2] - vertices[v0 + 2];
+        float e2x = vertices[v2] - vertices[v0];
+        float e2y = vertices[v2 + 1] - vertices[v0 + 1];
+        float e2z = vertices[v2 + 2] - vertices[v0 + 2];
+        float nx = e1y * e2z - e1z * e2y;
+        float ny = e1z * e2x - e1x * e2z;
+        float nz = e1x * e2y - e1y * e2x;
+        return (float)Math.sqrt(nx * nx + ny * ny + nz * nz);
+    }
+}
@@ -0,0 +1,205 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Potentially visible sets: for every cell of the camera parameter space
+ * of {@code Navigate} (rotation angle, height, zoom) and every layer that
+ * can be the outermost opaque layer, which draws of the layers inside it
+ * can be visible. Built by {@code PvsBuilder}.
+ *
+ * Neighboring cells usually see the same draws, so every table stores each
+ * distinct bit set once and a short index into them per cell.
+ */
+final class Pvs {
+
+    static final int THETA_CELLS = 24;
+    static final int HEIGHT_CELLS = 8;
+    static final int ZOOM_CELLS = 8;
+    static final int NUM_CELLS = THETA_CELLS * HEIGHT_CELLS * ZOOM_CELLS;
+
+    /**
+     * The widest aspect ratio the sets are valid for. The vertical field of
+     * view is fixed, so narrower views see a subset of what wider views see.
+     */
+    static final float MAX_ASPECT = 2;
+
+    private static final int VERSION = 3;  // 3: geometry key, conservative sets.
+
+    private static final float LOG_ZOOM_NEAR = (float)Math.log(Navigate.ZOOM_NEAR_LIMIT);
+    private static final float LOG_ZOOM_FAR = (float)Math.log(Navigate.ZOOM_FAR_LIMIT);
+
+    /** The visible draws behind one occluder layer. */
+    static final class Table {
+        /**
+         * For every layer, the number of its first draw in the bit sets, or
+         * -1 if the layer is not inside the occluder layer.
+         */
+        final int[] drawBase = new int[Layers.NUM_LAYERS];
+
+        /** The distinct bit sets. A set bit means the draw can be visible. */
+        long[][] sets;
+
+        /** For every cell, the index of its bit set in {@code sets}. */
+        short[] cells;
+    }
+
+    private final Table[] mTables = new Table[Layers.NUM_LAYERS];
+    private final int[] mNumDraws;
+    private final long mGeometryKey;
+
+    /**
+     * @param numDraws The number of draws of every layer.
+     * @param geometryKey Identifies the geometry the sets are for, see
+     *     {@code PvsBuilder}.
+     */
+    Pvs(int[] numDraws, long geometryKey) {
+        mNumDraws = numDraws.clone();
+        mGeometryKey = geometryKey;
+    }
+
+    void setTable(int occluderLayer, Table table) {
+        mTables[occluderLayer] = table;
+    }
+
+    /**
+     * @return The bit set of draws that can be visible behind
+     *     {@code occluderLayer} from {@code cell}, or null if there's no
+     *     table for that layer.
+     */
+    long[] getVisibleDraws(int occluderLayer, int cell) {
+        Table table = mTables[occluderLayer];
+        if (table == null) return null;
+        return table.sets[table.cells[cell]];
+    }
+
+    /** @return The bit of the first draw of {@code layer}, or -1. */
+    int getDrawBase(int occluderLayer, int layer) {
+        Table table = mTables[occluderLayer];
+        return table == null ? -1 : table.drawBase[layer];
+    }
+
+    /** @return The cell containing the camera with the given parameters. */
+    static int cellIndex(float theta, float height, float zoom) {
+        float t = (float)(theta / (2 * Math.PI));
+        t -= (float)Math.floor(t);
+        int i = Math.min((int)(t * THETA_CELLS), THETA_CELLS - 1);
+
+        float h = (height - Navigate.HEIGHT_LOWER_LIMIT) /
+                (Navigate.HEIGHT_UPPER_LIMIT - Navigate.HEIGHT_LOWER_LIMIT);
+        int j = Math.max(0, Math.min((int)(h * HEIGHT_CELLS), HEIGHT_CELLS - 1));
+
+        float z = ((float)Math.log(Math.max(zoom, Navigate.ZOOM_NEAR_LIMIT)) - LOG_ZOOM_NEAR) /
+                (LOG_ZOOM_FAR - LOG_ZOOM_NEAR);
+        int k = Math.max(0, Math.min((int)(z * ZOOM_CELLS), ZOOM_CELLS - 1));
+
+        return (i * HEIGHT_CELLS + j) * ZOOM_CELLS + k;
+    }
+
+    // The corners of the cells. Cell (i, j, k) spans the corners i to i + 1
+    // etc.; theta wraps around.
+    static float thetaAt(int i) {
+        return (float)(2 * Math.PI * (i % THETA_CELLS) / THETA_CELLS);
+    }
+
+    static float heightAt(int j) {
+        return Navigate.HEIGHT_LOWER_LIMIT +
+                (Navigate.HEIGHT_UPPER_LIMIT - Navigate.HEIGHT_LOWER_LIMIT) * j / HEIGHT_CELLS;
+    }
+
+    static float zoomAt(int k) {
+        return (float)Math.exp(LOG_ZOOM_NEAR + (LOG_ZOOM_FAR - LOG_ZOOM_NEAR) * k / ZOOM_CELLS);
+    }
+
+    /** @return The size of the bit sets and cell indices in bytes. */
+    int getSizeInBytes() {
+        int size = 0;
+        for (Table table : mTables) {
+            if (table == null) continue;
+            size += 2 * table.cells.length;
+            for (long[] set : table.sets)
+                size += 8 * set.length;
+        }
+        return size;
+    }
+
+    void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(VERSION);
+            out.writeLong(mGeometryKey);
+            for (int numDraws : mNumDraws)
+                out.writeInt(numDraws);
+            for (Table table : mTables) {
+                out.writeBoolean(table != null);
+                if (table == null) continue;
+                for (int base : table.drawBase)
+                    out.writeInt(base);
+                out.writeInt(table.sets.length);
+                out.writeInt(table.sets[0].length);
+                for (long[] set : table.sets)
+                    for (long bits : set)
+                        out.writeLong(bits);
+                for (short cell : table.cells)
+                    out.writeShort(cell);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads sets written by {@link #write}.
+     * @return null if the file is for different geometry or an older version.
+     */
+    static Pvs read(File file, int[] numDraws, long geometryKey) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != VERSION) return null;
+            if (in.readLong() != geometryKey) return null;
+            for (int i = 0; i < Layers.NUM_LAYERS; ++i)
+                if (in.readInt() != numDraws[i]) return null;
+
+            Pvs pvs = new Pvs(numDraws, geometryKey);
+            for (int l = 0; l < Layers.NUM_LAYERS; ++l) {
+                if (!in.readBoolean()) continue;
+                Table table = new Table();
+                for (int i = 0; i < Layers.NUM_LAYERS; ++i)
+                    table.drawBase[i] = in.readInt();
+                table.sets = new long[in.readInt()][in.readInt()];
+                for (long[] set : table.sets)
+                    for (int i = 0; i < set.length; ++i)
+                        set[i] = in.readLong();
+                table.cells = new short[NUM_CELLS];
+                for (int i = 0; i < NUM_CELLS; ++i)
+                    table.cells[i] = in.readShort();
+                pvs.mTables[l] = table;
+            }
+            return pvs;
+        } finally {
+            in.close();
+        }
+    }
+}
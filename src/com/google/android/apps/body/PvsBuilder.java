@@ -0,0 +1,270 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body;
+
+import com.google.android.apps.body.tdl.TdlMath;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Computes the {@code Pvs} for the loaded layers on a background thread, or
+ * reads it from the cache file written by an earlier run.
+ *
+ * Visibility is sampled at the corners of every cell: the occluder mesh of
+ * the occluder layer (see {@code OcclusionCuller.buildOccluder}) is
+ * rasterized for the camera at that corner, and the cluster bounds of the
+ * inner layers are tested against it. A cell's set is the union of its
+ * corners' sets. Cameras inside a cell see what the corners don't between
+ * them, so the bounds are tested grown by how far they can move against
+ * the occluders as the eye moves to the neighboring corners, see
+ * {@code DepthRasterizer.isSphereVisibleNearby}.
+ *
+ * The cache file is keyed on the geometry, so sets built for other layer
+ * data are rebuilt.
+ */
+class PvsBuilder implements Runnable {
+
+    private static final int DEPTH_WIDTH = 256;
+    private static final int DEPTH_HEIGHT = (int)(DEPTH_WIDTH / Pvs.MAX_ASPECT);
+
+    private final File mCacheFile;
+    private final int[] mLayerOrder;
+    private final float[][] mOccluders;
+    private final Render.DrawGroup[][] mGroups;
+    private final int[] mNumDraws;
+    private volatile Pvs mPvs;
+
+    /**
+     * @param layerOrder The layer ids from the inside out.
+     * @param occluders The occluder mesh of every layer, indexed by layer id.
+     * @param groups The draw groups of every layer, indexed by layer id.
+     * @param numDraws The number of draws of every layer, indexed by layer id.
+     */
+    PvsBuilder(File cacheFile, int[] layerOrder, float[][] occluders,
+            Render.DrawGroup[][] groups, int[] numDraws) {
+        mCacheFile = cacheFile;
+        mLayerOrder = layerOrder;
+        mOccluders = occluders;
+        mGroups = groups;
+        mNumDraws = numDraws;
+    }
+
+    /** @return The finished sets, or null while they're being built. */
+    Pvs getPvs() {
+        return mPvs;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        long geometryKey = getGeometryKey();
+        Pvs pvs = null;
+        if (mCacheFile.exists()) {
+            try {
+                pvs = Pvs.read(mCacheFile, mNumDraws, geometryKey);
+            } catch (IOException e) {
+                Log.w("Body", "Reading PVS: " + e);
+            }
+        }
+        if (pvs != null) {
+            Log.i("Body", "PVS read: " + (System.nanoTime() - start) / 1e9f + " s");
+        } else {
+            pvs = build(geometryKey);
+            Log.i("Body", "PVS built: " + (System.nanoTime() - start) / 1e9f + " s");
+            try {
+                pvs.write(mCacheFile);
+            } catch (IOException e) {
+                Log.w("Body", "Writing PVS: " + e);
+            }
+        }
+        Log.i("Body", "PVS size: " + pvs.getSizeInBytes() + " bytes");
+        mPvs = pvs;
+    }
+
+    // Identifies the geometry the sets are built from: the occluder meshes,
+    // and the draws and cluster bounds of every layer.
+    private long getGeometryKey() {
+        long key = 0;
+        for (int layer : mLayerOrder) {
+            key = 31 * key + Arrays.hashCode(mOccluders[layer]);
+            for (Render.DrawGroup group : mGroups[layer]) {
+                key = 31 * key + Arrays.hashCode(group.clusters.spheres);
+                key = 31 * key + Arrays.hashCode(group.clusters.draws);
+                for (Render.Draw draw : group.draws) {
+                    key = 31 * key + draw.geometry.hashCode();
+                    key = 31 * key + draw.count;
+                }
+            }
+        }
+        return key;
+    }
+
+    private Pvs build(long geometryKey) {
+        Pvs pvs = new Pvs(mNumDraws, geometryKey);
+        DepthRasterizer rasterizer = new DepthRasterizer(DEPTH_WIDTH, DEPTH_HEIGHT);
+
+        // The outermost layer is skipped: if the skin is opaque, nothing else
+        // is drawn anyway.
+        for (int o = 1; o < mLayerOrder.length - 1; ++o) {
+            int occluderLayer = mLayerOrder[o];
+            Pvs.Table table = new Pvs.Table();
+            Arrays.fill(table.drawBase, -1);
+            int numBits = 0;
+            for (int l = 0; l < o; ++l) {
+                table.drawBase[mLayerOrder[l]] = numBits;
+                numBits += mNumDraws[mLayerOrder[l]];
+            }
+            buildTable(table, (numBits + 63) >> 6, rasterizer, occluderLayer);
+            pvs.setTable(occluderLayer, table);
+        }
+        return pvs;
+    }
+
+    private void buildTable(Pvs.Table table, int numLongs, DepthRasterizer rasterizer,
+            int occluderLayer) {
+        final int thetas = Pvs.THETA_CELLS;  // Theta wraps around.
+        final int heights = Pvs.HEIGHT_CELLS + 1;
+        final int zooms = Pvs.ZOOM_CELLS + 1;
+        long[][] corners = new long[thetas * heights * zooms][];
+
+        Navigate.Camera camera = new Navigate.Camera();
+        camera.eye = new float[3];
+        camera.target = new float[3];
+        camera.up = new float[3];
+        camera.fov = Navigate.FOV;
+        float[] view = new float[16];
+        float[] wvp = new float[16];
+        float[] occluder = mOccluders[occluderLayer];
+
+        float[][] eyes = new float[corners.length][];
+        for (int i = 0; i < thetas; ++i) {
+            for (int j = 0; j < heights; ++j) {
+                for (int k = 0; k < zooms; ++k) {
+                    Navigate.computeCamera(
+                            Pvs.thetaAt(i), Pvs.heightAt(j), Pvs.zoomAt(k), camera);
+                    eyes[(i * heights + j) * zooms + k] = camera.eye.clone();
+                }
+            }
+        }
+
+        for (int i = 0; i < thetas; ++i) {
+            for (int j = 0; j < heights; ++j) {
+                for (int k = 0; k < zooms; ++k) {
+                    Navigate.computeCamera(
+                            Pvs.thetaAt(i), Pvs.heightAt(j), Pvs.zoomAt(k), camera);
+                    Render.computeMatrices(camera, Pvs.MAX_ASPECT, view, wvp);
+                    rasterizer.begin(wvp);
+                    rasterizer.drawTriangles(occluder, occluder.length / 9);
+
+                    // The eyes of the cameras in the cells around this corner
+                    // are at most this far from its eye.
+                    float eyeMotion = 0;
+                    for (int axis = 0; axis < 3; ++axis) {
+                        float farthest = 0;
+                        for (int d = -1; d <= 1; d += 2) {
+                            int ni = (i + (axis == 0 ? d : 0) + thetas) % thetas;
+                            int nj = j + (axis == 1 ? d : 0);
+                            int nk = k + (axis == 2 ? d : 0);
+                            if (nj < 0 || nj >= heights || nk < 0 || nk >= zooms) continue;
+                            float[] a = eyes[(i * heights + j) * zooms + k];
+                            float[] b = eyes[(ni * heights + nj) * zooms + nk];
+                            farthest = Math.max(farthest,
+                                    TdlMath.length(b[0] - a[0], b[1] - a[1], b[2] - a[2]));
+                        }
+                        eyeMotion += farthest;
+                    }
+
+                    long[] visible = new long[numLongs];
+                    for (int layer = 0; layer < Layers.NUM_LAYERS; ++layer) {
+                        if (table.drawBase[layer] < 0) continue;
+                        markVisibleDraws(rasterizer, mGroups[layer], table.drawBase[layer],
+                                eyeMotion, visible);
+                    }
+                    corners[(i * heights + j) * zooms + k] = visible;
+                }
+            }
+        }
+
+        // Merge the corners of every cell and store each distinct set once.
+        Map<BitSetKey, Integer> setIndices = new HashMap<BitSetKey, Integer>();
+        List<long[]> sets = new ArrayList<long[]>();
+        table.cells = new short[Pvs.NUM_CELLS];
+        for (int i = 0; i < Pvs.THETA_CELLS; ++i) {
+            for (int j = 0; j < Pvs.HEIGHT_CELLS; ++j) {
+                for (int k = 0; k < Pvs.ZOOM_CELLS; ++k) {
+                    long[] cell = new long[numLongs];
+                    for (int corner = 0; corner < 8; ++corner) {
+                        int ci = (i + (corner & 1)) % thetas;
+                        int cj = j + ((corner >> 1) & 1);
+                        int ck = k + ((corner >> 2) & 1);
+                        long[] visible = corners[(ci * heights + cj) * zooms + ck];
+                        for (int n = 0; n < numLongs; ++n)
+                            cell[n] |= visible[n];
+                    }
+                    BitSetKey key = new BitSetKey(cell);
+                    Integer index = setIndices.get(key);
+                    if (index == null) {
+                        index = sets.size();
+                        setIndices.put(key, index);
+                        sets.add(cell);
+                    }
+                    table.cells[(i * Pvs.HEIGHT_CELLS + j) * Pvs.ZOOM_CELLS + k] =
+                            (short)(int)index;
+                }
+            }
+        }
+        table.sets = sets.toArray(new long[sets.size()][]);
+    }
+
+    private static void markVisibleDraws(DepthRasterizer rasterizer, Render.DrawGroup[] groups,
+            int drawBase, float eyeMotion, long[] visible) {
+        for (Render.DrawGroup group : groups) {
+            Clusters clusters = group.clusters;
+            for (int c = 0; c < clusters.count; ++c) {
+                int bit = drawBase + group.drawBase + clusters.draws[c];
+                if ((visible[bit >> 6] & (1L << bit)) != 0) continue;
+                if (rasterizer.isSphereVisibleNearby(clusters.spheres, 4 * c, eyeMotion))
+                    visible[bit >> 6] |= 1L << bit;
+            }
+        }
+    }
+
+    private static final class BitSetKey {
+        final long[] bits;
+        final int hash;
+
+        BitSetKey(long[] bits) {
+            this.bits = bits;
+            this.hash = Arrays.hashCode(bits);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BitSetKey && Arrays.equals(bits, ((BitSetKey)o).bits);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body;
+
+import com.google.android.apps.body.tdl.TdlMath;
+
+/**
+ * Picks entities by casting rays against the {@code TriangleBvh}s of the
+ * loaded layers. Doesn't need the GL, so it can be used on any thread.
+ *
+ * This mirrors {@code Render.getEntityAtCoord()}: rays are cast through the
+ * centers of the pixels of the picking window around the tapped point, in
+ * the same order in which {@code Render.findPixelInRect()} searches them,
+ * and the first pixel that hits something wins. Back faces are ignored and
+ * the ray is limited to the near and far planes, like on the GL.
+ */
+final class RayPicker {
+
+    // The hierarchies of every layer's draw groups, indexed by layer id.
+    // Replaced as a whole when a layer is added.
+    private volatile TriangleBvh[][] mLayers = new TriangleBvh[Layers.NUM_LAYERS][];
+
+    synchronized void setLayer(int layerId, TriangleBvh[] bvhs) {
+        TriangleBvh[][] layers = mLayers.clone();
+        layers[layerId] = bvhs;
+        mLayers = layers;
+    }
+
+    /** A ray from the near plane to the far plane; t runs from 0 to 1. */
+    static final class Ray {
+        final float[] origin = new float[3];
+        final float[] dir = new float[3];
+    }
+
+    /**
+     * Computes the ray through a point in window coordinates.
+     *
+     * @param inverseWvp The inverse of the world-view-projection matrix.
+     * @param x Window x coordinate.
+     * @param y Window y coordinate, going up like in GL.
+     */
+    static void computeRay(float[] inverseWvp, int width, int height, float x, float y,
+            Ray ray) {
+        float ndcX = 2 * x / width - 1;
+        float ndcY = 2 * y / height - 1;
+        float[] near = { ndcX, ndcY, -1, 1 };
+        float[] far = { ndcX, ndcY, 1, 1 };
+        float[] nearWorld = new float[4];
+        float[] farWorld = new float[4];
+        TdlMath.transform(nearWorld, inverseWvp, near);
+        TdlMath.transform(farWorld, inverseWvp, far);
+        for (int i = 0; i < 3; ++i) {
+            ray.origin[i] = nearWorld[i] / nearWorld[3];
+            ray.dir[i] = farWorld[i] / farWorld[3] - ray.origin[i];
+        }
+    }
+
+    /**
+     * Finds the closest front facing triangle of the layers in
+     * {@code layerMask} along {@code ray}.
+     *
+     * @return true if something was hit. The hit is stored in {@code hit}.
+     */
+    boolean castRay(Ray ray, int layerMask, TriangleBvh.Hit hit) {
+        return castRay(ray, layerMask, null, hit);
+    }
+
+    /**
+     * Like {@link #castRay(Ray, int, TriangleBvh.Hit)}, but first tests the
+     * triangles near {@code previous}, a hit of an earlier nearby ray. The
+     * result is the same, but if the ray hits close to the previous hit,
+     * most of the hierarchy is skipped.
+     */
+    boolean castRay(Ray ray, int layerMask, TriangleBvh.Hit previous, TriangleBvh.Hit hit) {
+        TriangleBvh[][] layers = mLayers;
+        hit.reset(1);
+        boolean found = false;
+        if (previous != null && previous.bvh != null &&
+                (layerMask & (1 << previous.layer)) != 0) {
+            if (previous.bvh.intersectLeaf(previous.node, ray.origin, ray.dir, hit)) {
+                hit.layer = previous.layer;
+                found = true;
+            }
+        }
+        for (int layer = 0; layer < layers.length; ++layer) {
+            if ((layerMask & (1 << layer)) == 0 || layers[layer] == null) continue;
+            for (TriangleBvh bvh : layers[layer]) {
+                if (!bvh.intersectsBounds(ray.origin, ray.dir, hit.t)) continue;
+                if (bvh.intersect(ray.origin, ray.dir, hit)) {
+                    hit.layer = layer;
+                    found = true;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Finds the entity at a window position, like
+     * {@code Render.getEntityAtCoord()}.
+     *
+     * @param wvp The world-view-projection matrix of the full viewport.
+     * @param x Window x coordinate.
+     * @param y Window y coordinate, going up like in GL.
+     * @param windowSize The size of the square picking window in pixels.
+     * @param layerMask The layers to pick from, as a bit mask of layer ids.
+     * @return The draw that was hit, or null.
+     */
+    Render.Draw pick(float[] wvp, int width, int height, int x, int y,
+            int windowSize, int layerMask) {
+        return pick(wvp, width, height, x, y, windowSize, layerMask, new TriangleBvh.Hit());
+    }
+
+    /**
+     * Like {@link #pick(float[], int, int, int, int, int, int)}, for picking
+     * continuously while a finger moves. {@code hit} is the hit of the
+     * previous pick, and is updated to the new hit.
+     */
+    Render.Draw pick(float[] wvp, int width, int height, int x, int y,
+            int windowSize, int layerMask, TriangleBvh.Hit hit) {
+        float[] inverseWvp = new float[16];
+        if (!TdlMath.invert(inverseWvp, wvp)) return null;
+
+        Ray ray = new Ray();
+        TriangleBvh.Hit previous = new TriangleBvh.Hit();
+        previous.set(hit);
+
+        // Same search order as Render.findPixelInRect(): the center, then
+        // growing rectangle edges. Window pixel |p| of the picking window
+        // covers [x - windowSize / 2 + p, x - windowSize / 2 + p + 1].
+        int s = windowSize / 2;
+        for (int d = 0; d <= windowSize / 2; ++d) {
+            if (d == 0) {
+                if (castPixel(inverseWvp, width, height, x, y, s, s, windowSize, layerMask,
+                        ray, previous, hit)) return hit.getDraw();
+                continue;
+            }
+            for (int py = s - d; py <= s + d; ++py) {
+                if (py < 0) continue;
+                if (py >= windowSize) break;
+                if (castPixel(inverseWvp, width, height, x, y, s - d, py, windowSize, layerMask,
+                        ray, previous, hit)) return hit.getDraw();
+                if (castPixel(inverseWvp, width, height, x, y, s + d, py, windowSize, layerMask,
+                        ray, previous, hit)) return hit.getDraw();
+            }
+            for (int px = s - d + 1; px <= s + d - 1; ++px) {
+                if (px < 0) continue;
+                if (px >= windowSize) break;
+                if (castPixel(inverseWvp, width, height, x, y, px, s - d, windowSize, layerMask,
+                        ray, previous, hit)) return hit.getDraw();
+                if (castPixel(inverseWvp, width, height, x, y, px, s + d, windowSize, layerMask,
+                        ray, previous, hit)) return hit.getDraw();
+            }
+        }
+        return null;
+    }
+
+    private boolean castPixel(float[] inverseWvp, int width, int height, int x, int y,
+            int px, int py, int windowSize, int layerMask, Ray ray,
+            TriangleBvh.Hit previous, TriangleBvh.Hit hit) {
+        if (px < 0 || px >= windowSize || py < 0 || py >= windowSize) return false;
+        float wx = x - windowSize / 2 + px + 0.5f;
+        float wy = y - windowSize / 2 + py + 0.5f;
+        computeRay(inverseWvp, width, height, wx, wy, ray);
+        return castRay(ray, layerMask, previous, hit);
+    }
+}
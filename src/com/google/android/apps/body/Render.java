@@ -13,20 +13,18 @@
 // limitations under the License.
 package com.google.android.apps.body;
 
+import com.google.android.apps.body.tdl.Gl;
+import com.google.android.apps.body.tdl.GlState;
+import com.google.android.apps.body.tdl.Logger;
 import com.google.android.apps.body.tdl.Programs;
 import com.google.android.apps.body.tdl.TdlMath;
-import com.google.android.apps.body.tdl.Textures;
-
-import android.content.Context;
-import android.graphics.Bitmap;
-import android.opengl.ETC1Util.ETC1Texture;
-import android.opengl.GLES20;
-import android.opengl.Matrix;
-import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ShortBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -34,14 +32,46 @@ import java.util.Map;
 
 /**
  * Responsible for rendering the GL display. Lives on the GL thread.
+ *
+ * Everything it needs from android comes in through a {@link Host}, a
+ * {@link Gl} (see {@link GlState#setGl}) and a {@link Logger}, so that it
+ * also runs on a desktop JVM, see tools/HeadlessRenderCheck.java.
  */
 public class Render implements Layers.Listener, LayersLoader.Callback {
 
+    /**
+     * What the renderer needs from the app around it. {@link BodyActivity}
+     * loads the layers on a device; a headless check hands in its own.
+     */
+    interface Host {
+        /**
+         * Starts loading the layers in {@code layerResources}, layer ids to
+         * raw resource ids. The layers come back through
+         * {@link Render#finishLayerLoad} on the GL thread.
+         */
+        void loadLayers(Map<Integer, Integer> layerResources);
+
+        /**
+         * Reads the CPU buffers and textures of an evicted layer back into
+         * {@code groups}, see {@link LayerBuffers}. Called on a background
+         * thread.
+         *
+         * @return false if the layer's buffers are gone.
+         */
+        boolean readLayerBuffers(int layer, DrawGroup[] groups) throws IOException;
+
+        /** @return The directory for cache files, or null for none. */
+        File getCacheDir();
+    }
+
     private Navigate mNavigate;
+    private final Logger mLogger;
     private int mClientWidth, mClientHeight;
 
-    public Render(Navigate navigate) {
+    public Render(Navigate navigate, Logger logger) {
         this.mNavigate = navigate;
+        this.mLogger = logger;
+        this.mGpuResources = new GpuResources(logger);
     }
 
     void setClientSize(int width, int height) {
@@ -133,23 +163,77 @@ public class Render implements Layers.Listener, LayersLoader.Callback {
     private int mTextureSamplerLoc;
     private float[] mWvpMatrix = new float[16];
     private float[] mViewMatrix = new float[16];
+    // The matrices above, times Mirrors.REFLECTION, for mirrored draws.
+    private float[] mMirroredWvpMatrix = new float[16];
+    private float[] mMirroredViewMatrix = new float[16];
+    private float[] mFrustumPlanes = new float[24];
 
     private Layer[] mLayers = new Layer[Layers.NUM_LAYERS];
+    private final GpuResources mGpuResources;
+
+    // Whether the GL context has OES_vertex_array_object. If so, every draw
+    // group has vertex array objects for both passes.
+    private boolean mHasVertexArrays;
+
+    // Layers that have been invisible for |mEvictionDelayMs| lose their GPU
+    // resources while the layers hold more than |mGpuBudget| bytes, and are
+    // uploaded again from their LayerBuffers when they become visible.
+    // Eviction goes on down to EVICTION_LOW_WATER of the budget, so that a
+    // layer coming back doesn't push another one out right away.
+    private static final float EVICTION_LOW_WATER = 0.75f;
+    private long mEvictionDelayMs = 30 * 1000;
+    private int mGpuBudget = Integer.MAX_VALUE;
+    private boolean mIsEvicting;
+
+    private static final class Restore {
+        final Layer layer;
+        final DrawGroup[] groups;
+        final boolean isRead;
+
+        Restore(Layer layer, DrawGroup[] groups, boolean isRead) {
+            this.layer = layer;
+            this.groups = groups;
+            this.isRead = isRead;
+        }
+    }
+
+    // Layers read back by restoreLayer(), to be uploaded on the GL thread.
+    // Guarded by itself.
+    private final List<Restore> mRestores = new ArrayList<Restore>();
+    private Host mHost;
+
+    private OcclusionCuller mOcclusionCuller;
+    private OcclusionCuller.Result mLastLoggedOcclusion;
+    private PvsBuilder mPvsBuilder;
+    private final RayPicker mRayPicker = new RayPicker();
+    private File mCacheDir;
 
     private int mSelectionShader;
     private int mSelectionWorldViewProjectionLoc;
     private int mColorScaleLoc;
-    private Map<Integer, Draw> mSelectionColorMap;
+    private Draw[] mSelectionDraws;  // Indexed by selection color.
     private int mMaxColorIndex = 1;
     private ByteBuffer mSelectionSurfaceBuffer;
 
-    private int createShortBuffer(int target, ShortBuffer buffer) {
-        int[] buffers = { 0 };
-        GLES20.glGenBuffers(1, buffers, 0);
-        GLES20.glBindBuffer(target, buffers[0]);
-        GLES20.glBufferData(target, buffer.capacity() * 2, buffer, GLES20.GL_STATIC_DRAW);
-        return buffers[0];
-    }
+    // The size of the picking window around a tap.
+    static final int SELECTION_RECT_WIDTH = 20;
+
+    // The offscreen surface used for picking. Kept alive between taps, and
+    // dropped when the GL context is recreated.
+    private OffscreenSurface mSelectionSurface;
+
+    // Recent picking results for the camera, viewport size and layer state
+    // in |mPickCacheKey|, keyed by the tapped pixel (see pickCacheKey()).
+    private static final int PICK_CACHE_SIZE = 16;
+    private float[] mPickCacheKey = new float[16 + 4];
+    @SuppressWarnings("serial")
+    private final Map<Long, String> mPickCache =
+            new LinkedHashMap<Long, String>(PICK_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+                    return size() > PICK_CACHE_SIZE;
+                }
+            };
 
     private Layer initLayer(int info) {
         Layer layer = new Layer(info);
@@ -161,23 +245,19 @@ public class Render implements Layers.Listener, LayersLoader.Callback {
         return layer;
     }
 
-    private void loadLayers(Context context, final BodyActivity ui) {
+    private void loadLayers() {
         for (Integer info : layerInfo.keySet()) {
             if (mLayers[info] == null) mLayers[info] = initLayer(info);
         }
 
-        final Map<Integer, Integer> layerResources = new LinkedHashMap<Integer, Integer>();
+        Map<Integer, Integer> layerResources = new LinkedHashMap<Integer, Integer>();
         // layerInfo is inside out, but we want to load the skin first.
         List<Integer> layers = new ArrayList<Integer>(layerInfo.keySet());
         Collections.reverse(layers);
         for (int i : layers)
             layerResources.put(i, layerInfo.get(i));
 
-        ui.getHandler().post(new Runnable() {
-                @Override
-                public void run() {
-                    ui.load(this, layerResources);
-                }});
+        mHost.loadLayers(layerResources);
     }
 
     private void prepareDraw(Layer layer, float opacity) {
@@ -189,83 +269,235 @@ public class Render implements Layers.Listener, LayersLoader.Callback {
             layer.renderOpacity = renderOpacity;
         }
 
-        GLES20.glUniform1f(mOpacityLoc, layer.renderOpacity);
+        GlState.uniform1f(mOpacityLoc, layer.renderOpacity);
 
-        GLES20.glUniform1i(mTextureSamplerLoc, 0);  // Not in js version.    
+        GlState.uniform1i(mTextureSamplerLoc, 0);  // Not in js version.    
     }
 
-    private void drawOneGeometryOnly(Layer layer, String geometry) {
-        // Only drawing the selected group.
-        for (DrawGroup drawGroup : layer.drawGroups) {
-            for (Render.Draw draw : drawGroup.draws) {
-                if (draw.geometry.equals(geometry)) {
-                    drawElements(
-                            drawGroup.vertexBuffer,
-                            drawGroup.indexBuffer,
-                            drawGroup.diffuseTexture,
-                            draw.offset,
-                            draw.count);
+    private void drawOneGeometryOnly(Layer layer, int entity, String geometry) {
+        // Only drawing the selected entity's draws.
+        if (layer.isEvicted) return;
+        if (entity == EntityIds.NONE) {
+            // No entity ids, the entity table didn't load.
+            for (DrawGroup group : layer.drawGroups) {
+                for (Draw draw : group.draws) {
+                    if (draw.geometry.equals(geometry)) drawOneDraw(draw);
                 }
             }
+            return;
         }
+        if (entity >= layer.entityDraws.length) return;
+        for (Draw draw = layer.entityDraws[entity]; draw != null; draw = draw.nextOfEntity)
+            drawOneDraw(draw);
+    }
+
+    private void drawOneDraw(Draw draw) {
+        if (draw.mirrorOf != null) setMirrored(true, false);
+        drawElements(draw.group, draw.offset, draw.count);
+        if (draw.mirrorOf != null) setMirrored(false, false);
     }
 
     private void drawLayer(Layer layer, float opacity) {
-        if (layer.drawGroups == null) {
+        drawLayer(layer, opacity, null, null, 0);
+    }
+
+    // |hidden| is an occlusion culling bit set for the layer's clusters, or
+    // null. |visibleDraws| is a PVS bit set in which the layer's draws start
+    // at bit |drawBase|, or null.
+    private void drawLayer(Layer layer, float opacity, long[] hidden,
+            long[] visibleDraws, int drawBase) {
+        if (layer.drawGroups == null || layer.isEvicted) {
             return;
         }
 
         prepareDraw(layer, opacity);
 
         for (DrawGroup drawGroup : layer.drawGroups) {
-            drawElements(
-                    drawGroup.vertexBuffer,
-                    drawGroup.indexBuffer,
-                    drawGroup.diffuseTexture,
-                    0,
-                    drawGroup.numIndices);
+            drawVisibleClusters(drawGroup, hidden, visibleDraws, drawBase + drawGroup.drawBase);
+        }
+    }
+
+    // Draws the clusters of |drawGroup| that are inside the view frustum, not
+    // facing away from the camera, not marked in |hidden| and whose draw is
+    // marked in |visibleDraws|. Runs of adjacent visible clusters are merged
+    // into a single draw call. The clusters of mirrored draws come last and
+    // are drawn reflected, one run per draw.
+    private void drawVisibleClusters(DrawGroup drawGroup, long[] hidden,
+            long[] visibleDraws, int drawBase) {
+        drawVisibleClusters(drawGroup, hidden, visibleDraws, drawBase, false);
+    }
+
+    // If |forSelection| is set, the selection color buffer is bound instead
+    // of the normals, texture coordinates and texture.
+    private void drawVisibleClusters(DrawGroup drawGroup, long[] hidden,
+            long[] visibleDraws, int drawBase, boolean forSelection) {
+        Gl gl = GlState.getGl();
+        Clusters clusters = drawGroup.clusters;
+        if (clusters.isGroupOutside(mFrustumPlanes)) return;
+
+        float[] eye = mNavigate.getCamera().eye;
+        boolean isBound = false;
+        boolean isMirrored = false;
+        int rangeStart = -1, rangeEnd = -1, rangeDraw = -1;
+        for (int c = 0; c <= clusters.count; ++c) {
+            boolean isVisible = c < clusters.count && clusters.isVisible(c, mFrustumPlanes, eye);
+            if (isVisible && hidden != null) {
+                int bit = drawGroup.clusterBase + c;
+                isVisible = (hidden[bit >> 6] & (1L << bit)) == 0;
+            }
+            if (isVisible && visibleDraws != null) {
+                int bit = drawBase + clusters.draws[c];
+                isVisible = (visibleDraws[bit >> 6] & (1L << bit)) != 0;
+            }
+            if (isVisible && clusters.offsets[c] == rangeEnd &&
+                    (c < clusters.firstMirrored || clusters.draws[c] == rangeDraw)) {
+                rangeEnd += clusters.counts[c];
+                continue;
+            }
+            if (rangeStart >= 0) {
+                if (!isBound) {
+                    if (forSelection) {
+                        bindDrawGroupForSelection(drawGroup);
+                    } else {
+                        bindDrawGroup(drawGroup);
+                    }
+                    isBound = true;
+                }
+                Draw draw = drawGroup.draws.get(rangeDraw);
+                if (draw.mirrorOf != null) {
+                    if (!isMirrored) {
+                        setMirrored(true, forSelection);
+                        isMirrored = true;
+                    }
+                    if (forSelection) gl.glVertexAttrib1f(1, draw.selectionColor);
+                }
+                gl.glDrawElements(Gl.GL_TRIANGLES, rangeEnd - rangeStart,
+                        Gl.GL_UNSIGNED_SHORT, rangeStart * 2);
+                rangeStart = -1;
+            }
+            if (isVisible) {
+                rangeStart = clusters.offsets[c];
+                rangeEnd = rangeStart + clusters.counts[c];
+                rangeDraw = clusters.draws[c];
+            }
         }
+        if (isMirrored) setMirrored(false, forSelection);
     }
 
-    private void drawElements(int vertexBuffer, int indexBuffer,
-            int diffuseTexture, int offset, int numIndices) {
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBuffer);
-        GLES20.glVertexAttribPointer(0, 3, GLES20.GL_SHORT, false, 2 * (3 + 3 + 2), 0);
+    // Switches the current program to the reflected transform of mirrored
+    // draws, or back. The reflection also reverses the winding of their
+    // triangles on screen. Mirrored draws have no selection colors in the
+    // color buffer; while |mirrored|, the color attribute is a constant.
+    private void setMirrored(boolean mirrored, boolean forSelection) {
+        if (forSelection) {
+            GlState.uniformMatrix4fv(mSelectionWorldViewProjectionLoc,
+                    mirrored ? mMirroredWvpMatrix : mWvpMatrix, 0);
+            if (mirrored) {
+                GlState.disableVertexAttribArray(1);
+            } else {
+                GlState.enableVertexAttribArray(1);
+            }
+        } else {
+            GlState.uniformMatrix4fv(mWorldViewProjectionLoc,
+                    mirrored ? mMirroredWvpMatrix : mWvpMatrix, 0);
+            GlState.uniformMatrix4fv(mWorldViewLoc,
+                    mirrored ? mMirroredViewMatrix : mViewMatrix, 0);
+        }
+        GlState.frontFace(mirrored ? Gl.GL_CW : Gl.GL_CCW);
+    }
 
-        GLES20.glVertexAttribPointer(1, 3, GLES20.GL_SHORT, false, 2 * (3 + 3 + 2), 2 * 3);
+    private void drawElements(DrawGroup drawGroup, int offset, int numIndices) {
+        Gl gl = GlState.getGl();
+        bindDrawGroup(drawGroup);
+        gl.glDrawElements(
+                Gl.GL_TRIANGLES, numIndices, Gl.GL_UNSIGNED_SHORT, offset * 2);    
+    }
 
-        GLES20.glVertexAttribPointer(2, 2, GLES20.GL_SHORT, false, 2 * (3 + 3 + 2), 2 * (3 + 3));
-        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+    private void bindDrawGroup(DrawGroup drawGroup) {
+        if (mHasVertexArrays) {
+            GpuResources.bindVertexArray(drawGroup.vertexArray);
+        } else {
+            setVertexAttribs(drawGroup);
+        }
+        GlState.bindTexture(Gl.GL_TEXTURE_2D, drawGroup.diffuseTexture);
+    }
 
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, diffuseTexture);
-        GLES20.glDrawElements(
-                GLES20.GL_TRIANGLES, numIndices, GLES20.GL_UNSIGNED_SHORT, offset * 2);    
+    private void bindDrawGroupForSelection(DrawGroup drawGroup) {
+        if (mHasVertexArrays) {
+            GpuResources.bindVertexArray(drawGroup.selectionVertexArray);
+        } else {
+            setSelectionVertexAttribs(drawGroup);
+        }
+    }
+
+    // Points the attributes of the lit pass at the buffers of |drawGroup|.
+    private static void setVertexAttribs(DrawGroup drawGroup) {
+        GlState.bindBuffer(Gl.GL_ARRAY_BUFFER, drawGroup.vertexBuffer);
+        GlState.vertexAttribPointer(0, 3, Gl.GL_SHORT, false, 2 * (3 + 3 + 2), 0);
+
+        GlState.vertexAttribPointer(1, 3, Gl.GL_SHORT, false, 2 * (3 + 3 + 2), 2 * 3);
+
+        GlState.vertexAttribPointer(2, 2, Gl.GL_SHORT, false, 2 * (3 + 3 + 2), 2 * (3 + 3));
+        GlState.bindBuffer(Gl.GL_ELEMENT_ARRAY_BUFFER, drawGroup.indexBuffer);
+    }
+
+    // Points the attributes of the selection pass at the buffers of |drawGroup|.
+    private static void setSelectionVertexAttribs(DrawGroup drawGroup) {
+        GlState.bindBuffer(Gl.GL_ARRAY_BUFFER, drawGroup.vertexBuffer);
+        GlState.vertexAttribPointer(0, 3, Gl.GL_SHORT, false, 2 * (3 + 3 + 2), 0);
+        GlState.bindBuffer(Gl.GL_ARRAY_BUFFER, drawGroup.colorBuffer);
+        GlState.vertexAttribPointer(1, 1, Gl.GL_UNSIGNED_SHORT, false, 2 * 1, 0);
+        GlState.bindBuffer(Gl.GL_ELEMENT_ARRAY_BUFFER, drawGroup.indexBuffer);
+    }
+
+    // Builds the vertex array objects of |drawGroup| for the lit and the
+    // selection pass, which replace the attribute setup of every bind.
+    private void createVertexArrays(Layer layer, DrawGroup drawGroup) {
+        drawGroup.vertexArray = mGpuResources.acquireVertexArray(layer.type);
+        GlState.enableVertexAttribArray(0);
+        GlState.enableVertexAttribArray(1);
+        GlState.enableVertexAttribArray(2);
+        setVertexAttribs(drawGroup);
+
+        drawGroup.selectionVertexArray = mGpuResources.acquireVertexArray(layer.type);
+        GlState.enableVertexAttribArray(0);
+        GlState.enableVertexAttribArray(1);
+        setSelectionVertexAttribs(drawGroup);
+
+        GpuResources.bindVertexArray(0);
     }
 
     private void updateMatrices(int w, int h) {
-        Navigate.Camera camera = mNavigate.getCamera();
-        float[] eyePosition = camera.eye;
-        float[] targetPosition = camera.target;
-        float[] upPosition = camera.up;
+        computeMatrices(mNavigate.getCamera(), w / (float)h, mViewMatrix, mWvpMatrix);
+        TdlMath.frustumPlanes(mFrustumPlanes, mWvpMatrix);
+        updateMirroredMatrices();
+    }
+
+    private void updateMirroredMatrices() {
+        TdlMath.multiply(mMirroredWvpMatrix, mWvpMatrix, Mirrors.REFLECTION);
+        TdlMath.multiply(mMirroredViewMatrix, mViewMatrix, Mirrors.REFLECTION);
+    }
 
-        Matrix.setLookAtM(mViewMatrix, 0,
-                eyePosition[0], eyePosition[1], eyePosition[2],
-                targetPosition[0], targetPosition[1], targetPosition[2],
-                upPosition[0], upPosition[1], upPosition[2]);
+    /**
+     * Computes the view and world-view-projection matrices for a camera.
+     * Doesn't touch any GL state, so it can be used on any thread.
+     */
+    static void computeMatrices(Navigate.Camera camera, float aspect,
+            float[] viewMatrix, float[] wvpMatrix) {
+        TdlMath.lookAt(viewMatrix, camera.eye, camera.target, camera.up);
 
         // Mobile devices have only 16 bits of depth buffer, so limit the depth
         // range. This is a heuristic which works pretty well except if you
         // look at the model from above, in which case the skull gets clipped
         // failry early. But this almost looks like a feature.
         // TODO(thakis): Make this smarter once we have toplevel bounding boxes.
-        float tz = mViewMatrix[3 * 4 + 2];
+        float tz = viewMatrix[3 * 4 + 2];
         tz = -tz;  // tz is always negative, make it positive (max 250).
 
         final float BODY_HEIGHT = 400;  // TODO: tweak?
         final float F = 1/5.f;
 
         float[] projectionMatrix = new float[16];
-        float aspect = w / (float)h;
         TdlMath.perspective(
                 projectionMatrix,
                 (float)Math.toRadians(camera.fov),
@@ -274,7 +506,7 @@ public class Render implements Layers.Listener, LayersLoader.Callback {
                 tz + (1 - F)*BODY_HEIGHT);
 
         // The world matrix is always the identity.
-        Matrix.multiplyMM(mWvpMatrix, 0, projectionMatrix, 0, mViewMatrix, 0);
+        TdlMath.multiply(wvpMatrix, projectionMatrix, viewMatrix);
     }
 
     private static class OffscreenSurface {
@@ -284,54 +516,70 @@ public class Render implements Layers.Listener, LayersLoader.Callback {
     }
 
     OffscreenSurface createOffscreenSurface(int width, int height) {
+        Gl gl = GlState.getGl();
         OffscreenSurface result = new OffscreenSurface();
 
         int[] framebuffers = { 0 };
-        GLES20.glGenFramebuffers(1, framebuffers, 0);
+        gl.glGenFramebuffers(1, framebuffers, 0);
         result.framebuffer = framebuffers[0];
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, result.framebuffer);
+        gl.glBindFramebuffer(Gl.GL_FRAMEBUFFER, result.framebuffer);
 
         // Color buffer.
         int[] textures = { 0 };
-        GLES20.glGenTextures(1, textures, 0);
+        gl.glGenTextures(1, textures, 0);
         result.colorTexture = textures[0];
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, result.colorTexture);
-        GLES20.glTexParameteri(
-                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(
-                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(
-                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(
-                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexImage2D(
-                GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
-                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GlState.bindTexture(Gl.GL_TEXTURE_2D, result.colorTexture);
+        gl.glTexParameteri(
+                Gl.GL_TEXTURE_2D, Gl.GL_TEXTURE_MAG_FILTER, Gl.GL_LINEAR);
+        gl.glTexParameteri(
+                Gl.GL_TEXTURE_2D, Gl.GL_TEXTURE_MIN_FILTER, Gl.GL_LINEAR);
+        gl.glTexParameteri(
+                Gl.GL_TEXTURE_2D, Gl.GL_TEXTURE_WRAP_S, Gl.GL_CLAMP_TO_EDGE);
+        gl.glTexParameteri(
+                Gl.GL_TEXTURE_2D, Gl.GL_TEXTURE_WRAP_T, Gl.GL_CLAMP_TO_EDGE);
+        gl.glTexImage2D(
+                Gl.GL_TEXTURE_2D, 0, Gl.GL_RGBA, width, height, 0,
+                Gl.GL_RGBA, Gl.GL_UNSIGNED_BYTE, null);
 
         // Depth buffer.
         int[] renderbuffers = { 0 };
-        GLES20.glGenRenderbuffers(1, renderbuffers, 0);
+        gl.glGenRenderbuffers(1, renderbuffers, 0);
         result.renderbuffer = renderbuffers[0];
-        GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, result.renderbuffer);
-        GLES20.glRenderbufferStorage(GLES20.GL_RENDERBUFFER, GLES20.GL_DEPTH_COMPONENT16,
+        gl.glBindRenderbuffer(Gl.GL_RENDERBUFFER, result.renderbuffer);
+        gl.glRenderbufferStorage(Gl.GL_RENDERBUFFER, Gl.GL_DEPTH_COMPONENT16,
                 width, height);
 
-        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
-                GLES20.GL_TEXTURE_2D, result.colorTexture, 0);
-        GLES20.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER, GLES20.GL_DEPTH_ATTACHMENT,
-                GLES20.GL_RENDERBUFFER,
+        gl.glFramebufferTexture2D(Gl.GL_FRAMEBUFFER, Gl.GL_COLOR_ATTACHMENT0,
+                Gl.GL_TEXTURE_2D, result.colorTexture, 0);
+        gl.glFramebufferRenderbuffer(Gl.GL_FRAMEBUFFER, Gl.GL_DEPTH_ATTACHMENT,
+                Gl.GL_RENDERBUFFER,
                 result.renderbuffer);
 
-        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
-        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
-            Log.w("Body", "Incomplete framebuffer");
+        int status = gl.glCheckFramebufferStatus(Gl.GL_FRAMEBUFFER);
+        if (status != Gl.GL_FRAMEBUFFER_COMPLETE) {
+            mLogger.w("Incomplete framebuffer");
             result.framebuffer = 0;
         }
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        gl.glBindFramebuffer(Gl.GL_FRAMEBUFFER, 0);
         return result;
     }
 
+    // Layers that are rendered for picking, as a bit mask of layer ids.
+    int getSelectionLayerMask() {
+        int mask = 0;
+        for (int info : layerInfo.keySet()) {
+            Layer layer = mLayers[info];
+            if (layer.drawGroups == null || layer.isEvicted)
+                continue;
+            if (layer.renderOpacity < 0.5 && !layer.isVisibleTarget)
+                continue;
+            mask |= 1 << info;
+        }
+        return mask;
+    }
+
     void drawBodyForSelection(int x, int y, int fboWidth, int fboHeight) {
+        Gl gl = GlState.getGl();
         updateMatrices(mClientWidth, mClientHeight);
 
         // Zoom in on the picking rectangle.
@@ -339,52 +587,48 @@ public class Render implements Layers.Listener, LayersLoader.Callback {
         TdlMath.pickMatrix(
                 pickingMatrix, x, y, fboWidth, fboHeight,
                 new float[]{0, 0, mClientWidth, mClientHeight});
-        Matrix.multiplyMM(mWvpMatrix, 0, pickingMatrix, 0, mWvpMatrix.clone(), 0);
+        TdlMath.multiply(mWvpMatrix, pickingMatrix, mWvpMatrix);
 
-        GLES20.glUseProgram(mSelectionShader);
-        GLES20.glUniformMatrix4fv(mSelectionWorldViewProjectionLoc, 1, false, mWvpMatrix, 0);
+        // Only the few pixels around the tap matter, so cull against the
+        // narrow frustum of the picking rectangle.
+        TdlMath.frustumPlanes(mFrustumPlanes, mWvpMatrix);
+        updateMirroredMatrices();
+
+        GlState.useProgram(mSelectionShader);
+        GlState.uniformMatrix4fv(mSelectionWorldViewProjectionLoc, mWvpMatrix, 0);
         selectionColorScale = (float)Math.floor((256*256*256-1) / (float)mMaxColorIndex );
-        GLES20.glUniform1f(mColorScaleLoc, selectionColorScale);
+        GlState.uniform1f(mColorScaleLoc, selectionColorScale);
 
-        GLES20.glViewport(0, 0, fboWidth, fboHeight);
-        GLES20.glEnable(GLES20.GL_CULL_FACE);
-        GLES20.glClearColor(0, 0, 0, 1);
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-        GLES20.glEnable(GLES20.GL_DEPTH_TEST);
-        GLES20.glDisable(GLES20.GL_BLEND);
+        GlState.viewport(0, 0, fboWidth, fboHeight);
+        GlState.enable(Gl.GL_CULL_FACE);
+        GlState.clearColor(0, 0, 0, 1);
+        gl.glClear(Gl.GL_COLOR_BUFFER_BIT | Gl.GL_DEPTH_BUFFER_BIT);
+        GlState.enable(Gl.GL_DEPTH_TEST);
+        GlState.disable(Gl.GL_BLEND);
 
-        GLES20.glEnableVertexAttribArray(0);
-        GLES20.glEnableVertexAttribArray(1);
-        GLES20.glDisableVertexAttribArray(2);
+        GlState.enableVertexAttribArray(0);
+        GlState.enableVertexAttribArray(1);
+        GlState.disableVertexAttribArray(2);
 
+        int layerMask = getSelectionLayerMask();
         for (int info : layerInfo.keySet()) {
-            Layer layer = mLayers[info];
-
-            if (layer.drawGroups == null)
-                continue;
-
-            if (layer.renderOpacity < 0.5 && !layer.isVisibleTarget)
+            if ((layerMask & (1 << info)) == 0)
                 continue;
 
-            for (DrawGroup drawGroup : layer.drawGroups) {
-                GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, drawGroup.vertexBuffer);
-                GLES20.glVertexAttribPointer(0, 3, GLES20.GL_SHORT, false, 2 * (3 + 3 + 2), 0);
-                GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, drawGroup.colorBuffer);
-                GLES20.glVertexAttribPointer(1, 1, GLES20.GL_UNSIGNED_SHORT, false, 2 * 1, 0);
-                GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, drawGroup.indexBuffer);
-                GLES20.glDrawElements(
-                        GLES20.GL_TRIANGLES, drawGroup.numIndices, GLES20.GL_UNSIGNED_SHORT, 0);
+            for (DrawGroup drawGroup : mLayers[info].drawGroups) {
+                drawVisibleClusters(drawGroup, null, null, 0, true);
             }
         }
+        if (mHasVertexArrays) GpuResources.bindVertexArray(0);
 
         if (mSelectionSurfaceBuffer != null) {
-            GLES20.glReadPixels(
-                    0, 0, fboWidth, fboHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+            gl.glReadPixels(
+                    0, 0, fboWidth, fboHeight, Gl.GL_RGBA, Gl.GL_UNSIGNED_BYTE,
                     mSelectionSurfaceBuffer);
         }
     }
 
-    private int getPixel(int sx, int sy, int width, int height, ByteBuffer data) {
+    private static int getPixel(int sx, int sy, int width, int height, ByteBuffer data) {
         if (sx < 0 || sx >= width || sy < 0 || sy >= height) return 0;
 
         int startByte = (sy * width + sx) * 4;
@@ -396,8 +640,8 @@ public class Render implements Layers.Listener, LayersLoader.Callback {
 
     // It's hard to select thin entites when tapping. Search in concentric
     // growing rectangles instead of checking just a single pixel to
-    // rectify this.
-    private int findPixelInRect(
+    // rectify this. Also used by tools/RayPickerCheck.
+    static int findPixelInRect(
             int sx, int sy, int windowSize, int width, int height, ByteBuffer data) {
         // Check center.
         int value = getPixel(sx, sy, width, height, data);
@@ -427,87 +671,167 @@ public class Render implements Layers.Listener, LayersLoader.Callback {
         return 0;
     }
 
+    private void deleteOffscreenSurface(OffscreenSurface surface) {
+        Gl gl = GlState.getGl();
+        int[] framebuffers = { surface.framebuffer };
+        gl.glDeleteFramebuffers(1, framebuffers, 0);
+        int[] renderbuffers = { surface.renderbuffer };
+        gl.glDeleteRenderbuffers(1, renderbuffers, 0);
+        int[] textures = { surface.colorTexture };
+        GlState.deleteTextures(1, textures, 0);
+    }
+
+    // Checks if the picking cache is still valid for the current camera,
+    // viewport and layer state, and clears it if not.
+    private void validatePickCache() {
+        updateMatrices(mClientWidth, mClientHeight);
+        float[] key = new float[mPickCacheKey.length];
+        System.arraycopy(mWvpMatrix, 0, key, 0, 16);
+        key[16] = mClientWidth;
+        key[17] = mClientHeight;
+        key[18] = getSelectionLayerMask();
+        key[19] = mMaxColorIndex;
+        if (!Arrays.equals(key, mPickCacheKey)) {
+            mPickCache.clear();
+            mPickCacheKey = key;
+        }
+    }
+
+    private static long pickCacheKey(int x, int y) {
+        return ((long)x << 32) | (y & 0xffffffffL);
+    }
+
     public String getEntityAtCoord(int x, int y) {
+        Gl gl = GlState.getGl();
         if (x < 0 || x > mClientWidth || y < 0 || y > mClientHeight)
             return "";
 
-        final int kSelectionRectWidth = 20;
+        long startNS = System.nanoTime();
+        validatePickCache();
+        String cached = mPickCache.get(pickCacheKey(x, y));
+        if (cached != null) {
+            if (BodyActivity.DEVELOPER_MODE) {
+                mLogger.d("Pick (cached) took " + (System.nanoTime() - startNS) / 1e6f + " ms");
+            }
+            return cached;
+        }
 
         // Render at a much smaller resolution (only 20x20 pixel around touch point).
-        int fboWidth = kSelectionRectWidth;
-        int fboHeight = kSelectionRectWidth;
-
-        OffscreenSurface selection = createOffscreenSurface(fboWidth, fboHeight);
-        if (selection == null) {
-            Log.w("Body", "Failed to create framebuffer");
-            return "";
+        int fboWidth = SELECTION_RECT_WIDTH;
+        int fboHeight = SELECTION_RECT_WIDTH;
+
+        if (mSelectionSurface == null) {
+            mSelectionSurface = createOffscreenSurface(fboWidth, fboHeight);
+            if (mSelectionSurface.framebuffer == 0) {
+                mLogger.w("Failed to create framebuffer");
+                deleteOffscreenSurface(mSelectionSurface);
+                mSelectionSurface = null;
+                return "";
+            }
+        }
+        if (mSelectionSurfaceBuffer == null) {
+            int selectionSurfaceSize = fboWidth * fboHeight * 4;
+            mSelectionSurfaceBuffer = ByteBuffer.allocateDirect(selectionSurfaceSize);
         }
-        int selectionSurfaceSize = fboWidth * fboHeight * 4;
-        mSelectionSurfaceBuffer = ByteBuffer.allocateDirect(selectionSurfaceSize);
 
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, selection.framebuffer);
+        gl.glBindFramebuffer(Gl.GL_FRAMEBUFFER, mSelectionSurface.framebuffer);
 
         drawBodyForSelection(x, mClientHeight - 1 - y, fboWidth, fboHeight);
 
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        gl.glBindFramebuffer(Gl.GL_FRAMEBUFFER, 0);
 
-        int sx = kSelectionRectWidth / 2, sy = kSelectionRectWidth / 2;
+        int sx = SELECTION_RECT_WIDTH / 2, sy = SELECTION_RECT_WIDTH / 2;
         int value = findPixelInRect(
-                sx, sy, kSelectionRectWidth, fboWidth, fboHeight, mSelectionSurfaceBuffer);
-
-        // Clear stuff.
-        mSelectionSurfaceBuffer = null;
-        int[] framebuffers = { selection.framebuffer };
-        GLES20.glDeleteFramebuffers(1, framebuffers, 0);
-        int[] renderbuffers = { selection.renderbuffer };
-        GLES20.glDeleteRenderbuffers(1, renderbuffers, 0);
-        int[] textures = { selection.colorTexture };
-        GLES20.glDeleteTextures(1, textures, 0);
+                sx, sy, SELECTION_RECT_WIDTH, fboWidth, fboHeight, mSelectionSurfaceBuffer);
 
         value = (int)Math.floor(value / selectionColorScale);
-        if (value != 0 && mSelectionColorMap.containsKey(value)) {
-            return mSelectionColorMap.get(value).geometry;
-        } else {
-            return "";
+        String result = "";
+        if (value > 0 && value < mMaxColorIndex && mSelectionDraws[value] != null) {
+            result = mSelectionDraws[value].geometry;
         }
+        mPickCache.put(pickCacheKey(x, y), result);
+
+        if (BodyActivity.DEVELOPER_MODE) {
+            mLogger.d("Pick took " + (System.nanoTime() - startNS) / 1e6f + " ms");
+            checkRayPick(x, mClientHeight - 1 - y, SELECTION_RECT_WIDTH, result);
+        }
+        return result;
+    }
+
+    // Compares the CPU picker with the result of the GL picker. They can
+    // disagree at entity borders, since the GL picker interpolates the
+    // color indices of vertices shared between draws.
+    private void checkRayPick(int x, int y, int windowSize, String expected) {
+        float[] wvp = new float[16];
+        System.arraycopy(mPickCacheKey, 0, wvp, 0, 16);
+        long startNS = System.nanoTime();
+        Draw draw = mRayPicker.pick(wvp, mClientWidth, mClientHeight, x, y, windowSize,
+                getSelectionLayerMask());
+        String result = draw != null ? draw.geometry : "";
+        mLogger.d("Ray pick took " + (System.nanoTime() - startNS) / 1e6f + " ms" +
+                (result.equals(expected) ? "" : ", disagrees: '" + result + "' vs '" +
+                        expected + "'"));
+    }
+
+    /**
+     * Like {@link #getEntityAtCoord}, but uses the CPU picker, which is cheap
+     * enough to run every frame while a finger moves over the body.
+     * {@code hit} carries the previous hit between calls.
+     */
+    String scrubEntityAtCoord(int x, int y, TriangleBvh.Hit hit) {
+        if (x < 0 || x > mClientWidth || y < 0 || y > mClientHeight)
+            return "";
+
+        updateMatrices(mClientWidth, mClientHeight);
+        Draw draw = mRayPicker.pick(mWvpMatrix, mClientWidth, mClientHeight,
+                x, mClientHeight - 1 - y, SELECTION_RECT_WIDTH, getSelectionLayerMask(), hit);
+        return draw != null ? draw.geometry : "";
+    }
+
+    /** Copies the world-view-projection matrix of the full view to {@code wvp}. */
+    void getWorldViewProjection(float[] wvp) {
+        updateMatrices(mClientWidth, mClientHeight);
+        System.arraycopy(mWvpMatrix, 0, wvp, 0, 16);
+    }
+
+    /** @return The CPU picker for the loaded layers. Can be used on any thread. */
+    RayPicker getRayPicker() {
+        return mRayPicker;
     }
 
     void drawBody() {
+        Gl gl = GlState.getGl();
         Interpolant.tweenAll(layerOpacityInterpolants);
+        evictLayers();
 
         updateMatrices(mClientWidth, mClientHeight);
 
-        GLES20.glUseProgram(mShaderWithLights);
+        GlState.useProgram(mShaderWithLights);
 
-        GLES20.glUniformMatrix4fv(mWorldViewProjectionLoc, 1, false, mWvpMatrix, 0);
-        GLES20.glUniformMatrix4fv(mWorldViewLoc, 1, false, mViewMatrix, 0);
+        GlState.uniformMatrix4fv(mWorldViewProjectionLoc, mWvpMatrix, 0);
+        GlState.uniformMatrix4fv(mWorldViewLoc, mViewMatrix, 0);
 
-        GLES20.glActiveTexture(0);
-        GLES20.glEnableVertexAttribArray(0);
-        GLES20.glEnableVertexAttribArray(1);
-        GLES20.glEnableVertexAttribArray(2);
+        GlState.activeTexture(Gl.GL_TEXTURE0);
+        GlState.enableVertexAttribArray(0);
+        GlState.enableVertexAttribArray(1);
+        GlState.enableVertexAttribArray(2);
 
-        GLES20.glViewport(0, 0, mClientWidth, mClientHeight);
-        GLES20.glEnable(GLES20.GL_CULL_FACE);
-        GLES20.glClearColor(1, 1, 1, 1);
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-        GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+        GlState.viewport(0, 0, mClientWidth, mClientHeight);
+        GlState.enable(Gl.GL_CULL_FACE);
+        GlState.clearColor(1, 1, 1, 1);
+        gl.glClear(Gl.GL_COLOR_BUFFER_BIT | Gl.GL_DEPTH_BUFFER_BIT);
+        GlState.enable(Gl.GL_DEPTH_TEST);
 
-        GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        GlState.blendFunc(Gl.GL_ONE, Gl.GL_ONE_MINUS_SRC_ALPHA);
 
         Layer skinLayer = mLayers[Layers.SKIN];
         if (Select.haveSelectedEntity()) {
-            String targetEntity = Select.getEntity();
+            int targetEntity = Select.getEntityId();
             List<Integer> targetLayers = new ArrayList<Integer>();
             List<Integer> otherLayers = new ArrayList<Integer>();
             for (int info : layerInfo.keySet()) {
                 mLayers[info].isVisibleTarget = false;
-                int targetLayerIndex = Select.getLayer();
-
-                // Skeleton and connective layers are conjoined.
-                if (info == targetLayerIndex||
-                        (targetLayerIndex == Layers.SKELETON && info == Layers.CONNECTIVE ||
-                         targetLayerIndex == Layers.CONNECTIVE && info == Layers.SKELETON)) {
+                if (isTargetLayer(info, Select.getLayer())) {
                     targetLayers.add(info);
                 } else {
                     otherLayers.add(info);
@@ -515,8 +839,8 @@ public class Render implements Layers.Listener, LayersLoader.Callback {
             }
 
             // Switch to transparenting layers.
-            GLES20.glEnable(GLES20.GL_BLEND);
-            GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+            GlState.enable(Gl.GL_BLEND);
+            GlState.blendFunc(Gl.GL_ONE, Gl.GL_ONE_MINUS_SRC_ALPHA);
 
             // We draw the layers in the same order they draw when there's
             // nothing selected to avoid snapping when switching between selection
@@ -536,7 +860,7 @@ public class Render implements Layers.Listener, LayersLoader.Callback {
                         float targetOpacity = targetLayer.opacity.getPresent();
                         targetOpacity += (1 - targetOpacity) * Select.getSelectedEntityOpacity();
                         prepareDraw(layer, targetOpacity);
-                        drawOneGeometryOnly(targetLayer, targetEntity);
+                        drawOneGeometryOnly(targetLayer, targetEntity, Select.getEntity());
 
                         // ... and then its layer
                         float targetLayerOpacity =
@@ -554,7 +878,7 @@ public class Render implements Layers.Listener, LayersLoader.Callback {
                 if (!isTarget)
                     layer.renderOpacity = 0;
             }
-            GLES20.glDisable(GLES20.GL_BLEND);
+            GlState.disable(Gl.GL_BLEND);
 
         } else if (skinLayer.opacity.getPresent() >= 0.95) {
             drawLayer(skinLayer, skinLayer.opacity.getPresent());
@@ -574,16 +898,30 @@ public class Render implements Layers.Listener, LayersLoader.Callback {
                 }
             }
 
+            OcclusionCuller.Result occlusion = updateOcclusion(opaqueLayers);
+
+            // The precomputed sets for the current camera.
+            Pvs pvs = getPvs();
+            int occluderType = opaqueLayers.isEmpty() ?
+                    -1 : opaqueLayers.get(opaqueLayers.size() - 1).type;
+            long[] visibleDraws = null;
+            if (pvs != null && occluderType >= 0) {
+                visibleDraws = pvs.getVisibleDraws(occluderType, Pvs.cellIndex(
+                        mNavigate.getTheta(), mNavigate.getHeight(), mNavigate.getZoom()));
+            }
+
             int lastLayer = 0;
-            GLES20.glDisable(GLES20.GL_BLEND);
+            GlState.disable(Gl.GL_BLEND);
             for (int ii = opaqueLayers.size() - 1; ii >= 0; --ii) {
                 Layer layer = opaqueLayers.get(ii);
-                drawLayer(layer, 1.0f);
+                long[] hidden = occlusion != null ? occlusion.hidden[layer.type] : null;
+                int drawBase = visibleDraws != null ? pvs.getDrawBase(occluderType, layer.type) : -1;
+                drawLayer(layer, 1.0f, hidden, drawBase >= 0 ? visibleDraws : null, drawBase);
                 lastLayer = layer.type;
             }
 
             if (transparentLayers.size() > 0) {
-                GLES20.glEnable(GLES20.GL_BLEND);
+                GlState.enable(Gl.GL_BLEND);
                 // This loop will run at most twice.
                 for (int ii = 0; ii < transparentLayers.size(); ++ii) {
                     Layer layer = transparentLayers.get(ii);
@@ -597,17 +935,100 @@ public class Render implements Layers.Listener, LayersLoader.Callback {
                         // connective and skeleton are rendered as one unit
                         // TODO: put them in a single layer
                         if (!connectiveAndSkeleton)
-                            GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT);
+                            gl.glClear(Gl.GL_DEPTH_BUFFER_BIT);
                     }
 
                     drawLayer(layer, layer.opacity.getPresent());
                     lastLayer = layer.type;
                 }
-                GLES20.glDisable(GLES20.GL_BLEND);
+                GlState.disable(Gl.GL_BLEND);
             }
         }
+
+        // Label draws with the default vertex array object.
+        if (mHasVertexArrays) GpuResources.bindVertexArray(0);
     }
 
+    // When more than one layer is opaque, the outermost opaque layer hides
+    // most of the inner ones. Returns which clusters of the inner opaque
+    // layers are hidden for the current camera, or null if that isn't known
+    // yet. In that case, it's computed in the background for the next frame.
+    private OcclusionCuller.Result updateOcclusion(List<Layer> opaqueLayers) {
+        if (opaqueLayers.size() < 2) return null;
+
+        Layer occluderLayer = opaqueLayers.get(opaqueLayers.size() - 1);
+        if (occluderLayer.occluder == null) return null;
+        for (Layer layer : opaqueLayers)
+            if (layer.drawGroups == null) return null;
+
+        if (mOcclusionCuller == null) {
+            mOcclusionCuller = new OcclusionCuller();
+            Thread thread = new Thread(mOcclusionCuller, "OcclusionCuller");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        OcclusionCuller.Result result =
+                mOcclusionCuller.getResult(mWvpMatrix, occluderLayer.type);
+        if (result == null) {
+            int[] innerLayers = new int[opaqueLayers.size() - 1];
+            DrawGroup[][] innerGroups = new DrawGroup[innerLayers.length][];
+            for (int i = 0; i < innerLayers.length; ++i) {
+                innerLayers[i] = opaqueLayers.get(i).type;
+                innerGroups[i] = opaqueLayers.get(i).drawGroups;
+            }
+            mOcclusionCuller.request(mWvpMatrix, occluderLayer.type, occluderLayer.occluder,
+                    innerLayers, innerGroups);
+            return null;
+        }
+
+        if (BodyActivity.DEVELOPER_MODE && result != mLastLoggedOcclusion) {
+            mLastLoggedOcclusion = result;
+            int numHidden = 0, numClusters = 0;
+            for (int i = 0; i < opaqueLayers.size() - 1; ++i) {
+                Layer layer = opaqueLayers.get(i);
+                numClusters += layer.numClusters;
+                for (long bits : result.hidden[layer.type])
+                    numHidden += Long.bitCount(bits);
+            }
+            mLogger.d("Occlusion culled " + numHidden + " of " + numClusters + " clusters");
+        }
+        return result;
+    }
+
+    // Returns the potentially visible sets, or null if they aren't built yet
+    // or don't apply to the current view.
+    private Pvs getPvs() {
+        if (mPvsBuilder == null) return null;
+        if (mClientWidth > Pvs.MAX_ASPECT * mClientHeight) return null;
+        return mPvsBuilder.getPvs();
+    }
+
+    // Starts building the potentially visible sets once all layers are loaded.
+    private void startPvsBuilder() {
+        if (mPvsBuilder != null || mCacheDir == null) return;
+
+        int[] layerOrder = new int[layerInfo.size()];
+        float[][] occluders = new float[Layers.NUM_LAYERS][];
+        DrawGroup[][] groups = new DrawGroup[Layers.NUM_LAYERS][];
+        int[] numDraws = new int[Layers.NUM_LAYERS];
+        int i = 0;
+        for (int info : layerInfo.keySet()) {
+            Layer layer = mLayers[info];
+            if (layer.drawGroups == null || layer.occluder == null) return;
+            layerOrder[i++] = info;
+            occluders[info] = layer.occluder;
+            groups[info] = layer.drawGroups;
+            numDraws[info] = layer.numDraws;
+        }
+
+        mPvsBuilder = new PvsBuilder(
+                new File(mCacheDir, "pvs"), layerOrder, occluders, groups, numDraws);
+        Thread thread = new Thread(mPvsBuilder, "PvsBuilder");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
 
     public float[] viewportCoords(float[] p) {
         float[] cameraMatrix = mWvpMatrix;
@@ -637,47 +1058,206 @@ public class Render implements Layers.Listener, LayersLoader.Callback {
         return result;
     }
 
-    public void initialize(Context context, BodyActivity ui) {
+    /**
+     * Sets how long a layer has to be invisible before its GPU resources may
+     * be evicted, see {@link #evictLayers}.
+     */
+    void setEvictionDelay(long delayMs) {
+        mEvictionDelayMs = delayMs;
+    }
+
+    /**
+     * Sets how many bytes of GPU resources the layers may hold before
+     * invisible ones are evicted, see {@link #evictLayers}.
+     */
+    void setGpuBudget(int bytes) {
+        mGpuBudget = bytes;
+    }
+
+    /**
+     * Sets up the renderer for a new GL context and has {@code host} load
+     * the layers.
+     */
+    public void initialize(Host host) {
+        mHost = host;
+        mCacheDir = host.getCacheDir();
+
+        initializeGl();
+
+        // Kick of load.
+        loadLayers();
+    }
+
+    private void initializeGl() {
+        Gl gl = GlState.getGl();
         Layers.addView(this);
+        for (Integer info : layerInfo.keySet()) {
+            if (mLayers[info] == null) mLayers[info] = initLayer(info);
+        }
+
+        // GL objects don't survive the loss of the context.
+        mSelectionSurface = null;
+        mGpuResources.contextLost();
+
+        String extensions = gl.glGetString(Gl.GL_EXTENSIONS);
+        mHasVertexArrays = extensions != null &&
+                extensions.contains("GL_OES_vertex_array_object") && gl.initVertexArrays();
+        if (BodyActivity.DEVELOPER_MODE) {
+            mLogger.i("Vertex array objects " + (mHasVertexArrays ? "enabled" : "not supported"));
+        }
+        mPickCache.clear();
 
         // Selection shader
         mSelectionShader = Programs.loadProgram(VERTEX_SHADER_SELECTION, FRAGMENT_SHADER_SELECTION);
-        GLES20.glBindAttribLocation(mSelectionShader, 0, "position");
-        GLES20.glBindAttribLocation(mSelectionShader, 1, "colorIndex");
-        GLES20.glLinkProgram(mSelectionShader);
+        gl.glBindAttribLocation(mSelectionShader, 0, "position");
+        gl.glBindAttribLocation(mSelectionShader, 1, "colorIndex");
+        gl.glLinkProgram(mSelectionShader);
         mSelectionWorldViewProjectionLoc =
-                GLES20.glGetUniformLocation(mSelectionShader, "worldViewProjection");
-        mColorScaleLoc = GLES20.glGetUniformLocation(mSelectionShader, "colorScale");
+                gl.glGetUniformLocation(mSelectionShader, "worldViewProjection");
+        mColorScaleLoc = gl.glGetUniformLocation(mSelectionShader, "colorScale");
 
         // Shader with lights
-        Log.i("Body", "Loading shader");
+        if (BodyActivity.DEVELOPER_MODE) mLogger.i("Loading shader");
         mShaderWithLights = Programs.loadProgram(VERTEX_SHADER_LIGHT, FRAGMENT_SHADER_LIGHT);
-        GLES20.glBindAttribLocation(mShaderWithLights, 0, "position");
-        GLES20.glBindAttribLocation(mShaderWithLights, 1, "normal");
-        GLES20.glBindAttribLocation(mShaderWithLights, 2, "texCoord");
-        GLES20.glLinkProgram(mShaderWithLights);
+        gl.glBindAttribLocation(mShaderWithLights, 0, "position");
+        gl.glBindAttribLocation(mShaderWithLights, 1, "normal");
+        gl.glBindAttribLocation(mShaderWithLights, 2, "texCoord");
+        gl.glLinkProgram(mShaderWithLights);
         mWorldViewProjectionLoc =
-                GLES20.glGetUniformLocation(mShaderWithLights, "worldViewProjection");
-        mWorldViewLoc = GLES20.glGetUniformLocation(mShaderWithLights, "worldView");
-        mOpacityLoc = GLES20.glGetUniformLocation(mShaderWithLights, "opacity");
-        mTextureSamplerLoc = GLES20.glGetUniformLocation(mShaderWithLights, "textureSampler");
-        GLES20.glReleaseShaderCompiler();
-
-        // Kick of load.
-        loadLayers(context, ui);
+                gl.glGetUniformLocation(mShaderWithLights, "worldViewProjection");
+        mWorldViewLoc = gl.glGetUniformLocation(mShaderWithLights, "worldView");
+        mOpacityLoc = gl.glGetUniformLocation(mShaderWithLights, "opacity");
+        mTextureSamplerLoc = gl.glGetUniformLocation(mShaderWithLights, "textureSampler");
+        gl.glReleaseShaderCompiler();
     }
 
     @Override
     public void opacitiesChanged() {
         float[] opacities = Layers.getOpacities();
         for (int i = 0; i < opacities.length; ++i) {
+            // evictLayers() brings the layer back if it was evicted. It
+            // runs on the GL thread, which owns the eviction state.
             mLayers[i].opacity.setFuture(opacities[i]);
         }
     }
 
+    // Skeleton and connective layers are conjoined.
+    private static boolean isTargetLayer(int info, int targetLayer) {
+        return info == targetLayer ||
+                targetLayer == Layers.SKELETON && info == Layers.CONNECTIVE ||
+                targetLayer == Layers.CONNECTIVE && info == Layers.SKELETON;
+    }
+
+    // Uploads the layers restoreLayer() has read back, brings back evicted
+    // layers that became visible, and evicts layers that have been invisible
+    // for a while if the layers take more GPU memory than the budget. At
+    // most one layer is evicted per frame.
+    private void evictLayers() {
+        synchronized (mRestores) {
+            for (Restore restore : mRestores)
+                finishRestore(restore);
+            mRestores.clear();
+        }
+
+        long now = System.nanoTime() / 1000000;
+        for (Layer layer : mLayers) {
+            if (layer == null || layer.drawGroups == null) continue;
+            boolean isVisible = layer.opacity.getPresent() > 0 || layer.opacity.getFuture() > 0 ||
+                    Select.haveSelectedEntity() && isTargetLayer(layer.type, Select.getLayer());
+            if (isVisible) {
+                layer.invisibleSince = 0;
+                if (layer.isEvicted) restoreLayer(layer);
+            } else if (layer.invisibleSince == 0) {
+                layer.invisibleSince = now;
+            }
+        }
+
+        int bytes = mGpuResources.getTotalBytes();
+        if (bytes > mGpuBudget) mIsEvicting = true;
+        if (bytes <= EVICTION_LOW_WATER * mGpuBudget) mIsEvicting = false;
+        if (!mIsEvicting) return;
+
+        Layer oldest = null;
+        for (Layer layer : mLayers) {
+            if (layer == null || !layer.canEvict || layer.isEvicted) continue;
+            if (layer.invisibleSince == 0 || now - layer.invisibleSince < mEvictionDelayMs)
+                continue;
+            if (oldest == null || layer.invisibleSince < oldest.invisibleSince) oldest = layer;
+        }
+        if (oldest == null) return;
+
+        if (BodyActivity.DEVELOPER_MODE) {
+            mLogger.i("Evicting layer " + oldest.type + ", " +
+                    mGpuResources.getLayerBytes(oldest.type) / 1024 + " kB");
+        }
+        mGpuResources.releaseLayer(oldest.type);
+        for (DrawGroup group : oldest.drawGroups) {
+            group.diffuseTexture = 0;
+            group.indexBuffer = 0;
+            group.vertexBuffer = 0;
+            group.colorBuffer = 0;
+            group.vertexArray = 0;
+            group.selectionVertexArray = 0;
+        }
+        oldest.isEvicted = true;
+    }
+
+    // Reads the buffers of an evicted layer back on a background thread.
+    // evictLayers() uploads them once they are read. Only call this on the
+    // GL thread.
+    private void restoreLayer(final Layer layer) {
+        if (layer.isRestoring) return;
+        layer.isRestoring = true;
+        final DrawGroup[] groups = layer.drawGroups;
+        final Host host = mHost;
+        Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    boolean isRead = false;
+                    try {
+                        isRead = host.readLayerBuffers(layer.type, groups);
+                    } catch (IOException e) {
+                        mLogger.e("Reading layer buffers: " + e);
+                    }
+                    synchronized (mRestores) {
+                        mRestores.add(new Restore(layer, groups, isRead));
+                    }
+                }}, "LayerRestore");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void finishRestore(Restore restore) {
+        Layer layer = restore.layer;
+        // The layer may have been loaded again in the meantime.
+        if (restore.groups != layer.drawGroups) return;
+        layer.isRestoring = false;
+        if (!restore.isRead) {
+            // The cache file is gone. Load all layers again, like after the
+            // loss of the GL context.
+            mLogger.w("Layer buffers of layer " + layer.type + " are gone, reloading");
+            layer.canEvict = false;
+            loadLayers();
+            return;
+        }
+        uploadLayer(layer);
+        layer.isEvicted = false;
+        if (BodyActivity.DEVELOPER_MODE) mLogger.i("Restored layer " + layer.type);
+    }
+
     static final class Draw {
         String geometry;
+        int entity;  // The id of |geometry|, see EntityIds, or EntityIds.NONE.
         int offset, count;
+
+        // If set, this draw is drawn as the reflection of that one's index
+        // range, see Mirrors.
+        Draw mirrorOf;
+        int selectionColor;
+
+        // Set when the layer is handed to the renderer.
+        DrawGroup group;
+        Draw nextOfEntity;  // The next draw of the same entity in the layer.
     }
 
     static final class DrawGroup {
@@ -685,20 +1265,37 @@ public class Render implements Layers.Listener, LayersLoader.Callback {
         public ShortBuffer indexBufferData;
         public ShortBuffer colorBufferData;
         public int numIndices;
+        public int numVertices;
         public int indexBuffer;
         public int vertexBuffer;
         public int colorBuffer;
+
+        // Vertex array objects for the lit and the selection pass, 0 without
+        // OES_vertex_array_object.
+        int vertexArray;
+        int selectionVertexArray;
+
         String texture;
         int diffuseTexture;
 
-        // |loadedDiffuseTexture| is used for dynamically generated textures,
-        // currently only one-color bitmaps. |loadedCompressedDiffuseTexture|
-        // is used for "normal" textures.
-        Bitmap loadedDiffuseTexture;
-        public ETC1Texture loadedCompressedDiffuseTexture;
+        // |loadedCompressedDiffuseTexture| is used for "normal" textures,
+        // |diffuseColor| for groups with a single color. The texture is ETC1
+        // data of |textureWidth| x |textureHeight| texels.
+        public ByteBuffer loadedCompressedDiffuseTexture;
+        public int textureWidth;
+        public int textureHeight;
 
         public float[] diffuseColor;
         public ArrayList<Draw> draws;
+
+        // Built at load time, used for frustum and backface culling.
+        Clusters clusters;
+
+        // The number of the first cluster of this group within its layer.
+        int clusterBase;
+
+        // The number of the first draw of this group within its layer.
+        int drawBase;
     }
 
     private static final class Layer {
@@ -708,6 +1305,23 @@ public class Render implements Layers.Listener, LayersLoader.Callback {
         public DrawGroup[] drawGroups;
         public float renderOpacity;
 
+        // Used for occlusion culling, see OcclusionCuller.
+        public float[] occluder;
+        public int numClusters;
+        public int numDraws;
+
+        // The first draw of every entity in the layer, indexed by entity id.
+        // Further draws of an entity are chained through Draw.nextOfEntity.
+        public Draw[] entityDraws;
+
+        // See evictLayers(). |invisibleSince| is 0 while the layer is
+        // visible. Only layers whose buffers are in a LayerBuffers file can
+        // be evicted.
+        public boolean canEvict;
+        public boolean isEvicted;
+        public boolean isRestoring;
+        public long invisibleSince;
+
         public Layer(int info) {
             this.type = info;
         }
@@ -716,30 +1330,79 @@ public class Render implements Layers.Listener, LayersLoader.Callback {
     @Override
     public void finishLayerLoad(LayersLoader.Results r, boolean isLoadDone) {
         Layer layer = mLayers[r.layerId];
+        // The layer's previous groups, if any, are replaced.
+        mGpuResources.releaseLayer(r.layerId);
         layer.drawGroups = r.groups;
-        this.mSelectionColorMap = r.selectionColorMap;
+        layer.occluder = r.occluder;
+        layer.canEvict = r.isSpilled;
+        layer.isEvicted = false;
+        layer.isRestoring = false;
+        layer.invisibleSince = 0;
+        mRayPicker.setLayer(layer.type, r.bvhs);
+        layer.numClusters = 0;
+        layer.numDraws = 0;
+        layer.entityDraws = new Draw[EntityIds.size()];
+        for (DrawGroup group : layer.drawGroups) {
+            group.clusterBase = layer.numClusters;
+            layer.numClusters += group.clusters.count;
+            group.drawBase = layer.numDraws;
+            layer.numDraws += group.draws.size();
+        }
+        for (int g = layer.drawGroups.length - 1; g >= 0; --g) {
+            DrawGroup group = layer.drawGroups[g];
+            for (int i = group.draws.size() - 1; i >= 0; --i) {
+                Draw draw = group.draws.get(i);
+                draw.group = group;
+                if (draw.entity == EntityIds.NONE) continue;
+                draw.nextOfEntity = layer.entityDraws[draw.entity];
+                layer.entityDraws[draw.entity] = draw;
+            }
+        }
+        if (mOcclusionCuller != null) mOcclusionCuller.reset();
+        this.mSelectionDraws = r.selectionDraws;
         this.mMaxColorIndex = r.maxColorIndex;
 
+        uploadLayer(layer);
+        if (BodyActivity.DEVELOPER_MODE) mGpuResources.logUsage();
+
+        if (isLoadDone) {
+            // Layers that the load didn't bring back are reported too.
+            for (int i = 0; i < Layers.NUM_LAYERS; ++i)
+                mGpuResources.checkReacquired(i);
+            startPvsBuilder();
+        }
+    }
+
+    // Uploads the CPU buffers and textures of the layer's groups, and drops
+    // them.
+    private void uploadLayer(Layer layer) {
         for (DrawGroup group : layer.drawGroups) {
             // TODO: maybe have a finer-grained callback so that not all layer textures
             // need to be in memory at once?
             if (group.loadedCompressedDiffuseTexture != null) {
-              group.diffuseTexture = Textures.loadTexture(group.loadedCompressedDiffuseTexture);
+              group.diffuseTexture = mGpuResources.acquireTexture(
+                      layer.type, group.texture.toLowerCase(), group.textureWidth,
+                      group.textureHeight, group.loadedCompressedDiffuseTexture);
               group.loadedCompressedDiffuseTexture = null;
             } else {
-              group.diffuseTexture = Textures.loadTexture(group.loadedDiffuseTexture);
-              group.loadedDiffuseTexture.recycle();
+              group.diffuseTexture = mGpuResources.acquireColorTexture(
+                      layer.type, group.diffuseColor);
             }
 
-            group.indexBuffer =
-                    createShortBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, group.indexBufferData);
+            group.indexBuffer = mGpuResources.acquireBuffer(
+                    layer.type, Gl.GL_ELEMENT_ARRAY_BUFFER, group.indexBufferData);
             group.indexBufferData = null;
 
-            group.vertexBuffer = createShortBuffer(GLES20.GL_ARRAY_BUFFER, group.vertexBufferData);
+            group.vertexBuffer = mGpuResources.acquireBuffer(
+                    layer.type, Gl.GL_ARRAY_BUFFER, group.vertexBufferData);
             group.vertexBufferData = null;
 
-            group.colorBuffer = createShortBuffer(GLES20.GL_ARRAY_BUFFER, group.colorBufferData);
+            group.colorBuffer = mGpuResources.acquireBuffer(
+                    layer.type, Gl.GL_ARRAY_BUFFER, group.colorBufferData);
             group.colorBufferData = null;
+
+            if (mHasVertexArrays) createVertexArrays(layer, group);
         }
+        mGpuResources.checkReacquired(layer.type);
     }
 }
@@ -0,0 +1,103 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body;
+
+/**
+ * Facets of the search terms, to scope a search to some layers or parts of
+ * the body: for every layer and every body region, a bit set of the search
+ * terms whose entity is in it. A term's entity is the first entity with
+ * that display name, the one a suggestion shows.
+ *
+ * Regions are coarse, by the center of the entity's bounding box. The model
+ * stands upright along y, feet at 0 and the top of the head at about 160,
+ * centered on x = 0.
+ */
+final class SearchFacets {
+
+    // Body regions. Ints instead of an enum, like Layers.
+    static final int HEAD_AND_NECK = 0;
+    static final int THORAX = 1;
+    static final int ABDOMEN = 2;
+    static final int PELVIS = 3;
+    static final int ARMS = 4;
+    static final int LEGS = 5;
+    static final int NUM_REGIONS = 6;
+
+    // Region boundaries, in model units.
+    private static final float NECK_Y = 137;  // Just above the clavicles.
+    private static final float DIAPHRAGM_Y = 115;
+    private static final float ILIAC_CREST_Y = 93;
+    private static final float HIP_Y = 75;  // Below the pubis.
+    private static final float SHOULDER_X = 14;  // Half the width of the chest.
+
+    private final long[][] mLayers = new long[Layers.NUM_LAYERS][];
+    private final long[][] mRegions = new long[NUM_REGIONS][];
+    private final int mNumTerms;
+
+    /**
+     * @param table The entity table of the search terms, see
+     *     {@link EntityTable#getSearchRow}.
+     */
+    SearchFacets(EntityTable table) {
+        mNumTerms = table.getNumSearchTerms();
+        int words = (mNumTerms + 63) >> 6;
+        for (int i = 0; i < mLayers.length; ++i) mLayers[i] = new long[words];
+        for (int i = 0; i < mRegions.length; ++i) mRegions[i] = new long[words];
+
+        for (int term = 0; term < mNumTerms; ++term) {
+            int row = table.getSearchRow(term);
+            int layer = table.getLayer(row);
+            if (layer >= 0 && layer < Layers.NUM_LAYERS)
+                mLayers[layer][term >> 6] |= 1L << term;
+            float x = (table.getBound(row, 0) + table.getBound(row, 3)) / 2;
+            float y = (table.getBound(row, 1) + table.getBound(row, 4)) / 2;
+            mRegions[getRegion(x, y)][term >> 6] |= 1L << term;
+        }
+    }
+
+    /** @return The body region around a point of the model. */
+    static int getRegion(float x, float y) {
+        if (y >= NECK_Y) return HEAD_AND_NECK;
+        if (y < HIP_Y) return LEGS;
+        if (Math.abs(x) >= SHOULDER_X) return ARMS;
+        if (y >= DIAPHRAGM_Y) return THORAX;
+        if (y >= ILIAC_CREST_Y) return ABDOMEN;
+        return PELVIS;
+    }
+
+    /**
+     * @param layerMask The layers to search, as a bit mask of layer ids.
+     * @param regionMask The body regions to search, as a bit mask.
+     * @return The search terms in one of the layers and one of the regions,
+     *     as a bit set: term {@code t} is bit {@code t & 63} of word
+     *     {@code t >> 6}.
+     */
+    long[] getTerms(int layerMask, int regionMask) {
+        long[] layers = union(mLayers, layerMask);
+        long[] regions = union(mRegions, regionMask);
+        for (int i = 0; i < layers.length; ++i)
+            layers[i] &= regions[i];
+        return layers;
+    }
+
+    private long[] union(long[][] facets, int mask) {
+        long[] result = new long[(mNumTerms + 63) >> 6];
+        for (int f = 0; f < facets.length; ++f) {
+            if ((mask & (1 << f)) == 0) continue;
+            for (int i = 0; i < result.length; ++i)
+                result[i] |= facets[f][i];
+        }
+        return result;
+    }
+}
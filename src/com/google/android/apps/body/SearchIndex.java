@@ -0,0 +1,711 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * An index over the search terms that finds the terms matched by the
+ * regular expression {@code "\\b" + Pattern.quote(query)} without running
+ * it against every term. Case is ignored, as with
+ * {@code Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE}: the terms are
+ * indexed and the queries searched in lower case.
+ *
+ * Such a match starts at a word boundary, so the index stores the suffix of
+ * every term at every word boundary, sorted. The suffixes that start with
+ * the query form one range of that order, which is found with two binary
+ * searches. Suffixes are stored as (term, offset) pairs, not as strings.
+ * A precomputed rank per suffix gives the best few matches of a range
+ * without looking at the rest (see {@link #findTop}).
+ *
+ * Word characters are letters, digits and '_', as in {@code Pattern}.
+ *
+ * For misspelled queries there is also a fuzzy search (see
+ * {@link #findFuzzy}) over a second sorted suffix array. It walks the
+ * suffixes in order like the paths of a trie, so suffixes with a common
+ * prefix share the rows of the edit distance computation, and whole ranges
+ * of suffixes are skipped once their common prefix is too far from the
+ * query.
+ */
+public final class SearchIndex {
+
+    static final int MAGIC = 0x53496478;  // "SIdx"
+    static final int VERSION = 2;  // 2: lower case suffixes.
+
+    private final String[] mTerms;
+
+    // The suffixes, sorted: the term and the offset of every suffix.
+    private final int[] mSuffixTerms;
+    private final int[] mSuffixOffsets;
+
+    // The rank of every suffix (see findTop()), as a sparse table for range
+    // minimum queries: mRanks[j][i] is the smallest rank of the suffixes i to
+    // i + 2^j - 1. mRankSuffixes maps ranks back to suffixes.
+    private final int[][] mRanks;
+    private final int[] mRankSuffixes;
+
+    // The lower case terms, which the suffixes point into. For the fuzzy
+    // search also the suffixes of those at word starts, sorted, with the
+    // length of the prefix every suffix shares with the one before it.
+    private final String[] mFolded;
+    private final int[] mFuzzyTerms;
+    private final int[] mFuzzyOffsets;
+    private final int[] mFuzzyShared;
+
+    /** Builds the index of {@code terms}. */
+    SearchIndex(List<String> terms) {
+        this(terms.toArray(new String[terms.size()]), null);
+    }
+
+    /**
+     * @param arrays The result of {@link #buildArrays}, or null to build them.
+     */
+    private SearchIndex(String[] terms, int[][] arrays) {
+        if (arrays == null) arrays = buildArrays(terms);
+        mTerms = terms;
+        mFolded = fold(terms);
+        mSuffixTerms = arrays[0];
+        mSuffixOffsets = arrays[1];
+        mFuzzyTerms = arrays[3];
+        mFuzzyOffsets = arrays[4];
+        mFuzzyShared = arrays[5];
+
+        int[] ranks = arrays[2];
+        int numSuffixes = ranks.length;
+        mRankSuffixes = new int[numSuffixes];
+        for (int i = 0; i < numSuffixes; ++i)
+            mRankSuffixes[ranks[i]] = i;
+        int levels = 1;
+        while ((1 << levels) <= numSuffixes) ++levels;
+        mRanks = new int[levels][];
+        mRanks[0] = ranks;
+        for (int j = 1; j < levels; ++j) {
+            int[] below = mRanks[j - 1];
+            mRanks[j] = new int[numSuffixes - (1 << j) + 1];
+            for (int i = 0; i < mRanks[j].length; ++i)
+                mRanks[j][i] = Math.min(below[i], below[i + (1 << (j - 1))]);
+        }
+    }
+
+    /**
+     * Writes the sorted arrays of the index of {@code terms}, so that
+     * {@link #read} doesn't have to sort. Used by tools/EntityTableCompiler.
+     *
+     * Layout, big endian:
+     * <pre>
+     * int magic, int version
+     * int number of terms, int terms.hashCode()
+     * int n, then int[n] x 3: suffix terms, suffix offsets, suffix ranks
+     * int n, then int[n] x 3: fuzzy suffix terms, offsets, shared lengths
+     * </pre>
+     */
+    public static void write(List<String> terms, DataOutputStream out) throws IOException {
+        int[][] arrays = buildArrays(terms.toArray(new String[terms.size()]));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(terms.size());
+        out.writeInt(terms.hashCode());
+        for (int i = 0; i < arrays.length; ++i) {
+            if (i % 3 == 0) out.writeInt(arrays[i].length);
+            for (int value : arrays[i])
+                out.writeInt(value);
+        }
+    }
+
+    /**
+     * Reads the index of {@code terms} written by {@link #write}.
+     *
+     * @throws IOException If {@code data} isn't an index of these terms.
+     */
+    static SearchIndex read(List<String> terms, ByteBuffer data) throws IOException {
+        try {
+            data.position(0);
+            if (data.getInt() != MAGIC || data.getInt() != VERSION)
+                throw new IOException("Not a search index, or wrong version");
+            if (data.getInt() != terms.size() || data.getInt() != terms.hashCode())
+                throw new IOException("Search index of other terms");
+            IntBuffer ints = data.asIntBuffer();
+            int[][] arrays = new int[6][];
+            int n = 0;
+            for (int i = 0; i < arrays.length; ++i) {
+                if (i % 3 == 0) n = ints.get();
+                arrays[i] = new int[n];
+                ints.get(arrays[i]);
+            }
+            if (ints.hasRemaining()) throw new IOException("Bad search index size");
+            return new SearchIndex(terms.toArray(new String[terms.size()]), arrays);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated search index");
+        }
+    }
+
+    /**
+     * Sorts the suffixes of {@code terms} and ranks them.
+     *
+     * @return The suffix terms and offsets, the suffix ranks, and the fuzzy
+     *     suffix terms, offsets and shared prefix lengths, in that order.
+     */
+    private static int[][] buildArrays(final String[] terms) {
+        final String[] folded = fold(terms);
+
+        int numSuffixes = 0;
+        for (String term : folded) {
+            for (int i = 0; i <= term.length(); ++i)
+                if (isBoundary(term, i)) ++numSuffixes;
+        }
+        Integer[] suffixes = new Integer[numSuffixes];
+        final int[] suffixTerms = new int[numSuffixes];
+        final int[] suffixOffsets = new int[numSuffixes];
+        int n = 0;
+        for (int t = 0; t < folded.length; ++t) {
+            for (int i = 0; i <= folded[t].length(); ++i) {
+                if (!isBoundary(folded[t], i)) continue;
+                suffixes[n] = n;
+                suffixTerms[n] = t;
+                suffixOffsets[n] = i;
+                ++n;
+            }
+        }
+        Arrays.sort(suffixes, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    String s = folded[suffixTerms[a]];
+                    String t = folded[suffixTerms[b]];
+                    int i = suffixOffsets[a], j = suffixOffsets[b];
+                    while (i < s.length() && j < t.length()) {
+                        int c = s.charAt(i++) - t.charAt(j++);
+                        if (c != 0) return c;
+                    }
+                    return (s.length() - i) - (t.length() - j);
+                }});
+
+        final int[] sortedTerms = new int[numSuffixes];
+        int[] sortedOffsets = new int[numSuffixes];
+        for (int i = 0; i < numSuffixes; ++i) {
+            sortedTerms[i] = suffixTerms[suffixes[i]];
+            sortedOffsets[i] = suffixOffsets[suffixes[i]];
+        }
+
+        // Rank the suffixes by the word the match starts in, then by the
+        // length of the term (shorter terms match more of it), then by term.
+        final int[] words = new int[numSuffixes];
+        Integer[] ranked = new Integer[numSuffixes];
+        for (int i = 0; i < numSuffixes; ++i) {
+            String term = terms[sortedTerms[i]];
+            for (int j = 0; j < sortedOffsets[i]; ++j)
+                if (isBoundary(term, j) && isWord(term.charAt(j))) ++words[i];
+            ranked[i] = i;
+        }
+        Arrays.sort(ranked, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    if (words[a] != words[b]) return words[a] - words[b];
+                    int c = terms[sortedTerms[a]].length() - terms[sortedTerms[b]].length();
+                    if (c != 0) return c;
+                    return sortedTerms[a] - sortedTerms[b];
+                }});
+        int[] ranks = new int[numSuffixes];
+        for (int r = 0; r < numSuffixes; ++r)
+            ranks[ranked[r]] = r;
+
+        // The word start suffixes of the lower case terms, sorted, with the
+        // length of the prefix that every one shares with the one before.
+        int numFuzzy = 0;
+        for (int t = 0; t < terms.length; ++t) {
+            for (int i = 0; i < folded[t].length(); ++i)
+                if (isFuzzyWordStart(folded[t], i)) ++numFuzzy;
+        }
+        Integer[] fuzzy = new Integer[numFuzzy];
+        final int[] fuzzyTerms = new int[numFuzzy];
+        final int[] fuzzyOffsets = new int[numFuzzy];
+        n = 0;
+        for (int t = 0; t < terms.length; ++t) {
+            for (int i = 0; i < folded[t].length(); ++i) {
+                if (!isFuzzyWordStart(folded[t], i)) continue;
+                fuzzy[n] = n;
+                fuzzyTerms[n] = t;
+                fuzzyOffsets[n] = i;
+                ++n;
+            }
+        }
+        Arrays.sort(fuzzy, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    String s = folded[fuzzyTerms[a]];
+                    String t = folded[fuzzyTerms[b]];
+                    int i = fuzzyOffsets[a], j = fuzzyOffsets[b];
+                    while (i < s.length() && j < t.length()) {
+                        int c = s.charAt(i++) - t.charAt(j++);
+                        if (c != 0) return c;
+                    }
+                    return (s.length() - i) - (t.length() - j);
+                }});
+
+        int[] sortedFuzzyTerms = new int[numFuzzy];
+        int[] sortedFuzzyOffsets = new int[numFuzzy];
+        int[] fuzzyShared = new int[numFuzzy];
+        for (int i = 0; i < numFuzzy; ++i) {
+            sortedFuzzyTerms[i] = fuzzyTerms[fuzzy[i]];
+            sortedFuzzyOffsets[i] = fuzzyOffsets[fuzzy[i]];
+            if (i == 0) continue;
+            String s = folded[sortedFuzzyTerms[i - 1]], t = folded[sortedFuzzyTerms[i]];
+            int j = sortedFuzzyOffsets[i - 1], k = sortedFuzzyOffsets[i];
+            int shared = 0;
+            while (j + shared < s.length() && k + shared < t.length() &&
+                    s.charAt(j + shared) == t.charAt(k + shared)) {
+                ++shared;
+            }
+            fuzzyShared[i] = shared;
+        }
+
+        return new int[][] { sortedTerms, sortedOffsets, ranks,
+                sortedFuzzyTerms, sortedFuzzyOffsets, fuzzyShared };
+    }
+
+    private static String[] fold(String[] terms) {
+        String[] folded = new String[terms.length];
+        for (int t = 0; t < terms.length; ++t)
+            folded[t] = terms[t].toLowerCase();
+        return folded;
+    }
+
+    private static boolean isWord(char c) {
+        return c == '_' || Character.isLetterOrDigit(c);
+    }
+
+    // Like \b: true if exactly one of the characters around position |i| is
+    // a word character.
+    private static boolean isBoundary(String s, int i) {
+        boolean before = i > 0 && isWord(s.charAt(i - 1));
+        boolean after = i < s.length() && isWord(s.charAt(i));
+        return before != after;
+    }
+
+    /**
+     * Compares the first {@code query.length()} characters of a suffix with
+     * {@code query}; 0 means the suffix starts with the query.
+     */
+    private int compareSuffix(int suffix, String query) {
+        String term = mFolded[mSuffixTerms[suffix]];
+        int offset = mSuffixOffsets[suffix];
+        int n = Math.min(term.length() - offset, query.length());
+        for (int i = 0; i < n; ++i) {
+            int c = term.charAt(offset + i) - query.charAt(i);
+            if (c != 0) return c;
+        }
+        return n < query.length() ? -1 : 0;
+    }
+
+    /**
+     * Finds the suffixes that start with {@code query}, which is in lower
+     * case.
+     *
+     * @param range The suffixes to search, the first one and the one after
+     *     the last. Receives the range of the ones that start with the query.
+     */
+    private void findRange(String query, int[] range) {
+        // The first suffix that isn't smaller than the query...
+        int low = range[0], high = range[1];
+        int last = high;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareSuffix(middle, query) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        range[0] = low;
+
+        // ... and the first one after that that doesn't start with it.
+        high = last;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareSuffix(middle, query) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        range[1] = low;
+    }
+
+    /**
+     * @return The indices of the terms that contain {@code query} at a word
+     *     boundary, in ascending order. The same terms in the same order as
+     *     matching {@code "\\b" + Pattern.quote(query)} against each term,
+     *     ignoring case.
+     */
+    int[] find(String query) {
+        int[] range = { 0, mSuffixTerms.length };
+        findRange(query.toLowerCase(), range);
+
+        // A term can match at several boundaries; a bit set removes
+        // duplicates and restores the term order.
+        long[] matches = new long[(mTerms.length + 63) >> 6];
+        int count = 0;
+        for (int i = range[0]; i < range[1]; ++i) {
+            int term = mSuffixTerms[i];
+            if ((matches[term >> 6] & (1L << term)) == 0) {
+                matches[term >> 6] |= 1L << term;
+                ++count;
+            }
+        }
+        int[] result = new int[count];
+        int r = 0;
+        for (int w = 0; w < matches.length; ++w) {
+            long bits = matches[w];
+            while (bits != 0) {
+                result[r++] = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+            }
+        }
+        return result;
+    }
+
+    // The smallest rank of the suffixes begin to end - 1.
+    private int minRank(int begin, int end) {
+        int j = 31 - Integer.numberOfLeadingZeros(end - begin);
+        return Math.min(mRanks[j][begin], mRanks[j][end - (1 << j)]);
+    }
+
+    /**
+     * Like {@link #find}, but ranked, and only the best {@code limit} terms.
+     * Terms whose match starts in an earlier word come first, then shorter
+     * terms, then the term order.
+     *
+     * The best match of the range of suffixes is found with a range minimum
+     * query, which splits the range in two around it. Repeating that with
+     * the part with the best match yields the matches best first, so this
+     * stops after about {@code limit} steps however many terms match.
+     *
+     * @param limit The maximum number of terms, or 0 for all.
+     */
+    int[] findTop(String query, int limit) {
+        int[] range = { 0, mSuffixTerms.length };
+        findRange(query.toLowerCase(), range);
+        return findTop(range[0], range[1], limit, null);
+    }
+
+    /**
+     * Like {@link #findTop(String, int)}, for the matches of a query.
+     *
+     * @param terms The terms to look for, as a bit set (see
+     *     {@link SearchFacets#getTerms}), or null for all.
+     */
+    int[] findTop(Matches matches, int limit, long[] terms) {
+        return findTop(matches.begin, matches.end, limit, terms);
+    }
+
+    private int[] findTop(int begin, int end, int limit, long[] terms) {
+        if (limit <= 0) limit = Integer.MAX_VALUE;
+
+        // Parts of the range, by their best rank.
+        PriorityQueue<int[]> parts = new PriorityQueue<int[]>(16, new Comparator<int[]>() {
+                @Override
+                public int compare(int[] a, int[] b) {
+                    return a[0] - b[0];
+                }});
+        if (begin < end)
+            parts.add(new int[] { minRank(begin, end), begin, end });
+
+        int[] result = new int[Math.min(limit, 16)];
+        int count = 0;
+        // A term can match at several boundaries; only its best one counts.
+        long[] found = new long[(mTerms.length + 63) >> 6];
+        while (count < limit && !parts.isEmpty()) {
+            int[] part = parts.poll();
+            int suffix = mRankSuffixes[part[0]];
+            int term = mSuffixTerms[suffix];
+            if (!contains(found, term) && (terms == null || contains(terms, term))) {
+                found[term >> 6] |= 1L << term;
+                if (count == result.length)
+                    result = Arrays.copyOf(result, Math.min(limit, 2 * count));
+                result[count++] = term;
+            }
+            if (part[1] < suffix)
+                parts.add(new int[] { minRank(part[1], suffix), part[1], suffix });
+            if (suffix + 1 < part[2])
+                parts.add(new int[] { minRank(suffix + 1, part[2]), suffix + 1, part[2] });
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    /**
+     * @return true if term {@code term} is in the bit set {@code terms}, see
+     *     {@link SearchFacets#getTerms}.
+     */
+    static boolean contains(long[] terms, int term) {
+        return (terms[term >> 6] & (1L << term)) != 0;
+    }
+
+    /**
+     * @return The largest number of edits {@link #findFuzzy} allows for a
+     *     query of {@code length} characters. Short queries aren't searched
+     *     fuzzily, almost everything is one edit away from them.
+     */
+    static int getMaxEdits(int length) {
+        if (length < 4) return 0;
+        if (length < 7) return 1;
+        if (length < 12) return 2;
+        return 3;
+    }
+
+    /**
+     * Finds the terms that contain a misspelling of {@code query} at the
+     * start of a word. Case is ignored, and '_' separates words.
+     *
+     * The distance of a term is the smallest number of edits (insertions,
+     * deletions, substitutions and swaps of adjacent characters) that turns
+     * the query into a substring of the term that starts at a word start.
+     * Terms within {@link #getMaxEdits} of the query are returned.
+     *
+     * @return The indices of the matching terms, closest first, and in term
+     *     order for the same distance.
+     */
+    int[] findFuzzy(String query) {
+        String folded = query.toLowerCase();
+        int m = folded.length();
+        int maxEdits = getMaxEdits(m);
+        if (maxEdits == 0) return new int[0];
+        int limit = maxEdits + 1;
+
+        // No match is longer than this, so deeper characters don't matter.
+        int maxDepth = m + maxEdits;
+
+        // columns[d] is the edit distance column after the first d characters
+        // of the current suffix: columns[d][i] is the distance between the
+        // first i characters of the query and those d characters, capped at
+        // |limit|. Only the band of rows within |maxEdits| of d is computed,
+        // the rows outside it are past the limit anyway; the row right above
+        // the band is set to the limit because the next column reads it.
+        // best[d] is the smallest distance of the whole query to any of the
+        // first 0 to d characters, and mins[d] the smallest value in columns[d].
+        int[][] columns = new int[maxDepth + 1][m + 1];
+        int[] best = new int[maxDepth + 1];
+        int[] mins = new int[maxDepth + 1];
+        for (int i = 0; i <= m; ++i) columns[0][i] = Math.min(i, limit);
+        best[0] = m <= maxEdits ? m : limit;
+
+        int[] distances = new int[mTerms.length];
+        Arrays.fill(distances, limit);
+        int depth = 0;  // Columns valid for the current suffix.
+        boolean pruned = false;  // The current suffix can't get closer.
+        for (int f = 0; f < mFuzzyTerms.length; ++f) {
+            String term = mFolded[mFuzzyTerms[f]];
+            int offset = mFuzzyOffsets[f];
+            int shared = Math.min(mFuzzyShared[f], maxDepth);
+            if (pruned && shared >= depth) {
+                // Same prefix as a suffix that was given up on: same result.
+            } else {
+                pruned = false;
+                depth = Math.min(depth, shared);
+                int end = Math.min(term.length() - offset, maxDepth);
+                while (depth < end) {
+                    int[] previous = columns[depth];
+                    int[] column = columns[depth + 1];
+                    char c = term.charAt(offset + depth);
+                    char lastC = depth > 0 ? term.charAt(offset + depth - 1) : 0;
+                    int low = Math.max(1, depth + 1 - maxEdits);
+                    int high = Math.min(m, depth + 1 + maxEdits);
+                    column[0] = Math.min(depth + 1, limit);
+                    column[low - 1] = low == 1 ? column[0] : limit;
+                    int columnMin = column[0];
+                    for (int i = low; i <= high; ++i) {
+                        char q = folded.charAt(i - 1);
+                        int d = previous[i - 1] + (q == c ? 0 : 1);
+                        d = Math.min(d, previous[i] + 1);
+                        d = Math.min(d, column[i - 1] + 1);
+                        if (i > 1 && depth > 0 && q == lastC && folded.charAt(i - 2) == c)
+                            d = Math.min(d, columns[depth - 1][i - 2] + 1);
+                        column[i] = Math.min(d, limit);
+                        columnMin = Math.min(columnMin, column[i]);
+                    }
+                    if (high < m) column[high + 1] = limit;
+                    ++depth;
+                    mins[depth] = columnMin;
+                    best[depth] = high == m ? Math.min(best[depth - 1], column[m]) :
+                            best[depth - 1];
+
+                    // Distances only grow once two columns in a row are past
+                    // the limit (a swap reaches back two columns).
+                    if (columnMin == limit && mins[depth - 1] == limit) {
+                        pruned = true;
+                        break;
+                    }
+                }
+            }
+            int t = mFuzzyTerms[f];
+            distances[t] = Math.min(distances[t], best[depth]);
+        }
+
+        return sortByDistance(null, distances, limit);
+    }
+
+    /**
+     * @param terms Ascending term indices, or null for all terms.
+     * @param distances The distance of every term in {@code terms}.
+     * @return The terms closer than {@code limit}, closest first; terms with
+     *     the same distance stay in order.
+     */
+    private static int[] sortByDistance(int[] terms, int[] distances, int limit) {
+        int[] counts = new int[limit + 1];
+        for (int distance : distances) ++counts[distance];
+        int[] starts = new int[limit + 1];
+        for (int d = 1; d <= limit; ++d) starts[d] = starts[d - 1] + counts[d - 1];
+        int[] result = new int[starts[limit]];
+        for (int i = 0; i < distances.length; ++i) {
+            if (distances[i] < limit)
+                result[starts[distances[i]]++] = terms != null ? terms[i] : i;
+        }
+        return result;
+    }
+
+    /**
+     * Like {@link #findFuzzy(String)}, but only looks at {@code candidates},
+     * the fuzzy matches of a prefix of {@code query} with the same
+     * {@link #getMaxEdits}: a term can't be closer to the query than to its
+     * prefix. Costs time in proportion to the number of candidates.
+     */
+    int[] findFuzzy(String query, int[] candidates) {
+        String folded = query.toLowerCase();
+        int maxEdits = getMaxEdits(folded.length());
+        if (maxEdits == 0) return new int[0];
+
+        int[] terms = candidates.clone();
+        Arrays.sort(terms);
+        int[] distances = new int[terms.length];
+        int[][] columns = new int[3][folded.length() + 1];
+        for (int i = 0; i < terms.length; ++i)
+            distances[i] = distance(folded, mFolded[terms[i]], maxEdits, columns);
+        return sortByDistance(terms, distances, maxEdits + 1);
+    }
+
+    /**
+     * The distance of {@link #findFuzzy} for one term: the edit distance
+     * between {@code query} and the closest substring of {@code term} that
+     * starts at a word start, or {@code maxEdits + 1} if that's more than
+     * {@code maxEdits}. The columns of the dynamic program are the term's
+     * characters; a match can start for free at a word start, and end
+     * anywhere.
+     *
+     * @param columns Scratch space: three arrays of {@code query.length() + 1}.
+     */
+    private static int distance(String query, String term, int maxEdits, int[][] columns) {
+        int m = query.length();
+        int limit = maxEdits + 1;
+        int[] before = columns[0], previous = columns[1], column = columns[2];
+        for (int i = 0; i <= m; ++i) previous[i] = Math.min(i, limit);
+        int best = previous[m];
+        for (int j = 1; j <= term.length(); ++j) {
+            char c = term.charAt(j - 1);
+            column[0] = isFuzzyWordStart(term, j) ? 0 : Math.min(previous[0] + 1, limit);
+            for (int i = 1; i <= m; ++i) {
+                char q = query.charAt(i - 1);
+                int d = previous[i - 1] + (q == c ? 0 : 1);
+                d = Math.min(d, previous[i] + 1);
+                d = Math.min(d, column[i - 1] + 1);
+                if (i > 1 && j > 1 && q == term.charAt(j - 2) && query.charAt(i - 2) == c)
+                    d = Math.min(d, before[i - 2] + 1);
+                column[i] = Math.min(d, limit);
+            }
+            best = Math.min(best, column[m]);
+            if (best == 0) break;
+            int[] tmp = before;
+            before = previous;
+            previous = column;
+            column = tmp;
+        }
+        return best;
+    }
+
+    /**
+     * The matches of a query, kept to search the next, longer query of
+     * search-as-you-type among them (see {@link #match}). The fuzzy matches
+     * are only searched when they are first needed.
+     */
+    static final class Matches {
+        final String query;
+        final int begin;  // The suffixes that start with the query.
+        final int end;
+
+        private final SearchIndex mIndex;
+        private Matches mPrevious;  // Fuzzy matches to refine, or null.
+        private int[] mFuzzy;
+
+        Matches(SearchIndex index, String query, int begin, int end, Matches previous) {
+            mIndex = index;
+            this.query = query;
+            this.begin = begin;
+            this.end = end;
+            mPrevious = previous;
+        }
+
+        /** @return The result of {@link SearchIndex#findFuzzy} for the query. */
+        synchronized int[] getFuzzy() {
+            if (mFuzzy == null) {
+                mFuzzy = mPrevious != null ?
+                        mIndex.findFuzzy(query, mPrevious.getFuzzy()) :
+                        mIndex.findFuzzy(query);
+                mPrevious = null;
+            }
+            return mFuzzy;
+        }
+    }
+
+    /**
+     * Finds the prefix matches of {@code query}, and prepares the fuzzy ones.
+     *
+     * @param previous The matches of an earlier query, or null. If that
+     *     query is a prefix of this one, only its matches are searched: the
+     *     suffixes that start with the query are part of the range of the
+     *     prefix, and the fuzzy matches are among the prefix's, unless the
+     *     query allows more edits.
+     */
+    Matches match(String query, Matches previous) {
+        query = query.toLowerCase();
+        int[] range = { 0, mSuffixTerms.length };
+        Matches refined = null;
+        if (previous != null && query.startsWith(previous.query)) {
+            range[0] = previous.begin;
+            range[1] = previous.end;
+            if (getMaxEdits(query.length()) == getMaxEdits(previous.query.length()))
+                refined = previous;
+        }
+        findRange(query, range);
+        return new Matches(this, query, range[0], range[1], refined);
+    }
+
+    private static boolean isFuzzyWordStart(String s, int i) {
+        return i == 0 || !Character.isLetterOrDigit(s.charAt(i - 1));
+    }
+
+    /** @return The number of terms. */
+    int size() {
+        return mTerms.length;
+    }
+
+    /** @return The term with index {@code index}. */
+    String getTerm(int index) {
+        return mTerms[index];
+    }
+}
@@ -20,6 +20,7 @@ import java.util.List;
 public class Select {
 
     private static String entity;
+    private static int entityId = EntityIds.NONE;
     private static int layer;
 
     // Opacity of the selected entity.
@@ -47,6 +48,7 @@ public class Select {
             // Check to see if selection has been deleted.
             if (entity != null && !haveSelectedEntity()) {
                 entity = null;
+                entityId = EntityIds.NONE;
             }
         }
 
@@ -61,6 +63,14 @@ public class Select {
         return entity;
     }
 
+    /**
+     * @return The id of the currently selected entity (see
+     *     {@code EntityIds}), or {@code EntityIds.NONE}.
+     */
+    public static int getEntityId() {
+        return entityId;
+    }
+
     /** @return The opacity of the selected entity. */
     public static float getSelectedEntityOpacity() {
         return entityOpacity.getPresent();
@@ -90,6 +100,7 @@ public class Select {
 
 
         Select.entity = entity;
+        Select.entityId = EntityIds.lookup(entity);
         Select.layer = info.layer;
 
         // Label.
@@ -0,0 +1,109 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body;
+
+import android.app.SearchManager;
+import android.database.AbstractCursor;
+import android.provider.BaseColumns;
+
+/**
+ * The search suggestions for a query, read from the {@code SearchIndex}
+ * when a column is read instead of being copied into a
+ * {@code MatrixCursor}. A row is the index of a search term; its intent
+ * data is the uri of its details.
+ */
+final class SuggestionCursor extends AbstractCursor {
+
+    private static final String[] COLUMNS = {
+        BaseColumns._ID,
+        SearchManager.SUGGEST_COLUMN_TEXT_1,
+        SearchManager.SUGGEST_COLUMN_INTENT_DATA,
+    };
+    private static final int COLUMN_ID = 0;
+    private static final int COLUMN_TEXT = 1;
+    private static final int COLUMN_INTENT_DATA = 2;
+
+    private static final String DETAILS_PREFIX = BodySearchProvider.CONTENT_URI + "/entities/";
+
+    private final SearchIndex mIndex;
+    private final int[] mIds;
+    private final int mCount;
+
+    /**
+     * @param ids The indices of the search terms; the first {@code count}
+     *     are the rows.
+     */
+    SuggestionCursor(SearchIndex index, int[] ids, int count) {
+        mIndex = index;
+        mIds = ids;
+        mCount = count;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return COLUMNS;
+    }
+
+    @Override
+    public String getString(int column) {
+        int id = mIds[mPos];
+        switch (column) {
+            case COLUMN_ID:
+                return Integer.toString(id);
+            case COLUMN_TEXT:
+                return mIndex.getTerm(id);
+            case COLUMN_INTENT_DATA:
+                return DETAILS_PREFIX + (id + 1);
+            default:
+                throw new IllegalArgumentException("Bad column " + column);
+        }
+    }
+
+    @Override
+    public long getLong(int column) {
+        if (column == COLUMN_ID) return mIds[mPos];
+        return Long.parseLong(getString(column));
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int)getLong(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short)getLong(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        if (column == COLUMN_ID) return mIds[mPos];
+        return Double.parseDouble(getString(column));
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float)getDouble(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return false;
+    }
+}
@@ -0,0 +1,403 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * A bounding volume hierarchy over the triangles of one {@code DrawGroup},
+ * used for picking with rays on the CPU.
+ *
+ * Positions are kept in the same fixed point format as in the vertex
+ * buffers (world units times 64), so node bounds are stored as shorts.
+ * The hierarchy is built on the loader thread and is immutable afterwards,
+ * so it can be queried from any thread.
+ */
+final class TriangleBvh {
+
+    /** Maximum number of triangles in a leaf. */
+    static final int LEAF_TRIANGLES = 16;
+
+    // Positions are stored as shorts, the shaders divide them by this.
+    static final float POSITION_SCALE = 64;
+
+    /** The draws of the group, in the order of the group's draw list. */
+    final Render.Draw[] draws;
+
+    // Three shorts per vertex.
+    private final short[] mPositions;
+
+    // Three indices per triangle, in leaf order.
+    private final short[] mIndices;
+
+    // The draw of each triangle, as an index into |draws|.
+    private final short[] mTriangleDraws;
+
+    // Six shorts per node: min x, y, z, max x, y, z.
+    private short[] mNodeBounds;
+
+    // Two ints per node. For inner nodes, the index of the second child (the
+    // first child directly follows its parent) and 0. For leaves, the first
+    // triangle and the number of triangles.
+    private int[] mNodeData;
+    private int mNumNodes;
+
+    private TriangleBvh(Render.Draw[] draws, short[] positions, int numTriangles) {
+        this.draws = draws;
+        mPositions = positions;
+        mIndices = new short[3 * numTriangles];
+        mTriangleDraws = new short[numTriangles];
+        // Median splits leave at least LEAF_TRIANGLES / 2 triangles per leaf.
+        int minLeaf = LEAF_TRIANGLES / 2;
+        int maxNodes = Math.max(1, 2 * ((numTriangles + minLeaf - 1) / minLeaf));
+        mNodeBounds = new short[6 * maxNodes];
+        mNodeData = new int[2 * maxNodes];
+    }
+
+    /**
+     * Builds the hierarchy for a draw group. Must be called while the group's
+     * vertex and index data is still on the CPU.
+     */
+    static TriangleBvh build(Render.DrawGroup group) {
+        ShortBuffer vertexData = group.vertexBufferData;
+        int numVertices = vertexData.capacity() / 8;  // 3 pos, 3 norm, 2 texcoord
+        short[] vertices = new short[vertexData.capacity()];
+        vertexData.get(vertices);
+        vertexData.rewind();
+        short[] positions = new short[3 * numVertices];
+        for (int v = 0; v < numVertices; ++v) {
+            positions[3 * v] = vertices[8 * v];
+            positions[3 * v + 1] = vertices[8 * v + 1];
+            positions[3 * v + 2] = vertices[8 * v + 2];
+        }
+
+        short[] indices = new short[group.indexBufferData.capacity()];
+        group.indexBufferData.get(indices);
+        group.indexBufferData.rewind();
+
+        Render.Draw[] draws = group.draws.toArray(new Render.Draw[group.draws.size()]);
+        int numTriangles = 0;
+        int numMirroredIndices = 0;
+        for (Render.Draw draw : draws) {
+            numTriangles += draw.count / 3;
+            if (draw.mirrorOf != null) numMirroredIndices += draw.count;
+        }
+
+        // Mirrored draws (see Mirrors) get reflected copies of the vertices
+        // they share with the draw they mirror, and their triangles are
+        // appended to |indices|, using the copies and wound counter-clockwise
+        // again. Mirrors only removed vertices that weren't shared, so the
+        // copies still fit the 16 bit indices.
+        int[] reflected = null;
+        if (numMirroredIndices > 0) {
+            reflected = new int[numVertices];
+            Arrays.fill(reflected, -1);
+            int numReflected = 0;
+            for (Render.Draw draw : draws) {
+                if (draw.mirrorOf == null) continue;
+                for (int i = draw.offset; i < draw.offset + draw.count; ++i) {
+                    int v = indices[i] & 0xffff;
+                    if (reflected[v] < 0) reflected[v] = numVertices + numReflected++;
+                }
+            }
+            positions = Arrays.copyOf(positions, 3 * (numVertices + numReflected));
+            for (int v = 0; v < numVertices; ++v) {
+                if (reflected[v] < 0) continue;
+                positions[3 * reflected[v]] = Mirrors.reflectX(positions[3 * v]);
+                positions[3 * reflected[v] + 1] = positions[3 * v + 1];
+                positions[3 * reflected[v] + 2] = positions[3 * v + 2];
+            }
+            indices = Arrays.copyOf(indices, indices.length + numMirroredIndices);
+        }
+
+        // Triangles are identified by the index of their first index, and
+        // their draw.
+        int[] triangleStarts = new int[numTriangles];
+        short[] triangleDraws = new short[numTriangles];
+        int t = 0;
+        int appended = group.indexBufferData.capacity();
+        for (int d = 0; d < draws.length; ++d) {
+            for (int i = 0; i + 2 < draws[d].count; i += 3) {
+                int start = draws[d].offset + i;
+                if (draws[d].mirrorOf != null) {
+                    indices[appended] = (short)reflected[indices[start] & 0xffff];
+                    indices[appended + 1] = (short)reflected[indices[start + 2] & 0xffff];
+                    indices[appended + 2] = (short)reflected[indices[start + 1] & 0xffff];
+                    start = appended;
+                    appended += 3;
+                }
+                triangleStarts[t] = start;
+                triangleDraws[t] = (short)d;
+                ++t;
+            }
+        }
+
+        TriangleBvh bvh = new TriangleBvh(draws, positions, numTriangles);
+
+        // Sort keys: centroid coordinate (times 3, shifted to be positive)
+        // in the high bits, triangle number in the low bits.
+        long[] keys = new long[numTriangles];
+        int[] order = new int[numTriangles];
+        for (int i = 0; i < numTriangles; ++i)
+            order[i] = i;
+        bvh.buildNode(0, numTriangles, order, keys, triangleStarts, indices);
+
+        for (int i = 0; i < numTriangles; ++i) {
+            int start = triangleStarts[order[i]];
+            bvh.mIndices[3 * i] = indices[start];
+            bvh.mIndices[3 * i + 1] = indices[start + 1];
+            bvh.mIndices[3 * i + 2] = indices[start + 2];
+            bvh.mTriangleDraws[i] = triangleDraws[order[i]];
+        }
+        bvh.mNodeBounds = Arrays.copyOf(bvh.mNodeBounds, 6 * bvh.mNumNodes);
+        bvh.mNodeData = Arrays.copyOf(bvh.mNodeData, 2 * bvh.mNumNodes);
+        return bvh;
+    }
+
+    // Builds the node for the triangles order[begin, end) and its children,
+    // reordering |order| so that every leaf's triangles are contiguous.
+    private int buildNode(int begin, int end, int[] order, long[] keys,
+            int[] triangleStarts, short[] indices) {
+        int node = mNumNodes++;
+
+        int[] min = { Short.MAX_VALUE, Short.MAX_VALUE, Short.MAX_VALUE };
+        int[] max = { Short.MIN_VALUE, Short.MIN_VALUE, Short.MIN_VALUE };
+        int[] centroidMin = { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE };
+        int[] centroidMax = { Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE };
+        for (int i = begin; i < end; ++i) {
+            int start = triangleStarts[order[i]];
+            for (int axis = 0; axis < 3; ++axis) {
+                int sum = 0;
+                for (int v = 0; v < 3; ++v) {
+                    int p = mPositions[3 * (indices[start + v] & 0xffff) + axis];
+                    min[axis] = Math.min(min[axis], p);
+                    max[axis] = Math.max(max[axis], p);
+                    sum += p;
+                }
+                centroidMin[axis] = Math.min(centroidMin[axis], sum);
+                centroidMax[axis] = Math.max(centroidMax[axis], sum);
+            }
+        }
+        for (int axis = 0; axis < 3; ++axis) {
+            mNodeBounds[6 * node + axis] = (short)min[axis];
+            mNodeBounds[6 * node + 3 + axis] = (short)max[axis];
+        }
+
+        int count = end - begin;
+        int axis = 0;
+        for (int a = 1; a < 3; ++a) {
+            if (centroidMax[a] - centroidMin[a] > centroidMax[axis] - centroidMin[axis])
+                axis = a;
+        }
+        if (count <= LEAF_TRIANGLES || centroidMax[axis] == centroidMin[axis]) {
+            mNodeData[2 * node] = begin;
+            mNodeData[2 * node + 1] = count;
+            return node;
+        }
+
+        // Median split along the axis with the largest centroid extent.
+        for (int i = begin; i < end; ++i) {
+            int start = triangleStarts[order[i]];
+            long sum = 0;
+            for (int v = 0; v < 3; ++v)
+                sum += mPositions[3 * (indices[start + v] & 0xffff) + axis];
+            keys[i] = ((sum - centroidMin[axis]) << 32) | order[i];
+        }
+        Arrays.sort(keys, begin, end);
+        for (int i = begin; i < end; ++i)
+            order[i] = (int)keys[i];
+
+        int middle = begin + count / 2;
+        buildNode(begin, middle, order, keys, triangleStarts, indices);
+        mNodeData[2 * node] = buildNode(middle, end, order, keys, triangleStarts, indices);
+        mNodeData[2 * node + 1] = 0;
+        return node;
+    }
+
+    /**
+     * Finds the closest front-facing triangle hit by the ray
+     * {@code origin + t * dir} with {@code 0 <= t < hit.t}. Origin and
+     * direction are in world units.
+     *
+     * @return true if a hit was found. In that case, {@code hit} is updated.
+     */
+    boolean intersect(float[] origin, float[] dir, Hit hit) {
+        if (mNumNodes == 0 || mIndices.length == 0) return false;
+
+        // Work in the fixed point units of the positions; t is unchanged.
+        float ox = origin[0] * POSITION_SCALE;
+        float oy = origin[1] * POSITION_SCALE;
+        float oz = origin[2] * POSITION_SCALE;
+        float dx = dir[0] * POSITION_SCALE;
+        float dy = dir[1] * POSITION_SCALE;
+        float dz = dir[2] * POSITION_SCALE;
+        float idx = 1 / dx, idy = 1 / dy, idz = 1 / dz;
+
+        boolean found = false;
+        int[] stack = new int[64];
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+        while (stackSize > 0) {
+            int node = stack[--stackSize];
+            if (!intersectsBox(node, ox, oy, oz, idx, idy, idz, hit.t)) continue;
+
+            int count = mNodeData[2 * node + 1];
+            if (count == 0) {
+                stack[stackSize++] = mNodeData[2 * node];
+                stack[stackSize++] = node + 1;
+                continue;
+            }
+
+            int first = mNodeData[2 * node];
+            for (int tri = first; tri < first + count; ++tri) {
+                float t = intersectTriangle(tri, ox, oy, oz, dx, dy, dz);
+                if (t >= 0 && t < hit.t) {
+                    hit.t = t;
+                    hit.bvh = this;
+                    hit.draw = mTriangleDraws[tri];
+                    hit.node = node;
+                    found = true;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Like {@link #intersect}, but only tests the triangles of leaf
+     * {@code node}. Testing the leaf of a previous hit first gives the full
+     * traversal a tight upper bound for t, so it can skip most nodes.
+     */
+    boolean intersectLeaf(int node, float[] origin, float[] dir, Hit hit) {
+        float ox = origin[0] * POSITION_SCALE;
+        float oy = origin[1] * POSITION_SCALE;
+        float oz = origin[2] * POSITION_SCALE;
+        float dx = dir[0] * POSITION_SCALE;
+        float dy = dir[1] * POSITION_SCALE;
+        float dz = dir[2] * POSITION_SCALE;
+
+        boolean found = false;
+        int first = mNodeData[2 * node];
+        int count = mNodeData[2 * node + 1];
+        for (int tri = first; tri < first + count; ++tri) {
+            float t = intersectTriangle(tri, ox, oy, oz, dx, dy, dz);
+            if (t >= 0 && t < hit.t) {
+                hit.t = t;
+                hit.bvh = this;
+                hit.draw = mTriangleDraws[tri];
+                hit.node = node;
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    /** @return true if the ray hits the group's bounding box before {@code tMax}. */
+    boolean intersectsBounds(float[] origin, float[] dir, float tMax) {
+        if (mNumNodes == 0) return false;
+        return intersectsBox(0, origin[0] * POSITION_SCALE, origin[1] * POSITION_SCALE,
+                origin[2] * POSITION_SCALE, 1 / (dir[0] * POSITION_SCALE),
+                1 / (dir[1] * POSITION_SCALE), 1 / (dir[2] * POSITION_SCALE), tMax);
+    }
+
+    private boolean intersectsBox(int node, float ox, float oy, float oz,
+            float idx, float idy, float idz, float tMax) {
+        int b = 6 * node;
+        float t0 = (mNodeBounds[b] - ox) * idx;
+        float t1 = (mNodeBounds[b + 3] - ox) * idx;
+        float tNear = Math.min(t0, t1), tFar = Math.max(t0, t1);
+        t0 = (mNodeBounds[b + 1] - oy) * idy;
+        t1 = (mNodeBounds[b + 4] - oy) * idy;
+        tNear = Math.max(tNear, Math.min(t0, t1));
+        tFar = Math.min(tFar, Math.max(t0, t1));
+        t0 = (mNodeBounds[b + 2] - oz) * idz;
+        t1 = (mNodeBounds[b + 5] - oz) * idz;
+        tNear = Math.max(tNear, Math.min(t0, t1));
+        tFar = Math.min(tFar, Math.max(t0, t1));
+        return tNear <= tFar && tFar >= 0 && tNear < tMax;
+    }
+
+    // Moeller-Trumbore. Returns the ray parameter of the hit, or -1 if the
+    // ray misses the triangle or hits its back face (GL culls those).
+    private float intersectTriangle(int tri, float ox, float oy, float oz,
+            float dx, float dy, float dz) {
+        int v0 = 3 * (mIndices[3 * tri] & 0xffff);
+        int v1 = 3 * (mIndices[3 * tri + 1] & 0xffff);
+        int v2 = 3 * (mIndices[3 * tri + 2] & 0xffff);
+        float e1x = mPositions[v1] - mPositions[v0];
+        float e1y = mPositions[v1 + 1] - mPositions[v0 + 1];
+        float e1z = mPositions[v1 + 2] - mPositions[v0 + 2];
+        float e2x = mPositions[v2] - mPositions[v0];
+        float e2y = mPositions[v2 + 1] - mPositions[v0 + 1];
+        float e2z = mPositions[v2 + 2] - mPositions[v0 + 2];
+
+        float px = dy * e2z - dz * e2y;
+        float py = dz * e2x - dx * e2z;
+        float pz = dx * e2y - dy * e2x;
+        float det = e1x * px + e1y * py + e1z * pz;
+        // Front faces are counter-clockwise, for them det is positive.
+        if (det <= 0) return -1;
+
+        float sx = ox - mPositions[v0];
+        float sy = oy - mPositions[v0 + 1];
+        float sz = oz - mPositions[v0 + 2];
+        float u = sx * px + sy * py + sz * pz;
+        if (u < 0 || u > det) return -1;
+
+        float qx = sy * e1z - sz * e1y;
+        float qy = sz * e1x - sx * e1z;
+        float qz = sx * e1y - sy * e1x;
+        float v = dx * qx + dy * qy + dz * qz;
+        if (v < 0 || u + v > det) return -1;
+
+        float t = (e2x * qx + e2y * qy + e2z * qz) / det;
+        return t >= 0 ? t : -1;
+    }
+
+    /** The closest hit found so far. */
+    static final class Hit {
+        /** Ray parameter of the hit. Only hits closer than this are reported. */
+        float t;
+        TriangleBvh bvh;
+        int draw;
+
+        /** The leaf containing the hit triangle. */
+        int node;
+
+        /** The layer of {@code bvh}. Set by {@code RayPicker}. */
+        int layer;
+
+        void reset(float tMax) {
+            t = tMax;
+            bvh = null;
+            draw = -1;
+            node = -1;
+            layer = -1;
+        }
+
+        void set(Hit other) {
+            t = other.t;
+            bvh = other.bvh;
+            draw = other.draw;
+            node = other.node;
+            layer = other.layer;
+        }
+
+        /** @return The hit draw's geometry, or null. */
+        Render.Draw getDraw() {
+            return bvh != null ? bvh.draws[draw] : null;
+        }
+    }
+}
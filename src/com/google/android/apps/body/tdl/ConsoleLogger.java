@@ -0,0 +1,33 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body.tdl;
+
+/** Prints log messages to System.err, for running without android.jar. */
+public final class ConsoleLogger implements Logger {
+    public void d(String message) {
+        System.err.println("D " + message);
+    }
+
+    public void i(String message) {
+        System.err.println("I " + message);
+    }
+
+    public void w(String message) {
+        System.err.println("W " + message);
+    }
+
+    public void e(String message) {
+        System.err.println("E " + message);
+    }
+}
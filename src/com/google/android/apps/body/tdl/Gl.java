@@ -0,0 +1,144 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body.tdl;
+
+import java.nio.Buffer;
+
+/**
+ * The GL ES 2.0 functions the renderer uses, so that it can run on other
+ * backends than the device's GL, see {@link GlState#setGl}. The gl* methods
+ * behave like those of {@code android.opengl.GLES20}, and the constants
+ * below have its values. Only java types cross this interface, so neither
+ * the renderer nor a backend needs android.jar.
+ */
+public interface Gl {
+    int GL_DEPTH_BUFFER_BIT = 0x0100;
+    int GL_COLOR_BUFFER_BIT = 0x4000;
+
+    int GL_TRIANGLES = 0x0004;
+    int GL_TRIANGLE_STRIP = 0x0005;
+
+    int GL_ONE = 1;
+    int GL_ONE_MINUS_SRC_ALPHA = 0x0303;
+
+    int GL_CW = 0x0900;
+    int GL_CCW = 0x0901;
+
+    int GL_CULL_FACE = 0x0B44;
+    int GL_DEPTH_TEST = 0x0B71;
+    int GL_BLEND = 0x0BE2;
+    int GL_SCISSOR_TEST = 0x0C11;
+    int GL_TEXTURE_2D = 0x0DE1;
+
+    int GL_UNSIGNED_BYTE = 0x1401;
+    int GL_SHORT = 0x1402;
+    int GL_UNSIGNED_SHORT = 0x1403;
+    int GL_RGBA = 0x1908;
+
+    int GL_EXTENSIONS = 0x1F03;
+
+    int GL_LINEAR = 0x2601;
+    int GL_TEXTURE_MAG_FILTER = 0x2800;
+    int GL_TEXTURE_MIN_FILTER = 0x2801;
+    int GL_TEXTURE_WRAP_S = 0x2802;
+    int GL_TEXTURE_WRAP_T = 0x2803;
+    int GL_REPEAT = 0x2901;
+    int GL_CLAMP_TO_EDGE = 0x812F;
+    int GL_TEXTURE0 = 0x84C0;
+
+    int GL_ARRAY_BUFFER = 0x8892;
+    int GL_ELEMENT_ARRAY_BUFFER = 0x8893;
+    int GL_STATIC_DRAW = 0x88E4;
+
+    int GL_FRAGMENT_SHADER = 0x8B30;
+    int GL_VERTEX_SHADER = 0x8B31;
+    int GL_COMPILE_STATUS = 0x8B81;
+    int GL_LINK_STATUS = 0x8B82;
+
+    int GL_DEPTH_COMPONENT16 = 0x81A5;
+    int GL_FRAMEBUFFER_COMPLETE = 0x8CD5;
+    int GL_COLOR_ATTACHMENT0 = 0x8CE0;
+    int GL_DEPTH_ATTACHMENT = 0x8D00;
+    int GL_FRAMEBUFFER = 0x8D40;
+    int GL_RENDERBUFFER = 0x8D41;
+
+    void glActiveTexture(int texture);
+    void glAttachShader(int program, int shader);
+    void glBindAttribLocation(int program, int index, String name);
+    void glBindBuffer(int target, int buffer);
+    void glBindFramebuffer(int target, int framebuffer);
+    void glBindRenderbuffer(int target, int renderbuffer);
+    void glBindTexture(int target, int texture);
+    void glBlendFunc(int sfactor, int dfactor);
+    void glBufferData(int target, int size, Buffer data, int usage);
+    int glCheckFramebufferStatus(int target);
+    void glClear(int mask);
+    void glClearColor(float red, float green, float blue, float alpha);
+    void glCompileShader(int shader);
+    void glCompressedTexImage2D(int target, int level, int internalformat, int width,
+            int height, int border, int imageSize, Buffer data);
+    int glCreateProgram();
+    int glCreateShader(int type);
+    void glDeleteBuffers(int n, int[] buffers, int offset);
+    void glDeleteFramebuffers(int n, int[] framebuffers, int offset);
+    void glDeleteRenderbuffers(int n, int[] renderbuffers, int offset);
+    void glDeleteTextures(int n, int[] textures, int offset);
+    void glDisable(int cap);
+    void glDisableVertexAttribArray(int index);
+    void glDrawArrays(int mode, int first, int count);
+    void glDrawElements(int mode, int count, int type, int offset);
+    void glEnable(int cap);
+    void glEnableVertexAttribArray(int index);
+    void glFramebufferRenderbuffer(
+            int target, int attachment, int renderbuffertarget, int renderbuffer);
+    void glFramebufferTexture2D(
+            int target, int attachment, int textarget, int texture, int level);
+    void glFrontFace(int mode);
+    void glGenBuffers(int n, int[] buffers, int offset);
+    void glGenFramebuffers(int n, int[] framebuffers, int offset);
+    void glGenRenderbuffers(int n, int[] renderbuffers, int offset);
+    void glGenTextures(int n, int[] textures, int offset);
+    String glGetProgramInfoLog(int program);
+    void glGetProgramiv(int program, int pname, int[] params, int offset);
+    String glGetShaderInfoLog(int shader);
+    void glGetShaderiv(int shader, int pname, int[] params, int offset);
+    String glGetString(int name);
+    int glGetUniformLocation(int program, String name);
+    void glLinkProgram(int program);
+    void glReadPixels(int x, int y, int width, int height, int format, int type, Buffer pixels);
+    void glReleaseShaderCompiler();
+    void glRenderbufferStorage(int target, int internalformat, int width, int height);
+    void glShaderSource(int shader, String string);
+    void glTexImage2D(int target, int level, int internalformat, int width, int height,
+            int border, int format, int type, Buffer pixels);
+    void glTexParameterf(int target, int pname, float param);
+    void glTexParameteri(int target, int pname, int param);
+    void glUniform1f(int location, float x);
+    void glUniform1i(int location, int x);
+    void glUniform4f(int location, float x, float y, float z, float w);
+    void glUniformMatrix4fv(
+            int location, int count, boolean transpose, float[] value, int offset);
+    void glUseProgram(int program);
+    void glVertexAttrib1f(int index, float x);
+    void glVertexAttribPointer(
+            int index, int size, int type, boolean normalized, int stride, int offset);
+    void glViewport(int x, int y, int width, int height);
+
+    // OES_vertex_array_object. Only call the others if initVertexArrays()
+    // returned true and the context has the extension.
+    boolean initVertexArrays();
+    int genVertexArray();
+    void bindVertexArray(int vertexArray);
+    void deleteVertexArray(int vertexArray);
+}
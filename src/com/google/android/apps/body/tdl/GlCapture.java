@@ -0,0 +1,283 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body.tdl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Writes a capture of the calls made to a {@link Gl}, see
+ * {@link InstrumentedGl#startCapture} and {@link GlReplay}.
+ *
+ * A capture starts with MAGIC and VERSION, followed by one record per call:
+ * its opcode and its arguments, big-endian, as DataOutputStream writes them.
+ * END_FRAME follows every frame. Object names and uniform locations are
+ * those of the capturing context; the calls that return them record the
+ * result. Write errors are remembered and reported by {@link #close}.
+ */
+final class GlCapture {
+
+    static final int MAGIC = 0x676c6361;  // "glca"
+    static final int VERSION = 2;
+
+    // Opcodes, one per Gl method.
+    static final int END_FRAME = 0;
+    static final int ACTIVE_TEXTURE = 1;
+    static final int ATTACH_SHADER = 2;
+    static final int BIND_ATTRIB_LOCATION = 3;
+    static final int BIND_BUFFER = 4;
+    static final int BIND_FRAMEBUFFER = 5;
+    static final int BIND_RENDERBUFFER = 6;
+    static final int BIND_TEXTURE = 7;
+    static final int BLEND_FUNC = 8;
+    static final int BUFFER_DATA = 9;
+    static final int CHECK_FRAMEBUFFER_STATUS = 10;
+    static final int CLEAR = 11;
+    static final int CLEAR_COLOR = 12;
+    static final int COMPILE_SHADER = 13;
+    static final int CREATE_PROGRAM = 14;
+    static final int CREATE_SHADER = 15;
+    static final int DELETE_BUFFERS = 16;
+    static final int DELETE_FRAMEBUFFERS = 17;
+    static final int DELETE_RENDERBUFFERS = 18;
+    static final int DELETE_TEXTURES = 19;
+    static final int DISABLE = 20;
+    static final int DISABLE_VERTEX_ATTRIB_ARRAY = 21;
+    static final int DRAW_ARRAYS = 22;
+    static final int DRAW_ELEMENTS = 23;
+    static final int ENABLE = 24;
+    static final int ENABLE_VERTEX_ATTRIB_ARRAY = 25;
+    static final int FRAMEBUFFER_RENDERBUFFER = 26;
+    static final int FRAMEBUFFER_TEXTURE_2D = 27;
+    static final int FRONT_FACE = 28;
+    static final int GEN_BUFFERS = 29;
+    static final int GEN_FRAMEBUFFERS = 30;
+    static final int GEN_RENDERBUFFERS = 31;
+    static final int GEN_TEXTURES = 32;
+    static final int GET_PROGRAM_INFO_LOG = 33;
+    static final int GET_PROGRAMIV = 34;
+    static final int GET_SHADER_INFO_LOG = 35;
+    static final int GET_SHADERIV = 36;
+    static final int GET_STRING = 37;
+    static final int GET_UNIFORM_LOCATION = 38;
+    static final int LINK_PROGRAM = 39;
+    static final int READ_PIXELS = 40;
+    static final int RELEASE_SHADER_COMPILER = 41;
+    static final int RENDERBUFFER_STORAGE = 42;
+    static final int SHADER_SOURCE = 43;
+    static final int TEX_IMAGE_2D = 44;
+    static final int TEX_PARAMETERF = 45;
+    static final int TEX_PARAMETERI = 46;
+    static final int UNIFORM_1F = 47;
+    static final int UNIFORM_1I = 48;
+    static final int UNIFORM_4F = 49;
+    static final int UNIFORM_MATRIX_4FV = 50;
+    static final int USE_PROGRAM = 51;
+    static final int VERTEX_ATTRIB_1F = 52;
+    static final int VERTEX_ATTRIB_POINTER = 53;
+    static final int VIEWPORT = 54;
+    static final int COMPRESSED_TEX_IMAGE_2D = 55;
+    static final int INIT_VERTEX_ARRAYS = 56;
+    static final int GEN_VERTEX_ARRAY = 57;
+    static final int BIND_VERTEX_ARRAY = 58;
+    static final int DELETE_VERTEX_ARRAY = 59;
+
+    // Element types of buffer arguments.
+    private static final int NO_BUFFER = 0;
+    private static final int BYTES = 1;
+    private static final int SHORTS = 2;
+    private static final int FLOATS = 3;
+
+    private final DataOutputStream mOut;
+    private IOException mError;
+
+    GlCapture(OutputStream out) {
+        mOut = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        putInt(MAGIC).putInt(VERSION);
+    }
+
+    GlCapture op(int opcode) {
+        try {
+            mOut.writeByte(opcode);
+        } catch (IOException e) {
+            fail(e);
+        }
+        return this;
+    }
+
+    GlCapture putInt(int value) {
+        try {
+            mOut.writeInt(value);
+        } catch (IOException e) {
+            fail(e);
+        }
+        return this;
+    }
+
+    GlCapture putFloat(float value) {
+        try {
+            mOut.writeFloat(value);
+        } catch (IOException e) {
+            fail(e);
+        }
+        return this;
+    }
+
+    GlCapture putBoolean(boolean value) {
+        try {
+            mOut.writeBoolean(value);
+        } catch (IOException e) {
+            fail(e);
+        }
+        return this;
+    }
+
+    GlCapture putString(String value) {
+        try {
+            mOut.writeUTF(value);
+        } catch (IOException e) {
+            fail(e);
+        }
+        return this;
+    }
+
+    /** Puts {@code n} and the {@code n} values at {@code offset}. */
+    GlCapture putInts(int[] values, int offset, int n) {
+        putInt(n);
+        for (int i = 0; i < n; ++i)
+            putInt(values[offset + i]);
+        return this;
+    }
+
+    /** Puts {@code n} and the {@code n} values at {@code offset}. */
+    GlCapture putFloats(float[] values, int offset, int n) {
+        putInt(n);
+        for (int i = 0; i < n; ++i)
+            putFloat(values[offset + i]);
+        return this;
+    }
+
+    /**
+     * Puts the first {@code bytes} bytes of {@code data} from its position
+     * on. Shorts and floats are stored as values, so that they come back in
+     * the byte order of the replaying machine.
+     */
+    GlCapture putBuffer(Buffer data, int bytes) {
+        if (data == null) return putInt(NO_BUFFER);
+        try {
+            if (data instanceof ByteBuffer) {
+                ByteBuffer source = ((ByteBuffer)data).duplicate();
+                byte[] values = new byte[bytes];
+                source.get(values);
+                mOut.writeInt(BYTES);
+                mOut.writeInt(bytes);
+                mOut.write(values);
+            } else if (data instanceof ShortBuffer) {
+                ShortBuffer source = ((ShortBuffer)data).duplicate();
+                mOut.writeInt(SHORTS);
+                mOut.writeInt(bytes / 2);
+                for (int i = 0; i < bytes / 2; ++i)
+                    mOut.writeShort(source.get());
+            } else if (data instanceof FloatBuffer) {
+                FloatBuffer source = ((FloatBuffer)data).duplicate();
+                mOut.writeInt(FLOATS);
+                mOut.writeInt(bytes / 4);
+                for (int i = 0; i < bytes / 4; ++i)
+                    mOut.writeFloat(source.get());
+            } else {
+                throw new IllegalArgumentException("Can't capture " + data.getClass());
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+        return this;
+    }
+
+    /**
+     * Reads a buffer written by {@link #putBuffer} into a direct buffer in
+     * native byte order, or returns null if it was null.
+     */
+    static Buffer readBuffer(DataInputStream in) throws IOException {
+        int type = in.readInt();
+        if (type == NO_BUFFER) return null;
+        int n = in.readInt();
+        switch (type) {
+            case BYTES: {
+                byte[] values = new byte[n];
+                in.readFully(values);
+                ByteBuffer buffer = ByteBuffer.allocateDirect(n).order(ByteOrder.nativeOrder());
+                buffer.put(values).position(0);
+                return buffer;
+            }
+            case SHORTS: {
+                ShortBuffer buffer = ByteBuffer.allocateDirect(2 * n)
+                        .order(ByteOrder.nativeOrder()).asShortBuffer();
+                for (int i = 0; i < n; ++i)
+                    buffer.put(in.readShort());
+                buffer.position(0);
+                return buffer;
+            }
+            case FLOATS: {
+                FloatBuffer buffer = ByteBuffer.allocateDirect(4 * n)
+                        .order(ByteOrder.nativeOrder()).asFloatBuffer();
+                for (int i = 0; i < n; ++i)
+                    buffer.put(in.readFloat());
+                buffer.position(0);
+                return buffer;
+            }
+            default:
+                throw new IOException("Bad buffer type " + type);
+        }
+    }
+
+    /** Skips a buffer written by {@link #putBuffer}. */
+    static void skipBuffer(DataInputStream in) throws IOException {
+        int type = in.readInt();
+        if (type == NO_BUFFER) return;
+        int n = in.readInt();
+        int size = type == BYTES ? 1 : type == SHORTS ? 2 : 4;
+        if (in.skipBytes(n * size) != n * size) throw new EOFException();
+    }
+
+    void flush() {
+        try {
+            mOut.flush();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /** Closes the capture, and throws the first error writing it, if any. */
+    void close() throws IOException {
+        try {
+            mOut.close();
+        } catch (IOException e) {
+            fail(e);
+        }
+        if (mError != null) throw mError;
+    }
+
+    private void fail(IOException e) {
+        if (mError == null) mError = e;
+    }
+}
@@ -0,0 +1,585 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body.tdl;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Replays a capture written by {@link InstrumentedGl} onto a {@link Gl},
+ * without the app. Object names and uniform locations are mapped to those
+ * the replaying Gl hands out.
+ *
+ * A frame relies on the objects and state left by the frames before it, so
+ * frames have to be replayed in order, starting with the first. Replaying a
+ * frame again right after itself reproduces it as long as it doesn't depend
+ * on state that it changes itself, which is what benchmarking a frame needs.
+ */
+public class GlReplay {
+
+    private final byte[] mCapture;
+
+    // Offsets in |mCapture| of the start of every frame, and of the end.
+    private final List<Integer> mFrameOffsets = new ArrayList<Integer>();
+
+    // Captured names and locations to replayed ones.
+    private final Map<Integer, Integer> mBuffers = new HashMap<Integer, Integer>();
+    private final Map<Integer, Integer> mTextures = new HashMap<Integer, Integer>();
+    private final Map<Integer, Integer> mFramebuffers = new HashMap<Integer, Integer>();
+    private final Map<Integer, Integer> mRenderbuffers = new HashMap<Integer, Integer>();
+    private final Map<Integer, Integer> mShaders = new HashMap<Integer, Integer>();
+    private final Map<Integer, Integer> mPrograms = new HashMap<Integer, Integer>();
+    private final Map<Integer, Integer> mVertexArrays = new HashMap<Integer, Integer>();
+    private final Map<Integer, Map<Integer, Integer>> mUniformLocations =
+            new HashMap<Integer, Map<Integer, Integer>>();
+    private int mProgram;  // The captured name of the current program.
+
+    private final int[] mScratch = new int[1];
+
+    public GlReplay(File file) throws IOException {
+        mCapture = new byte[(int)file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            new DataInputStream(in).readFully(mCapture);
+        } finally {
+            in.close();
+        }
+
+        DataInputStream capture = new DataInputStream(new ByteArrayInputStream(mCapture));
+        if (capture.readInt() != GlCapture.MAGIC || capture.readInt() != GlCapture.VERSION)
+            throw new IOException("Not a GL capture of version " + GlCapture.VERSION);
+        mFrameOffsets.add(mCapture.length - capture.available());
+        try {
+            while (capture.available() > 0) {
+                if (execute(capture, null))
+                    mFrameOffsets.add(mCapture.length - capture.available());
+            }
+        } catch (EOFException e) {
+            // The capture was cut short; drop the incomplete frame.
+        }
+    }
+
+    public int getFrameCount() {
+        return mFrameOffsets.size() - 1;
+    }
+
+    /** Replays the calls of frame {@code frame} onto {@code gl}. */
+    public void replayFrame(Gl gl, int frame) throws IOException {
+        int start = mFrameOffsets.get(frame);
+        DataInputStream capture = new DataInputStream(new ByteArrayInputStream(
+                mCapture, start, mFrameOffsets.get(frame + 1) - start));
+        while (!execute(capture, gl)) {
+        }
+    }
+
+    // Reads the next call from |in|, and makes it on |gl| unless that is
+    // null. Returns true at the end of a frame.
+    private boolean execute(DataInputStream in, Gl gl) throws IOException {
+        int opcode = in.readUnsignedByte();
+        switch (opcode) {
+            case GlCapture.END_FRAME:
+                return true;
+            case GlCapture.ACTIVE_TEXTURE: {
+                int texture = in.readInt();
+                if (gl != null) gl.glActiveTexture(texture);
+                break;
+            }
+            case GlCapture.ATTACH_SHADER: {
+                int program = in.readInt();
+                int shader = in.readInt();
+                if (gl != null)
+                    gl.glAttachShader(map(mPrograms, program), map(mShaders, shader));
+                break;
+            }
+            case GlCapture.BIND_ATTRIB_LOCATION: {
+                int program = in.readInt();
+                int index = in.readInt();
+                String name = in.readUTF();
+                if (gl != null) gl.glBindAttribLocation(map(mPrograms, program), index, name);
+                break;
+            }
+            case GlCapture.BIND_BUFFER: {
+                int target = in.readInt();
+                int buffer = in.readInt();
+                if (gl != null) gl.glBindBuffer(target, map(mBuffers, buffer));
+                break;
+            }
+            case GlCapture.BIND_FRAMEBUFFER: {
+                int target = in.readInt();
+                int framebuffer = in.readInt();
+                if (gl != null) gl.glBindFramebuffer(target, map(mFramebuffers, framebuffer));
+                break;
+            }
+            case GlCapture.BIND_RENDERBUFFER: {
+                int target = in.readInt();
+                int renderbuffer = in.readInt();
+                if (gl != null) gl.glBindRenderbuffer(target, map(mRenderbuffers, renderbuffer));
+                break;
+            }
+            case GlCapture.BIND_TEXTURE: {
+                int target = in.readInt();
+                int texture = in.readInt();
+                if (gl != null) gl.glBindTexture(target, map(mTextures, texture));
+                break;
+            }
+            case GlCapture.BLEND_FUNC: {
+                int sfactor = in.readInt();
+                int dfactor = in.readInt();
+                if (gl != null) gl.glBlendFunc(sfactor, dfactor);
+                break;
+            }
+            case GlCapture.BUFFER_DATA: {
+                int target = in.readInt();
+                int size = in.readInt();
+                Buffer data = readBuffer(in, gl);
+                int usage = in.readInt();
+                if (gl != null) gl.glBufferData(target, size, data, usage);
+                break;
+            }
+            case GlCapture.CHECK_FRAMEBUFFER_STATUS: {
+                int target = in.readInt();
+                in.readInt();  // The captured status.
+                if (gl != null) gl.glCheckFramebufferStatus(target);
+                break;
+            }
+            case GlCapture.CLEAR: {
+                int mask = in.readInt();
+                if (gl != null) gl.glClear(mask);
+                break;
+            }
+            case GlCapture.CLEAR_COLOR: {
+                float red = in.readFloat();
+                float green = in.readFloat();
+                float blue = in.readFloat();
+                float alpha = in.readFloat();
+                if (gl != null) gl.glClearColor(red, green, blue, alpha);
+                break;
+            }
+            case GlCapture.COMPILE_SHADER: {
+                int shader = in.readInt();
+                if (gl != null) gl.glCompileShader(map(mShaders, shader));
+                break;
+            }
+            case GlCapture.CREATE_PROGRAM: {
+                int program = in.readInt();
+                if (gl != null) mPrograms.put(program, gl.glCreateProgram());
+                break;
+            }
+            case GlCapture.CREATE_SHADER: {
+                int type = in.readInt();
+                int shader = in.readInt();
+                if (gl != null) mShaders.put(shader, gl.glCreateShader(type));
+                break;
+            }
+            case GlCapture.DELETE_BUFFERS:
+                deleteNames(in, gl, mBuffers, opcode);
+                break;
+            case GlCapture.DELETE_FRAMEBUFFERS:
+                deleteNames(in, gl, mFramebuffers, opcode);
+                break;
+            case GlCapture.DELETE_RENDERBUFFERS:
+                deleteNames(in, gl, mRenderbuffers, opcode);
+                break;
+            case GlCapture.DELETE_TEXTURES:
+                deleteNames(in, gl, mTextures, opcode);
+                break;
+            case GlCapture.DISABLE: {
+                int cap = in.readInt();
+                if (gl != null) gl.glDisable(cap);
+                break;
+            }
+            case GlCapture.DISABLE_VERTEX_ATTRIB_ARRAY: {
+                int index = in.readInt();
+                if (gl != null) gl.glDisableVertexAttribArray(index);
+                break;
+            }
+            case GlCapture.DRAW_ARRAYS: {
+                int mode = in.readInt();
+                int first = in.readInt();
+                int count = in.readInt();
+                if (gl != null) gl.glDrawArrays(mode, first, count);
+                break;
+            }
+            case GlCapture.DRAW_ELEMENTS: {
+                int mode = in.readInt();
+                int count = in.readInt();
+                int type = in.readInt();
+                int offset = in.readInt();
+                if (gl != null) gl.glDrawElements(mode, count, type, offset);
+                break;
+            }
+            case GlCapture.ENABLE: {
+                int cap = in.readInt();
+                if (gl != null) gl.glEnable(cap);
+                break;
+            }
+            case GlCapture.ENABLE_VERTEX_ATTRIB_ARRAY: {
+                int index = in.readInt();
+                if (gl != null) gl.glEnableVertexAttribArray(index);
+                break;
+            }
+            case GlCapture.FRAMEBUFFER_RENDERBUFFER: {
+                int target = in.readInt();
+                int attachment = in.readInt();
+                int renderbuffertarget = in.readInt();
+                int renderbuffer = in.readInt();
+                if (gl != null) {
+                    gl.glFramebufferRenderbuffer(target, attachment, renderbuffertarget,
+                            map(mRenderbuffers, renderbuffer));
+                }
+                break;
+            }
+            case GlCapture.FRAMEBUFFER_TEXTURE_2D: {
+                int target = in.readInt();
+                int attachment = in.readInt();
+                int textarget = in.readInt();
+                int texture = in.readInt();
+                int level = in.readInt();
+                if (gl != null) {
+                    gl.glFramebufferTexture2D(
+                            target, attachment, textarget, map(mTextures, texture), level);
+                }
+                break;
+            }
+            case GlCapture.FRONT_FACE: {
+                int mode = in.readInt();
+                if (gl != null) gl.glFrontFace(mode);
+                break;
+            }
+            case GlCapture.GEN_BUFFERS:
+            case GlCapture.GEN_FRAMEBUFFERS:
+            case GlCapture.GEN_RENDERBUFFERS:
+            case GlCapture.GEN_TEXTURES:
+                genNames(in, gl, opcode);
+                break;
+            case GlCapture.GET_PROGRAM_INFO_LOG: {
+                int program = in.readInt();
+                in.readUTF();  // The captured log.
+                if (gl != null) gl.glGetProgramInfoLog(map(mPrograms, program));
+                break;
+            }
+            case GlCapture.GET_PROGRAMIV: {
+                int program = in.readInt();
+                int pname = in.readInt();
+                if (gl != null) gl.glGetProgramiv(map(mPrograms, program), pname, mScratch, 0);
+                break;
+            }
+            case GlCapture.GET_SHADER_INFO_LOG: {
+                int shader = in.readInt();
+                in.readUTF();  // The captured log.
+                if (gl != null) gl.glGetShaderInfoLog(map(mShaders, shader));
+                break;
+            }
+            case GlCapture.GET_SHADERIV: {
+                int shader = in.readInt();
+                int pname = in.readInt();
+                if (gl != null) gl.glGetShaderiv(map(mShaders, shader), pname, mScratch, 0);
+                break;
+            }
+            case GlCapture.GET_STRING: {
+                int name = in.readInt();
+                in.readUTF();  // The captured string.
+                if (gl != null) gl.glGetString(name);
+                break;
+            }
+            case GlCapture.GET_UNIFORM_LOCATION: {
+                int program = in.readInt();
+                String name = in.readUTF();
+                int location = in.readInt();
+                if (gl != null) {
+                    Map<Integer, Integer> locations = mUniformLocations.get(program);
+                    if (locations == null) {
+                        locations = new HashMap<Integer, Integer>();
+                        mUniformLocations.put(program, locations);
+                    }
+                    locations.put(
+                            location, gl.glGetUniformLocation(map(mPrograms, program), name));
+                }
+                break;
+            }
+            case GlCapture.LINK_PROGRAM: {
+                int program = in.readInt();
+                if (gl != null) gl.glLinkProgram(map(mPrograms, program));
+                break;
+            }
+            case GlCapture.READ_PIXELS: {
+                int x = in.readInt();
+                int y = in.readInt();
+                int width = in.readInt();
+                int height = in.readInt();
+                int format = in.readInt();
+                int type = in.readInt();
+                if (gl != null) {
+                    // The app only reads RGBA bytes.
+                    ByteBuffer pixels = ByteBuffer.allocateDirect(4 * width * height);
+                    gl.glReadPixels(x, y, width, height, format, type, pixels);
+                }
+                break;
+            }
+            case GlCapture.RELEASE_SHADER_COMPILER:
+                if (gl != null) gl.glReleaseShaderCompiler();
+                break;
+            case GlCapture.RENDERBUFFER_STORAGE: {
+                int target = in.readInt();
+                int internalformat = in.readInt();
+                int width = in.readInt();
+                int height = in.readInt();
+                if (gl != null) gl.glRenderbufferStorage(target, internalformat, width, height);
+                break;
+            }
+            case GlCapture.SHADER_SOURCE: {
+                int shader = in.readInt();
+                String string = in.readUTF();
+                if (gl != null) gl.glShaderSource(map(mShaders, shader), string);
+                break;
+            }
+            case GlCapture.TEX_IMAGE_2D: {
+                int target = in.readInt();
+                int level = in.readInt();
+                int internalformat = in.readInt();
+                int width = in.readInt();
+                int height = in.readInt();
+                int border = in.readInt();
+                int format = in.readInt();
+                int type = in.readInt();
+                Buffer pixels = readBuffer(in, gl);
+                if (gl != null) {
+                    gl.glTexImage2D(target, level, internalformat, width, height, border,
+                            format, type, pixels);
+                }
+                break;
+            }
+            case GlCapture.TEX_PARAMETERF: {
+                int target = in.readInt();
+                int pname = in.readInt();
+                float param = in.readFloat();
+                if (gl != null) gl.glTexParameterf(target, pname, param);
+                break;
+            }
+            case GlCapture.TEX_PARAMETERI: {
+                int target = in.readInt();
+                int pname = in.readInt();
+                int param = in.readInt();
+                if (gl != null) gl.glTexParameteri(target, pname, param);
+                break;
+            }
+            case GlCapture.UNIFORM_1F: {
+                int location = in.readInt();
+                float x = in.readFloat();
+                if (gl != null) gl.glUniform1f(mapLocation(location), x);
+                break;
+            }
+            case GlCapture.UNIFORM_1I: {
+                int location = in.readInt();
+                int x = in.readInt();
+                if (gl != null) gl.glUniform1i(mapLocation(location), x);
+                break;
+            }
+            case GlCapture.UNIFORM_4F: {
+                int location = in.readInt();
+                float x = in.readFloat();
+                float y = in.readFloat();
+                float z = in.readFloat();
+                float w = in.readFloat();
+                if (gl != null) gl.glUniform4f(mapLocation(location), x, y, z, w);
+                break;
+            }
+            case GlCapture.UNIFORM_MATRIX_4FV: {
+                int location = in.readInt();
+                int count = in.readInt();
+                boolean transpose = in.readBoolean();
+                float[] value = new float[in.readInt()];
+                for (int i = 0; i < value.length; ++i)
+                    value[i] = in.readFloat();
+                if (gl != null)
+                    gl.glUniformMatrix4fv(mapLocation(location), count, transpose, value, 0);
+                break;
+            }
+            case GlCapture.USE_PROGRAM: {
+                int program = in.readInt();
+                mProgram = program;
+                if (gl != null) gl.glUseProgram(map(mPrograms, program));
+                break;
+            }
+            case GlCapture.VERTEX_ATTRIB_1F: {
+                int index = in.readInt();
+                float x = in.readFloat();
+                if (gl != null) gl.glVertexAttrib1f(index, x);
+                break;
+            }
+            case GlCapture.VERTEX_ATTRIB_POINTER: {
+                int index = in.readInt();
+                int size = in.readInt();
+                int type = in.readInt();
+                boolean normalized = in.readBoolean();
+                int stride = in.readInt();
+                int offset = in.readInt();
+                if (gl != null)
+                    gl.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+                break;
+            }
+            case GlCapture.VIEWPORT: {
+                int x = in.readInt();
+                int y = in.readInt();
+                int width = in.readInt();
+                int height = in.readInt();
+                if (gl != null) gl.glViewport(x, y, width, height);
+                break;
+            }
+            case GlCapture.COMPRESSED_TEX_IMAGE_2D: {
+                int target = in.readInt();
+                int level = in.readInt();
+                int internalformat = in.readInt();
+                int width = in.readInt();
+                int height = in.readInt();
+                int border = in.readInt();
+                Buffer data = readBuffer(in, gl);
+                if (gl != null) {
+                    gl.glCompressedTexImage2D(target, level, internalformat, width, height,
+                            border, data.capacity(), data);
+                }
+                break;
+            }
+            case GlCapture.INIT_VERTEX_ARRAYS: {
+                boolean hasVertexArrays = in.readBoolean();
+                if (gl != null && hasVertexArrays && !gl.initVertexArrays())
+                    throw new IOException("The capture needs OES_vertex_array_object");
+                break;
+            }
+            case GlCapture.GEN_VERTEX_ARRAY: {
+                int vertexArray = in.readInt();
+                if (gl != null) mVertexArrays.put(vertexArray, gl.genVertexArray());
+                break;
+            }
+            case GlCapture.BIND_VERTEX_ARRAY: {
+                int vertexArray = in.readInt();
+                if (gl != null) gl.bindVertexArray(map(mVertexArrays, vertexArray));
+                break;
+            }
+            case GlCapture.DELETE_VERTEX_ARRAY: {
+                int vertexArray = in.readInt();
+                if (gl != null) gl.deleteVertexArray(map(mVertexArrays, vertexArray));
+                mVertexArrays.remove(vertexArray);
+                break;
+            }
+            default:
+                throw new IOException("Bad opcode " + opcode);
+        }
+        return false;
+    }
+
+    // Reads a buffer argument. Only allocates it when replaying.
+    private static Buffer readBuffer(DataInputStream in, Gl gl) throws IOException {
+        if (gl != null) return GlCapture.readBuffer(in);
+        GlCapture.skipBuffer(in);
+        return null;
+    }
+
+    private static int map(Map<Integer, Integer> names, int name) {
+        Integer mapped = names.get(name);
+        return mapped != null ? mapped : name;
+    }
+
+    private int mapLocation(int location) {
+        Map<Integer, Integer> locations = mUniformLocations.get(mProgram);
+        return locations != null ? map(locations, location) : location;
+    }
+
+    private int[] readNames(DataInputStream in) throws IOException {
+        int[] names = new int[in.readInt()];
+        for (int i = 0; i < names.length; ++i)
+            names[i] = in.readInt();
+        return names;
+    }
+
+    private void genNames(DataInputStream in, Gl gl, int opcode) throws IOException {
+        int[] names = readNames(in);
+        if (gl == null) return;
+        int[] replayed = new int[names.length];
+        Map<Integer, Integer> map;
+        if (opcode == GlCapture.GEN_BUFFERS) {
+            gl.glGenBuffers(names.length, replayed, 0);
+            map = mBuffers;
+        } else if (opcode == GlCapture.GEN_FRAMEBUFFERS) {
+            gl.glGenFramebuffers(names.length, replayed, 0);
+            map = mFramebuffers;
+        } else if (opcode == GlCapture.GEN_RENDERBUFFERS) {
+            gl.glGenRenderbuffers(names.length, replayed, 0);
+            map = mRenderbuffers;
+        } else {
+            gl.glGenTextures(names.length, replayed, 0);
+            map = mTextures;
+        }
+        for (int i = 0; i < names.length; ++i)
+            map.put(names[i], replayed[i]);
+    }
+
+    private void deleteNames(DataInputStream in, Gl gl, Map<Integer, Integer> map, int opcode)
+            throws IOException {
+        int[] names = readNames(in);
+        if (gl == null) return;
+        int[] replayed = new int[names.length];
+        for (int i = 0; i < names.length; ++i) {
+            replayed[i] = map(map, names[i]);
+            map.remove(names[i]);
+        }
+        if (opcode == GlCapture.DELETE_BUFFERS) {
+            gl.glDeleteBuffers(replayed.length, replayed, 0);
+        } else if (opcode == GlCapture.DELETE_FRAMEBUFFERS) {
+            gl.glDeleteFramebuffers(replayed.length, replayed, 0);
+        } else if (opcode == GlCapture.DELETE_RENDERBUFFERS) {
+            gl.glDeleteRenderbuffers(replayed.length, replayed, 0);
+        } else {
+            gl.glDeleteTextures(replayed.length, replayed, 0);
+        }
+    }
+
+    /**
+     * Headless harness: {@code GlReplay <capture> [<frame>]}. Prints the call
+     * counts of every frame of the capture, or of the frames up to the given
+     * one. It reports call counts only, no times: it replays onto a
+     * {@link RecordingGl}, which formats every call into a string, so timing
+     * it would measure that instead of a GL. To time a frame, replay it onto
+     * a Gl backed by a driver with {@link #replayFrame}.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1 && args.length != 2) {
+            System.err.println("Usage: GlReplay <capture> [<frame>]");
+            System.exit(1);
+        }
+        GlReplay replay = new GlReplay(new File(args[0]));
+        RecordingGl recording = new RecordingGl("GL_OES_vertex_array_object");
+        InstrumentedGl gl = new InstrumentedGl(recording);
+        int lastFrame = args.length == 2 ? Integer.parseInt(args[1]) : replay.getFrameCount() - 1;
+        for (int frame = 0; frame <= lastFrame; ++frame) {
+            replay.replayFrame(gl, frame);
+            gl.endFrame();
+            recording.clear();
+            System.out.println("Frame " + frame + ": " + gl.getTotals());
+            gl.resetTotals();
+        }
+    }
+}
@@ -0,0 +1,368 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body.tdl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Thin wrappers for the GL ES 2.0 state calls that remember the current
+ * state and skip calls that wouldn't change it. All GL state changes of the
+ * kinds tracked here must go through this class, and {@link #reset} must be
+ * called when a new GL context is created. Only use on the GL thread.
+ */
+public class GlState {
+
+    private static final int UNKNOWN = -1;
+    private static final int MAX_ATTRIBS = 8;
+    private static final int MAX_TEXTURE_UNITS = 8;
+
+    // Capabilities for glEnable/glDisable.
+    private static final int[] CAPS = {
+        Gl.GL_BLEND, Gl.GL_CULL_FACE, Gl.GL_DEPTH_TEST, Gl.GL_SCISSOR_TEST,
+    };
+
+    private static Gl sGl;
+    private static Logger sLogger = new ConsoleLogger();
+
+    private static int sProgram;
+    private static int sArrayBuffer;
+    private static int sActiveTexture;
+    private static final int[] sTextures = new int[MAX_TEXTURE_UNITS];
+    private static final int[] sCaps = new int[CAPS.length];  // 0, 1 or UNKNOWN.
+
+    // The element array buffer and the attribute state are those of the
+    // default vertex array object. They aren't cached while another one is
+    // bound.
+    private static int sVertexArray;
+    private static int sElementArrayBuffer;
+    private static final int[] sAttribEnabled = new int[MAX_ATTRIBS];
+
+    // Buffer, size, type, normalized, stride and offset of every attribute.
+    private static final int[][] sAttribPointers = new int[MAX_ATTRIBS][6];
+    private static int sFrontFace;
+    private static int sBlendSrc, sBlendDst;
+    private static final int[] sViewport = new int[4];
+    private static final float[] sClearColor = new float[4];
+
+    // Uniform values by program and location. The current program's are in
+    // |sUniforms|, indexed by location; null entries are unknown.
+    private static final Map<Integer, float[][]> sProgramUniforms =
+            new HashMap<Integer, float[][]>();
+    private static float[][] sUniforms;
+
+    private static int sIssuedCalls;
+    private static int sSkippedCalls;
+
+    static {
+        reset();
+    }
+
+    /** Makes {@code gl} the backend of all GL calls, and forgets all state. */
+    public static void setGl(Gl gl) {
+        sGl = gl;
+        reset();
+    }
+
+    /** @return The backend for the GL calls that don't go through this class. */
+    public static Gl getGl() {
+        return sGl;
+    }
+
+    /** Makes {@code logger} take the log messages of the renderer. */
+    public static void setLogger(Logger logger) {
+        sLogger = logger;
+    }
+
+    public static Logger getLogger() {
+        return sLogger;
+    }
+
+    /** Forgets all state. Call when the GL context is (re)created. */
+    public static void reset() {
+        sProgram = UNKNOWN;
+        sArrayBuffer = UNKNOWN;
+        sElementArrayBuffer = UNKNOWN;
+        sVertexArray = 0;
+        sActiveTexture = UNKNOWN;
+        Arrays.fill(sTextures, UNKNOWN);
+        Arrays.fill(sCaps, UNKNOWN);
+        Arrays.fill(sAttribEnabled, UNKNOWN);
+        for (int[] pointer : sAttribPointers) Arrays.fill(pointer, UNKNOWN);
+        sFrontFace = UNKNOWN;
+        sBlendSrc = sBlendDst = UNKNOWN;
+        Arrays.fill(sViewport, UNKNOWN);
+        Arrays.fill(sClearColor, Float.NaN);
+        sProgramUniforms.clear();
+        sUniforms = null;
+    }
+
+    /** @return The number of state calls passed on to GL since {@link #resetCounters}. */
+    public static int getIssuedCalls() {
+        return sIssuedCalls;
+    }
+
+    /** @return The number of redundant state calls skipped since {@link #resetCounters}. */
+    public static int getSkippedCalls() {
+        return sSkippedCalls;
+    }
+
+    public static void resetCounters() {
+        sIssuedCalls = 0;
+        sSkippedCalls = 0;
+    }
+
+    // Counts a call. Returns true if it has to be issued.
+    private static boolean count(boolean isChange) {
+        if (isChange) {
+            ++sIssuedCalls;
+        } else {
+            ++sSkippedCalls;
+        }
+        return isChange;
+    }
+
+    public static void useProgram(int program) {
+        if (!count(program != sProgram)) return;
+        sGl.glUseProgram(program);
+        sProgram = program;
+        sUniforms = sProgramUniforms.get(program);
+        if (sUniforms == null) {
+            sUniforms = new float[16][];
+            sProgramUniforms.put(program, sUniforms);
+        }
+    }
+
+    public static void bindBuffer(int target, int buffer) {
+        if (target == Gl.GL_ARRAY_BUFFER) {
+            if (!count(buffer != sArrayBuffer)) return;
+            sArrayBuffer = buffer;
+        } else if (target == Gl.GL_ELEMENT_ARRAY_BUFFER && sVertexArray == 0) {
+            if (!count(buffer != sElementArrayBuffer)) return;
+            sElementArrayBuffer = buffer;
+        } else {
+            count(true);
+        }
+        sGl.glBindBuffer(target, buffer);
+    }
+
+    /**
+     * Records the binding of a vertex array object (OES_vertex_array_object),
+     * 0 for the default one. Call before binding it.
+     * @return false if {@code vertexArray} is already bound.
+     */
+    public static boolean setVertexArray(int vertexArray) {
+        if (!count(vertexArray != sVertexArray)) return false;
+        sVertexArray = vertexArray;
+        return true;
+    }
+
+    public static void activeTexture(int unit) {
+        if (!count(unit != sActiveTexture)) return;
+        sGl.glActiveTexture(unit);
+        sActiveTexture = unit;
+    }
+
+    public static void bindTexture(int target, int texture) {
+        int unit = sActiveTexture == UNKNOWN ? UNKNOWN : sActiveTexture - Gl.GL_TEXTURE0;
+        if (target == Gl.GL_TEXTURE_2D && unit >= 0 && unit < MAX_TEXTURE_UNITS) {
+            if (!count(texture != sTextures[unit])) return;
+            sTextures[unit] = texture;
+        } else {
+            count(true);
+            if (unit == UNKNOWN) Arrays.fill(sTextures, UNKNOWN);
+        }
+        sGl.glBindTexture(target, texture);
+    }
+
+    public static void enable(int cap) {
+        setCap(cap, 1);
+    }
+
+    public static void disable(int cap) {
+        setCap(cap, 0);
+    }
+
+    private static void setCap(int cap, int value) {
+        int i = 0;
+        while (i < CAPS.length && CAPS[i] != cap) ++i;
+        if (i < CAPS.length) {
+            if (!count(sCaps[i] != value)) return;
+            sCaps[i] = value;
+        } else {
+            count(true);
+        }
+        if (value != 0) {
+            sGl.glEnable(cap);
+        } else {
+            sGl.glDisable(cap);
+        }
+    }
+
+    public static void enableVertexAttribArray(int index) {
+        if (index < MAX_ATTRIBS && sVertexArray == 0) {
+            if (!count(sAttribEnabled[index] != 1)) return;
+            sAttribEnabled[index] = 1;
+        } else {
+            count(true);
+        }
+        sGl.glEnableVertexAttribArray(index);
+    }
+
+    public static void disableVertexAttribArray(int index) {
+        if (index < MAX_ATTRIBS && sVertexArray == 0) {
+            if (!count(sAttribEnabled[index] != 0)) return;
+            sAttribEnabled[index] = 0;
+        } else {
+            count(true);
+        }
+        sGl.glDisableVertexAttribArray(index);
+    }
+
+    /** Points an attribute into the bound array buffer. */
+    public static void vertexAttribPointer(
+            int index, int size, int type, boolean normalized, int stride, int offset) {
+        if (index < MAX_ATTRIBS && sArrayBuffer != UNKNOWN && sVertexArray == 0) {
+            int[] p = sAttribPointers[index];
+            int n = normalized ? 1 : 0;
+            if (!count(p[0] != sArrayBuffer || p[1] != size || p[2] != type || p[3] != n ||
+                    p[4] != stride || p[5] != offset)) {
+                return;
+            }
+            p[0] = sArrayBuffer;
+            p[1] = size;
+            p[2] = type;
+            p[3] = n;
+            p[4] = stride;
+            p[5] = offset;
+        } else {
+            count(true);
+            if (index < MAX_ATTRIBS && sVertexArray == 0) sAttribPointers[index][0] = UNKNOWN;
+        }
+        sGl.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+    }
+
+    public static void frontFace(int mode) {
+        if (!count(mode != sFrontFace)) return;
+        sGl.glFrontFace(mode);
+        sFrontFace = mode;
+    }
+
+    public static void blendFunc(int src, int dst) {
+        if (!count(src != sBlendSrc || dst != sBlendDst)) return;
+        sGl.glBlendFunc(src, dst);
+        sBlendSrc = src;
+        sBlendDst = dst;
+    }
+
+    public static void viewport(int x, int y, int width, int height) {
+        if (!count(x != sViewport[0] || y != sViewport[1] ||
+                width != sViewport[2] || height != sViewport[3])) {
+            return;
+        }
+        sGl.glViewport(x, y, width, height);
+        sViewport[0] = x;
+        sViewport[1] = y;
+        sViewport[2] = width;
+        sViewport[3] = height;
+    }
+
+    public static void clearColor(float r, float g, float b, float a) {
+        if (!count(r != sClearColor[0] || g != sClearColor[1] ||
+                b != sClearColor[2] || a != sClearColor[3])) {
+            return;
+        }
+        sGl.glClearColor(r, g, b, a);
+        sClearColor[0] = r;
+        sClearColor[1] = g;
+        sClearColor[2] = b;
+        sClearColor[3] = a;
+    }
+
+    // Returns whether uniform |location| of the current program has to be
+    // set to the |length| values at |offset|, and remembers them.
+    private static boolean isUniformChange(int location, float[] values, int offset, int length) {
+        if (sUniforms == null || location < 0) return true;
+        if (location >= sUniforms.length)
+            sUniforms = growUniforms(location + 1);
+        float[] cached = sUniforms[location];
+        if (cached != null && cached.length == length) {
+            boolean isEqual = true;
+            for (int i = 0; i < length && isEqual; ++i)
+                isEqual = cached[i] == values[offset + i];
+            if (isEqual) return false;
+        }
+        if (cached == null || cached.length != length)
+            cached = sUniforms[location] = new float[length];
+        System.arraycopy(values, offset, cached, 0, length);
+        return true;
+    }
+
+    private static float[][] growUniforms(int length) {
+        float[][] uniforms = Arrays.copyOf(sUniforms, Math.max(length, 2 * sUniforms.length));
+        sProgramUniforms.put(sProgram, uniforms);
+        return uniforms;
+    }
+
+    // Scratch space for single values, to avoid allocations.
+    private static final float[] sScratch = new float[4];
+
+    public static void uniform1f(int location, float x) {
+        sScratch[0] = x;
+        if (!count(isUniformChange(location, sScratch, 0, 1))) return;
+        sGl.glUniform1f(location, x);
+    }
+
+    public static void uniform1i(int location, int x) {
+        // Int and sampler uniforms are small enough to be exact as floats.
+        sScratch[0] = x;
+        if (!count(isUniformChange(location, sScratch, 0, 1))) return;
+        sGl.glUniform1i(location, x);
+    }
+
+    public static void uniform4f(int location, float x, float y, float z, float w) {
+        sScratch[0] = x;
+        sScratch[1] = y;
+        sScratch[2] = z;
+        sScratch[3] = w;
+        if (!count(isUniformChange(location, sScratch, 0, 4))) return;
+        sGl.glUniform4f(location, x, y, z, w);
+    }
+
+    public static void uniformMatrix4fv(int location, float[] value, int offset) {
+        if (!count(isUniformChange(location, value, offset, 16))) return;
+        sGl.glUniformMatrix4fv(location, 1, false, value, offset);
+    }
+
+    /** Deletes buffers, and forgets them where they are bound. */
+    public static void deleteBuffers(int n, int[] buffers, int offset) {
+        for (int i = offset; i < offset + n; ++i) {
+            if (buffers[i] == sArrayBuffer) sArrayBuffer = UNKNOWN;
+            if (buffers[i] == sElementArrayBuffer) sElementArrayBuffer = UNKNOWN;
+            for (int[] pointer : sAttribPointers)
+                if (pointer[0] == buffers[i]) pointer[0] = UNKNOWN;
+        }
+        sGl.glDeleteBuffers(n, buffers, offset);
+    }
+
+    /** Deletes textures, and forgets them where they are bound. */
+    public static void deleteTextures(int n, int[] textures, int offset) {
+        for (int i = offset; i < offset + n; ++i) {
+            for (int unit = 0; unit < MAX_TEXTURE_UNITS; ++unit)
+                if (sTextures[unit] == textures[i]) sTextures[unit] = UNKNOWN;
+        }
+        sGl.glDeleteTextures(n, textures, offset);
+    }
+}
@@ -0,0 +1,613 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body.tdl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Locale;
+
+/**
+ * A {@link Gl} that passes the calls on to another one and counts them per
+ * frame. It can also write them to a capture file for {@link GlReplay}.
+ * Call {@link #endFrame} after every frame.
+ */
+public class InstrumentedGl implements Gl {
+
+    /** Call counts over a number of frames. */
+    public static class Stats {
+        public int frames;
+        public int drawCalls;
+        public long triangles;
+        public int bufferBinds;
+        public int textureBinds;
+        public int uniformUpdates;
+        public int stateChanges;  // Other state setting calls.
+        public long uploadBytes;  // Buffer and texture data.
+
+        void add(Stats stats) {
+            frames += stats.frames;
+            drawCalls += stats.drawCalls;
+            triangles += stats.triangles;
+            bufferBinds += stats.bufferBinds;
+            textureBinds += stats.textureBinds;
+            uniformUpdates += stats.uniformUpdates;
+            stateChanges += stats.stateChanges;
+            uploadBytes += stats.uploadBytes;
+        }
+
+        void clear() {
+            frames = 0;
+            drawCalls = 0;
+            triangles = 0;
+            bufferBinds = 0;
+            textureBinds = 0;
+            uniformUpdates = 0;
+            stateChanges = 0;
+            uploadBytes = 0;
+        }
+
+        /** @return The counts per frame. */
+        @Override
+        public String toString() {
+            float n = Math.max(frames, 1);
+            return String.format(Locale.US,
+                    "%.1f draws, %.0f triangles, %.1f buffer binds, %.1f texture binds, " +
+                    "%.1f uniform updates, %.1f state changes, %.0f bytes uploaded per frame",
+                    drawCalls / n, triangles / n, bufferBinds / n, textureBinds / n,
+                    uniformUpdates / n, stateChanges / n, uploadBytes / n);
+        }
+    }
+
+    private final Gl mGl;
+    private final Stats mFrame = new Stats();
+    private final Stats mTotals = new Stats();
+
+    private GlCapture mCapture;
+    private int mCaptureFramesLeft;
+
+    public InstrumentedGl(Gl gl) {
+        mGl = gl;
+    }
+
+    /** Ends the current frame, see {@link #getTotals}. */
+    public void endFrame() {
+        mFrame.frames = 1;
+        mTotals.add(mFrame);
+        mFrame.clear();
+
+        if (mCapture != null) {
+            mCapture.op(GlCapture.END_FRAME);
+            // Keep the capture usable if the app dies.
+            mCapture.flush();
+            if (--mCaptureFramesLeft == 0) stopCapture();
+        }
+    }
+
+    /** @return The counts of the frames since {@link #resetTotals}. */
+    public Stats getTotals() {
+        return mTotals;
+    }
+
+    public void resetTotals() {
+        mTotals.clear();
+    }
+
+    /**
+     * Writes all further calls to {@code out}, until {@link #stopCapture} or
+     * the end of the {@code numFrames}th frame. For the capture to replay,
+     * it has to start before the GL context's objects are created.
+     */
+    public void startCapture(OutputStream out, int numFrames) {
+        stopCapture();
+        mCapture = new GlCapture(out);
+        mCaptureFramesLeft = numFrames;
+    }
+
+    public void stopCapture() {
+        if (mCapture == null) return;
+        try {
+            mCapture.close();
+        } catch (IOException e) {
+            GlState.getLogger().e("Writing GL capture: " + e);
+        }
+        mCapture = null;
+    }
+
+    public boolean isCapturing() {
+        return mCapture != null;
+    }
+
+    private static long getTriangles(int mode, int count) {
+        if (mode == Gl.GL_TRIANGLES) return count / 3;
+        if (mode == Gl.GL_TRIANGLE_STRIP) return Math.max(count - 2, 0);
+        return 0;
+    }
+
+    // The size of the data from the position of |data| on, in bytes.
+    private static int getBytes(Buffer data) {
+        if (data == null) return 0;
+        if (data instanceof ShortBuffer) return 2 * data.remaining();
+        if (data instanceof FloatBuffer) return 4 * data.remaining();
+        return data.remaining();
+    }
+
+    @Override
+    public void glActiveTexture(int texture) {
+        ++mFrame.stateChanges;
+        mGl.glActiveTexture(texture);
+        if (mCapture != null) mCapture.op(GlCapture.ACTIVE_TEXTURE).putInt(texture);
+    }
+
+    @Override
+    public void glAttachShader(int program, int shader) {
+        mGl.glAttachShader(program, shader);
+        if (mCapture != null) mCapture.op(GlCapture.ATTACH_SHADER).putInt(program).putInt(shader);
+    }
+
+    @Override
+    public void glBindAttribLocation(int program, int index, String name) {
+        mGl.glBindAttribLocation(program, index, name);
+        if (mCapture != null) {
+            mCapture.op(GlCapture.BIND_ATTRIB_LOCATION).putInt(program).putInt(index)
+                    .putString(name);
+        }
+    }
+
+    @Override
+    public void glBindBuffer(int target, int buffer) {
+        ++mFrame.bufferBinds;
+        mGl.glBindBuffer(target, buffer);
+        if (mCapture != null) mCapture.op(GlCapture.BIND_BUFFER).putInt(target).putInt(buffer);
+    }
+
+    @Override
+    public void glBindFramebuffer(int target, int framebuffer) {
+        ++mFrame.stateChanges;
+        mGl.glBindFramebuffer(target, framebuffer);
+        if (mCapture != null) {
+            mCapture.op(GlCapture.BIND_FRAMEBUFFER).putInt(target).putInt(framebuffer);
+        }
+    }
+
+    @Override
+    public void glBindRenderbuffer(int target, int renderbuffer) {
+        ++mFrame.stateChanges;
+        mGl.glBindRenderbuffer(target, renderbuffer);
+        if (mCapture != null) {
+            mCapture.op(GlCapture.BIND_RENDERBUFFER).putInt(target).putInt(renderbuffer);
+        }
+    }
+
+    @Override
+    public void glBindTexture(int target, int texture) {
+        ++mFrame.textureBinds;
+        mGl.glBindTexture(target, texture);
+        if (mCapture != null) mCapture.op(GlCapture.BIND_TEXTURE).putInt(target).putInt(texture);
+    }
+
+    @Override
+    public void glBlendFunc(int sfactor, int dfactor) {
+        ++mFrame.stateChanges;
+        mGl.glBlendFunc(sfactor, dfactor);
+        if (mCapture != null) mCapture.op(GlCapture.BLEND_FUNC).putInt(sfactor).putInt(dfactor);
+    }
+
+    @Override
+    public void glBufferData(int target, int size, Buffer data, int usage) {
+        mFrame.uploadBytes += size;
+        mGl.glBufferData(target, size, data, usage);
+        if (mCapture != null) {
+            mCapture.op(GlCapture.BUFFER_DATA).putInt(target).putInt(size).putBuffer(data, size)
+                    .putInt(usage);
+        }
+    }
+
+    @Override
+    public int glCheckFramebufferStatus(int target) {
+        int result = mGl.glCheckFramebufferStatus(target);
+        if (mCapture != null) {
+            mCapture.op(GlCapture.CHECK_FRAMEBUFFER_STATUS).putInt(target).putInt(result);
+        }
+        return result;
+    }
+
+    @Override
+    public void glClear(int mask) {
+        mGl.glClear(mask);
+        if (mCapture != null) mCapture.op(GlCapture.CLEAR).putInt(mask);
+    }
+
+    @Override
+    public void glClearColor(float red, float green, float blue, float alpha) {
+        ++mFrame.stateChanges;
+        mGl.glClearColor(red, green, blue, alpha);
+        if (mCapture != null) {
+            mCapture.op(GlCapture.CLEAR_COLOR).putFloat(red).putFloat(green).putFloat(blue)
+                    .putFloat(alpha);
+        }
+    }
+
+    @Override
+    public void glCompileShader(int shader) {
+        mGl.glCompileShader(shader);
+        if (mCapture != null) mCapture.op(GlCapture.COMPILE_SHADER).putInt(shader);
+    }
+
+    @Override
+    public void glCompressedTexImage2D(int target, int level, int internalformat, int width,
+            int height, int border, int imageSize, Buffer data) {
+        mFrame.uploadBytes += imageSize;
+        mGl.glCompressedTexImage2D(
+                target, level, internalformat, width, height, border, imageSize, data);
+        if (mCapture != null) {
+            mCapture.op(GlCapture.COMPRESSED_TEX_IMAGE_2D).putInt(target).putInt(level)
+                    .putInt(internalformat).putInt(width).putInt(height).putInt(border)
+                    .putBuffer(data, imageSize);
+        }
+    }
+
+    @Override
+    public int glCreateProgram() {
+        int result = mGl.glCreateProgram();
+        if (mCapture != null) mCapture.op(GlCapture.CREATE_PROGRAM).putInt(result);
+        return result;
+    }
+
+    @Override
+    public int glCreateShader(int type) {
+        int result = mGl.glCreateShader(type);
+        if (mCapture != null) mCapture.op(GlCapture.CREATE_SHADER).putInt(type).putInt(result);
+        return result;
+    }
+
+    @Override
+    public void glDeleteBuffers(int n, int[] buffers, int offset) {
+        mGl.glDeleteBuffers(n, buffers, offset);
+        if (mCapture != null) mCapture.op(GlCapture.DELETE_BUFFERS).putInts(buffers, offset, n);
+    }
+
+    @Override
+    public void glDeleteFramebuffers(int n, int[] framebuffers, int offset) {
+        mGl.glDeleteFramebuffers(n, framebuffers, offset);
+        if (mCapture != null) {
+            mCapture.op(GlCapture.DELETE_FRAMEBUFFERS).putInts(framebuffers, offset, n);
+        }
+    }
+
+    @Override
+    public void glDeleteRenderbuffers(int n, int[] renderbuffers, int offset) {
+        mGl.glDeleteRenderbuffers(n, renderbuffers, offset);
+        if (mCapture != null) {
+            mCapture.op(GlCapture.DELETE_RENDERBUFFERS).putInts(renderbuffers, offset, n);
+        }
+    }
+
+    @Override
+    public void glDeleteTextures(int n, int[] textures, int offset) {
+        mGl.glDeleteTextures(n, textures, offset);
+        if (mCapture != null) mCapture.op(GlCapture.DELETE_TEXTURES).putInts(textures, offset, n);
+    }
+
+    @Override
+    public void glDisable(int cap) {
+        ++mFrame.stateChanges;
+        mGl.glDisable(cap);
+        if (mCapture != null) mCapture.op(GlCapture.DISABLE).putInt(cap);
+    }
+
+    @Override
+    public void glDisableVertexAttribArray(int index) {
+        ++mFrame.stateChanges;
+        mGl.glDisableVertexAttribArray(index);
+        if (mCapture != null) mCapture.op(GlCapture.DISABLE_VERTEX_ATTRIB_ARRAY).putInt(index);
+    }
+
+    @Override
+    public void glDrawArrays(int mode, int first, int count) {
+        ++mFrame.drawCalls;
+        mFrame.triangles += getTriangles(mode, count);
+        mGl.glDrawArrays(mode, first, count);
+        if (mCapture != null) {
+            mCapture.op(GlCapture.DRAW_ARRAYS).putInt(mode).putInt(first).putInt(count);
+        }
+    }
+
+    @Override
+    public void glDrawElements(int mode, int count, int type, int offset) {
+        ++mFrame.drawCalls;
+        mFrame.triangles += getTriangles(mode, count);
+        mGl.glDrawElements(mode, count, type, offset);
+        if (mCapture != null) {
+            mCapture.op(GlCapture.DRAW_ELEMENTS).putInt(mode).putInt(count).putInt(type)
+                    .putInt(offset);
+        }
+    }
+
+    @Override
+    public void glEnable(int cap) {
+        ++mFrame.stateChanges;
+        mGl.glEnable(cap);
+        if (mCapture != null) mCapture.op(GlCapture.ENABLE).putInt(cap);
+    }
+
+    @Override
+    public void glEnableVertexAttribArray(int index) {
+        ++mFrame.stateChanges;
+        mGl.glEnableVertexAttribArray(index);
+        if (mCapture != null) mCapture.op(GlCapture.ENABLE_VERTEX_ATTRIB_ARRAY).putInt(index);
+    }
+
+    @Override
+    public void glFramebufferRenderbuffer(int target, int attachment, int renderbuffertarget,
+            int renderbuffer) {
+        mGl.glFramebufferRenderbuffer(target, attachment, renderbuffertarget, renderbuffer);
+        if (mCapture != null) {
+            mCapture.op(GlCapture.FRAMEBUFFER_RENDERBUFFER).putInt(target).putInt(attachment)
+                    .putInt(renderbuffertarget).putInt(renderbuffer);
+        }
+    }
+
+    @Override
+    public void glFramebufferTexture2D(int target, int attachment, int textarget, int texture,
+            int level) {
+        mGl.glFramebufferTexture2D(target, attachment, textarget, texture, level);
+        if (mCapture != null) {
+            mCapture.op(GlCapture.FRAMEBUFFER_TEXTURE_2D).putInt(target).putInt(attachment)
+                    .putInt(textarget).putInt(texture).putInt(level);
+        }
+    }
+
+    @Override
+    public void glFrontFace(int mode) {
+        ++mFrame.stateChanges;
+        mGl.glFrontFace(mode);
+        if (mCapture != null) mCapture.op(GlCapture.FRONT_FACE).putInt(mode);
+    }
+
+    @Override
+    public void glGenBuffers(int n, int[] buffers, int offset) {
+        mGl.glGenBuffers(n, buffers, offset);
+        if (mCapture != null) mCapture.op(GlCapture.GEN_BUFFERS).putInts(buffers, offset, n);
+    }
+
+    @Override
+    public void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+        mGl.glGenFramebuffers(n, framebuffers, offset);
+        if (mCapture != null) {
+            mCapture.op(GlCapture.GEN_FRAMEBUFFERS).putInts(framebuffers, offset, n);
+        }
+    }
+
+    @Override
+    public void glGenRenderbuffers(int n, int[] renderbuffers, int offset) {
+        mGl.glGenRenderbuffers(n, renderbuffers, offset);
+        if (mCapture != null) {
+            mCapture.op(GlCapture.GEN_RENDERBUFFERS).putInts(renderbuffers, offset, n);
+        }
+    }
+
+    @Override
+    public void glGenTextures(int n, int[] textures, int offset) {
+        mGl.glGenTextures(n, textures, offset);
+        if (mCapture != null) mCapture.op(GlCapture.GEN_TEXTURES).putInts(textures, offset, n);
+    }
+
+    @Override
+    public String glGetProgramInfoLog(int program) {
+        String result = mGl.glGetProgramInfoLog(program);
+        if (mCapture != null) mCapture.op(GlCapture.GET_PROGRAM_INFO_LOG).putInt(program);
+        return result;
+    }
+
+    @Override
+    public void glGetProgramiv(int program, int pname, int[] params, int offset) {
+        mGl.glGetProgramiv(program, pname, params, offset);
+        if (mCapture != null) mCapture.op(GlCapture.GET_PROGRAMIV).putInt(program).putInt(pname);
+    }
+
+    @Override
+    public String glGetShaderInfoLog(int shader) {
+        String result = mGl.glGetShaderInfoLog(shader);
+        if (mCapture != null) mCapture.op(GlCapture.GET_SHADER_INFO_LOG).putInt(shader);
+        return result;
+    }
+
+    @Override
+    public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+        mGl.glGetShaderiv(shader, pname, params, offset);
+        if (mCapture != null) mCapture.op(GlCapture.GET_SHADERIV).putInt(shader).putInt(pname);
+    }
+
+    @Override
+    public String glGetString(int name) {
+        String result = mGl.glGetString(name);
+        if (mCapture != null) mCapture.op(GlCapture.GET_STRING).putInt(name);
+        return result;
+    }
+
+    @Override
+    public int glGetUniformLocation(int program, String name) {
+        int result = mGl.glGetUniformLocation(program, name);
+        if (mCapture != null) {
+            mCapture.op(GlCapture.GET_UNIFORM_LOCATION).putInt(program).putString(name)
+                    .putInt(result);
+        }
+        return result;
+    }
+
+    @Override
+    public void glLinkProgram(int program) {
+        mGl.glLinkProgram(program);
+        if (mCapture != null) mCapture.op(GlCapture.LINK_PROGRAM).putInt(program);
+    }
+
+    @Override
+    public void glReadPixels(int x, int y, int width, int height, int format, int type,
+            Buffer pixels) {
+        mGl.glReadPixels(x, y, width, height, format, type, pixels);
+        if (mCapture != null) {
+            mCapture.op(GlCapture.READ_PIXELS).putInt(x).putInt(y).putInt(width).putInt(height)
+                    .putInt(format).putInt(type);
+        }
+    }
+
+    @Override
+    public void glReleaseShaderCompiler() {
+        mGl.glReleaseShaderCompiler();
+        if (mCapture != null) mCapture.op(GlCapture.RELEASE_SHADER_COMPILER);
+    }
+
+    @Override
+    public void glRenderbufferStorage(int target, int internalformat, int width, int height) {
+        mGl.glRenderbufferStorage(target, internalformat, width, height);
+        if (mCapture != null) {
+            mCapture.op(GlCapture.RENDERBUFFER_STORAGE).putInt(target).putInt(internalformat)
+                    .putInt(width).putInt(height);
+        }
+    }
+
+    @Override
+    public void glShaderSource(int shader, String string) {
+        mGl.glShaderSource(shader, string);
+        if (mCapture != null) mCapture.op(GlCapture.SHADER_SOURCE).putInt(shader).putString(string);
+    }
+
+    @Override
+    public void glTexImage2D(int target, int level, int internalformat, int width, int height,
+            int border, int format, int type, Buffer pixels) {
+        mFrame.uploadBytes += getBytes(pixels);
+        mGl.glTexImage2D(
+                target, level, internalformat, width, height, border, format, type, pixels);
+        if (mCapture != null) {
+            mCapture.op(GlCapture.TEX_IMAGE_2D).putInt(target).putInt(level)
+                    .putInt(internalformat).putInt(width).putInt(height).putInt(border)
+                    .putInt(format).putInt(type).putBuffer(pixels, getBytes(pixels));
+        }
+    }
+
+    @Override
+    public void glTexParameterf(int target, int pname, float param) {
+        mGl.glTexParameterf(target, pname, param);
+        if (mCapture != null) {
+            mCapture.op(GlCapture.TEX_PARAMETERF).putInt(target).putInt(pname).putFloat(param);
+        }
+    }
+
+    @Override
+    public void glTexParameteri(int target, int pname, int param) {
+        mGl.glTexParameteri(target, pname, param);
+        if (mCapture != null) {
+            mCapture.op(GlCapture.TEX_PARAMETERI).putInt(target).putInt(pname).putInt(param);
+        }
+    }
+
+    @Override
+    public void glUniform1f(int location, float x) {
+        ++mFrame.uniformUpdates;
+        mGl.glUniform1f(location, x);
+        if (mCapture != null) mCapture.op(GlCapture.UNIFORM_1F).putInt(location).putFloat(x);
+    }
+
+    @Override
+    public void glUniform1i(int location, int x) {
+        ++mFrame.uniformUpdates;
+        mGl.glUniform1i(location, x);
+        if (mCapture != null) mCapture.op(GlCapture.UNIFORM_1I).putInt(location).putInt(x);
+    }
+
+    @Override
+    public void glUniform4f(int location, float x, float y, float z, float w) {
+        ++mFrame.uniformUpdates;
+        mGl.glUniform4f(location, x, y, z, w);
+        if (mCapture != null) {
+            mCapture.op(GlCapture.UNIFORM_4F).putInt(location).putFloat(x).putFloat(y).putFloat(z)
+                    .putFloat(w);
+        }
+    }
+
+    @Override
+    public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value,
+            int offset) {
+        ++mFrame.uniformUpdates;
+        mGl.glUniformMatrix4fv(location, count, transpose, value, offset);
+        if (mCapture != null) {
+            mCapture.op(GlCapture.UNIFORM_MATRIX_4FV).putInt(location).putInt(count)
+                    .putBoolean(transpose).putFloats(value, offset, 16 * count);
+        }
+    }
+
+    @Override
+    public void glUseProgram(int program) {
+        ++mFrame.stateChanges;
+        mGl.glUseProgram(program);
+        if (mCapture != null) mCapture.op(GlCapture.USE_PROGRAM).putInt(program);
+    }
+
+    @Override
+    public void glVertexAttrib1f(int index, float x) {
+        ++mFrame.stateChanges;
+        mGl.glVertexAttrib1f(index, x);
+        if (mCapture != null) mCapture.op(GlCapture.VERTEX_ATTRIB_1F).putInt(index).putFloat(x);
+    }
+
+    @Override
+    public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride,
+            int offset) {
+        ++mFrame.stateChanges;
+        mGl.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+        if (mCapture != null) {
+            mCapture.op(GlCapture.VERTEX_ATTRIB_POINTER).putInt(index).putInt(size).putInt(type)
+                    .putBoolean(normalized).putInt(stride).putInt(offset);
+        }
+    }
+
+    @Override
+    public void glViewport(int x, int y, int width, int height) {
+        ++mFrame.stateChanges;
+        mGl.glViewport(x, y, width, height);
+        if (mCapture != null) {
+            mCapture.op(GlCapture.VIEWPORT).putInt(x).putInt(y).putInt(width).putInt(height);
+        }
+    }
+
+    @Override
+    public boolean initVertexArrays() {
+        boolean result = mGl.initVertexArrays();
+        if (mCapture != null) mCapture.op(GlCapture.INIT_VERTEX_ARRAYS).putBoolean(result);
+        return result;
+    }
+
+    @Override
+    public int genVertexArray() {
+        int result = mGl.genVertexArray();
+        if (mCapture != null) mCapture.op(GlCapture.GEN_VERTEX_ARRAY).putInt(result);
+        return result;
+    }
+
+    @Override
+    public void bindVertexArray(int vertexArray) {
+        ++mFrame.stateChanges;
+        mGl.bindVertexArray(vertexArray);
+        if (mCapture != null) mCapture.op(GlCapture.BIND_VERTEX_ARRAY).putInt(vertexArray);
+    }
+
+    @Override
+    public void deleteVertexArray(int vertexArray) {
+        mGl.deleteVertexArray(vertexArray);
+        if (mCapture != null) mCapture.op(GlCapture.DELETE_VERTEX_ARRAY).putInt(vertexArray);
+    }
+}
@@ -0,0 +1,26 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body.tdl;
+
+/**
+ * Where the renderer's log messages go. On a device they go to
+ * {@code android.util.Log}, elsewhere to {@link ConsoleLogger}. See
+ * {@link GlState#setLogger}.
+ */
+public interface Logger {
+    void d(String message);
+    void i(String message);
+    void w(String message);
+    void e(String message);
+}
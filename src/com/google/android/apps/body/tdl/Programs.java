@@ -13,43 +13,42 @@
 // limitations under the License.
 package com.google.android.apps.body.tdl;
 
-import android.opengl.GLES20;
-import android.util.Log;
-
 /**
  * Tiny helper class that uploads GL ES 2.0 shaders.
  */
 public class Programs {
 
     private static int getShader(String source, int type) {
-        int shader = GLES20.glCreateShader(type);
+        Gl gl = GlState.getGl();
+        int shader = gl.glCreateShader(type);
         if (shader == 0) return 0;
         
-        GLES20.glShaderSource(shader, source);
-        GLES20.glCompileShader(shader);
+        gl.glShaderSource(shader, source);
+        gl.glCompileShader(shader);
         int[] compiled = { 0 };
-        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+        gl.glGetShaderiv(shader, Gl.GL_COMPILE_STATUS, compiled, 0);
         if (compiled[0] == 0) {
-            Log.e("Body", GLES20.glGetShaderInfoLog(shader));
+            GlState.getLogger().e(gl.glGetShaderInfoLog(shader));
         }
         return shader;
     }
 
     public static int loadProgram(String vertexShader,
             String fragmentShader) {
-        int vs = getShader(vertexShader, GLES20.GL_VERTEX_SHADER);
-        int fs = getShader(fragmentShader, GLES20.GL_FRAGMENT_SHADER);
+        Gl gl = GlState.getGl();
+        int vs = getShader(vertexShader, Gl.GL_VERTEX_SHADER);
+        int fs = getShader(fragmentShader, Gl.GL_FRAGMENT_SHADER);
         if (vs == 0 || fs == 0) return 0;
 
-        int program = GLES20.glCreateProgram();
-        GLES20.glAttachShader(program, vs);
-        GLES20.glAttachShader(program, fs);
-        GLES20.glLinkProgram(program);
+        int program = gl.glCreateProgram();
+        gl.glAttachShader(program, vs);
+        gl.glAttachShader(program, fs);
+        gl.glLinkProgram(program);
 
         int[] linked = { 0 };
-        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linked, 0);
+        gl.glGetProgramiv(program, Gl.GL_LINK_STATUS, linked, 0);
         if (linked[0] == 0) {
-            Log.e("Body", GLES20.glGetProgramInfoLog(program));
+            GlState.getLogger().e(gl.glGetProgramInfoLog(program));
             return 0;
         }
         return program;
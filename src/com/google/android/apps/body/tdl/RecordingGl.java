@@ -0,0 +1,409 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body.tdl;
+
+import java.nio.Buffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A {@link Gl} without a GL context that only records the calls made to it,
+ * for running the renderer headless. Object names count up from 1, shaders
+ * compile and link, framebuffers are complete and glReadPixels leaves the
+ * pixels alone.
+ */
+public class RecordingGl implements Gl {
+
+    private final String mExtensions;
+    private final List<String> mCalls = new ArrayList<String>();
+    private final Map<String, Integer> mUniformLocations = new HashMap<String, Integer>();
+    private int mNextName = 1;
+
+    public RecordingGl() {
+        this("");
+    }
+
+    /** @param extensions What glGetString(GL_EXTENSIONS) returns. */
+    public RecordingGl(String extensions) {
+        mExtensions = extensions;
+    }
+
+    /** @return The calls since the last {@link #clear}, as "name(arg, ...)". */
+    public List<String> getCalls() {
+        return mCalls;
+    }
+
+    public void clear() {
+        mCalls.clear();
+    }
+
+    private void record(String name, Object... args) {
+        StringBuilder call = new StringBuilder(name).append('(');
+        for (int i = 0; i < args.length; ++i) {
+            if (i > 0) call.append(", ");
+            Object arg = args[i];
+            if (arg instanceof int[]) {
+                call.append(Arrays.toString((int[])arg));
+            } else if (arg instanceof float[]) {
+                call.append(Arrays.toString((float[])arg));
+            } else if (arg instanceof Buffer) {
+                call.append("Buffer[").append(((Buffer)arg).capacity()).append(']');
+            } else {
+                call.append(arg);
+            }
+        }
+        mCalls.add(call.append(')').toString());
+    }
+
+    private void genNames(int n, int[] names, int offset) {
+        for (int i = 0; i < n; ++i)
+            names[offset + i] = mNextName++;
+    }
+
+    private int getUniformLocation(int program, String name) {
+        String key = program + "/" + name;
+        Integer location = mUniformLocations.get(key);
+        if (location == null) {
+            location = mUniformLocations.size();
+            mUniformLocations.put(key, location);
+        }
+        return location;
+    }
+
+    @Override
+    public void glActiveTexture(int texture) {
+        record("glActiveTexture", texture);
+    }
+
+    @Override
+    public void glAttachShader(int program, int shader) {
+        record("glAttachShader", program, shader);
+    }
+
+    @Override
+    public void glBindAttribLocation(int program, int index, String name) {
+        record("glBindAttribLocation", program, index, name);
+    }
+
+    @Override
+    public void glBindBuffer(int target, int buffer) {
+        record("glBindBuffer", target, buffer);
+    }
+
+    @Override
+    public void glBindFramebuffer(int target, int framebuffer) {
+        record("glBindFramebuffer", target, framebuffer);
+    }
+
+    @Override
+    public void glBindRenderbuffer(int target, int renderbuffer) {
+        record("glBindRenderbuffer", target, renderbuffer);
+    }
+
+    @Override
+    public void glBindTexture(int target, int texture) {
+        record("glBindTexture", target, texture);
+    }
+
+    @Override
+    public void glBlendFunc(int sfactor, int dfactor) {
+        record("glBlendFunc", sfactor, dfactor);
+    }
+
+    @Override
+    public void glBufferData(int target, int size, Buffer data, int usage) {
+        record("glBufferData", target, size, data, usage);
+    }
+
+    @Override
+    public int glCheckFramebufferStatus(int target) {
+        record("glCheckFramebufferStatus", target);
+        return Gl.GL_FRAMEBUFFER_COMPLETE;
+    }
+
+    @Override
+    public void glClear(int mask) {
+        record("glClear", mask);
+    }
+
+    @Override
+    public void glClearColor(float red, float green, float blue, float alpha) {
+        record("glClearColor", red, green, blue, alpha);
+    }
+
+    @Override
+    public void glCompileShader(int shader) {
+        record("glCompileShader", shader);
+    }
+
+    @Override
+    public void glCompressedTexImage2D(int target, int level, int internalformat, int width,
+            int height, int border, int imageSize, Buffer data) {
+        record("glCompressedTexImage2D",
+                target, level, internalformat, width, height, border, imageSize, data);
+    }
+
+    @Override
+    public int glCreateProgram() {
+        int name = mNextName++;
+        record("glCreateProgram");
+        return name;
+    }
+
+    @Override
+    public int glCreateShader(int type) {
+        int name = mNextName++;
+        record("glCreateShader", type);
+        return name;
+    }
+
+    @Override
+    public void glDeleteBuffers(int n, int[] buffers, int offset) {
+        record("glDeleteBuffers", n, buffers, offset);
+    }
+
+    @Override
+    public void glDeleteFramebuffers(int n, int[] framebuffers, int offset) {
+        record("glDeleteFramebuffers", n, framebuffers, offset);
+    }
+
+    @Override
+    public void glDeleteRenderbuffers(int n, int[] renderbuffers, int offset) {
+        record("glDeleteRenderbuffers", n, renderbuffers, offset);
+    }
+
+    @Override
+    public void glDeleteTextures(int n, int[] textures, int offset) {
+        record("glDeleteTextures", n, textures, offset);
+    }
+
+    @Override
+    public void glDisable(int cap) {
+        record("glDisable", cap);
+    }
+
+    @Override
+    public void glDisableVertexAttribArray(int index) {
+        record("glDisableVertexAttribArray", index);
+    }
+
+    @Override
+    public void glDrawArrays(int mode, int first, int count) {
+        record("glDrawArrays", mode, first, count);
+    }
+
+    @Override
+    public void glDrawElements(int mode, int count, int type, int offset) {
+        record("glDrawElements", mode, count, type, offset);
+    }
+
+    @Override
+    public void glEnable(int cap) {
+        record("glEnable", cap);
+    }
+
+    @Override
+    public void glEnableVertexAttribArray(int index) {
+        record("glEnableVertexAttribArray", index);
+    }
+
+    @Override
+    public void glFramebufferRenderbuffer(int target, int attachment, int renderbuffertarget,
+            int renderbuffer) {
+        record("glFramebufferRenderbuffer", target, attachment, renderbuffertarget, renderbuffer);
+    }
+
+    @Override
+    public void glFramebufferTexture2D(int target, int attachment, int textarget, int texture,
+            int level) {
+        record("glFramebufferTexture2D", target, attachment, textarget, texture, level);
+    }
+
+    @Override
+    public void glFrontFace(int mode) {
+        record("glFrontFace", mode);
+    }
+
+    @Override
+    public void glGenBuffers(int n, int[] buffers, int offset) {
+        genNames(n, buffers, offset);
+        record("glGenBuffers", n, buffers, offset);
+    }
+
+    @Override
+    public void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+        genNames(n, framebuffers, offset);
+        record("glGenFramebuffers", n, framebuffers, offset);
+    }
+
+    @Override
+    public void glGenRenderbuffers(int n, int[] renderbuffers, int offset) {
+        genNames(n, renderbuffers, offset);
+        record("glGenRenderbuffers", n, renderbuffers, offset);
+    }
+
+    @Override
+    public void glGenTextures(int n, int[] textures, int offset) {
+        genNames(n, textures, offset);
+        record("glGenTextures", n, textures, offset);
+    }
+
+    @Override
+    public String glGetProgramInfoLog(int program) {
+        record("glGetProgramInfoLog", program);
+        return "";
+    }
+
+    @Override
+    public void glGetProgramiv(int program, int pname, int[] params, int offset) {
+        params[offset] = 1;  // GL_TRUE, for the link status.
+        record("glGetProgramiv", program, pname, params, offset);
+    }
+
+    @Override
+    public String glGetShaderInfoLog(int shader) {
+        record("glGetShaderInfoLog", shader);
+        return "";
+    }
+
+    @Override
+    public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+        params[offset] = 1;  // GL_TRUE, for the compile status.
+        record("glGetShaderiv", shader, pname, params, offset);
+    }
+
+    @Override
+    public String glGetString(int name) {
+        record("glGetString", name);
+        return name == Gl.GL_EXTENSIONS ? mExtensions : "";
+    }
+
+    @Override
+    public int glGetUniformLocation(int program, String name) {
+        record("glGetUniformLocation", program, name);
+        return getUniformLocation(program, name);
+    }
+
+    @Override
+    public void glLinkProgram(int program) {
+        record("glLinkProgram", program);
+    }
+
+    @Override
+    public void glReadPixels(int x, int y, int width, int height, int format, int type,
+            Buffer pixels) {
+        record("glReadPixels", x, y, width, height, format, type, pixels);
+    }
+
+    @Override
+    public void glReleaseShaderCompiler() {
+        record("glReleaseShaderCompiler");
+    }
+
+    @Override
+    public void glRenderbufferStorage(int target, int internalformat, int width, int height) {
+        record("glRenderbufferStorage", target, internalformat, width, height);
+    }
+
+    @Override
+    public void glShaderSource(int shader, String string) {
+        record("glShaderSource", shader, string);
+    }
+
+    @Override
+    public void glTexImage2D(int target, int level, int internalformat, int width, int height,
+            int border, int format, int type, Buffer pixels) {
+        record("glTexImage2D",
+                target, level, internalformat, width, height, border, format, type, pixels);
+    }
+
+    @Override
+    public void glTexParameterf(int target, int pname, float param) {
+        record("glTexParameterf", target, pname, param);
+    }
+
+    @Override
+    public void glTexParameteri(int target, int pname, int param) {
+        record("glTexParameteri", target, pname, param);
+    }
+
+    @Override
+    public void glUniform1f(int location, float x) {
+        record("glUniform1f", location, x);
+    }
+
+    @Override
+    public void glUniform1i(int location, int x) {
+        record("glUniform1i", location, x);
+    }
+
+    @Override
+    public void glUniform4f(int location, float x, float y, float z, float w) {
+        record("glUniform4f", location, x, y, z, w);
+    }
+
+    @Override
+    public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value,
+            int offset) {
+        record("glUniformMatrix4fv", location, count, transpose, value, offset);
+    }
+
+    @Override
+    public void glUseProgram(int program) {
+        record("glUseProgram", program);
+    }
+
+    @Override
+    public void glVertexAttrib1f(int index, float x) {
+        record("glVertexAttrib1f", index, x);
+    }
+
+    @Override
+    public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride,
+            int offset) {
+        record("glVertexAttribPointer", index, size, type, normalized, stride, offset);
+    }
+
+    @Override
+    public void glViewport(int x, int y, int width, int height) {
+        record("glViewport", x, y, width, height);
+    }
+
+    @Override
+    public boolean initVertexArrays() {
+        record("initVertexArrays");
+        return true;
+    }
+
+    @Override
+    public int genVertexArray() {
+        int name = mNextName++;
+        record("genVertexArray");
+        return name;
+    }
+
+    @Override
+    public void bindVertexArray(int vertexArray) {
+        record("bindVertexArray", vertexArray);
+    }
+
+    @Override
+    public void deleteVertexArray(int vertexArray) {
+        record("deleteVertexArray", vertexArray);
+    }
+}
@@ -13,10 +13,9 @@
 // limitations under the License.
 package com.google.android.apps.body.tdl;
 
-import android.opengl.Matrix;
-
 /**
- * Helper class for math.
+ * Helper class for math. Matrices are column-major float[16]s, like GL's.
+ * Only uses java, so the renderer's math also runs off the device.
  */
 public class TdlMath {
     public static void perspective(
@@ -68,6 +67,118 @@ public class TdlMath {
         m[15] = 1;
     }
 
+    /**
+     * Sets {@code m} to a view matrix looking from {@code eye} at
+     * {@code target}, like gluLookAt().
+     */
+    public static void lookAt(float[] m, float[] eye, float[] target, float[] up) {
+        float[] f = normalize(subVector(target, eye));
+        float[] s = normalize(cross(f, up));
+        float[] u = cross(s, f);
+        for (int i = 0; i < 3; ++i) {
+            m[4 * i] = s[i];
+            m[4 * i + 1] = u[i];
+            m[4 * i + 2] = -f[i];
+            m[4 * i + 3] = 0;
+        }
+        m[12] = -dot(s, eye);
+        m[13] = -dot(u, eye);
+        m[14] = dot(f, eye);
+        m[15] = 1;
+    }
+
+    /** Sets {@code result} to {@code a * b}. {@code result} may be a or b. */
+    public static void multiply(float[] result, float[] a, float[] b) {
+        float[] product = new float[16];
+        for (int col = 0; col < 4; ++col) {
+            for (int row = 0; row < 4; ++row) {
+                float sum = 0;
+                for (int k = 0; k < 4; ++k)
+                    sum += a[4 * k + row] * b[4 * col + k];
+                product[4 * col + row] = sum;
+            }
+        }
+        System.arraycopy(product, 0, result, 0, 16);
+    }
+
+    /** Sets the 4-vector {@code result} to {@code m * v}. */
+    public static void transform(float[] result, float[] m, float[] v) {
+        for (int row = 0; row < 4; ++row) {
+            result[row] = m[row] * v[0] + m[4 + row] * v[1] + m[8 + row] * v[2] +
+                    m[12 + row] * v[3];
+        }
+    }
+
+    /**
+     * Sets {@code result} to the inverse of {@code m}, which it may be.
+     *
+     * @return false if {@code m} has no inverse; {@code result} is unchanged.
+     */
+    public static boolean invert(float[] result, float[] m) {
+        // Expansion by the 2x2 minors of the first and the last two rows as
+        // stored. The inverse of the transpose is the transpose of the
+        // inverse, so this is right for either memory layout.
+        float s0 = m[0] * m[5] - m[4] * m[1];
+        float s1 = m[0] * m[6] - m[4] * m[2];
+        float s2 = m[0] * m[7] - m[4] * m[3];
+        float s3 = m[1] * m[6] - m[5] * m[2];
+        float s4 = m[1] * m[7] - m[5] * m[3];
+        float s5 = m[2] * m[7] - m[6] * m[3];
+        float c0 = m[8] * m[13] - m[12] * m[9];
+        float c1 = m[8] * m[14] - m[12] * m[10];
+        float c2 = m[8] * m[15] - m[12] * m[11];
+        float c3 = m[9] * m[14] - m[13] * m[10];
+        float c4 = m[9] * m[15] - m[13] * m[11];
+        float c5 = m[10] * m[15] - m[14] * m[11];
+        float det = s0 * c5 - s1 * c4 + s2 * c3 + s3 * c2 - s4 * c1 + s5 * c0;
+        if (det == 0) return false;
+        float d = 1 / det;
+        float[] inverse = {
+            (m[5] * c5 - m[6] * c4 + m[7] * c3) * d,
+            (-m[1] * c5 + m[2] * c4 - m[3] * c3) * d,
+            (m[13] * s5 - m[14] * s4 + m[15] * s3) * d,
+            (-m[9] * s5 + m[10] * s4 - m[11] * s3) * d,
+            (-m[4] * c5 + m[6] * c2 - m[7] * c1) * d,
+            (m[0] * c5 - m[2] * c2 + m[3] * c1) * d,
+            (-m[12] * s5 + m[14] * s2 - m[15] * s1) * d,
+            (m[8] * s5 - m[10] * s2 + m[11] * s1) * d,
+            (m[4] * c4 - m[5] * c2 + m[7] * c0) * d,
+            (-m[0] * c4 + m[1] * c2 - m[3] * c0) * d,
+            (m[12] * s4 - m[13] * s2 + m[15] * s0) * d,
+            (-m[8] * s4 + m[9] * s2 - m[11] * s0) * d,
+            (-m[4] * c3 + m[5] * c1 - m[6] * c0) * d,
+            (m[0] * c3 - m[1] * c1 + m[2] * c0) * d,
+            (-m[12] * s3 + m[13] * s1 - m[14] * s0) * d,
+            (m[8] * s3 - m[9] * s1 + m[10] * s0) * d,
+        };
+        System.arraycopy(inverse, 0, result, 0, 16);
+        return true;
+    }
+
+    public static float length(float x, float y, float z) {
+        return (float)Math.sqrt(x * x + y * y + z * z);
+    }
+
+    /**
+     * Extracts the six clip planes (left, right, bottom, top, near, far) from
+     * the column-major matrix {@code m}. Each plane is stored as a, b, c, d
+     * in {@code planes}, normalized and pointing inwards.
+     */
+    public static void frustumPlanes(float[] planes, float[] m) {
+        for (int i = 0; i < 3; ++i) {
+            for (int sign = -1; sign <= 1; sign += 2) {
+                int p = 4 * (2 * i + (sign + 1) / 2);
+                planes[p + 0] = m[3] - sign * m[i];
+                planes[p + 1] = m[7] - sign * m[4 + i];
+                planes[p + 2] = m[11] - sign * m[8 + i];
+                planes[p + 3] = m[15] - sign * m[12 + i];
+                float length = length(planes[p], planes[p + 1], planes[p + 2]);
+                for (int j = 0; j < 4; ++j)
+                    planes[p + j] /= length;
+            }
+        }
+    }
+
     public static float[] subVector(float[] a, float[] b) {
         float[] result = { a[0] - b[0], a[1] - b[1], a[2] - b[2] };
         return result;
@@ -78,7 +189,7 @@ public class TdlMath {
     }
 
     public static float[] normalize(float[] a) {
-        float f = 1 / (float)Matrix.length(a[0], a[1], a[2]);
+        float f = 1 / length(a[0], a[1], a[2]);
         float[] result = { a[0] * f, a[1] * f, a[2] * f };
         return result;
     }
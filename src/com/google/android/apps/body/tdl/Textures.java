@@ -16,76 +16,71 @@ package com.google.android.apps.body.tdl;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
-import android.graphics.Bitmap;
-import android.opengl.ETC1Util;
-import android.opengl.GLES20;
-import android.opengl.GLUtils;
 
 /**
  * Helper class for uploading textures..
  */
 public class Textures {
 
+  // From OES_compressed_ETC1_RGB8_texture.
+  public static final int GL_ETC1_RGB8_OES = 0x8D64;
+
   private static int genTex() {
+      Gl gl = GlState.getGl();
       int[] textures = { 0 };
-      GLES20.glGenTextures(1, textures, 0);
+      gl.glGenTextures(1, textures, 0);
       int tex = textures[0];
-      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, tex);
-      GLES20.glTexParameteri(
-      GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-      GLES20.glTexParameteri(
-              GLES20.GL_TEXTURE_2D,
-              GLES20.GL_TEXTURE_MIN_FILTER,
-              GLES20.GL_LINEAR);
+      GlState.bindTexture(Gl.GL_TEXTURE_2D, tex);
+      gl.glTexParameteri(
+      Gl.GL_TEXTURE_2D, Gl.GL_TEXTURE_MAG_FILTER, Gl.GL_LINEAR);
+      gl.glTexParameteri(
+              Gl.GL_TEXTURE_2D,
+              Gl.GL_TEXTURE_MIN_FILTER,
+              Gl.GL_LINEAR);
 
       // If this is CLAMP_TO_EDGE instead of REPEAT, the face is all white :-/
-      GLES20.glTexParameteri(
-              GLES20.GL_TEXTURE_2D,
-              GLES20.GL_TEXTURE_WRAP_S,
-              GLES20.GL_REPEAT);
-      GLES20.glTexParameteri(
-              GLES20.GL_TEXTURE_2D,
-              GLES20.GL_TEXTURE_WRAP_T,
-              GLES20.GL_REPEAT);
+      gl.glTexParameteri(
+              Gl.GL_TEXTURE_2D,
+              Gl.GL_TEXTURE_WRAP_S,
+              Gl.GL_REPEAT);
+      gl.glTexParameteri(
+              Gl.GL_TEXTURE_2D,
+              Gl.GL_TEXTURE_WRAP_T,
+              Gl.GL_REPEAT);
       return tex;    
   }
 
-  public static int loadTexture(Bitmap bitmap) {
+  /** Uploads {@code width} x {@code height} RGBA pixels, a byte per channel. */
+  public static int loadTexture(int width, int height, ByteBuffer rgba) {
+      Gl gl = GlState.getGl();
       int tex = genTex();
-      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, tex);
-
-      // BitmapFactory by default resamples images to the resolution of the
-      // device.  For textures, this is not what's wanted (the resources should
-      // be made smaller instead).
-      GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
-
+      GlState.bindTexture(Gl.GL_TEXTURE_2D, tex);
+      gl.glTexImage2D(
+              Gl.GL_TEXTURE_2D, 0, Gl.GL_RGBA,
+              width, height, 0, Gl.GL_RGBA, Gl.GL_UNSIGNED_BYTE, rgba);
       return tex;
   }
 
-  public static int loadTexture(ETC1Util.ETC1Texture etc1Texture) {
+  /** Uploads an ETC1 compressed texture, without its PKM header. */
+  public static int loadEtc1Texture(int width, int height, ByteBuffer data) {
+      Gl gl = GlState.getGl();
       // Note that unlike the js version, this does not cache textures. There
       // was just one cache hit.
       int tex = genTex();
-      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, tex);
-      ETC1Util.loadTexture(
-              GLES20.GL_TEXTURE_2D, 0, 0, GLES20.GL_RGB,
-              GLES20.GL_UNSIGNED_SHORT_5_6_5, etc1Texture);
-
+      GlState.bindTexture(Gl.GL_TEXTURE_2D, tex);
+      gl.glCompressedTexImage2D(
+              Gl.GL_TEXTURE_2D, 0, GL_ETC1_RGB8_OES, width, height, 0,
+              data.capacity(), data);
       return tex;
   }
 
   public static int loadTexture(float[] diffuseColor) {
-      int tex = genTex();
-      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, tex);
       ByteBuffer buffer = ByteBuffer.allocateDirect(4);
       for (int i = 0; i < 3; ++i)
         buffer.put((byte)(diffuseColor[i] * 255 + 0.5));
       buffer.put((byte)255);
       buffer.position(0);
       buffer.order(ByteOrder.nativeOrder());  // FIXME: should not be necessary
-      GLES20.glTexImage2D(
-              GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA,
-              1, 1, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buffer);
-      return tex;
+      return loadTexture(1, 1, buffer);
   }
 }
@@ -0,0 +1,224 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks the nearest neighbor, radius and region queries of
+ * {@link EntityBvh} against linear scans over the entity table, and prints
+ * the time of both. Run from the project directory after changing
+ * EntityBvh, once an ant build has generated gen/R.java:
+ *
+ * <pre>
+ * javac -cp $ANDROID_SDK/platforms/android-9/android.jar -d /tmp/ebc -sourcepath src:gen \
+ *     tools/EntityBvhCheck.java
+ * java -cp /tmp/ebc com.google.android.apps.body.EntityBvhCheck res/raw/f_entities_table \
+ *     [&lt;regions&gt; [&lt;seed&gt;]]
+ * </pre>
+ *
+ * Every entity is the center of a nearest neighbor query and of a radius
+ * query; region queries use random rectangles and lassos seen from random
+ * cameras. Exits with status 1 on a mismatch.
+ */
+public class EntityBvhCheck {
+
+    private static final int NEAREST = 10;
+    private static final int WIDTH = 480;
+    private static final int HEIGHT = 800;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("usage: EntityBvhCheck <entity table> [<regions> [<seed>]]");
+            System.exit(1);
+        }
+        int numRegions = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+
+        EntityTable table = new EntityTable(map(new File(args[0])));
+        EntityIds.setTable(table);
+        EntityBvh bvh = EntityBvh.build(table);
+        int n = table.size();
+        float[] boxes = new float[6 * n];
+        for (int row = 0; row < n; ++row)
+            for (int c = 0; c < 6; ++c)
+                boxes[6 * row + c] = table.getBound(row, c);
+
+        Random random = new Random(seed);
+        int mismatches = 0;
+        long indexedNS = 0, linearNS = 0;
+        for (int row = 0; row < n; ++row) {
+            float x = (boxes[6 * row] + boxes[6 * row + 3]) / 2;
+            float y = (boxes[6 * row + 1] + boxes[6 * row + 4]) / 2;
+            float z = (boxes[6 * row + 2] + boxes[6 * row + 5]) / 2;
+            int layerMask = randomLayerMask(random);
+
+            long startNS = System.nanoTime();
+            int[] found = bvh.findNearest(x, y, z, NEAREST, layerMask, row);
+            indexedNS += System.nanoTime() - startNS;
+            startNS = System.nanoTime();
+            float[] expected = nearestDistances(table, boxes, x, y, z, layerMask, row);
+            linearNS += System.nanoTime() - startNS;
+
+            // Entities at the same distance may come in any order, so only
+            // the distances have to match.
+            float[] distances = new float[found.length];
+            for (int i = 0; i < distances.length; ++i) {
+                int id = found[i];
+                distances[i] = id == row ? -1 : distanceSquared(boxes, 6 * id, x, y, z);
+            }
+            if (!Arrays.equals(expected, distances)) {
+                ++mismatches;
+                System.out.println("Nearest mismatch around " + table.getEntityId(row) +
+                        ": expected " + Arrays.toString(expected) + ", found " +
+                        Arrays.toString(distances));
+            }
+
+            float radius = random.nextFloat() * 20;
+            found = bvh.findWithinRadius(x, y, z, radius, layerMask);
+            Set<Integer> expectedSet = new HashSet<Integer>();
+            for (int i = 0; i < n; ++i) {
+                if ((layerMask & (1 << table.getLayer(i))) != 0 &&
+                        distanceSquared(boxes, 6 * i, x, y, z) <= radius * radius) {
+                    expectedSet.add(i);
+                }
+            }
+            if (found.length != expectedSet.size() || !expectedSet.equals(toSet(found))) {
+                ++mismatches;
+                System.out.println("Radius mismatch around " + table.getEntityId(row) +
+                        ": expected " + expectedSet.size() + " entities, found " + found.length);
+            }
+        }
+
+        int regionHits = 0;
+        float[] rect = new float[4];
+        for (int q = 0; q < numRegions; ++q) {
+            float[] wvp = randomCamera(random);
+            int layerMask = randomLayerMask(random);
+            EntityBvh.Region region = random.nextBoolean()
+                    ? EntityBvh.Region.rectangle(random.nextFloat() * WIDTH,
+                            random.nextFloat() * HEIGHT, random.nextFloat() * WIDTH,
+                            random.nextFloat() * HEIGHT)
+                    : randomLasso(random);
+
+            int[] found = bvh.queryRegion(wvp, WIDTH, HEIGHT, layerMask, region);
+            Set<Integer> expectedSet = new HashSet<Integer>();
+            for (int i = 0; i < n; ++i) {
+                if ((layerMask & (1 << table.getLayer(i))) != 0 &&
+                        EntityBvh.projectBox(wvp, WIDTH, HEIGHT, boxes, 6 * i, rect) &&
+                        region.containsRect(rect[0], rect[1], rect[2], rect[3])) {
+                    expectedSet.add(i);
+                }
+            }
+            regionHits += found.length;
+            if (found.length != expectedSet.size() || !expectedSet.equals(toSet(found))) {
+                ++mismatches;
+                System.out.println("Region mismatch: expected " + expectedSet.size() +
+                        " entities, found " + found.length);
+            }
+        }
+
+        System.out.println(n + " nearest and radius queries, " + numRegions +
+                " region queries (" + regionHits + " entities found), " + mismatches +
+                " mismatches");
+        System.out.println("Nearest: " + indexedNS / 1e3f / n + " us per query indexed, " +
+                linearNS / 1e3f / n + " us linear");
+        if (mismatches > 0) System.exit(1);
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            stream.close();
+        }
+    }
+
+    // A linear scan plus sort, what the queries cost without the index.
+    private static float[] nearestDistances(EntityTable table, float[] boxes,
+            float x, float y, float z, int layerMask, int exclude) {
+        int n = table.size();
+        float[] distances = new float[n];
+        int count = 0;
+        for (int i = 0; i < n; ++i) {
+            if (i == exclude || (layerMask & (1 << table.getLayer(i))) == 0) continue;
+            distances[count++] = distanceSquared(boxes, 6 * i, x, y, z);
+        }
+        Arrays.sort(distances, 0, count);
+        return Arrays.copyOf(distances, Math.min(count, NEAREST));
+    }
+
+    // Same as EntityBvh's, so that the distances compare exactly.
+    private static float distanceSquared(float[] boxes, int offset, float x, float y, float z) {
+        float dx = Math.max(0, Math.max(boxes[offset] - x, x - boxes[offset + 3]));
+        float dy = Math.max(0, Math.max(boxes[offset + 1] - y, y - boxes[offset + 4]));
+        float dz = Math.max(0, Math.max(boxes[offset + 2] - z, z - boxes[offset + 5]));
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private static int randomLayerMask(Random random) {
+        int mask = 0;
+        while (mask == 0)
+            mask = random.nextInt(1 << Layers.NUM_LAYERS);
+        return mask;
+    }
+
+    private static Set<Integer> toSet(int[] entities) {
+        Set<Integer> set = new HashSet<Integer>();
+        for (int entity : entities)
+            set.add(entity);
+        return set;
+    }
+
+    private static EntityBvh.Region randomLasso(Random random) {
+        // A star-shaped polygon around a random center.
+        float cx = random.nextFloat() * WIDTH;
+        float cy = random.nextFloat() * HEIGHT;
+        int numPoints = 3 + random.nextInt(20);
+        float[] points = new float[2 * numPoints];
+        for (int i = 0; i < numPoints; ++i) {
+            double angle = 2 * Math.PI * i / numPoints;
+            float r = (0.2f + random.nextFloat()) * WIDTH / 2;
+            points[2 * i] = cx + r * (float)Math.cos(angle);
+            points[2 * i + 1] = cy + r * (float)Math.sin(angle);
+        }
+        return EntityBvh.Region.lasso(points);
+    }
+
+    private static float[] randomCamera(Random random) {
+        Navigate.Camera camera = new Navigate.Camera();
+        double theta = random.nextDouble() * 2 * Math.PI;
+        double distance = 30 + random.nextDouble() * 150;
+        float height = random.nextFloat() * 180;
+        camera.eye = new float[] {
+            (float)(distance * Math.sin(theta)), height, (float)(distance * Math.cos(theta)) };
+        camera.target = new float[] { 0, height, 0 };
+        camera.up = new float[] { 0, 1, 0 };
+        camera.fov = Navigate.FOV;
+        float[] view = new float[16];
+        float[] wvp = new float[16];
+        Render.computeMatrices(camera, WIDTH / (float)HEIGHT, view, wvp);
+        return wvp;
+    }
+}
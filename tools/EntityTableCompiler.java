@@ -0,0 +1,199 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+import com.google.android.apps.body.Layers;
+import com.google.android.apps.body.SearchIndex;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles the entity text file into the binary table read by
+ * {@code EntityTable}. Run from the project directory after changing
+ * tools/f_entities.txt:
+ *
+ * <pre>
+ * javac -d /tmp/etc -sourcepath src tools/EntityTableCompiler.java
+ * java -cp /tmp/etc EntityTableCompiler tools/f_entities.txt res/raw/f_entities_table \
+ *     res/raw/f_search_index
+ * </pre>
+ *
+ * The text file has a section per layer: the layer name on a line, then a
+ * line per entity ("id,display name,min x,min y,min z,max x,max y,max z"),
+ * then an empty line. If an id appears twice, the last line wins.
+ *
+ * The optional third output is the prebuilt {@code SearchIndex} of the
+ * search terms.
+ *
+ * The tool compiles without android.jar: it only pulls {@code SearchIndex}
+ * and {@code Layers} in from src, so keep those free of android classes.
+ */
+public class EntityTableCompiler {
+
+    // Must match EntityTable.
+    private static final int MAGIC = 0x456e7454;
+    private static final int VERSION = 1;
+
+    private static class Row {
+        String id;
+        String displayName;
+        int layer;
+        float[] box = new float[6];
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2 && args.length != 3) {
+            System.err.println(
+                    "usage: EntityTableCompiler <entities.txt> <output> [<search index output>]");
+            System.exit(1);
+        }
+
+        // Rows in the order their ids first appear.
+        Map<String, Row> rows = new LinkedHashMap<String, Row>();
+        // Display names in the order they first appear, with their first id.
+        Map<String, String> searchTerms = new LinkedHashMap<String, String>();
+
+        BufferedReader reader = new BufferedReader(new FileReader(args[0]));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Integer layer = Layers.fromName(line);
+                if (layer == null) throw new IOException("Unknown layer: " + line);
+                while ((line = reader.readLine()) != null && !"".equals(line)) {
+                    String[] fields = line.split(",");
+                    if (fields.length != 8) throw new IOException("Bad line: " + line);
+                    Row row = rows.get(fields[0]);
+                    if (row == null) {
+                        row = new Row();
+                        row.id = fields[0];
+                        rows.put(row.id, row);
+                    }
+                    row.displayName = fields[1];
+                    row.layer = layer;
+                    for (int i = 0; i < 6; ++i)
+                        row.box[i] = Float.parseFloat(fields[2 + i]);
+                    if (!searchTerms.containsKey(row.displayName))
+                        searchTerms.put(row.displayName, row.id);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        List<Row> table = new ArrayList<Row>(rows.values());
+        Map<String, Integer> rowOfId = new HashMap<String, Integer>();
+        for (int i = 0; i < table.size(); ++i)
+            rowOfId.put(table.get(i).id, i);
+
+        // Shorter search terms first, like the web version; the sort is stable.
+        List<String> terms = new ArrayList<String>(searchTerms.keySet());
+        Collections.sort(terms, new Comparator<String>() {
+                @Override
+                public int compare(String a, String b) {
+                    return a.length() - b.length();
+                }});
+
+        Integer[] sorted = new Integer[table.size()];
+        for (int i = 0; i < sorted.length; ++i)
+            sorted[i] = i;
+        final List<Row> rowList = table;
+        Arrays.sort(sorted, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return rowList.get(a).id.compareTo(rowList.get(b).id);
+                }});
+
+        // Ids and display names are often the same, so strings are pooled.
+        ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        Map<String, Integer> poolOffsets = new HashMap<String, Integer>();
+        int[] idOffsets = new int[table.size()];
+        int[] nameOffsets = new int[table.size()];
+        for (int i = 0; i < table.size(); ++i) {
+            idOffsets[i] = addString(pool, poolOffsets, table.get(i).id);
+            nameOffsets[i] = addString(pool, poolOffsets, table.get(i).displayName);
+        }
+
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(args[1])));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(table.size());
+            out.writeInt(terms.size());
+            out.writeInt(pool.size());
+            for (int offset : idOffsets)
+                out.writeInt(offset);
+            for (int offset : nameOffsets)
+                out.writeInt(offset);
+            for (int row : sorted)
+                out.writeInt(row);
+            for (String term : terms)
+                out.writeInt(rowOfId.get(searchTerms.get(term)));
+            for (int c = 0; c < 6; ++c)
+                for (Row row : table)
+                    out.writeFloat(row.box[c]);
+            for (Row row : table)
+                out.writeByte(row.layer);
+            pool.writeTo(out);
+        } finally {
+            out.close();
+        }
+        System.out.println(table.size() + " entities, " + terms.size() + " search terms, " +
+                pool.size() + " bytes of strings");
+
+        if (args.length == 3) {
+            // The search terms as Base.getFilteredSearchList() returns them.
+            List<String> displayNames = new ArrayList<String>();
+            for (String term : terms)
+                displayNames.add(table.get(rowOfId.get(searchTerms.get(term))).displayName);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(args[2])));
+            try {
+                SearchIndex.write(displayNames, out);
+            } finally {
+                out.close();
+            }
+            System.out.println("Search index: " + out.size() + " bytes");
+        }
+    }
+
+    private static int addString(ByteArrayOutputStream pool, Map<String, Integer> offsets,
+            String s) throws IOException {
+        Integer offset = offsets.get(s);
+        if (offset != null) return offset;
+        if (s.length() > 0xffff) throw new IOException("String too long: " + s);
+        offset = pool.size();
+        pool.write(s.length() >> 8);
+        pool.write(s.length());
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c > 0xff) throw new IOException("Not Latin-1: " + s);
+            pool.write(c);
+        }
+        offsets.put(s, offset);
+        return offset;
+    }
+}
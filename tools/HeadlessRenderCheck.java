@@ -0,0 +1,392 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body;
+
+import com.google.android.apps.body.tdl.GlState;
+import com.google.android.apps.body.tdl.Logger;
+import com.google.android.apps.body.tdl.RecordingGl;
+
+import java.io.File;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Runs {@link Render} on a desktop JVM against a {@link RecordingGl}: loads a
+ * scene of boxes through a {@link Render.Host}, draws frames, picks with
+ * getEntityAtCoord(), evicts and restores layers, and recreates the GL
+ * context. Run from the project directory after changing Render,
+ * GpuResources or the tdl classes, once an ant build has generated
+ * gen/R.java:
+ *
+ * <pre>
+ * javac -cp $ANDROID_SDK/platforms/android-9/android.jar -d /tmp/hrc -sourcepath src:gen \
+ *     tools/HeadlessRenderCheck.java
+ * java -cp /tmp/hrc com.google.android.apps.body.HeadlessRenderCheck [&lt;seed&gt;]
+ * </pre>
+ *
+ * android.jar is only needed to compile the classes around Render; the
+ * check doesn't touch android classes when it runs.
+ *
+ * Checks that frames only draw with live buffers and textures, that
+ * getEntityAtCoord() decodes the selection color under the tap to the
+ * right draw, that evicted layers come back with all their buffers, and
+ * that a layer missing after the loss of the GL context is reported.
+ * Exits with status 1 on a failure.
+ */
+public class HeadlessRenderCheck {
+
+    private static final int WIDTH = 480;
+    private static final int HEIGHT = 800;
+    private static final int GROUPS_PER_LAYER = 2;
+    private static final int DRAWS_PER_GROUP = 5;
+    private static final long TIMEOUT_MS = 10 * 1000;
+
+    private static int sFailures;
+
+    /**
+     * A RecordingGl that tracks which buffers and textures exist, and that
+     * answers glReadPixels with one selection color in the middle of the
+     * picking window.
+     */
+    private static final class CheckingGl extends RecordingGl {
+        final Set<Integer> buffers = new HashSet<Integer>();
+        final Set<Integer> textures = new HashSet<Integer>();
+        int deadBinds;
+        int draws;
+        int readPixels;
+        int pickColor;  // The RGB value glReadPixels returns, 0 for none.
+
+        @Override
+        public void glGenBuffers(int n, int[] names, int offset) {
+            super.glGenBuffers(n, names, offset);
+            for (int i = 0; i < n; ++i)
+                buffers.add(names[offset + i]);
+        }
+
+        @Override
+        public void glDeleteBuffers(int n, int[] names, int offset) {
+            super.glDeleteBuffers(n, names, offset);
+            for (int i = 0; i < n; ++i)
+                buffers.remove(names[offset + i]);
+        }
+
+        @Override
+        public void glGenTextures(int n, int[] names, int offset) {
+            super.glGenTextures(n, names, offset);
+            for (int i = 0; i < n; ++i)
+                textures.add(names[offset + i]);
+        }
+
+        @Override
+        public void glDeleteTextures(int n, int[] names, int offset) {
+            super.glDeleteTextures(n, names, offset);
+            for (int i = 0; i < n; ++i)
+                textures.remove(names[offset + i]);
+        }
+
+        @Override
+        public void glBindBuffer(int target, int buffer) {
+            super.glBindBuffer(target, buffer);
+            if (buffer != 0 && !buffers.contains(buffer)) ++deadBinds;
+        }
+
+        @Override
+        public void glBindTexture(int target, int texture) {
+            super.glBindTexture(target, texture);
+            if (texture != 0 && !textures.contains(texture)) ++deadBinds;
+        }
+
+        @Override
+        public void glDrawElements(int mode, int count, int type, int offset) {
+            super.glDrawElements(mode, count, type, offset);
+            ++draws;
+        }
+
+        @Override
+        public void glReadPixels(int x, int y, int width, int height, int format, int type,
+                Buffer pixels) {
+            super.glReadPixels(x, y, width, height, format, type, pixels);
+            ++readPixels;
+            ByteBuffer data = (ByteBuffer)pixels;
+            for (int i = 0; i < data.capacity(); ++i)
+                data.put(i, (byte)0);
+            int center = 4 * ((height / 2) * width + width / 2);
+            data.put(center, (byte)(pickColor >> 16));
+            data.put(center + 1, (byte)(pickColor >> 8));
+            data.put(center + 2, (byte)pickColor);
+        }
+    }
+
+    /** Hands out the scene, and keeps copies of its CPU buffers for restores. */
+    private static final class SceneHost implements Render.Host {
+        Render render;
+        final Random random;
+        final Map<Render.DrawGroup, ShortBuffer[]> saved =
+                new HashMap<Render.DrawGroup, ShortBuffer[]>();
+        final List<Render.Draw> draws = new ArrayList<Render.Draw>();
+        Render.Draw[] selectionDraws = new Render.Draw[256];
+        int maxColorIndex = 1;
+        int loads;
+        int reads;
+        int withheldLayer = -1;  // A layer to leave out of loads, or -1.
+
+        SceneHost(Random random) {
+            this.random = random;
+        }
+
+        public void loadLayers(Map<Integer, Integer> layerResources) {
+            ++loads;
+            // Like LayersLoader, starting over with every load.
+            draws.clear();
+            selectionDraws = new Render.Draw[selectionDraws.length];
+            maxColorIndex = 1;
+            List<Integer> layers = new ArrayList<Integer>(layerResources.keySet());
+            layers.remove((Integer)withheldLayer);
+            for (int layer : layers) {
+                Render.DrawGroup[] groups = new Render.DrawGroup[GROUPS_PER_LAYER];
+                for (int g = 0; g < groups.length; ++g)
+                    groups[g] = buildGroup(layer);
+                LayersLoader.Results results =
+                        new LayersLoader.Results(layer, groups, selectionDraws, maxColorIndex);
+                results.occluder = OcclusionCuller.buildOccluder(groups);
+                results.bvhs = new TriangleBvh[groups.length];
+                for (int g = 0; g < groups.length; ++g)
+                    results.bvhs[g] = TriangleBvh.build(groups[g]);
+                results.isSpilled = true;
+                render.finishLayerLoad(results, layer == layers.get(layers.size() - 1));
+            }
+        }
+
+        public boolean readLayerBuffers(int layer, Render.DrawGroup[] groups) {
+            synchronized (this) {
+                ++reads;
+            }
+            for (Render.DrawGroup group : groups) {
+                ShortBuffer[] buffers = saved.get(group);
+                if (buffers == null) return false;
+                group.vertexBufferData = buffers[0].duplicate();
+                group.indexBufferData = buffers[1].duplicate();
+                group.colorBufferData = buffers[2].duplicate();
+            }
+            return true;
+        }
+
+        public File getCacheDir() {
+            return null;
+        }
+
+        synchronized int getReads() {
+            return reads;
+        }
+
+        // Boxes in front of the initial camera, one per draw.
+        private Render.DrawGroup buildGroup(int layer) {
+            Render.DrawGroup group = new Render.DrawGroup();
+            group.draws = new ArrayList<Render.Draw>();
+            group.numVertices = 8 * DRAWS_PER_GROUP;
+            group.numIndices = 36 * DRAWS_PER_GROUP;
+            group.vertexBufferData = ShortBuffer.allocate(8 * group.numVertices);
+            group.indexBufferData = ShortBuffer.allocate(group.numIndices);
+            group.colorBufferData = ShortBuffer.allocate(group.numVertices);
+            for (int d = 0; d < DRAWS_PER_GROUP; ++d) {
+                Render.Draw draw = new Render.Draw();
+                draw.geometry = "layer" + layer + "_" + draws.size();
+                draw.entity = EntityIds.NONE;
+                draw.offset = 36 * d;
+                draw.count = 36;
+                draw.selectionColor = maxColorIndex++;
+                selectionDraws[draw.selectionColor] = draw;
+                group.draws.add(draw);
+                draws.add(draw);
+                addBox(group, 8 * d, draw.selectionColor);
+            }
+            group.vertexBufferData.rewind();
+            group.indexBufferData.rewind();
+            group.colorBufferData.rewind();
+            group.diffuseColor = new float[] {
+                random.nextFloat(), random.nextFloat(), random.nextFloat() };
+            group.clusters = Clusters.build(
+                    group.vertexBufferData, group.indexBufferData, group.draws);
+            saved.put(group, new ShortBuffer[] {
+                copy(group.vertexBufferData), copy(group.indexBufferData),
+                copy(group.colorBufferData) });
+            return group;
+        }
+
+        private void addBox(Render.DrawGroup group, int first, int color) {
+            float x = (random.nextFloat() - 0.5f) * 60;
+            float y = 90 + random.nextFloat() * 60;
+            float z = (random.nextFloat() - 0.5f) * 30;
+            float size = 2 + random.nextFloat() * 10;
+            for (int i = 0; i < 8; ++i) {
+                group.vertexBufferData.put(toShort(x + ((i & 1) != 0 ? size : 0)));
+                group.vertexBufferData.put(toShort(y + ((i & 2) != 0 ? size : 0)));
+                group.vertexBufferData.put(toShort(z + ((i & 4) != 0 ? size : 0)));
+                group.vertexBufferData.put(new short[5]);  // Normal, texture coordinates.
+                group.colorBufferData.put((short)color);
+            }
+            int[] faces = {
+                0, 2, 3, 1,  4, 5, 7, 6,  0, 1, 5, 4,  2, 6, 7, 3,  0, 4, 6, 2,  1, 3, 7, 5,
+            };
+            for (int f = 0; f < faces.length; f += 4) {
+                int[] quad = { faces[f], faces[f + 1], faces[f + 2], faces[f + 3] };
+                int[] triangles = { quad[0], quad[1], quad[2], quad[0], quad[2], quad[3] };
+                for (int index : triangles)
+                    group.indexBufferData.put((short)(first + index));
+            }
+        }
+    }
+
+    /** Collects the warnings and errors of the renderer. */
+    private static final class CheckingLogger implements Logger {
+        final List<String> warnings = new ArrayList<String>();
+
+        public void d(String message) {
+        }
+
+        public void i(String message) {
+        }
+
+        public void w(String message) {
+            warnings.add(message);
+        }
+
+        public void e(String message) {
+            warnings.add(message);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length > 1) {
+            System.err.println("usage: HeadlessRenderCheck [<seed>]");
+            System.exit(1);
+        }
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+
+        CheckingLogger logger = new CheckingLogger();
+        CheckingGl gl = new CheckingGl();
+        GlState.setGl(gl);
+        GlState.setLogger(logger);
+        Layers.initialize();
+        Select.initialize();
+        Navigate navigate = new Navigate();
+        navigate.initialize();
+
+        SceneHost host = new SceneHost(new Random(seed));
+        Render render = new Render(navigate, logger);
+        host.render = render;
+        render.setClientSize(WIDTH, HEIGHT);
+        render.initialize(host);
+        check(host.loads == 1, "initialize() loads the layers once, not " + host.loads + " times");
+        int numLayers = Render.layerInfo.size();
+        int numBuffers = 3 * GROUPS_PER_LAYER * numLayers;
+        check(gl.buffers.size() == numBuffers,
+                "Expected " + numBuffers + " buffers after the load, found " + gl.buffers.size());
+
+        // Frames.
+        for (int frame = 0; frame < 3; ++frame) {
+            gl.draws = 0;
+            render.drawBody();
+            check(gl.draws > 0, "Frame " + frame + " drew nothing");
+        }
+        check(gl.deadBinds == 0, gl.deadBinds + " binds of deleted buffers or textures");
+
+        // Picks. Each tap goes to another position, so that the pick cache
+        // doesn't answer it.
+        float scale = (float)Math.floor((256 * 256 * 256 - 1) / (float)host.maxColorIndex);
+        int tap = 0;
+        for (Render.Draw draw : host.draws) {
+            gl.pickColor = Math.round(draw.selectionColor * scale);
+            String found = render.getEntityAtCoord(10 + tap % 400, 10 + tap / 400);
+            ++tap;
+            check(draw.geometry.equals(found),
+                    "Picked '" + found + "' instead of '" + draw.geometry + "'");
+        }
+        gl.pickColor = 0;
+        String nothing = render.getEntityAtCoord(10 + tap % 400, 10 + tap / 400);
+        check("".equals(nothing), "Picked '" + nothing + "' from an empty window");
+        int reads = gl.readPixels;
+        render.getEntityAtCoord(10 + tap % 400, 10 + tap / 400);
+        check(gl.readPixels == reads, "A repeated pick wasn't answered from the cache");
+
+        // Evict all invisible layers, one per frame, then show them again
+        // and wait until they are read back and uploaded.
+        render.setGpuBudget(0);
+        render.setEvictionDelay(0);
+        for (int frame = 0; frame < numLayers; ++frame)
+            render.drawBody();
+        int visibleBuffers = 3 * GROUPS_PER_LAYER;
+        check(gl.buffers.size() == visibleBuffers, "Expected " + visibleBuffers +
+                " buffers after eviction, found " + gl.buffers.size());
+        float[] opacities = new float[Layers.NUM_LAYERS];
+        Arrays.fill(opacities, 1);
+        Layers.changeOpacities(opacities, -1);
+        long start = System.currentTimeMillis();
+        while (gl.buffers.size() < numBuffers &&
+                System.currentTimeMillis() - start < TIMEOUT_MS) {
+            render.drawBody();
+            Thread.sleep(10);
+        }
+        check(host.getReads() == numLayers - 1,
+                "Expected " + (numLayers - 1) + " layer reads, found " + host.getReads());
+        check(gl.buffers.size() == numBuffers, "Expected " + numBuffers +
+                " buffers after restoring, found " + gl.buffers.size());
+        check(gl.deadBinds == 0, gl.deadBinds + " binds of deleted buffers or textures");
+
+        // A new GL context. The layer the host leaves out must be reported,
+        // and nothing else.
+        gl = new CheckingGl();
+        GlState.setGl(gl);
+        logger.warnings.clear();
+        host.withheldLayer = Layers.NERVOUS;
+        render.initialize(host);
+        check(logger.warnings.size() == 1 &&
+                logger.warnings.get(0).startsWith("Layer " + Layers.NERVOUS + " is missing"),
+                "Expected a report of the missing layer " + Layers.NERVOUS + ", found " +
+                logger.warnings);
+        for (int frame = 0; frame < 3; ++frame)
+            render.drawBody();
+        check(gl.deadBinds == 0, gl.deadBinds + " binds of buffers from the lost context");
+
+        System.out.println(host.draws.size() + " draws in " + numLayers + " layers, " +
+                tap + " picks, " + sFailures + " failures");
+        if (sFailures > 0) System.exit(1);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (condition) return;
+        ++sFailures;
+        System.out.println(message);
+    }
+
+    private static short toShort(float coordinate) {
+        return (short)Math.round(coordinate * TriangleBvh.POSITION_SCALE);
+    }
+
+    private static ShortBuffer copy(ShortBuffer buffer) {
+        ShortBuffer copy = ShortBuffer.allocate(buffer.capacity());
+        copy.put(buffer.duplicate());
+        copy.rewind();
+        return copy;
+    }
+}
@@ -0,0 +1,506 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body;
+
+import com.google.android.apps.body.tdl.TdlMath;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks {@link RayPicker} against the GL picker, headless. Run from the
+ * project directory after changing RayPicker or TriangleBvh, once an ant
+ * build has generated gen/R.java:
+ *
+ * <pre>
+ * javac -cp $ANDROID_SDK/platforms/android-9/android.jar -d /tmp/rpc -sourcepath src:gen \
+ *     tools/RayPickerCheck.java
+ * java -cp /tmp/rpc com.google.android.apps.body.RayPickerCheck [&lt;picks&gt; [&lt;seed&gt;]]
+ * </pre>
+ *
+ * android.jar is only needed to compile Render; the check doesn't touch
+ * android classes when it runs.
+ *
+ * The scene is random ellipsoids in three layers, some of them drawn
+ * mirrored (see Mirrors), in the format LayersLoader decodes layers to. The
+ * reference does what Render.getEntityAtCoord() does on the GL: it renders
+ * the picking window around the tap, here by intersecting the ray through
+ * every pixel with every front facing triangle in double precision, and
+ * searches it with Render.findPixelInRect(). Pixels whose result depends on
+ * rounding, because the ray passes within a hair of a triangle edge or two
+ * surfaces are about as deep, are marked, and picks decided by one of them
+ * are skipped.
+ *
+ * Every camera also gets a short scrub, whose warm-started picks must equal
+ * the cold ones. Exits with status 1 on a mismatch.
+ */
+public class RayPickerCheck {
+
+    private static final int WIDTH = 480;
+    private static final int HEIGHT = 800;
+    private static final int WINDOW = Render.SELECTION_RECT_WIDTH;
+    private static final int[] LAYERS = { Layers.SKIN, Layers.MUSCLE, Layers.SKELETON };
+
+    // Marks a pixel of the reference window whose draw depends on rounding.
+    private static final int AMBIGUOUS = 0xffffff;
+
+    // Tolerances of the reference: barycentric coordinates, ray parameter
+    // (0 to 1 from the near to the far plane), and the cosine of the angle
+    // between the ray and the plane of a triangle seen edge on.
+    private static final double EDGE_EPSILON = 1e-4;
+    private static final double DEPTH_EPSILON = 1e-4;
+    private static final double GRAZING_EPSILON = 1e-5;
+
+    /** The triangles of one draw, in world units, as drawn. */
+    private static final class Mesh {
+        Render.Draw draw;
+        int layer;
+        int value;  // The draw's color in the reference window.
+        double[] triangles;  // Nine coordinates per triangle.
+        double[] center = new double[3];
+        double radius;
+    }
+
+    public static void main(String[] args) {
+        if (args.length > 2) {
+            System.err.println("usage: RayPickerCheck [<picks> [<seed>]]");
+            System.exit(1);
+        }
+        int numPicks = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        Random random = new Random(seed);
+
+        RayPicker picker = new RayPicker();
+        List<Mesh> meshes = new ArrayList<Mesh>();
+        for (int layer : LAYERS) {
+            Render.DrawGroup[] groups = new Render.DrawGroup[2];
+            TriangleBvh[] bvhs = new TriangleBvh[groups.length];
+            for (int g = 0; g < groups.length; ++g) {
+                groups[g] = buildGroup(layer, random);
+                bvhs[g] = TriangleBvh.build(groups[g]);
+                addMeshes(layer, groups[g], meshes);
+            }
+            picker.setLayer(layer, bvhs);
+        }
+
+        int picks = 0, hits = 0, ambiguous = 0, mismatches = 0, scrubMismatches = 0;
+        float[] view = new float[16];
+        float[] wvp = new float[16];
+        while (picks < numPicks) {
+            Navigate.Camera camera = randomCamera(random);
+            Render.computeMatrices(camera, WIDTH / (float)HEIGHT, view, wvp);
+            int layerMask = 0;
+            while (layerMask == 0) {
+                for (int layer : LAYERS)
+                    if (random.nextBoolean()) layerMask |= 1 << layer;
+            }
+
+            int[] tap = randomTap(wvp, meshes, random);
+            Render.Draw expected = null;
+            int value = referencePick(wvp, tap[0], tap[1], layerMask, meshes);
+            ++picks;
+            if (value == AMBIGUOUS) {
+                ++ambiguous;
+                continue;
+            }
+            for (Mesh mesh : meshes)
+                if (mesh.value == value) expected = mesh.draw;
+            Render.Draw found = picker.pick(wvp, WIDTH, HEIGHT, tap[0], tap[1], WINDOW, layerMask);
+            if (expected != null) ++hits;
+            if (found != expected) {
+                ++mismatches;
+                System.out.println("Mismatch at " + tap[0] + "," + tap[1] + " of camera " +
+                        str(camera.eye) + ": expected " + name(expected) + ", found " +
+                        name(found));
+            }
+
+            // Scrub from the tap, carrying the hit along.
+            TriangleBvh.Hit hit = new TriangleBvh.Hit();
+            hit.reset(1);
+            int x = tap[0], y = tap[1];
+            for (int i = 0; i < 8; ++i) {
+                Render.Draw warm = picker.pick(wvp, WIDTH, HEIGHT, x, y, WINDOW, layerMask, hit);
+                Render.Draw cold = picker.pick(wvp, WIDTH, HEIGHT, x, y, WINDOW, layerMask);
+                if (warm != cold) {
+                    ++scrubMismatches;
+                    System.out.println("Scrub mismatch at " + x + "," + y + ": " + name(warm) +
+                            " instead of " + name(cold));
+                }
+                x += random.nextInt(9) - 4;
+                y += random.nextInt(9) - 4;
+            }
+        }
+
+        System.out.println(picks + " picks, " + hits + " hits, " + ambiguous +
+                " skipped as ambiguous, " + mismatches + " mismatches, " + scrubMismatches +
+                " scrub mismatches");
+        if (mismatches > 0 || scrubMismatches > 0) System.exit(1);
+    }
+
+    // A group of ellipsoids in a box around the body, a few of them mirrored.
+    private static Render.DrawGroup buildGroup(int layer, Random random) {
+        List<short[]> vertices = new ArrayList<short[]>();
+        List<Integer> indices = new ArrayList<Integer>();
+        Render.DrawGroup group = new Render.DrawGroup();
+        group.draws = new ArrayList<Render.Draw>();
+        int numDraws = 8;
+        for (int d = 0; d < numDraws; ++d) {
+            double[] center = {
+                (random.nextDouble() - 0.5) * 60,
+                random.nextDouble() * 160,
+                (random.nextDouble() - 0.5) * 30 };
+            double[] radii = new double[3];
+            for (int i = 0; i < 3; ++i)
+                radii[i] = 2 + random.nextDouble() * (layer == Layers.SKIN ? 20 : 10);
+            Render.Draw draw = new Render.Draw();
+            draw.geometry = "layer" + layer + "_" + group.hashCode() + "_" + d;
+            draw.offset = indices.size();
+            addEllipsoid(center, radii, 6 + random.nextInt(6), vertices, indices);
+            draw.count = indices.size() - draw.offset;
+            group.draws.add(draw);
+            if (d % 3 == 0) {
+                Render.Draw mirror = new Render.Draw();
+                mirror.geometry = draw.geometry + "_mirrored";
+                mirror.mirrorOf = draw;
+                mirror.offset = draw.offset;
+                mirror.count = draw.count;
+                group.draws.add(mirror);
+            }
+        }
+
+        group.numVertices = vertices.size();
+        group.vertexBufferData = ShortBuffer.allocate(8 * vertices.size());
+        for (short[] vertex : vertices) {
+            group.vertexBufferData.put(vertex);
+            group.vertexBufferData.put(new short[5]);  // Normal, texture coordinates.
+        }
+        group.vertexBufferData.rewind();
+        group.numIndices = indices.size();
+        group.indexBufferData = ShortBuffer.allocate(indices.size());
+        for (int index : indices)
+            group.indexBufferData.put((short)index);
+        group.indexBufferData.rewind();
+        return group;
+    }
+
+    // Appends a closed ellipsoid, wound counter-clockwise seen from outside.
+    private static void addEllipsoid(double[] center, double[] radii, int rings,
+            List<short[]> vertices, List<Integer> indices) {
+        int segments = 2 * rings;
+        int first = vertices.size();
+        for (int i = 0; i <= rings; ++i) {
+            double theta = Math.PI * i / rings;
+            int count = i == 0 || i == rings ? 1 : segments;
+            for (int j = 0; j < count; ++j) {
+                double phi = 2 * Math.PI * j / segments;
+                double[] unit = {
+                    Math.sin(theta) * Math.cos(phi), Math.cos(theta),
+                    Math.sin(theta) * Math.sin(phi) };
+                short[] vertex = new short[3];
+                for (int k = 0; k < 3; ++k) {
+                    vertex[k] = (short)Math.round(
+                            (center[k] + radii[k] * unit[k]) * TriangleBvh.POSITION_SCALE);
+                }
+                vertices.add(vertex);
+            }
+        }
+        for (int i = 0; i < rings; ++i) {
+            for (int j = 0; j < segments; ++j) {
+                int a = ringVertex(first, rings, segments, i, j);
+                int b = ringVertex(first, rings, segments, i, j + 1);
+                int c = ringVertex(first, rings, segments, i + 1, j);
+                int d = ringVertex(first, rings, segments, i + 1, j + 1);
+                if (i > 0) addOutwardTriangle(center, vertices, indices, a, b, c);
+                if (i < rings - 1) addOutwardTriangle(center, vertices, indices, b, d, c);
+            }
+        }
+    }
+
+    private static int ringVertex(int first, int rings, int segments, int ring, int j) {
+        if (ring == 0) return first;
+        if (ring == rings) return first + 1 + (rings - 1) * segments;
+        return first + 1 + (ring - 1) * segments + j % segments;
+    }
+
+    private static void addOutwardTriangle(double[] center, List<short[]> vertices,
+            List<Integer> indices, int a, int b, int c) {
+        double[] pa = toWorld(vertices.get(a));
+        double[] pb = toWorld(vertices.get(b));
+        double[] pc = toWorld(vertices.get(c));
+        double[] normal = cross(sub(pb, pa), sub(pc, pa));
+        double[] out = sub(pa, center);
+        indices.add(a);
+        if (dot(normal, out) >= 0) {
+            indices.add(b);
+            indices.add(c);
+        } else {
+            indices.add(c);
+            indices.add(b);
+        }
+    }
+
+    // The triangles of every draw of |group|, as the GL draws them: mirrored
+    // draws reflected by Mirrors.REFLECTION, with their winding flipped.
+    private static void addMeshes(int layer, Render.DrawGroup group, List<Mesh> meshes) {
+        short[] vertices = new short[group.vertexBufferData.capacity()];
+        group.vertexBufferData.get(vertices);
+        group.vertexBufferData.rewind();
+        short[] indices = new short[group.indexBufferData.capacity()];
+        group.indexBufferData.get(indices);
+        group.indexBufferData.rewind();
+
+        for (Render.Draw draw : group.draws) {
+            Mesh mesh = new Mesh();
+            mesh.draw = draw;
+            mesh.layer = layer;
+            mesh.value = meshes.size() + 1;
+            mesh.triangles = new double[3 * draw.count];
+            for (int i = 0; i < draw.count; ++i) {
+                // Swapping the last two corners flips the winding.
+                int corner = i % 3;
+                if (draw.mirrorOf != null && corner > 0) corner = 3 - corner;
+                int v = indices[draw.offset + i - i % 3 + corner] & 0xffff;
+                double[] p = { vertices[8 * v], vertices[8 * v + 1], vertices[8 * v + 2], 1 };
+                for (int k = 0; k < 3; ++k)
+                    p[k] /= TriangleBvh.POSITION_SCALE;
+                if (draw.mirrorOf != null) p = transform(Mirrors.REFLECTION, p);
+                for (int k = 0; k < 3; ++k) {
+                    mesh.triangles[3 * i + k] = p[k];
+                    mesh.center[k] += p[k] / draw.count;
+                }
+            }
+            for (int i = 0; i < draw.count; ++i) {
+                double[] p = {
+                    mesh.triangles[3 * i], mesh.triangles[3 * i + 1], mesh.triangles[3 * i + 2] };
+                mesh.radius = Math.max(mesh.radius, Math.sqrt(dot(sub(p, mesh.center),
+                        sub(p, mesh.center))));
+            }
+            mesh.radius = mesh.radius * 1.01 + 0.1;
+            meshes.add(mesh);
+        }
+    }
+
+    // A camera orbiting the body, like Navigate's.
+    private static Navigate.Camera randomCamera(Random random) {
+        Navigate.Camera camera = new Navigate.Camera();
+        double theta = random.nextDouble() * 2 * Math.PI;
+        double distance = 60 + random.nextDouble() * 240;
+        float height = random.nextFloat() * 160;
+        camera.eye = new float[] {
+            (float)(distance * Math.sin(theta)), height, (float)(distance * Math.cos(theta)) };
+        camera.target = new float[] { 0, height + (random.nextFloat() - 0.5f) * 40, 0 };
+        camera.up = new float[] { 0, 1, 0 };
+        camera.fov = Navigate.FOV;
+        return camera;
+    }
+
+    // Mostly near a random vertex, so that most picks hit something.
+    private static int[] randomTap(float[] wvp, List<Mesh> meshes, Random random) {
+        if (random.nextInt(5) > 0) {
+            Mesh mesh = meshes.get(random.nextInt(meshes.size()));
+            int i = random.nextInt(mesh.triangles.length / 3);
+            double[] clip = transform(wvp, new double[] {
+                mesh.triangles[3 * i], mesh.triangles[3 * i + 1], mesh.triangles[3 * i + 2], 1 });
+            if (clip[3] > 0) {
+                int x = (int)Math.floor((clip[0] / clip[3] + 1) / 2 * WIDTH) +
+                        random.nextInt(41) - 20;
+                int y = (int)Math.floor((clip[1] / clip[3] + 1) / 2 * HEIGHT) +
+                        random.nextInt(41) - 20;
+                if (x >= 0 && x < WIDTH && y >= 0 && y < HEIGHT) return new int[] { x, y };
+            }
+        }
+        return new int[] { random.nextInt(WIDTH), random.nextInt(HEIGHT) };
+    }
+
+    /**
+     * Renders the picking window around window position x, y (going up)
+     * like Render.drawBodyForSelection() and searches it like
+     * getEntityAtCoord().
+     *
+     * @return The value of the picked mesh, 0 for none, or AMBIGUOUS.
+     */
+    private static int referencePick(float[] wvp, int x, int y, int layerMask,
+            List<Mesh> meshes) {
+        // The window's projection, zoomed in on the tap like on the GL.
+        float[] pickingMatrix = new float[16];
+        TdlMath.pickMatrix(pickingMatrix, x, y, WINDOW, WINDOW,
+                new float[] { 0, 0, WIDTH, HEIGHT });
+        float[] windowWvp = new float[16];
+        TdlMath.multiply(windowWvp, pickingMatrix, wvp);
+        double[] inverse = invert(windowWvp);
+
+        ByteBuffer pixels = ByteBuffer.allocate(4 * WINDOW * WINDOW);
+        for (int py = 0; py < WINDOW; ++py) {
+            for (int px = 0; px < WINDOW; ++px) {
+                double ndcX = (px + 0.5) / WINDOW * 2 - 1;
+                double ndcY = (py + 0.5) / WINDOW * 2 - 1;
+                double[] near = project(inverse, ndcX, ndcY, -1);
+                double[] far = project(inverse, ndcX, ndcY, 1);
+                int value = castReferenceRay(near, sub(far, near), layerMask, meshes);
+                int offset = 4 * (py * WINDOW + px);
+                pixels.put(offset, (byte)(value >> 16));
+                pixels.put(offset + 1, (byte)(value >> 8));
+                pixels.put(offset + 2, (byte)value);
+            }
+        }
+        return Render.findPixelInRect(
+                WINDOW / 2, WINDOW / 2, WINDOW, WINDOW, WINDOW, pixels);
+    }
+
+    // The value of the closest front facing triangle hit by origin + t * dir,
+    // 0 <= t <= 1, or AMBIGUOUS.
+    private static int castReferenceRay(double[] origin, double[] dir, int layerMask,
+            List<Mesh> meshes) {
+        // First the sure hits, then every near miss or tie that could
+        // change the result.
+        double bestT = Double.MAX_VALUE;
+        int best = 0;
+        for (int pass = 0; pass < 2; ++pass) {
+            for (Mesh mesh : meshes) {
+                if ((layerMask & (1 << mesh.layer)) == 0) continue;
+                if (!hitsSphere(origin, dir, mesh.center, mesh.radius)) continue;
+                for (int i = 0; i < mesh.triangles.length; i += 9) {
+                    double[] hit = intersect(mesh.triangles, i, origin, dir);
+                    if (hit == null) continue;
+                    double t = hit[0], margin = hit[1];
+                    boolean isSure = margin > EDGE_EPSILON && t > DEPTH_EPSILON &&
+                            t < 1 - DEPTH_EPSILON;
+                    if (pass == 0) {
+                        if (isSure && t < bestT) {
+                            bestT = t;
+                            best = mesh.value;
+                        }
+                    } else if (mesh.value != best && t < bestT + DEPTH_EPSILON &&
+                            margin > -EDGE_EPSILON && t > -DEPTH_EPSILON &&
+                            t < 1 + DEPTH_EPSILON) {
+                        return AMBIGUOUS;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    // Intersects the ray with the triangle at triangles[i]. Returns the ray
+    // parameter and the smallest barycentric coordinate of the hit point, or
+    // null for back faces. Triangles seen edge on count as near misses.
+    private static double[] intersect(double[] triangles, int i, double[] origin,
+            double[] dir) {
+        double[] p0 = { triangles[i], triangles[i + 1], triangles[i + 2] };
+        double[] e1 = sub(new double[] { triangles[i + 3], triangles[i + 4], triangles[i + 5] },
+                p0);
+        double[] e2 = sub(new double[] { triangles[i + 6], triangles[i + 7], triangles[i + 8] },
+                p0);
+        double[] normal = cross(e1, e2);
+        double facing = -dot(dir, normal);
+        double scale = Math.sqrt(dot(dir, dir) * dot(normal, normal));
+        if (facing <= -GRAZING_EPSILON * scale) return null;
+        if (facing < GRAZING_EPSILON * scale) return new double[] { 0.5, 0 };
+
+        double[] s = sub(origin, p0);
+        double[] p = cross(dir, e2);
+        double[] q = cross(s, e1);
+        double u = dot(s, p) / facing;
+        double v = dot(dir, q) / facing;
+        double t = dot(e2, q) / facing;
+        return new double[] { t, Math.min(Math.min(u, v), 1 - u - v) };
+    }
+
+    private static boolean hitsSphere(double[] origin, double[] dir, double[] center,
+            double radius) {
+        double[] toCenter = sub(center, origin);
+        double t = Math.max(0, Math.min(1, dot(toCenter, dir) / dot(dir, dir)));
+        double[] closest = { origin[0] + t * dir[0] - center[0],
+            origin[1] + t * dir[1] - center[1], origin[2] + t * dir[2] - center[2] };
+        return dot(closest, closest) <= radius * radius;
+    }
+
+    private static double[] project(double[] inverse, double x, double y, double z) {
+        double[] p = transform(inverse, new double[] { x, y, z, 1 });
+        return new double[] { p[0] / p[3], p[1] / p[3], p[2] / p[3] };
+    }
+
+    private static double[] transform(float[] m, double[] v) {
+        double[] d = new double[16];
+        for (int i = 0; i < 16; ++i) d[i] = m[i];
+        return transform(d, v);
+    }
+
+    private static double[] transform(double[] m, double[] v) {
+        double[] result = new double[4];
+        for (int row = 0; row < 4; ++row) {
+            for (int k = 0; k < 4; ++k)
+                result[row] += m[4 * k + row] * v[k];
+        }
+        return result;
+    }
+
+    // Gauss-Jordan elimination with partial pivoting, on a column-major matrix.
+    private static double[] invert(float[] matrix) {
+        double[][] a = new double[4][8];
+        for (int row = 0; row < 4; ++row) {
+            for (int col = 0; col < 4; ++col)
+                a[row][col] = matrix[4 * col + row];
+            a[row][4 + row] = 1;
+        }
+        for (int col = 0; col < 4; ++col) {
+            int pivot = col;
+            for (int row = col + 1; row < 4; ++row)
+                if (Math.abs(a[row][col]) > Math.abs(a[pivot][col])) pivot = row;
+            double[] swap = a[col];
+            a[col] = a[pivot];
+            a[pivot] = swap;
+            for (int row = 0; row < 4; ++row) {
+                if (row == col) continue;
+                double f = a[row][col] / a[col][col];
+                for (int k = 0; k < 8; ++k)
+                    a[row][k] -= f * a[col][k];
+            }
+        }
+        double[] inverse = new double[16];
+        for (int row = 0; row < 4; ++row)
+            for (int col = 0; col < 4; ++col)
+                inverse[4 * col + row] = a[row][4 + col] / a[row][row];
+        return inverse;
+    }
+
+    private static double[] toWorld(short[] vertex) {
+        return new double[] { vertex[0] / TriangleBvh.POSITION_SCALE,
+            vertex[1] / TriangleBvh.POSITION_SCALE, vertex[2] / TriangleBvh.POSITION_SCALE };
+    }
+
+    private static double[] sub(double[] a, double[] b) {
+        return new double[] { a[0] - b[0], a[1] - b[1], a[2] - b[2] };
+    }
+
+    private static double dot(double[] a, double[] b) {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+    }
+
+    private static double[] cross(double[] a, double[] b) {
+        return new double[] {
+            a[1] * b[2] - a[2] * b[1], a[2] * b[0] - a[0] * b[2], a[0] * b[1] - a[1] * b[0] };
+    }
+
+    private static String str(float[] v) {
+        return "(" + v[0] + ", " + v[1] + ", " + v[2] + ")";
+    }
+
+    private static String name(Render.Draw draw) {
+        return draw != null ? draw.geometry : "nothing";
+    }
+}
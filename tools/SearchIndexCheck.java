@@ -0,0 +1,329 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Checks {@link SearchIndex#findFuzzy} against a brute-force search, over a
+ * corpus of random misspellings of the search terms, and
+ * {@link SearchIndex#find} against the regular expression it replaces. Run
+ * from the project directory after changing SearchIndex:
+ *
+ * <pre>
+ * javac -d /tmp/sic -sourcepath src tools/SearchIndexCheck.java
+ * java -cp /tmp/sic com.google.android.apps.body.SearchIndexCheck tools/f_entities.txt \
+ *     res/raw/f_search_index [&lt;queries&gt; [&lt;seed&gt;]]
+ * </pre>
+ *
+ * All searches run on the prebuilt index that the provider reads (see
+ * {@link SearchIndex#read}), which must give the same results as an index
+ * built from the terms. The time to read it and to build one is printed.
+ *
+ * Every query is searched at once and as typed, one character at a time
+ * (see {@link SearchIndex#match}), and both results must equal the brute
+ * force's. The exact search gets pieces of terms from a word start on, in
+ * random case, and every term must be the best exact match for itself.
+ * Exits with status 1 on a mismatch. Also prints the latency of the
+ * one-shot searches, and of the exact searches and the regex.
+ */
+public class SearchIndexCheck {
+
+    // Misspellings whose intended term is known.
+    private static final String[][] KNOWN = {
+        { "sternocleidomastiod", "Sternocleidomastoid" },
+        { "gastrocnemeus", "Gastrocnemius" },
+        { "trapezuis", "Trapezius" },
+        { "humerous", "Humerus" },
+    };
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 4) {
+            System.err.println(
+                    "usage: SearchIndexCheck <entities.txt> <search index> [<queries> [<seed>]]");
+            System.exit(1);
+        }
+        int numQueries = args.length > 2 ? Integer.parseInt(args[2]) : 3000;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+
+        List<String> terms = readTerms(args[0]);
+        ByteBuffer data = ByteBuffer.wrap(readFile(args[1]));
+        long startNS = System.nanoTime();
+        SearchIndex index = SearchIndex.read(terms, data);
+        long readNS = System.nanoTime() - startNS;
+        startNS = System.nanoTime();
+        SearchIndex built = new SearchIndex(terms);
+        long buildNS = System.nanoTime() - startNS;
+        String[] folded = new String[terms.size()];
+        for (int t = 0; t < folded.length; ++t)
+            folded[t] = terms.get(t).toLowerCase();
+
+        List<String> queries = new ArrayList<String>();
+        for (String[] known : KNOWN)
+            queries.add(known[0]);
+        Random random = new Random(seed);
+        while (queries.size() < numQueries + KNOWN.length)
+            queries.add(misspell(terms.get(random.nextInt(terms.size())), random));
+
+        int mismatches = 0;
+        long[] times = new long[queries.size()];
+        for (int q = 0; q < queries.size(); ++q) {
+            String query = queries.get(q);
+            int[] expected = bruteForce(query, folded);
+
+            startNS = System.nanoTime();
+            int[] found = index.findFuzzy(query);
+            times[q] = System.nanoTime() - startNS;
+
+            SearchIndex.Matches matches = null;
+            for (int i = 1; i <= query.length(); ++i)
+                matches = index.match(query.substring(0, i), matches);
+            int[] typed = matches.getFuzzy();
+            int[] fromBuilt = built.findFuzzy(query);
+
+            if (!Arrays.equals(expected, found) || !Arrays.equals(expected, typed) ||
+                    !Arrays.equals(expected, fromBuilt)) {
+                ++mismatches;
+                System.out.println("Mismatch for \"" + query + "\": expected " +
+                        Arrays.toString(expected) + ", found " + Arrays.toString(found) +
+                        ", typed " + Arrays.toString(typed));
+            }
+        }
+
+        for (String[] known : KNOWN) {
+            int[] found = index.findFuzzy(known[0]);
+            if (found.length == 0 || !terms.get(found[0]).contains(known[1])) {
+                ++mismatches;
+                System.out.println("\"" + known[0] + "\" doesn't find " + known[1] + " first");
+            }
+        }
+
+        long findNS = 0, regexNS = 0;
+        for (int q = 0; q < numQueries; ++q) {
+            String query = exactQuery(terms.get(random.nextInt(terms.size())), random);
+            startNS = System.nanoTime();
+            int[] expected = regexSearch(query, terms);
+            regexNS += System.nanoTime() - startNS;
+            startNS = System.nanoTime();
+            int[] found = index.find(query);
+            findNS += System.nanoTime() - startNS;
+            if (!Arrays.equals(expected, found) ||
+                    !Arrays.equals(built.findTop(query, 0), index.findTop(query, 0))) {
+                ++mismatches;
+                System.out.println("Exact mismatch for \"" + query + "\": expected " +
+                        Arrays.toString(expected) + ", found " + Arrays.toString(found));
+            }
+        }
+
+        // Typing a whole term finds it first.
+        for (int t = 0; t < terms.size(); ++t) {
+            int[] top = index.findTop(terms.get(t).toLowerCase(), 1);
+            if (top.length == 0 || !terms.get(top[0]).equalsIgnoreCase(terms.get(t))) {
+                ++mismatches;
+                System.out.println("\"" + terms.get(t) + "\" isn't its own best match");
+            }
+        }
+
+        Arrays.sort(times);
+        System.out.println(queries.size() + " fuzzy queries, " + numQueries + " exact queries, " +
+                terms.size() + " whole terms, " + mismatches + " mismatches");
+        System.out.println("findFuzzy: median " + times[times.length / 2] / 1000 + " us, p99 " +
+                times[times.length * 99 / 100] / 1000 + " us");
+        System.out.println("find: " + findNS / 1e3f / numQueries + " us per query vs " +
+                regexNS / 1e3f / numQueries + " us for the regex");
+        System.out.println("Reading the index took " + readNS / 1e6f + " ms, building it " +
+                buildNS / 1e6f + " ms");
+        if (mismatches > 0) System.exit(1);
+    }
+
+    private static byte[] readFile(String path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            byte[] data = new byte[(int)file.length()];
+            file.readFully(data);
+            return data;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @return The search terms in the order of the prebuilt index: distinct
+     *     display names, shorter ones first, as EntityTableCompiler sorts them.
+     */
+    private static List<String> readTerms(String path) throws IOException {
+        Set<String> names = new LinkedHashSet<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(",");
+                // Layer names have no fields.
+                if (fields.length == 8) names.add(fields[1]);
+            }
+        } finally {
+            reader.close();
+        }
+        List<String> terms = new ArrayList<String>(names);
+        Collections.sort(terms, new Comparator<String>() {
+                @Override
+                public int compare(String a, String b) {
+                    return a.length() - b.length();
+                }});
+        return terms;
+    }
+
+    /**
+     * @return A piece of {@code term} from a word start on, with up to as
+     *     many random edits as {@link SearchIndex#getMaxEdits} allows.
+     */
+    private static String misspell(String term, Random random) {
+        while (true) {
+            int start = random.nextInt(term.length());
+            if (!isWordStart(term, start)) continue;
+            int length = Math.min(4 + random.nextInt(14), term.length() - start);
+            int maxEdits = SearchIndex.getMaxEdits(length);
+            if (maxEdits == 0) continue;
+
+            StringBuilder query = new StringBuilder(term.substring(start, start + length));
+            int edits = 1 + random.nextInt(maxEdits);
+            for (int e = 0; e < edits && query.length() > 1; ++e) {
+                int i = random.nextInt(query.length() - 1);
+                char c = (char)('a' + random.nextInt(26));
+                switch (random.nextInt(4)) {
+                    case 0:
+                        query.insert(i, c);
+                        break;
+                    case 1:
+                        query.deleteCharAt(i);
+                        break;
+                    case 2:
+                        query.setCharAt(i, c);
+                        break;
+                    case 3:
+                        char swapped = query.charAt(i);
+                        query.setCharAt(i, query.charAt(i + 1));
+                        query.setCharAt(i + 1, swapped);
+                        break;
+                }
+            }
+            return query.toString();
+        }
+    }
+
+    /** @return A piece of {@code term} from a word start on, in random case. */
+    private static String exactQuery(String term, Random random) {
+        while (true) {
+            int start = random.nextInt(term.length());
+            if (!isWordStart(term, start)) continue;
+            int length = 1 + random.nextInt(term.length() - start);
+            StringBuilder query = new StringBuilder(term.substring(start, start + length));
+            for (int i = 0; i < query.length(); ++i) {
+                char c = query.charAt(i);
+                query.setCharAt(i, random.nextBoolean() ?
+                        Character.toUpperCase(c) : Character.toLowerCase(c));
+            }
+            return query.toString();
+        }
+    }
+
+    /** The result {@link SearchIndex#find} must have. */
+    private static int[] regexSearch(String query, List<String> terms) {
+        Pattern p = Pattern.compile("\\b" + Pattern.quote(query),
+                Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+        List<Integer> matches = new ArrayList<Integer>();
+        for (int t = 0; t < terms.size(); ++t)
+            if (p.matcher(terms.get(t)).find()) matches.add(t);
+        int[] result = new int[matches.size()];
+        for (int i = 0; i < result.length; ++i)
+            result[i] = matches.get(i);
+        return result;
+    }
+
+    /**
+     * The result {@link SearchIndex#findFuzzy} must have: the terms with a
+     * substring from a word start on within getMaxEdits() of the query,
+     * closest first, then in term order.
+     */
+    private static int[] bruteForce(String query, String[] folded) {
+        query = query.toLowerCase();
+        int maxEdits = SearchIndex.getMaxEdits(query.length());
+        if (maxEdits == 0) return new int[0];
+        List<int[]> matches = new ArrayList<int[]>();
+        for (int t = 0; t < folded.length; ++t) {
+            int best = Integer.MAX_VALUE;
+            for (int start = 0; start < folded[t].length(); ++start) {
+                if (!isWordStart(folded[t], start)) continue;
+                // A longer substring is more than maxEdits away.
+                int end = Math.min(folded[t].length(), start + query.length() + maxEdits);
+                best = Math.min(best, distanceToPrefix(query, folded[t].substring(start, end)));
+            }
+            if (best <= maxEdits) matches.add(new int[] { best, t });
+        }
+        Collections.sort(matches, new Comparator<int[]>() {
+                @Override
+                public int compare(int[] a, int[] b) {
+                    return a[0] != b[0] ? a[0] - b[0] : a[1] - b[1];
+                }});
+        int[] result = new int[matches.size()];
+        for (int i = 0; i < result.length; ++i)
+            result[i] = matches.get(i)[1];
+        return result;
+    }
+
+    /**
+     * @return The smallest optimal string alignment distance (insertions,
+     *     deletions, substitutions, swaps of adjacent characters) between
+     *     {@code a} and a prefix of {@code b}: d[i][j] is the distance between
+     *     the first i characters of a and the first j of b.
+     */
+    private static int distanceToPrefix(String a, String b) {
+        int m = a.length(), n = b.length();
+        int[][] d = new int[m + 1][n + 1];
+        for (int i = 0; i <= m; ++i) d[i][0] = i;
+        for (int j = 0; j <= n; ++j) d[0][j] = j;
+        for (int i = 1; i <= m; ++i) {
+            for (int j = 1; j <= n; ++j) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1),
+                        d[i - 1][j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) &&
+                        a.charAt(i - 2) == b.charAt(j - 1)) {
+                    d[i][j] = Math.min(d[i][j], d[i - 2][j - 2] + 1);
+                }
+            }
+        }
+        int best = Integer.MAX_VALUE;
+        for (int j = 0; j <= n; ++j)
+            best = Math.min(best, d[m][j]);
+        return best;
+    }
+
+    private static boolean isWordStart(String s, int i) {
+        return i == 0 || !Character.isLetterOrDigit(s.charAt(i - 1));
+    }
+}
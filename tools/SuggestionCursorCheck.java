@@ -0,0 +1,137 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.android.apps.body;
+
+import android.app.SearchManager;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Debug;
+import android.provider.BaseColumns;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the suggestion cursor of {@code BodySearchProvider} with a
+ * {@code MatrixCursor} of the same rows for broad queries: the rows must be
+ * the same, and it prints the time and allocations to build each cursor and
+ * read the columns the search dialog shows. The cursors need the Android
+ * runtime, so this runs on a device, after an ant build has generated
+ * gen/R.java:
+ *
+ * <pre>
+ * javac -cp $ANDROID_SDK/platforms/android-9/android.jar -d /tmp/scc -sourcepath src:gen \
+ *     tools/SuggestionCursorCheck.java
+ * dx --dex --output=/tmp/scc.jar /tmp/scc
+ * adb push /tmp/scc.jar /data/local/tmp
+ * adb push res/raw/f_entities_table /data/local/tmp
+ * adb push res/raw/f_search_index /data/local/tmp
+ * adb shell dalvikvm -cp /data/local/tmp/scc.jar \
+ *     com.google.android.apps.body.SuggestionCursorCheck \
+ *     /data/local/tmp/f_entities_table /data/local/tmp/f_search_index
+ * </pre>
+ *
+ * Exits with status 1 if the rows differ.
+ */
+public class SuggestionCursorCheck {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: SuggestionCursorCheck <entity table> <search index>");
+            System.exit(1);
+        }
+        EntityTable table = new EntityTable(map(new File(args[0])));
+        List<String> terms = new ArrayList<String>();
+        for (int i = 0; i < table.getNumSearchTerms(); ++i)
+            terms.add(table.getDisplayName(table.getSearchRow(i)));
+        SearchIndex index = SearchIndex.read(terms, map(new File(args[1])));
+
+        int mismatches = 0;
+        for (String query : new String[] { "", "a", "s" }) {
+            SearchIndex.Matches matches = index.match(query, null);
+            Cursor cursor = BodySearchProvider.buildSuggestions(
+                    index, matches, Integer.MAX_VALUE, null);
+            int count = cursor.getCount();
+
+            Debug.startAllocCounting();
+            Debug.resetThreadAllocCount();
+            long start = System.nanoTime();
+            MatrixCursor matrix = new MatrixCursor(new String[]{
+                    BaseColumns._ID,
+                    SearchManager.SUGGEST_COLUMN_TEXT_1,
+                    SearchManager.SUGGEST_COLUMN_INTENT_DATA
+            });
+            while (cursor.moveToNext()) {
+                int id = cursor.getInt(0);
+                matrix.newRow().add(id).add(index.getTerm(id))
+                        .add(BodySearchProvider.CONTENT_URI + "/entities/" + (id + 1));
+            }
+            readSuggestions(matrix);
+            long matrixTime = System.nanoTime() - start;
+            int matrixAllocs = Debug.getThreadAllocCount();
+
+            Debug.resetThreadAllocCount();
+            start = System.nanoTime();
+            readSuggestions(BodySearchProvider.buildSuggestions(
+                    index, matches, Integer.MAX_VALUE, null));
+            long time = System.nanoTime() - start;
+            int allocs = Debug.getThreadAllocCount();
+            Debug.stopAllocCounting();
+
+            if (!sameRows(cursor, matrix)) {
+                ++mismatches;
+                System.out.println("Rows differ for '" + query + "'");
+            }
+            System.out.println("Suggestions for '" + query + "': " + count + " rows, " +
+                    time / 1e3f + " us and " + allocs + " allocations vs " +
+                    matrixTime / 1e3f + " us and " + matrixAllocs + " for a MatrixCursor");
+        }
+        if (mismatches > 0) System.exit(1);
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static void readSuggestions(Cursor cursor) {
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            cursor.getString(1);
+            cursor.getString(2);
+        }
+    }
+
+    private static boolean sameRows(Cursor a, Cursor b) {
+        if (a.getCount() != b.getCount()) return false;
+        a.moveToPosition(-1);
+        b.moveToPosition(-1);
+        while (a.moveToNext() && b.moveToNext()) {
+            for (int column = 0; column < 3; ++column) {
+                if (!a.getString(column).equals(b.getString(column))) return false;
+            }
+        }
+        return true;
+    }
+}